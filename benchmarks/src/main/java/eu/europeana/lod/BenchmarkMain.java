@@ -0,0 +1,37 @@
+package eu.europeana.lod;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, always
+ * reporting allocation rates (GC profiler) and writing the results as JSON,
+ * so that runs can be compared.
+ *
+ * @author agent
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(
+				commandLine).addProfiler(GCProfiler.class);
+
+		if (!commandLine.getResultFormat().hasValue()
+				&& !commandLine.getResult().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON).result(
+					"target/jmh-result.json");
+		}
+
+		new Runner(options.build()).run();
+
+	}
+
+}
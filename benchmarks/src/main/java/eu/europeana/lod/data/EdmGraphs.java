@@ -0,0 +1,114 @@
+package eu.europeana.lod.data;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.sparql.util.graph.GraphFactory;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Creates EDM graphs shaped like the Europeana records: a provided CHO, the
+ * provider and Europeana proxies and aggregations, about 40 triples per
+ * record, with multilingual literals.
+ *
+ * @author agent
+ *
+ */
+public class EdmGraphs {
+
+	private static final String BASE = "http://data.europeana.eu";
+
+	private static final String EDM = "http://www.europeana.eu/schemas/edm/";
+
+	private static final String ORE = "http://www.openarchives.org/ore/terms/";
+
+	private static final String DC = "http://purl.org/dc/elements/1.1/";
+
+	private static final String DCTERMS = "http://purl.org/dc/terms/";
+
+	/**
+	 * Returns a graph of a given number of records
+	 */
+	public static Model create(int records) {
+
+		Model model = GraphFactory.makePlainModel();
+		model.setNsPrefix("edm", EDM);
+		model.setNsPrefix("ore", ORE);
+		model.setNsPrefix("dc", DC);
+		model.setNsPrefix("dcterms", DCTERMS);
+
+		for (int i = 0; i < records; i++) {
+			addRecord(model, String.format("%05d/%040X", i % 100, i * 7919L));
+		}
+
+		return model;
+
+	}
+
+	private static void addRecord(Model model, String europeanaID) {
+
+		Resource item = model.createResource(BASE + "/item/" + europeanaID);
+		Resource providerProxy = model.createResource(BASE + "/proxy/provider/"
+				+ europeanaID);
+		Resource europeanaProxy = model.createResource(BASE
+				+ "/proxy/europeana/" + europeanaID);
+		Resource providerAggregation = model.createResource(BASE
+				+ "/aggregation/provider/" + europeanaID);
+		Resource europeanaAggregation = model.createResource(BASE
+				+ "/aggregation/europeana/" + europeanaID);
+
+		item.addProperty(RDF.type, model.createResource(EDM + "ProvidedCHO"));
+
+		providerProxy.addProperty(RDF.type, model.createResource(ORE + "Proxy"));
+		providerProxy.addProperty(p(model, ORE, "proxyFor"), item);
+		providerProxy.addProperty(p(model, ORE, "proxyIn"), providerAggregation);
+		providerProxy.addProperty(p(model, DC, "title"), "Ansicht der Stadt Wien vom Belvedere aus", "de");
+		providerProxy.addProperty(p(model, DC, "title"), "View of Vienna from the Belvedere", "en");
+		providerProxy.addProperty(p(model, DC, "creator"), "Bernardo Bellotto");
+		providerProxy.addProperty(p(model, DC, "date"), "1759-1760");
+		providerProxy.addProperty(p(model, DC, "description"),
+				"Gemälde, Öl auf Leinwand. Blick über die Gärten des Belvedere auf die Innere Stadt mit der Karlskirche, "
+						+ "dem Palais Schwarzenberg und dem Stephansdom; im Vordergrund Figurenstaffage.", "de");
+		providerProxy.addProperty(p(model, DC, "format"), "135 x 213 cm");
+		providerProxy.addProperty(p(model, DC, "identifier"), "GG_1669");
+		providerProxy.addProperty(p(model, DC, "language"), "de");
+		providerProxy.addProperty(p(model, DC, "publisher"), "Kunsthistorisches Museum Wien");
+		providerProxy.addProperty(p(model, DC, "rights"), "© KHM-Museumsverband");
+		for (String subject : new String[] { "Vedute", "Architektur", "Wien",
+				"Barock", "Landschaft" }) {
+			providerProxy.addProperty(p(model, DC, "subject"), subject, "de");
+		}
+		providerProxy.addProperty(p(model, DC, "type"), model.createResource("http://vocab.getty.edu/aat/300033618"));
+		providerProxy.addProperty(p(model, DCTERMS, "spatial"), model.createResource("http://sws.geonames.org/2761369/"));
+		providerProxy.addProperty(p(model, DCTERMS, "medium"), "Öl auf Leinwand", "de");
+		providerProxy.addProperty(p(model, EDM, "type"), "IMAGE");
+
+		europeanaProxy.addProperty(RDF.type, model.createResource(ORE + "Proxy"));
+		europeanaProxy.addProperty(p(model, ORE, "proxyFor"), item);
+		europeanaProxy.addProperty(p(model, ORE, "proxyIn"), europeanaAggregation);
+		europeanaProxy.addProperty(p(model, EDM, "year"), "1759");
+		europeanaProxy.addProperty(p(model, EDM, "year"), "1760");
+		europeanaProxy.addProperty(p(model, DCTERMS, "spatial"), model.createResource("http://sws.geonames.org/2782113/"));
+
+		providerAggregation.addProperty(RDF.type, model.createResource(ORE + "Aggregation"));
+		providerAggregation.addProperty(p(model, EDM, "aggregatedCHO"), item);
+		providerAggregation.addProperty(p(model, EDM, "dataProvider"), "Kunsthistorisches Museum Wien");
+		providerAggregation.addProperty(p(model, EDM, "provider"), "Athena");
+		providerAggregation.addProperty(p(model, EDM, "isShownAt"), model.createResource("http://bilddatenbank.khm.at/viewArtefact?id=" + europeanaID.hashCode()));
+		providerAggregation.addProperty(p(model, EDM, "isShownBy"), model.createResource("http://bilddatenbank.khm.at/images/500/GG_1669.jpg"));
+		providerAggregation.addProperty(p(model, EDM, "rights"), model.createResource("http://www.europeana.eu/rights/rr-f/"));
+
+		europeanaAggregation.addProperty(RDF.type, model.createResource(EDM + "EuropeanaAggregation"));
+		europeanaAggregation.addProperty(p(model, EDM, "aggregatedCHO"), item);
+		europeanaAggregation.addProperty(p(model, EDM, "country"), "austria");
+		europeanaAggregation.addProperty(p(model, EDM, "language"), "de");
+		europeanaAggregation.addProperty(p(model, EDM, "landingPage"), model.createResource("http://www.europeana.eu/portal/record/" + europeanaID + ".html"));
+		europeanaAggregation.addProperty(p(model, EDM, "rights"), model.createResource("http://creativecommons.org/licenses/by-sa/3.0/"));
+
+	}
+
+	private static Property p(Model model, String namespace, String localName) {
+		return model.createProperty(namespace, localName);
+	}
+
+}
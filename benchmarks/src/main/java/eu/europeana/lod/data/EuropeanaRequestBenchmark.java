@@ -0,0 +1,103 @@
+package eu.europeana.lod.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.europeana.lod.data.EuropeanaRequest.ResourceType;
+
+/**
+ * Measures the parsing of request URIs into Europeana requests, for each
+ * resource type, including the derivation of the resource URI.
+ *
+ * @author agent
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EuropeanaRequestBenchmark {
+
+	private static final String EUROPEANA_ID = "00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154";
+
+	@Param({ "PROXY_PROVIDER", "PROXY_EUROPEANA", "AGGREGATION_PROVIDER",
+			"AGGREGATION_EUROPEANA", "RM", "ITEM" })
+	public ResourceType resourceType;
+
+	/**
+	 * Whether the information resource (/data/...) is requested
+	 */
+	@Param({ "true", "false" })
+	public boolean informationResource;
+
+	private HttpServletRequest request;
+
+	@Setup
+	public void setUp() {
+
+		String requestURI = (informationResource ? EuropeanaRequest.IR_PATH
+				: "") + resourceType + EUROPEANA_ID;
+
+		request = createRequest(requestURI, "application/rdf+xml");
+
+	}
+
+	@Benchmark
+	public String parse() throws ServletException {
+
+		EuropeanaRequest europeanaRequest = new EuropeanaRequest(request);
+
+		return europeanaRequest
+				.getNonInformationResourceURI("http://data.europeana.eu");
+
+	}
+
+	/**
+	 * Creates a request that answers only what EuropeanaRequest asks for
+	 */
+	static HttpServletRequest createRequest(final String requestURI,
+			final String accept) {
+
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getRequestURI")) {
+							return requestURI;
+						} else if (name.equals("getHeader")) {
+							return "accept".equalsIgnoreCase((String) args[0]) ? accept
+									: null;
+						} else if (name.equals("getServerName")) {
+							return "data.europeana.eu";
+						} else if (name.equals("getServerPort")) {
+							return 80;
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+
+	}
+
+}
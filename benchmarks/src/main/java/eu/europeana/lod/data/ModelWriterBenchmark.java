@@ -0,0 +1,88 @@
+package eu.europeana.lod.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.rdf.model.Model;
+
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * Measures the model writers (RDF/XML, Turtle, N-Triples) on small, medium and
+ * large EDM graphs.
+ *
+ * @author agent
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelWriterBenchmark {
+
+	@Param({ "RDF", "TTL", "N3" })
+	public ContentType contentType;
+
+	/**
+	 * The graph size: one record (a single data response), 10 or 100 records
+	 * (batch responses)
+	 */
+	@Param({ "small", "medium", "large" })
+	public String size;
+
+	private Model model;
+
+	@Setup
+	public void setUp() {
+
+		int records = size.equals("small") ? 1 : size.equals("medium") ? 10
+				: 100;
+
+		model = EdmGraphs.create(records);
+
+	}
+
+	@Benchmark
+	public long write() throws IOException {
+
+		CountingOutputStream out = new CountingOutputStream();
+		EuropeanaResponse.render(model, contentType, out);
+		return out.count;
+
+	}
+
+	/**
+	 * Counts and discards the written bytes
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+	}
+
+}
@@ -0,0 +1,207 @@
+package eu.europeana.lod.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.util.graph.GraphFactory;
+
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.rdf.TripleStreamWriter;
+import eu.europeana.lod.store.DumpStore;
+import eu.europeana.lod.store.DumpStoreBuilder;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * Compares the RDF/XML writers on one, 10 and 100 EDM records, read from a
+ * dump store as the servlet reads them: Jena's RDF/XML-ABBREV writer and the
+ * plain writer serializing a model built from the store, and the plain
+ * writer streaming the triples as they are read. Reading alone is measured
+ * as the baseline.
+ *
+ * The records are taken from an N-Triples dump of Europeana records, given
+ * by -p dump=&lt;file&gt; (possibly gzip or bzip2 compressed); without a
+ * dump, synthetic records are used.
+ *
+ * @author agent
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RDFXMLWriterBenchmark {
+
+	private static final String BASE = "http://data.europeana.eu";
+
+	/**
+	 * The subjects of a record, besides the item
+	 */
+	private static final String[] RECORD_PATHS = { "/proxy/provider/",
+			"/proxy/europeana/", "/aggregation/provider/",
+			"/aggregation/europeana/" };
+
+	@Param({ "1", "10", "100" })
+	public int records;
+
+	@Param({ "" })
+	public String dump;
+
+	private File directory;
+
+	private DumpStore store;
+
+	private List<String> resourceURIs;
+
+	@Setup
+	public void setUp() throws IOException {
+
+		directory = File.createTempFile("rdfxml-benchmark", "");
+		directory.delete();
+		directory.mkdirs();
+
+		DumpStoreBuilder builder = new DumpStoreBuilder(directory);
+		if (dump.length() > 0) {
+			builder.add(new File(dump));
+		} else {
+			ByteArrayOutputStream ntriples = new ByteArrayOutputStream();
+			EdmGraphs.create(records).write(ntriples, "N-TRIPLE");
+			for (String line : ntriples.toString("UTF-8").split("\n")) {
+				builder.add(line);
+			}
+		}
+		builder.build();
+		store = new DumpStore(directory);
+
+		resourceURIs = new ArrayList<String>();
+		for (long entry = 0; entry < store.getSubjectCount()
+				&& resourceURIs.size() < records * 5; entry++) {
+			String resourceURI = store.getResourceURI(entry);
+			if (resourceURI.startsWith(BASE + "/item/")) {
+				String europeanaID = resourceURI.substring(BASE.length()
+						+ "/item/".length());
+				resourceURIs.add(resourceURI);
+				for (String path : RECORD_PATHS) {
+					resourceURIs.add(BASE + path + europeanaID);
+				}
+			}
+		}
+		if (resourceURIs.size() < records * 5) {
+			throw new IOException("Fewer than " + records + " records in "
+					+ (dump.length() > 0 ? dump : "the synthetic dump"));
+		}
+
+	}
+
+	@TearDown
+	public void tearDown() {
+
+		store.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+
+	}
+
+	/**
+	 * Only reads the records from the store, the baseline of all writers
+	 */
+	@Benchmark
+	public long read() throws IOException {
+
+		final long[] count = { 0 };
+		store.describe(resourceURIs, new TripleHandler() {
+			public void handle(Triple triple) {
+				count[0]++;
+			}
+		});
+		return count[0];
+
+	}
+
+	@Benchmark
+	public long abbrev() throws IOException {
+
+		CountingOutputStream out = new CountingOutputStream();
+		EuropeanaResponse.render(retrieveModel(), ContentType.RDF, true, out);
+		return out.count;
+
+	}
+
+	@Benchmark
+	public long plain() throws IOException {
+
+		CountingOutputStream out = new CountingOutputStream();
+		EuropeanaResponse.render(retrieveModel(), ContentType.RDF, false, out);
+		return out.count;
+
+	}
+
+	@Benchmark
+	public long streamed() throws IOException {
+
+		CountingOutputStream out = new CountingOutputStream();
+		TripleStreamWriter writer = EuropeanaResponse.createStreamWriter(
+				ContentType.RDF, out);
+		store.describe(resourceURIs, writer);
+		writer.finish();
+		return out.count;
+
+	}
+
+	private Model retrieveModel() throws IOException {
+
+		Model model = GraphFactory.makePlainModel();
+		final Graph graph = model.getGraph();
+		store.describe(resourceURIs, new TripleHandler() {
+			public void handle(Triple triple) {
+				graph.add(triple);
+			}
+		});
+		return model;
+
+	}
+
+	/**
+	 * Counts and discards the written bytes
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+	}
+
+}
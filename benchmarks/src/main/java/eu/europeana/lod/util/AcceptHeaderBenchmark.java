@@ -0,0 +1,57 @@
+package eu.europeana.lod.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.europeana.lod.util.AcceptHeaderHandler.MimeTypePattern;
+
+/**
+ * Measures accept header negotiation on headers sent by browsers and linked
+ * data crawlers, both memoized (getMimeType) and parsed from scratch.
+ *
+ * @author agent
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AcceptHeaderBenchmark {
+
+	@Param({
+			// Chrome
+			"text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7",
+			// Firefox
+			"text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+			// curl, wget
+			"*/*",
+			// LOD crawlers (LDSpider, Sindice)
+			"application/rdf+xml;q=1.0, text/turtle;q=0.9, text/n3;q=0.8, application/xhtml+xml;q=0.5, text/html;q=0.1",
+			"text/turtle, application/rdf+xml;q=0.9, application/n-triples;q=0.8, */*;q=0.1",
+			// RDF libraries (rdflib, Jena)
+			"application/rdf+xml, text/rdf+n3;q=0.9, application/xhtml+xml;q=0.3, text/html;q=0.2, */*;q=0.1" })
+	public String acceptHeader;
+
+	@Benchmark
+	public MimeTypePattern getMimeType() {
+		return AcceptHeaderHandler.getMimeType(acceptHeader);
+	}
+
+	@Benchmark
+	public MimeTypePattern parse() {
+		return new AcceptHeaderHandler(acceptHeader).getPreferredMimeType();
+	}
+
+}
@@ -0,0 +1,127 @@
+package eu.europeana.lod.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the latencies and status codes of the requests of one kind. Each
+ * worker thread has its own recorders, which are merged after the run, so
+ * recording needs no synchronization.
+ *
+ * @author agent
+ *
+ */
+public class LatencyRecorder {
+
+	private long[] latencies = new long[1024];
+
+	private int count = 0;
+
+	private final Map<Integer, Integer> statusCounts = new TreeMap<Integer, Integer>();
+
+	private int unexpected = 0;
+
+	private int failures = 0;
+
+	/**
+	 * Records a response
+	 *
+	 * @param nanos
+	 *            the time from sending the request to reading the last byte
+	 * @param status
+	 *            the response status code
+	 * @param expected
+	 *            whether the status code was the expected one
+	 */
+	public void record(long nanos, int status, boolean expected) {
+		add(nanos);
+		Integer statusCount = statusCounts.get(status);
+		statusCounts.put(status, statusCount == null ? 1 : statusCount + 1);
+		if (!expected) {
+			unexpected++;
+		}
+	}
+
+	/**
+	 * Records a request that failed without a response (connection errors,
+	 * timeouts)
+	 */
+	public void recordFailure(long nanos) {
+		add(nanos);
+		failures++;
+	}
+
+	private void add(long nanos) {
+		if (count == latencies.length) {
+			latencies = Arrays.copyOf(latencies, count * 2);
+		}
+		latencies[count++] = nanos;
+	}
+
+	/**
+	 * Adds everything recorded by another recorder
+	 */
+	public void merge(LatencyRecorder other) {
+		for (int i = 0; i < other.count; i++) {
+			add(other.latencies[i]);
+		}
+		for (Map.Entry<Integer, Integer> entry : other.statusCounts.entrySet()) {
+			Integer statusCount = statusCounts.get(entry.getKey());
+			statusCounts.put(entry.getKey(), (statusCount == null ? 0
+					: statusCount) + entry.getValue());
+		}
+		unexpected += other.unexpected;
+		failures += other.failures;
+	}
+
+	/**
+	 * Returns the number of recorded requests
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of responses with an unexpected status code
+	 */
+	public int getUnexpected() {
+		return unexpected;
+	}
+
+	/**
+	 * Returns the number of requests without a response
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the number of responses per status code
+	 */
+	public Map<Integer, Integer> getStatusCounts() {
+		return statusCounts;
+	}
+
+	/**
+	 * Returns the latencies (ns) at the given percentiles (0-100), by the
+	 * nearest-rank method
+	 */
+	public long[] getPercentiles(double... percentiles) {
+
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+
+		long[] values = new long[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			if (count == 0) {
+				continue;
+			}
+			int rank = (int) Math.ceil(percentiles[i] / 100 * count);
+			values[i] = sorted[Math.min(count - 1, Math.max(0, rank - 1))];
+		}
+		return values;
+
+	}
+
+}
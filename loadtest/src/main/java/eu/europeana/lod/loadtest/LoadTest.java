@@ -0,0 +1,362 @@
+package eu.europeana.lod.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import eu.europeana.lod.data.EuropeanaLODServlet;
+import eu.europeana.lod.loadtest.Workload.Kind;
+
+/**
+ * Load tests the servlet end-to-end, without a real triple store: the servlet
+ * runs in embedded Jetty against a {@link StubEndpoint}, and a fixed number
+ * of clients send a {@link Workload} of redirect and data requests for a
+ * given time. Reports throughput, latency percentiles and status codes per
+ * kind of request.
+ *
+ * @author agent
+ *
+ */
+public class LoadTest {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+
+	private final Map<String, String> initParameters = new LinkedHashMap<String, String>();
+
+	public LoadTest() {
+		options.put("concurrency", "16");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("redirectRatio", "0.5");
+		options.put("resources", "1000");
+		options.put("latency", "10");
+		options.put("jitter", "5");
+		options.put("errorRate", "0");
+		options.put("stallRate", "0");
+		options.put("stallTime", "1500");
+		options.put("gzip", "false");
+		// stalled upstream requests run into the read timeout
+		initParameters.put("upstreamReadTimeout", "1000");
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		// Jena ships slf4j 1.5, which is too old for Jetty 8
+		if (System.getProperty("org.eclipse.jetty.util.log.class") == null) {
+			System.setProperty("org.eclipse.jetty.util.log.class",
+					"org.eclipse.jetty.util.log.StdErrLog");
+			System.setProperty("org.eclipse.jetty.LEVEL", "WARN");
+		}
+
+		LoadTest loadTest = new LoadTest();
+		if (args.length == 0 || !loadTest.parse(args)) {
+			loadTest.printUsage();
+			if (args.length > 0) {
+				System.exit(1);
+			}
+			return;
+		}
+
+		loadTest.run();
+
+	}
+
+	/**
+	 * Parses the command line; returns false if it is invalid
+	 */
+	boolean parse(String[] args) {
+
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].replaceFirst("^-+", "");
+			if (name.equals("gzip")) {
+				options.put(name, "true");
+			} else if (i + 1 == args.length) {
+				return false;
+			} else if (name.equals("init")) {
+				String[] parameter = args[++i].split("=", 2);
+				if (parameter.length != 2) {
+					return false;
+				}
+				initParameters.put(parameter[0], parameter[1]);
+			} else if (options.containsKey(name)) {
+				options.put(name, args[++i]);
+			} else {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+	void printUsage() {
+		System.out.println("Usage: java -jar loadtest.jar [options]\n\n"
+				+ "  -concurrency n      concurrent clients (16)\n"
+				+ "  -duration s         measured time (30)\n"
+				+ "  -warmup s           unmeasured time before (5)\n"
+				+ "  -redirectRatio r    fraction of redirect requests (0.5)\n"
+				+ "  -resources n        distinct records requested (1000)\n"
+				+ "  -latency ms         stub endpoint latency (10)\n"
+				+ "  -jitter ms          random extra stub latency (5)\n"
+				+ "  -errorRate r        fraction of stub responses with 503 (0)\n"
+				+ "  -stallRate r        fraction of stalled stub responses (0)\n"
+				+ "  -stallTime ms       delay of stalled stub responses (1500)\n"
+				+ "  -gzip               accept gzip encoded responses\n"
+				+ "  -init name=value    servlet init parameter, repeatable\n"
+				+ "                      (upstreamReadTimeout=1000)");
+	}
+
+	void run() throws Exception {
+
+		int concurrency = Integer.parseInt(options.get("concurrency"));
+		long duration = Long.parseLong(options.get("duration")) * 1000;
+		long warmup = Long.parseLong(options.get("warmup")) * 1000;
+		final boolean gzip = Boolean.parseBoolean(options.get("gzip"));
+
+		StubEndpoint stub = new StubEndpoint(
+				Long.parseLong(options.get("latency")),
+				Long.parseLong(options.get("jitter")),
+				Double.parseDouble(options.get("errorRate")),
+				Double.parseDouble(options.get("stallRate")),
+				Long.parseLong(options.get("stallTime")));
+
+		final Workload workload = new Workload(
+				Double.parseDouble(options.get("redirectRatio")),
+				Integer.parseInt(options.get("resources")));
+
+		Server stubServer = createServer(concurrency);
+		ServletContextHandler stubContext = new ServletContextHandler();
+		stubContext.setContextPath("/");
+		ServletHolder stubHolder = new ServletHolder(stub);
+		stubContext.addServlet(stubHolder, "/sparql");
+		stubContext.addServlet(stubHolder, "/resource");
+		stubServer.setHandler(stubContext);
+		stubServer.start();
+
+		if (!initParameters.containsKey("sparqlEndpoint")) {
+			initParameters.put("sparqlEndpoint", "http://127.0.0.1:"
+					+ getPort(stubServer) + "/sparql");
+		}
+
+		Server server = createServer(concurrency);
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath("/");
+		ServletHolder holder = new ServletHolder(EuropeanaLODServlet.class);
+		holder.setAsyncSupported(true);
+		holder.setInitParameters(initParameters);
+		context.addServlet(holder, "/*");
+		server.setHandler(context);
+		server.start();
+
+		final String baseURL = "http://127.0.0.1:" + getPort(server);
+
+		System.out.println("Options: " + options);
+		System.out.println("Servlet: " + initParameters);
+		System.out.println("Running " + concurrency + " clients against "
+				+ baseURL + " for " + (warmup + duration) / 1000 + "s ("
+				+ warmup / 1000 + "s warm-up)");
+
+		final CloseableHttpClient httpClient = HttpClients.custom()
+				.setMaxConnTotal(concurrency)
+				.setMaxConnPerRoute(concurrency)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setSocketTimeout(60000).build())
+				.disableRedirectHandling().disableContentCompression()
+				.disableCookieManagement().build();
+
+		final long start = System.currentTimeMillis();
+		final long measureFrom = start + warmup;
+		final long end = measureFrom + duration;
+
+		List<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < concurrency; i++) {
+			Client client = new Client(httpClient, baseURL, workload, gzip,
+					measureFrom, end);
+			client.start();
+			clients.add(client);
+		}
+
+		Map<Kind, LatencyRecorder> results = new EnumMap<Kind, LatencyRecorder>(
+				Kind.class);
+		for (Kind kind : Kind.values()) {
+			results.put(kind, new LatencyRecorder());
+		}
+		for (Client client : clients) {
+			client.join();
+			for (Kind kind : Kind.values()) {
+				results.get(kind).merge(client.recorders.get(kind));
+			}
+		}
+
+		httpClient.close();
+		server.stop();
+		stubServer.stop();
+
+		report(results, duration, stub);
+
+	}
+
+	/**
+	 * Prints throughput and latency percentiles per kind of request
+	 */
+	private static void report(Map<Kind, LatencyRecorder> results,
+			long duration, StubEndpoint stub) {
+
+		LatencyRecorder total = new LatencyRecorder();
+		for (LatencyRecorder recorder : results.values()) {
+			total.merge(recorder);
+		}
+
+		System.out.println();
+		System.out.println(String.format(
+				"%-9s %9s %9s %9s %9s %9s %9s %9s %10s %9s", "", "requests",
+				"req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+				"unexpected", "failed"));
+		for (Kind kind : Kind.values()) {
+			printRow(kind.toString().toLowerCase(), results.get(kind), duration);
+		}
+		printRow("total", total, duration);
+
+		System.out.println();
+		for (Kind kind : Kind.values()) {
+			System.out.println("Status codes (" + kind.toString().toLowerCase()
+					+ "): " + results.get(kind).getStatusCounts());
+		}
+		System.out.println("Stub endpoint: " + stub.getRequests()
+				+ " requests, " + stub.getErrors() + " injected errors, "
+				+ stub.getStalls() + " injected stalls");
+
+	}
+
+	private static void printRow(String name, LatencyRecorder recorder,
+			long duration) {
+
+		long[] percentiles = recorder.getPercentiles(PERCENTILES);
+		System.out.println(String.format(
+				"%-9s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %10d %9d", name,
+				recorder.getCount(), recorder.getCount() * 1000.0 / duration,
+				percentiles[0] / 1e6, percentiles[1] / 1e6,
+				percentiles[2] / 1e6, percentiles[3] / 1e6,
+				percentiles[4] / 1e6, recorder.getUnexpected(),
+				recorder.getFailures()));
+
+	}
+
+	private static Server createServer(int concurrency) {
+
+		Server server = new Server();
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		server.addConnector(connector);
+
+		// requests block while waiting for the (stub) endpoint
+		QueuedThreadPool threadPool = new QueuedThreadPool(Math.max(254,
+				concurrency * 4));
+		server.setThreadPool(threadPool);
+
+		return server;
+
+	}
+
+	private static int getPort(Server server) {
+		return server.getConnectors()[0].getLocalPort();
+	}
+
+	/**
+	 * A client sending one request after the other (closed loop) until the
+	 * end of the run; only responses received after the warm-up are recorded
+	 */
+	private static class Client extends Thread {
+
+		private final CloseableHttpClient httpClient;
+
+		private final String baseURL;
+
+		private final Workload workload;
+
+		private final boolean gzip;
+
+		private final long measureFrom;
+
+		private final long end;
+
+		private final Map<Kind, LatencyRecorder> recorders = new EnumMap<Kind, LatencyRecorder>(
+				Kind.class);
+
+		Client(CloseableHttpClient httpClient, String baseURL,
+				Workload workload, boolean gzip, long measureFrom, long end) {
+			super("loadtest-client");
+			this.httpClient = httpClient;
+			this.baseURL = baseURL;
+			this.workload = workload;
+			this.gzip = gzip;
+			this.measureFrom = measureFrom;
+			this.end = end;
+			for (Kind kind : Kind.values()) {
+				recorders.put(kind, new LatencyRecorder());
+			}
+		}
+
+		@Override
+		public void run() {
+
+			Random random = ThreadLocalRandom.current();
+
+			while (System.currentTimeMillis() < end) {
+
+				Workload.Request request = workload.next(random);
+
+				HttpGet get = new HttpGet(baseURL + request.getPath());
+				get.setHeader("Accept", request.getAccept());
+				if (gzip) {
+					get.setHeader("Accept-Encoding", "gzip");
+				}
+
+				long started = System.nanoTime();
+				int status = -1;
+				try {
+					HttpResponse response = httpClient.execute(get);
+					status = response.getStatusLine().getStatusCode();
+					EntityUtils.consume(response.getEntity());
+				} catch (IOException e) {
+					get.abort();
+				}
+				long nanos = System.nanoTime() - started;
+
+				if (System.currentTimeMillis() < measureFrom) {
+					continue;
+				}
+
+				LatencyRecorder recorder = recorders.get(request.getKind());
+				if (status < 0) {
+					recorder.recordFailure(nanos);
+				} else {
+					recorder.record(nanos, status, request.isExpected(status));
+				}
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,230 @@
+package eu.europeana.lod.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A stub of the triple store's resource service (/resource?uri=) and SPARQL
+ * endpoint (/sparql, DESCRIBE queries only). It answers with canned EDM
+ * RDF/XML for any Europeana resource URI, after a configurable latency, and
+ * injects errors (503) and stalls (responses slower than the servlet's read
+ * timeout) at configurable rates.
+ *
+ * @author agent
+ *
+ */
+public class StubEndpoint extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Pattern DESCRIBED_URI = Pattern.compile("<([^>]+)>");
+
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+			+ "    xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n"
+			+ "    xmlns:dcterms=\"http://purl.org/dc/terms/\"\n"
+			+ "    xmlns:edm=\"http://www.europeana.eu/schemas/edm/\"\n"
+			+ "    xmlns:ore=\"http://www.openarchives.org/ore/terms/\">\n";
+
+	private static final String FOOTER = "</rdf:RDF>\n";
+
+	// %1$s: the described URI, %2$s: the Europeana ID
+	private static final String DESCRIPTION = "  <rdf:Description rdf:about=\"%1$s\">\n"
+			+ "    <rdf:type rdf:resource=\"http://www.openarchives.org/ore/terms/Proxy\"/>\n"
+			+ "    <ore:proxyFor rdf:resource=\"http://data.europeana.eu/item/%2$s\"/>\n"
+			+ "    <ore:proxyIn rdf:resource=\"http://data.europeana.eu/aggregation/provider/%2$s\"/>\n"
+			+ "    <dc:title xml:lang=\"de\">Ansicht der Stadt Wien vom Belvedere aus</dc:title>\n"
+			+ "    <dc:title xml:lang=\"en\">View of Vienna from the Belvedere</dc:title>\n"
+			+ "    <dc:creator>Bernardo Bellotto</dc:creator>\n"
+			+ "    <dc:date>1759-1760</dc:date>\n"
+			+ "    <dc:description xml:lang=\"de\">Gemälde, Öl auf Leinwand. Blick über die Gärten des Belvedere auf die Innere Stadt "
+			+ "mit der Karlskirche, dem Palais Schwarzenberg und dem Stephansdom; im Vordergrund Figurenstaffage.</dc:description>\n"
+			+ "    <dc:format>135 x 213 cm</dc:format>\n"
+			+ "    <dc:identifier>%2$s</dc:identifier>\n"
+			+ "    <dc:publisher>Kunsthistorisches Museum Wien</dc:publisher>\n"
+			+ "    <dc:rights>© KHM-Museumsverband</dc:rights>\n"
+			+ "    <dc:subject xml:lang=\"de\">Vedute</dc:subject>\n"
+			+ "    <dc:subject xml:lang=\"de\">Architektur</dc:subject>\n"
+			+ "    <dc:subject xml:lang=\"de\">Wien</dc:subject>\n"
+			+ "    <dc:subject xml:lang=\"de\">Barock</dc:subject>\n"
+			+ "    <dc:type rdf:resource=\"http://vocab.getty.edu/aat/300033618\"/>\n"
+			+ "    <dcterms:spatial rdf:resource=\"http://sws.geonames.org/2761369/\"/>\n"
+			+ "    <dcterms:medium xml:lang=\"de\">Öl auf Leinwand</dcterms:medium>\n"
+			+ "    <dcterms:isPartOf>\n"
+			+ "      <rdf:Description>\n"
+			+ "        <dc:title>Gemäldegalerie</dc:title>\n"
+			+ "      </rdf:Description>\n"
+			+ "    </dcterms:isPartOf>\n"
+			+ "    <edm:type>IMAGE</edm:type>\n"
+			+ "    <edm:year>1759</edm:year>\n"
+			+ "    <edm:year>1760</edm:year>\n"
+			+ "  </rdf:Description>\n";
+
+	private final long latency;
+
+	private final long jitter;
+
+	private final double errorRate;
+
+	private final double stallRate;
+
+	private final long stallTime;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong stalls = new AtomicLong();
+
+	/**
+	 * Creates a new stub endpoint
+	 *
+	 * @param latency
+	 *            the minimum time (ms) until a response is sent
+	 * @param jitter
+	 *            the maximum time (ms) randomly added to the latency
+	 * @param errorRate
+	 *            the fraction of requests answered with 503
+	 * @param stallRate
+	 *            the fraction of requests answered only after the stall time
+	 * @param stallTime
+	 *            the time (ms) stalled requests are delayed
+	 */
+	public StubEndpoint(long latency, long jitter, double errorRate,
+			double stallRate, long stallTime) {
+		this.latency = latency;
+		this.jitter = jitter;
+		this.errorRate = errorRate;
+		this.stallRate = stallRate;
+		this.stallTime = stallTime;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		String uri = req.getParameter("uri");
+		if (req.getRequestURI().endsWith("/resource") && uri != null) {
+			List<String> resourceURIs = new ArrayList<String>();
+			resourceURIs.add(uri);
+			answer(resourceURIs, resp);
+		} else if (req.getRequestURI().endsWith("/sparql")
+				&& req.getParameter("query") != null) {
+			answer(getDescribedURIs(req.getParameter("query")), resp);
+		} else {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+		}
+
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		if (req.getRequestURI().endsWith("/sparql")
+				&& req.getParameter("query") != null) {
+			answer(getDescribedURIs(req.getParameter("query")), resp);
+		} else {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+		}
+
+	}
+
+	/**
+	 * Describes the given resources, unless an error or stall is injected
+	 */
+	private void answer(List<String> resourceURIs, HttpServletResponse resp)
+			throws IOException {
+
+		requests.incrementAndGet();
+
+		Random random = ThreadLocalRandom.current();
+
+		long delay = latency + (jitter > 0 ? random.nextInt((int) jitter + 1) : 0);
+		if (random.nextDouble() < stallRate) {
+			stalls.incrementAndGet();
+			delay = stallTime;
+		}
+		sleep(delay);
+
+		if (random.nextDouble() < errorRate) {
+			errors.incrementAndGet();
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"Injected error");
+			return;
+		}
+
+		StringBuilder body = new StringBuilder(HEADER);
+		for (String resourceURI : resourceURIs) {
+			String europeanaID = resourceURI.replaceFirst(
+					"^.*/([^/]+/[^/]+)$", "$1");
+			body.append(String.format(DESCRIPTION, resourceURI, europeanaID));
+		}
+		body.append(FOOTER);
+
+		byte[] bytes = body.toString().getBytes("UTF-8");
+		resp.setContentType("application/rdf+xml");
+		resp.setContentLength(bytes.length);
+		OutputStream out = resp.getOutputStream();
+		out.write(bytes);
+		out.close();
+
+	}
+
+	/**
+	 * Returns the URIs listed in a DESCRIBE query
+	 */
+	static List<String> getDescribedURIs(String query) {
+		List<String> resourceURIs = new ArrayList<String>();
+		Matcher matcher = DESCRIBED_URI.matcher(query);
+		while (matcher.find()) {
+			resourceURIs.add(matcher.group(1));
+		}
+		return resourceURIs;
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of requests received
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of injected errors
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * Returns the number of injected stalls
+	 */
+	public long getStalls() {
+		return stalls.get();
+	}
+
+}
@@ -0,0 +1,122 @@
+package eu.europeana.lod.loadtest;
+
+import java.util.Random;
+
+import eu.europeana.lod.data.EuropeanaRequest;
+import eu.europeana.lod.data.EuropeanaRequest.ResourceType;
+
+/**
+ * A mix of redirect requests (non-information resources, answered with 303)
+ * and data requests (information resources, answered with RDF), over a fixed
+ * set of resources and the supported Accept headers.
+ *
+ * @author agent
+ *
+ */
+public class Workload {
+
+	/**
+	 * The kinds of requests, each with its own statistics
+	 */
+	public static enum Kind {
+		REDIRECT, DATA
+	}
+
+	/**
+	 * A single request of the workload
+	 */
+	public static class Request {
+
+		private final Kind kind;
+
+		private final String path;
+
+		private final String accept;
+
+		Request(Kind kind, String path, String accept) {
+			this.kind = kind;
+			this.path = path;
+			this.accept = accept;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getAccept() {
+			return accept;
+		}
+
+		/**
+		 * Returns whether a given status code is the expected answer
+		 */
+		public boolean isExpected(int status) {
+			return kind == Kind.REDIRECT ? status == 303 : status == 200;
+		}
+
+	}
+
+	private static final String[] DOCUMENT_ACCEPT = {
+			"text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+			"text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8" };
+
+	private static final String[] DATA_ACCEPT = { "application/rdf+xml",
+			"text/turtle", "text/n3",
+			"application/rdf+xml, text/rdf+n3;q=0.9, */*;q=0.1" };
+
+	private final double redirectRatio;
+
+	private final int resources;
+
+	/**
+	 * Creates a new workload
+	 *
+	 * @param redirectRatio
+	 *            the fraction (0-1) of redirect requests
+	 * @param resources
+	 *            the number of distinct records requested; the fewer, the
+	 *            more requests are answered from the servlet's cache
+	 */
+	public Workload(double redirectRatio, int resources) {
+		this.redirectRatio = redirectRatio;
+		this.resources = resources;
+	}
+
+	/**
+	 * Returns the next random request
+	 */
+	public Request next(Random random) {
+
+		ResourceType[] types = ResourceType.values();
+		ResourceType type = types[random.nextInt(types.length)];
+		String path = type + getEuropeanaID(random.nextInt(resources));
+
+		if (random.nextDouble() < redirectRatio) {
+			// browsers are sent to the portal, RDF clients to /data
+			String accept = random.nextBoolean() ? pick(DOCUMENT_ACCEPT,
+					random) : pick(DATA_ACCEPT, random);
+			return new Request(Kind.REDIRECT, path, accept);
+		}
+
+		return new Request(Kind.DATA, EuropeanaRequest.IR_PATH + path, pick(
+				DATA_ACCEPT, random));
+
+	}
+
+	/**
+	 * Returns the Europeana ID (collection/hash) of the i-th record
+	 */
+	static String getEuropeanaID(int i) {
+		return String.format("%05d/%040X", 92000 + i % 100,
+				i * 2654435761L);
+	}
+
+	private static String pick(String[] values, Random random) {
+		return values[random.nextInt(values.length)];
+	}
+
+}
@@ -0,0 +1,115 @@
+package eu.europeana.lod.cache;
+
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * A serialized data response, as it is kept in the {@link ResponseCache}.
+ * 
+ * Besides the plain body, a response may hold its gzip encoded body, so that
+ * it is compressed once rather than for every client accepting gzip. One of
+ * both bodies may be missing if the response is not kept in the cache.
+ * 
+ * @author agent
+ * 
+ */
+public class CachedResponse {
+
+	private final String resourceURI;
+
+	private final ContentType contentType;
+
+	private final byte[] body;
+
+	private final byte[] gzipBody;
+
+	private final String etag;
+
+	private final long created;
+
+	private final long expires;
+
+	public CachedResponse(String resourceURI, ContentType contentType,
+			byte[] body, String etag, long created, long expires) {
+		this(resourceURI, contentType, body, null, etag, created, expires);
+	}
+
+	public CachedResponse(String resourceURI, ContentType contentType,
+			byte[] body, byte[] gzipBody, String etag, long created,
+			long expires) {
+		this.resourceURI = resourceURI;
+		this.contentType = contentType;
+		this.body = body;
+		this.gzipBody = gzipBody;
+		this.etag = etag;
+		this.created = created;
+		this.expires = expires;
+	}
+
+	/**
+	 * Returns a copy of this response also holding a given gzip encoded body
+	 */
+	public CachedResponse withGzipBody(byte[] gzipBody) {
+		return new CachedResponse(resourceURI, contentType, body, gzipBody,
+				etag, created, expires);
+	}
+
+	/**
+	 * Returns the non-information resource URI this response describes
+	 */
+	public String getResourceURI() {
+		return resourceURI;
+	}
+
+	/**
+	 * Returns the content type the body is serialized in
+	 */
+	public ContentType getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the serialized response body; must not be modified
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	/**
+	 * Returns the gzip encoded response body; null if it has not been
+	 * compressed yet
+	 */
+	public byte[] getGzipBody() {
+		return gzipBody;
+	}
+
+	/**
+	 * Returns the (strong) entity tag of this response
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Returns the time (ms) this response was created
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Returns whether this response must no longer be served at a given
+	 * time (ms)
+	 */
+	public boolean isExpired(long now) {
+		return now >= expires;
+	}
+
+	/**
+	 * Returns the number of bytes this response occupies in the cache
+	 */
+	public long getSize() {
+		return (body == null ? 0 : body.length)
+				+ (gzipBody == null ? 0 : gzipBody.length);
+	}
+
+}
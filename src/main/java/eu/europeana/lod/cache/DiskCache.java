@@ -0,0 +1,1226 @@
+package eu.europeana.lod.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * A persistent second level of the {@link ResponseCache}: serialized data
+ * responses are kept on disk, so that they survive restarts and redeploys
+ * and far more responses can be cached than fit into the heap.
+ *
+ * Responses are appended to segment files, one record per response: a
+ * header, the key (content type and resource URI), the entity tag and the
+ * plain and gzip encoded bodies. A memory-mapped hash table indexes the
+ * latest record of each key, so opening the cache only maps the index; an
+ * index that was not closed cleanly is rebuilt from the segments.
+ *
+ * Records expire after a fixed time-to-live. Once the segments exceed the
+ * byte budget, the oldest segment is compacted: its records that are still
+ * indexed and not expired are copied to the current segment, unless they
+ * fill three quarters of the budget already, in which case they are
+ * evicted. Bodies are transferred from the segments to clients without
+ * reading them into the heap.
+ *
+ * Appends and compactions run on a single writer thread, fed by a queue
+ * bounded in bytes; responses arriving while the queue is full are dropped.
+ * The writer is the only thread changing the index and the segments, so it
+ * copies records without holding the lock and only takes it to update the
+ * index, which keeps lookups from waiting for disk writes.
+ *
+ * @author agent
+ *
+ */
+public class DiskCache {
+
+	static final String INDEX_FILE = "cache.idx";
+
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	private static final String SEGMENT_SUFFIX = ".dat";
+
+	private static final int INDEX_MAGIC = 0x454c4931;
+
+	private static final int RECORD_MAGIC = 0x454c5231;
+
+	/**
+	 * The size of the index header: magic (4), clean flag (4), slot count (4)
+	 * and padding (4)
+	 */
+	static final int HEADER_SIZE = 16;
+
+	/**
+	 * The size of an index slot: key hash (8), expiry time (8), segment (4),
+	 * record offset (4), record length (4) and padding (4)
+	 */
+	static final int SLOT_SIZE = 32;
+
+	/**
+	 * The size of a record header: magic (4), key length (4), entity tag
+	 * length (4), creation time (8), expiry time (8), body length (4) and
+	 * gzip body length (4)
+	 */
+	static final int RECORD_HEADER_SIZE = 36;
+
+	/**
+	 * The segment of a slot that was never used; segments are numbered from 1
+	 */
+	private static final int EMPTY = 0;
+
+	/**
+	 * The segment of a slot whose record was removed
+	 */
+	private static final int DELETED = -1;
+
+	/**
+	 * The average record size the index is initially sized for
+	 */
+	private static final int EXPECTED_RECORD_SIZE = 8192;
+
+	private static final int MIN_SLOTS = 1024;
+
+	private static final int MAX_SLOTS = 1 << 25;
+
+	private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+	private static final long MAX_SEGMENT_BYTES = 256 * 1024 * 1024;
+
+	private static final int MAX_KEY_BYTES = 64 * 1024;
+
+	/**
+	 * The maximum number of body bytes waiting to be written
+	 */
+	private static final long MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+
+	private final File directory;
+
+	private final long maxBytes;
+
+	private final long ttl;
+
+	private final long segmentBytes;
+
+	/**
+	 * Guards the index, the segment map and the byte counts against the
+	 * writer thread, which changes them under the write lock only
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * The responses waiting to be written; also guards the writer state
+	 */
+	private final LinkedList<CachedResponse> queue = new LinkedList<CachedResponse>();
+
+	private long queuedBytes = 0;
+
+	private boolean writing = false;
+
+	private boolean stopping = false;
+
+	private final Thread writer;
+
+	/**
+	 * The segments by number; the last one is appended to
+	 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+	private MappedByteBuffer index;
+
+	private int slots;
+
+	/**
+	 * The number of slots not empty, i.e., indexing a record or deleted
+	 */
+	private int used = 0;
+
+	private int entries = 0;
+
+	private long liveBytes = 0;
+
+	private long totalBytes = 0;
+
+	private boolean rebuilt = false;
+
+	private volatile boolean closed = false;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong writes = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong compactions = new AtomicLong();
+
+	/**
+	 * Opens the disk cache in a given directory, creating it if necessary
+	 *
+	 * @param maxBytes
+	 *            the maximum number of bytes kept in segment files
+	 * @param ttl
+	 *            the time-to-live of a cached response in milliseconds
+	 */
+	public DiskCache(File directory, long maxBytes, long ttl)
+			throws IOException {
+		this(directory, maxBytes, ttl, Math.max(MIN_SEGMENT_BYTES, Math.min(
+				MAX_SEGMENT_BYTES, maxBytes / 16)));
+	}
+
+	/**
+	 * Opens the disk cache in a given directory, creating it if necessary
+	 *
+	 * @param maxBytes
+	 *            the maximum number of bytes kept in segment files
+	 * @param ttl
+	 *            the time-to-live of a cached response in milliseconds
+	 * @param segmentBytes
+	 *            the size at which a new segment file is started; also the
+	 *            maximum size of a record
+	 */
+	public DiskCache(File directory, long maxBytes, long ttl,
+			long segmentBytes) throws IOException {
+
+		if (segmentBytes > MAX_SEGMENT_BYTES) {
+			throw new IllegalArgumentException("Segments must not exceed "
+					+ MAX_SEGMENT_BYTES + " bytes");
+		}
+
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+		this.segmentBytes = segmentBytes;
+
+		directory.mkdirs();
+		if (!directory.isDirectory()) {
+			throw new IOException("Could not create disk cache " + directory);
+		}
+
+		for (File file : directory.listFiles()) {
+			String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				int number = Integer.parseInt(name.substring(SEGMENT_PREFIX
+						.length(), name.length() - SEGMENT_SUFFIX.length()));
+				Segment segment = new Segment(number, file);
+				segments.put(number, segment);
+				totalBytes += segment.size;
+			}
+		}
+		if (segments.isEmpty()) {
+			addSegment(1);
+		}
+
+		if (!openIndex()) {
+			rebuildIndex();
+		}
+
+		// the index is only clean again once it is closed
+		index.putInt(4, 0);
+		index.force();
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeQueued();
+			}
+		}, "europeana-lod-disk-cache");
+		writer.setDaemon(true);
+		writer.start();
+
+	}
+
+	/**
+	 * Returns the cached response for a given resource and content type;
+	 * null if there is none or if it has expired. The entry must be released
+	 * once its bodies have been read.
+	 */
+	public Entry get(String resourceURI, ContentType contentType)
+			throws IOException {
+
+		String key = key(resourceURI, contentType);
+		long hash = hash(key);
+
+		lock.readLock().lock();
+		try {
+			if (!closed) {
+				int slot = find(hash);
+				if (slot >= 0) {
+					Record record = readIndexed(slot, key,
+							System.currentTimeMillis());
+					if (record != null) {
+						hits.incrementAndGet();
+						return new Entry(record, segments.get(index
+								.getInt(position(slot) + 16)));
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Queues a response to be appended to the current segment. Responses
+	 * without plain body, expired or larger than a segment are not queued,
+	 * nor are responses while the queue is full; returns whether the
+	 * response was queued.
+	 */
+	public boolean put(CachedResponse response) {
+
+		if (response.getBody() == null
+				|| response.getCreated() + ttl <= System.currentTimeMillis()
+				|| RECORD_HEADER_SIZE + response.getSize() > segmentBytes) {
+			return false;
+		}
+
+		synchronized (queue) {
+			if (stopping
+					|| queuedBytes + response.getSize() > MAX_QUEUED_BYTES) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			queue.addLast(response);
+			queuedBytes += response.getSize();
+			queue.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until all queued responses have been written
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (queue) {
+			while ((!queue.isEmpty() || writing) && writer.isAlive()) {
+				queue.wait(100);
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued responses, flushes the index and closes the cache;
+	 * entries in use stay readable until they are released
+	 */
+	public void close() {
+
+		// queued responses are still written
+		synchronized (queue) {
+			stopping = true;
+			queue.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			index.force();
+			index.putInt(4, 1);
+			index.force();
+			for (Segment segment : segments.values()) {
+				segment.release();
+			}
+			segments.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of cached responses, including expired ones not
+	 * compacted yet
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return entries;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of all indexed records
+	 */
+	public long getLiveBytes() {
+		lock.readLock().lock();
+		try {
+			return liveBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in segment files
+	 */
+	public long getTotalBytes() {
+		lock.readLock().lock();
+		try {
+			return totalBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of segment files
+	 */
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the index had to be rebuilt from the segments when the
+	 * cache was opened
+	 */
+	public boolean isRebuilt() {
+		return rebuilt;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of records written
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+	/**
+	 * Returns the number of responses dropped because the queue was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of responses that could not be written
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getCompactions() {
+		return compactions.get();
+	}
+
+	@Override
+	public String toString() {
+		lock.readLock().lock();
+		try {
+			return "DiskCache [" + directory + ", entries=" + entries
+					+ ", bytes=" + liveBytes + "/" + totalBytes + "/"
+					+ maxBytes + ", segments=" + segments.size() + ", hits="
+					+ hits + ", misses=" + misses + ", writes=" + writes
+					+ ", dropped=" + dropped + ", errors=" + errors
+					+ ", evictions=" + evictions + ", compactions="
+					+ compactions + "]";
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Maps the index file if it was closed cleanly; returns false if it must
+	 * be rebuilt
+	 */
+	private boolean openIndex() throws IOException {
+
+		File file = new File(directory, INDEX_FILE);
+		if (!file.isFile() || file.length() < HEADER_SIZE) {
+			return false;
+		}
+
+		RandomAccessFile indexFile = new RandomAccessFile(file, "rw");
+		try {
+			if (indexFile.readInt() != INDEX_MAGIC || indexFile.readInt() != 1) {
+				return false;
+			}
+			slots = indexFile.readInt();
+			FileChannel channel = indexFile.getChannel();
+			if (slots < MIN_SLOTS || slots > MAX_SLOTS
+					|| Integer.bitCount(slots) != 1
+					|| channel.size() != HEADER_SIZE + (long) slots * SLOT_SIZE) {
+				return false;
+			}
+			index = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel
+					.size());
+		} finally {
+			// the mapping stays valid
+			indexFile.close();
+		}
+
+		for (int slot = 0; slot < slots; slot++) {
+			int position = position(slot);
+			int segment = index.getInt(position + 16);
+			if (segment != EMPTY) {
+				used++;
+			}
+			if (segment > 0) {
+				entries++;
+				liveBytes += index.getInt(position + 24);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Indexes the latest record of each key by scanning all segments; a
+	 * truncated record, e.g., after a crash, ends its segment
+	 */
+	private void rebuildIndex() throws IOException {
+
+		int initialSlots = MIN_SLOTS;
+		while (initialSlots < MAX_SLOTS
+				&& initialSlots < 2 * (maxBytes / EXPECTED_RECORD_SIZE)) {
+			initialSlots <<= 1;
+		}
+
+		createIndex(initialSlots);
+
+		long now = System.currentTimeMillis();
+		for (Segment segment : segments.values()) {
+			long offset = 0;
+			while (offset < segment.size) {
+				Record record = readRecord(segment, offset);
+				if (record == null) {
+					totalBytes -= segment.size - offset;
+					segment.truncate(offset);
+					break;
+				}
+				if (!record.isExpired(now)) {
+					long hash = hash(record.key);
+					if (find(hash) < 0) {
+						ensureCapacity();
+					}
+					index(hash, record.expires, segment.number, offset,
+							record.length);
+				}
+				offset += record.length;
+			}
+		}
+
+		rebuilt = true;
+	}
+
+	/**
+	 * Replaces the index by an empty one of a given number of slots
+	 */
+	private void createIndex(int slots) throws IOException {
+
+		File file = new File(directory, INDEX_FILE + ".tmp");
+		file.delete();
+
+		RandomAccessFile indexFile = new RandomAccessFile(file, "rw");
+		try {
+			indexFile.setLength(HEADER_SIZE + (long) slots * SLOT_SIZE);
+			index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, indexFile.length());
+		} finally {
+			indexFile.close();
+		}
+
+		index.putInt(0, INDEX_MAGIC);
+		index.putInt(8, slots);
+
+		if (!file.renameTo(new File(directory, INDEX_FILE))) {
+			throw new IOException("Could not replace disk cache index in "
+					+ directory);
+		}
+
+		this.slots = slots;
+		used = 0;
+		entries = 0;
+		liveBytes = 0;
+	}
+
+	/**
+	 * Rehashes the index into a given number of slots, dropping deleted
+	 * slots
+	 */
+	private void resizeIndex(int newSlots) throws IOException {
+
+		MappedByteBuffer old = index;
+		int oldSlots = slots;
+
+		createIndex(newSlots);
+
+		for (int slot = 0; slot < oldSlots; slot++) {
+			int position = HEADER_SIZE + slot * SLOT_SIZE;
+			int segment = old.getInt(position + 16);
+			if (segment > 0) {
+				index(old.getLong(position), old.getLong(position + 8),
+						segment, old.getInt(position + 20) & 0xffffffffL, old
+								.getInt(position + 24));
+			}
+		}
+	}
+
+	/**
+	 * Makes sure the index has room for another key, resizing it if it is
+	 * getting full; fails if it cannot grow any further
+	 */
+	private void ensureCapacity() throws IOException {
+
+		if (used + 1 <= slots / 4 * 3) {
+			return;
+		}
+
+		int newSlots;
+		if (slots < MAX_SLOTS && entries + 1 > slots / 2) {
+			newSlots = slots * 2;
+		} else if (entries + 1 <= slots / 4 * 3) {
+			// only dropping deleted slots
+			newSlots = slots;
+		} else {
+			throw new IOException("Disk cache index " + directory + " is full");
+		}
+
+		lock.writeLock().lock();
+		try {
+			resizeIndex(newSlots);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Points the slot of a given key hash to a record; a new key requires
+	 * room in the index (see {@link #ensureCapacity()})
+	 */
+	private void index(long hash, long expires, int segment, long offset,
+			int length) {
+
+		int slot = find(hash);
+		if (slot < 0) {
+			slot = findFree(hash);
+			int position = position(slot);
+			if (index.getInt(position + 16) == EMPTY) {
+				used++;
+			}
+			entries++;
+		} else {
+			liveBytes -= index.getInt(position(slot) + 24);
+		}
+
+		int position = position(slot);
+		index.putLong(position, hash);
+		index.putLong(position + 8, expires);
+		index.putInt(position + 16, segment);
+		index.putInt(position + 20, (int) offset);
+		index.putInt(position + 24, length);
+		liveBytes += length;
+	}
+
+	/**
+	 * Removes the record a slot points to from the index
+	 */
+	private void unindex(int slot) {
+		int position = position(slot);
+		index.putInt(position + 16, DELETED);
+		entries--;
+		liveBytes -= index.getInt(position + 24);
+	}
+
+	/**
+	 * Returns the slot indexing a given key hash; -1 if there is none
+	 */
+	private int find(long hash) {
+
+		int mask = slots - 1;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		for (int probes = 0; probes < slots; probes++) {
+			int position = position(slot);
+			int segment = index.getInt(position + 16);
+			if (segment == EMPTY) {
+				return -1;
+			}
+			if (segment != DELETED && index.getLong(position) == hash) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the first empty or deleted slot for a given key hash
+	 */
+	private int findFree(long hash) {
+
+		int mask = slots - 1;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (index.getInt(position(slot) + 16) > 0) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int position(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Reads the record a slot points to if it has a given key and has not
+	 * expired; null otherwise
+	 */
+	private Record readIndexed(int slot, String key, long now)
+			throws IOException {
+
+		int position = position(slot);
+		if (now >= index.getLong(position + 8)) {
+			return null;
+		}
+
+		Segment segment = segments.get(index.getInt(position + 16));
+		if (segment == null) {
+			return null;
+		}
+
+		Record record = readRecord(segment, index.getInt(position + 20)
+				& 0xffffffffL);
+		if (record == null || !record.key.equals(key)) {
+			return null;
+		}
+		return record;
+	}
+
+	/**
+	 * Reads the header, key and entity tag of the record at a given offset;
+	 * null if there is no complete record
+	 */
+	private static Record readRecord(Segment segment, long offset)
+			throws IOException {
+
+		if (offset + RECORD_HEADER_SIZE > segment.size) {
+			return null;
+		}
+
+		ByteBuffer header = segment.read(offset, RECORD_HEADER_SIZE);
+		int keyLength = header.getInt(4);
+		int etagLength = header.getInt(8);
+		int bodyLength = header.getInt(28);
+		int gzipLength = header.getInt(32);
+		if (header.getInt(0) != RECORD_MAGIC || keyLength < 0
+				|| keyLength > MAX_KEY_BYTES || etagLength < 0
+				|| etagLength > MAX_KEY_BYTES || bodyLength < 0
+				|| gzipLength < 0) {
+			return null;
+		}
+
+		long length = (long) RECORD_HEADER_SIZE + keyLength + etagLength
+				+ bodyLength + gzipLength;
+		if (offset + length > segment.size) {
+			return null;
+		}
+
+		ByteBuffer strings = segment.read(offset + RECORD_HEADER_SIZE,
+				keyLength + etagLength);
+		byte[] bytes = strings.array();
+
+		return new Record(new String(bytes, 0, keyLength, "UTF-8"),
+				new String(bytes, keyLength, etagLength, "UTF-8"), header
+						.getLong(12), header.getLong(20), offset
+						+ RECORD_HEADER_SIZE + keyLength + etagLength,
+				bodyLength, gzipLength, (int) length);
+	}
+
+	/**
+	 * Returns the segment a record of a given length is appended to,
+	 * starting a new one if the current one is full
+	 */
+	private Segment getAppendSegment(long length) throws IOException {
+
+		Segment segment = segments.lastEntry().getValue();
+		if (segment.size > 0 && segment.size + length > segmentBytes) {
+			segment = addSegment(segment.number + 1);
+		}
+		return segment;
+	}
+
+	private Segment addSegment(int number) throws IOException {
+
+		Segment segment = new Segment(number, new File(directory, String
+				.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)));
+		lock.writeLock().lock();
+		try {
+			segments.put(number, segment);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return segment;
+	}
+
+	/**
+	 * Writes queued responses until the cache is closed; runs on the writer
+	 * thread
+	 */
+	private void writeQueued() {
+
+		while (true) {
+
+			CachedResponse response;
+			synchronized (queue) {
+				writing = false;
+				queue.notifyAll();
+				while (queue.isEmpty() && !stopping) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (queue.isEmpty()) {
+					return;
+				}
+				response = queue.removeFirst();
+				queuedBytes -= response.getSize();
+				writing = true;
+			}
+
+			try {
+				write(response);
+				compact();
+			} catch (IOException e) {
+				errors.incrementAndGet();
+			} catch (RuntimeException e) {
+				errors.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Appends a response to the current segment, unless it is already cached
+	 * with the same entity tag (and a gzip encoded body if the response has
+	 * one). The record is written before the lock is taken to index it.
+	 */
+	private void write(CachedResponse response) throws IOException {
+
+		byte[] body = response.getBody();
+		byte[] gzipBody = response.getGzipBody();
+
+		long now = System.currentTimeMillis();
+		long expires = response.getCreated() + ttl;
+		if (expires <= now) {
+			return;
+		}
+
+		String key = key(response.getResourceURI(), response.getContentType());
+		byte[] keyBytes = key.getBytes("UTF-8");
+		byte[] etagBytes = response.getETag().getBytes("UTF-8");
+		int gzipLength = gzipBody == null ? 0 : gzipBody.length;
+
+		long length = (long) RECORD_HEADER_SIZE + keyBytes.length
+				+ etagBytes.length + body.length + gzipLength;
+		if (keyBytes.length > MAX_KEY_BYTES || length > segmentBytes) {
+			return;
+		}
+
+		long hash = hash(key);
+
+		int slot = find(hash);
+		if (slot >= 0) {
+			Record cached = readIndexed(slot, key, now);
+			if (cached != null && cached.etag.equals(response.getETag())
+					&& (cached.gzipLength > 0 || gzipBody == null)) {
+				return;
+			}
+		} else {
+			// fails before anything is appended
+			ensureCapacity();
+		}
+
+		ByteBuffer record = ByteBuffer.allocate((int) length);
+		record.putInt(RECORD_MAGIC);
+		record.putInt(keyBytes.length);
+		record.putInt(etagBytes.length);
+		record.putLong(response.getCreated());
+		record.putLong(expires);
+		record.putInt(body.length);
+		record.putInt(gzipLength);
+		record.put(keyBytes);
+		record.put(etagBytes);
+		record.put(body);
+		if (gzipBody != null) {
+			record.put(gzipBody);
+		}
+		record.flip();
+
+		Segment segment = getAppendSegment(length);
+		long offset = segment.append(record);
+
+		lock.writeLock().lock();
+		try {
+			totalBytes += length;
+			index(hash, expires, segment.number, offset, (int) length);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		writes.incrementAndGet();
+	}
+
+	/**
+	 * Removes the oldest segments while the byte budget is exceeded, copying
+	 * their live records to the current segment as long as live records
+	 * take at most three quarters of the budget. Records are copied without
+	 * holding the lock; lookups meanwhile still find them in the old segment.
+	 */
+	private void compact() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		while (totalBytes > maxBytes && segments.size() > 1) {
+
+			Segment oldest = segments.firstEntry().getValue();
+
+			long offset = 0;
+			while (offset < oldest.size) {
+
+				Record record = readRecord(oldest, offset);
+				if (record == null) {
+					break;
+				}
+
+				int slot = find(hash(record.key));
+				int position = position(slot);
+				if (slot >= 0
+						&& index.getInt(position + 16) == oldest.number
+						&& (index.getInt(position + 20) & 0xffffffffL) == offset) {
+
+					if (record.isExpired(now) || liveBytes > maxBytes / 4 * 3) {
+						if (!record.isExpired(now)) {
+							evictions.incrementAndGet();
+						}
+						lock.writeLock().lock();
+						try {
+							unindex(slot);
+						} finally {
+							lock.writeLock().unlock();
+						}
+					} else {
+						Segment segment = getAppendSegment(record.length);
+						long copied = segment.copy(oldest, offset,
+								record.length);
+						lock.writeLock().lock();
+						try {
+							totalBytes += record.length;
+							index.putInt(position + 16, segment.number);
+							index.putInt(position + 20, (int) copied);
+						} finally {
+							lock.writeLock().unlock();
+						}
+					}
+				}
+
+				offset += record.length;
+			}
+
+			lock.writeLock().lock();
+			try {
+				segments.remove(oldest.number);
+				totalBytes -= oldest.size;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			oldest.delete();
+			compactions.incrementAndGet();
+		}
+	}
+
+	private static String key(String resourceURI, ContentType contentType) {
+		return contentType.name() + " " + resourceURI;
+	}
+
+	/**
+	 * The 64-bit FNV-1a hash of a key
+	 */
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * The header, key and entity tag of a record
+	 */
+	private static class Record {
+
+		final String key;
+
+		final String etag;
+
+		final long created;
+
+		final long expires;
+
+		final long bodyOffset;
+
+		final int bodyLength;
+
+		final int gzipLength;
+
+		final int length;
+
+		Record(String key, String etag, long created, long expires,
+				long bodyOffset, int bodyLength, int gzipLength, int length) {
+			this.key = key;
+			this.etag = etag;
+			this.created = created;
+			this.expires = expires;
+			this.bodyOffset = bodyOffset;
+			this.bodyLength = bodyLength;
+			this.gzipLength = gzipLength;
+			this.length = length;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expires;
+		}
+
+	}
+
+	/**
+	 * A segment file. It is closed once it has been removed from the cache
+	 * and no entry reads from it anymore.
+	 */
+	private static class Segment {
+
+		final int number;
+
+		final File file;
+
+		final FileChannel channel;
+
+		/**
+		 * Appended to under the write lock, read under the read lock
+		 */
+		volatile long size;
+
+		private int references = 1;
+
+		Segment(int number, File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			size = channel.size();
+		}
+
+		ByteBuffer read(long offset, int length) throws IOException {
+
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0) {
+					throw new IOException("Truncated disk cache segment "
+							+ file);
+				}
+			}
+			return buffer;
+		}
+
+		/**
+		 * Appends a record; returns its offset
+		 */
+		long append(ByteBuffer record) throws IOException {
+
+			long offset = size;
+			while (record.hasRemaining()) {
+				channel.write(record, offset + record.position());
+			}
+			size = offset + record.limit();
+			return offset;
+		}
+
+		/**
+		 * Appends a record of another segment; returns its offset
+		 */
+		long copy(Segment from, long offset, int length) throws IOException {
+
+			long start = size;
+			long copied = 0;
+			while (copied < length) {
+				channel.position(start + copied);
+				long n = from.channel.transferTo(offset + copied, length
+						- copied, channel);
+				if (n <= 0) {
+					throw new IOException("Truncated disk cache segment "
+							+ from.file);
+				}
+				copied += n;
+			}
+			size = start + length;
+			return start;
+		}
+
+		void truncate(long size) throws IOException {
+			channel.truncate(size);
+			this.size = size;
+		}
+
+		synchronized void retain() {
+			references++;
+		}
+
+		synchronized void release() {
+			if (--references == 0) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// nothing written is lost
+				}
+			}
+		}
+
+		void delete() {
+			file.delete();
+			release();
+		}
+
+	}
+
+	/**
+	 * A cached response on disk. Its bodies can be read until the entry is
+	 * released, even if the record is compacted meanwhile.
+	 */
+	public static class Entry {
+
+		private final Record record;
+
+		private final Segment segment;
+
+		private boolean released = false;
+
+		Entry(Record record, Segment segment) {
+			this.record = record;
+			this.segment = segment;
+			segment.retain();
+		}
+
+		/**
+		 * Returns the (strong) entity tag of this response
+		 */
+		public String getETag() {
+			return record.etag;
+		}
+
+		/**
+		 * Returns the time (ms) this response was created
+		 */
+		public long getCreated() {
+			return record.created;
+		}
+
+		/**
+		 * Returns the time (ms) this response expires
+		 */
+		public long getExpires() {
+			return record.expires;
+		}
+
+		public int getBodyLength() {
+			return record.bodyLength;
+		}
+
+		public boolean hasGzipBody() {
+			return record.gzipLength > 0;
+		}
+
+		public int getGzipBodyLength() {
+			return record.gzipLength;
+		}
+
+		/**
+		 * Copies the plain body to a given channel, directly from the
+		 * segment file
+		 */
+		public void transferBody(WritableByteChannel target)
+				throws IOException {
+			transfer(record.bodyOffset, record.bodyLength, target);
+		}
+
+		/**
+		 * Copies the gzip encoded body to a given channel, directly from the
+		 * segment file
+		 */
+		public void transferGzipBody(WritableByteChannel target)
+				throws IOException {
+			transfer(record.bodyOffset + record.bodyLength, record.gzipLength,
+					target);
+		}
+
+		/**
+		 * Reads the plain body into the heap, e.g., to encode it
+		 */
+		public byte[] readBody() throws IOException {
+			return segment.read(record.bodyOffset, record.bodyLength).array();
+		}
+
+		/**
+		 * Releases the segment file this entry reads from
+		 */
+		public synchronized void release() {
+			if (!released) {
+				released = true;
+				segment.release();
+			}
+		}
+
+		private void transfer(long offset, int length,
+				WritableByteChannel target) throws IOException {
+
+			long transferred = 0;
+			while (transferred < length) {
+				long n = segment.channel.transferTo(offset + transferred,
+						length - transferred, target);
+				if (n <= 0) {
+					throw new IOException("Truncated disk cache segment "
+							+ segment.file);
+				}
+				transferred += n;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,244 @@
+package eu.europeana.lod.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * A size-bounded in-memory cache for serialized data responses, keyed by
+ * non-information resource URI and response content type.
+ *
+ * Entries expire after a fixed time-to-live. If the sum of all cached bodies
+ * exceeds the byte budget, the least recently used entries are evicted.
+ * Responses larger than a quarter of the budget are not cached at all, so
+ * that a single large record cannot flush the whole cache.
+ *
+ * A {@link DiskCache} may be set as second level: every response put into
+ * this cache is also written to disk, where it outlives evictions and
+ * restarts.
+ *
+ * @author agent
+ *
+ */
+public class ResponseCache {
+
+	private final long maxBytes;
+
+	private final long ttl;
+
+	private final LinkedHashMap<Key, CachedResponse> entries = new LinkedHashMap<Key, CachedResponse>(
+			256, 0.75f, true);
+
+	private long currentBytes = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long evictions = 0;
+
+	private volatile DiskCache diskCache;
+
+	/**
+	 * Creates a new response cache
+	 *
+	 * @param maxBytes
+	 *            the maximum number of body bytes kept in the cache
+	 * @param ttl
+	 *            the time-to-live of a cached response in milliseconds
+	 */
+	public ResponseCache(long maxBytes, long ttl) {
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the cached response for a given resource and content type;
+	 * null if there is none or if it has expired
+	 */
+	public synchronized CachedResponse get(String resourceURI,
+			ContentType contentType) {
+
+		Key key = new Key(resourceURI, contentType);
+
+		CachedResponse response = entries.get(key);
+
+		if (response != null && response.isExpired(System.currentTimeMillis())) {
+			remove(key);
+			response = null;
+		}
+
+		if (response == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+
+		return response;
+	}
+
+	/**
+	 * Caches the serialized body and entity tag for a given resource and
+	 * content type and returns the resulting cache entry. The entry is
+	 * returned even if it was too large to be kept.
+	 */
+	public CachedResponse put(String resourceURI, ContentType contentType,
+			byte[] body, String etag) {
+
+		long now = System.currentTimeMillis();
+
+		CachedResponse response = new CachedResponse(resourceURI,
+				contentType, body, etag, now, now + ttl);
+
+		put(response);
+
+		return response;
+	}
+
+	/**
+	 * Adds a response to the cache, evicting least recently used entries if
+	 * the byte budget is exceeded, and queues it for the disk cache
+	 */
+	public void put(CachedResponse response) {
+
+		store(response);
+
+		DiskCache diskCache = this.diskCache;
+		if (diskCache != null) {
+			diskCache.put(response);
+		}
+
+	}
+
+	private synchronized void store(CachedResponse response) {
+
+		if (!isCacheable(response.getSize())) {
+			return;
+		}
+
+		Key key = new Key(response.getResourceURI(), response.getContentType());
+
+		remove(key);
+
+		entries.put(key, response);
+		currentBytes += response.getSize();
+
+		Iterator<CachedResponse> iter = entries.values().iterator();
+		while (currentBytes > maxBytes && iter.hasNext()) {
+			currentBytes -= iter.next().getSize();
+			iter.remove();
+			evictions++;
+		}
+
+	}
+
+	/**
+	 * Returns whether a response of a given size would be kept in the cache
+	 */
+	public boolean isCacheable(long size) {
+		return size <= getMaxEntryBytes();
+	}
+
+	/**
+	 * Sets the disk cache responses are written to; null for none
+	 */
+	public void setDiskCache(DiskCache diskCache) {
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * Returns the disk cache responses are written to; null if there is none
+	 */
+	public DiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * Returns the maximum size of a single cached response
+	 */
+	public long getMaxEntryBytes() {
+		return maxBytes / 4;
+	}
+
+	private void remove(Key key) {
+		CachedResponse removed = entries.remove(key);
+		if (removed != null) {
+			currentBytes -= removed.getSize();
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		currentBytes = 0;
+	}
+
+	/**
+	 * Returns the number of cached responses
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of body bytes currently held by the cache
+	 */
+	public synchronized long getCurrentBytes() {
+		return currentBytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ResponseCache [entries=" + entries.size() + ", bytes="
+				+ currentBytes + "/" + maxBytes + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions
+				+ (diskCache != null ? ", disk=" + diskCache : "") + "]";
+	}
+
+	/**
+	 * The (resource URI, content type) cache key
+	 */
+	private static class Key {
+
+		private final String resourceURI;
+
+		private final ContentType contentType;
+
+		Key(String resourceURI, ContentType contentType) {
+			this.resourceURI = resourceURI;
+			this.contentType = contentType;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * resourceURI.hashCode() + contentType.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return contentType == other.contentType
+					&& resourceURI.equals(other.resourceURI);
+		}
+
+	}
+
+}
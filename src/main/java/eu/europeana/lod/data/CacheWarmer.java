@@ -0,0 +1,497 @@
+package eu.europeana.lod.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.NodeIterator;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.sparql.util.graph.GraphFactory;
+
+import eu.europeana.lod.cache.DiskCache;
+import eu.europeana.lod.cache.ResponseCache;
+import eu.europeana.lod.data.EuropeanaLODServlet.DaemonThreadFactory;
+import eu.europeana.lod.rdf.BlankNodeRules;
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.store.ResourceStore;
+import eu.europeana.lod.upstream.Cancellation;
+import eu.europeana.lod.util.GraphDigest;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * Warms the response cache after a start, so that the first requests for
+ * frequently requested resources do not all reach the resource store.
+ *
+ * The resources are retrieved in the background by a bounded number of
+ * threads, and serialized in all RDF content types as data requests would
+ * serialize them. The warmer is ready when all resources are cached or a
+ * timeout has passed; the {@link ReadinessServlet} reports it to load
+ * balancers. Once the timeout has passed, the remaining resources are given
+ * up. Resources the disk cache still holds from a previous run are not
+ * retrieved again.
+ *
+ * The resources to warm come from the VoID description (example resources),
+ * the sitemap (sample URIs) and resource lists, e.g., the most requested
+ * resources in previous access logs (see {@link #main(String[])}).
+ *
+ * @author agent
+ *
+ */
+public class CacheWarmer {
+
+	/**
+	 * The servlet context attribute holding the warmer of a web application
+	 */
+	public static final String ATTRIBUTE = CacheWarmer.class.getName();
+
+	/**
+	 * The content types cached per resource
+	 */
+	static final ContentType[] CONTENT_TYPES = { ContentType.RDF,
+			ContentType.TTL, ContentType.N3 };
+
+	private static final String VOID_EXAMPLE_RESOURCE = "http://rdfs.org/ns/void#exampleResource";
+
+	private static final Pattern SAMPLE_URI = Pattern
+			.compile("<sc:sampleURI>\\s*([^<\\s]+)\\s*</sc:sampleURI>");
+
+	/**
+	 * The request path of a successful GET request in an access log line
+	 * (common or combined log format)
+	 */
+	private static final Pattern LOGGED_REQUEST = Pattern
+			.compile("\"(?:GET|HEAD) (\\S+) [^\"]*\" [23]\\d\\d ");
+
+	private final ResourceStore resourceStore;
+
+	private final BlankNodeRules blankNodeRules;
+
+	private final ResponseCache responseCache;
+
+	private final boolean abbreviateRDFXML;
+
+	private final int threads;
+
+	private final long timeout;
+
+	private ExecutorService executor;
+
+	private ScheduledExecutorService timer;
+
+	private final Cancellation cancellation = new Cancellation();
+
+	private final AtomicInteger warmed = new AtomicInteger();
+
+	private final AtomicInteger missing = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private final AtomicInteger diskCached = new AtomicInteger();
+
+	private final AtomicInteger timedOut = new AtomicInteger();
+
+	private volatile int resources = 0;
+
+	private volatile long deadline = Long.MAX_VALUE;
+
+	private volatile boolean done = false;
+
+	/**
+	 * Creates a new warmer
+	 *
+	 * @param threads
+	 *            the number of resources retrieved at once
+	 * @param timeout
+	 *            the time (in ms) after which the warmer is ready, even if
+	 *            not all resources are cached
+	 */
+	public CacheWarmer(ResourceStore resourceStore,
+			BlankNodeRules blankNodeRules, ResponseCache responseCache,
+			boolean abbreviateRDFXML, int threads, long timeout) {
+		this.resourceStore = resourceStore;
+		this.blankNodeRules = blankNodeRules;
+		this.responseCache = responseCache;
+		this.abbreviateRDFXML = abbreviateRDFXML;
+		this.threads = threads;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Starts caching given resources in the background
+	 */
+	public synchronized void start(List<String> resourceURIs) {
+
+		resources = resourceURIs.size();
+		deadline = System.currentTimeMillis() + timeout;
+
+		if (resourceURIs.isEmpty()) {
+			finish();
+			return;
+		}
+
+		executor = Executors.newFixedThreadPool(threads,
+				new DaemonThreadFactory("europeana-lod-warmup"));
+		timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+				"europeana-lod-warmup-timeout"));
+		timer.schedule(new Runnable() {
+			public void run() {
+				timeOut();
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+
+		final AtomicInteger remaining = new AtomicInteger(resourceURIs.size());
+		for (final String resourceURI : resourceURIs) {
+			executor.execute(new Runnable() {
+				public void run() {
+					Cancellation.bind(cancellation);
+					try {
+						warm(resourceURI);
+					} catch (Exception e) {
+						if (cancellation.isCancelled()) {
+							timedOut.incrementAndGet();
+						} else {
+							failed.incrementAndGet();
+						}
+					} finally {
+						Cancellation.bind(null);
+						if (remaining.decrementAndGet() == 0) {
+							finish();
+						}
+					}
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * Stops caching resources
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			timer.shutdownNow();
+		}
+	}
+
+	/**
+	 * Called once all resources have been retrieved
+	 */
+	protected void onDone() {
+	}
+
+	/**
+	 * Returns whether all resources have been retrieved
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns whether requests should be sent to this instance: all resources
+	 * have been retrieved or the timeout has passed
+	 */
+	public boolean isReady() {
+		return done || System.currentTimeMillis() > deadline;
+	}
+
+	public int getResourceCount() {
+		return resources;
+	}
+
+	/**
+	 * Returns the number of resources cached so far
+	 */
+	public int getWarmedCount() {
+		return warmed.get();
+	}
+
+	/**
+	 * Returns the number of resources the resource store did not know
+	 */
+	public int getMissingCount() {
+		return missing.get();
+	}
+
+	/**
+	 * Returns the number of resources that could not be retrieved
+	 */
+	public int getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of resources found in the disk cache
+	 */
+	public int getDiskCachedCount() {
+		return diskCached.get();
+	}
+
+	/**
+	 * Returns the number of resources given up once the timeout had passed
+	 */
+	public int getTimedOutCount() {
+		return timedOut.get();
+	}
+
+	private synchronized void finish() {
+		done = true;
+		if (executor != null) {
+			executor.shutdown();
+			timer.shutdownNow();
+		}
+		onDone();
+	}
+
+	/**
+	 * Gives up the remaining resources once the timeout has passed: queued
+	 * ones are dropped as by shutdownNow(), and the upstream requests of
+	 * those being retrieved are aborted. The warming threads are not
+	 * interrupted, since an interrupt closes the file channels of the stores
+	 * and the disk cache for all requests.
+	 */
+	private synchronized void timeOut() {
+
+		if (done) {
+			return;
+		}
+		cancellation.cancel();
+		executor.shutdown();
+		timedOut.addAndGet(((ThreadPoolExecutor) executor).getQueue().drainTo(
+				new ArrayList<Runnable>()));
+		timer.shutdown();
+
+	}
+
+	/**
+	 * Returns whether the disk cache holds a given resource in all RDF
+	 * content types
+	 */
+	private boolean isDiskCached(String resourceURI) throws IOException {
+
+		DiskCache diskCache = responseCache.getDiskCache();
+		if (diskCache == null) {
+			return false;
+		}
+		for (ContentType contentType : CONTENT_TYPES) {
+			DiskCache.Entry entry = diskCache.get(resourceURI, contentType);
+			if (entry == null) {
+				return false;
+			}
+			entry.release();
+		}
+		return true;
+
+	}
+
+	/**
+	 * Retrieves a given resource and caches it in all RDF content types
+	 */
+	private void warm(String resourceURI) throws IOException {
+
+		if (isDiskCached(resourceURI)) {
+			diskCached.incrementAndGet();
+			return;
+		}
+
+		Model model = GraphFactory.makePlainModel();
+		final Graph graph = model.getGraph();
+		resourceStore.describe(resourceURI, blankNodeRules.apply(resourceURI,
+				new TripleHandler() {
+					public void handle(Triple triple) {
+						graph.add(triple);
+					}
+				}));
+
+		if (model.isEmpty()) {
+			missing.incrementAndGet();
+			return;
+		}
+
+		String digest = GraphDigest.digest(model);
+		for (ContentType contentType : CONTENT_TYPES) {
+			EuropeanaResponse.cache(responseCache, resourceURI, model, digest,
+					contentType, abbreviateRDFXML);
+		}
+		warmed.incrementAndGet();
+
+	}
+
+	/**
+	 * Returns the example resources of a VoID description in Turtle
+	 */
+	public static List<String> readExampleResources(InputStream voidTurtle) {
+
+		Model model = ModelFactory.createDefaultModel();
+		model.read(voidTurtle, null, "TURTLE");
+
+		List<String> resources = new ArrayList<String>();
+		NodeIterator it = model.listObjectsOfProperty(model
+				.createProperty(VOID_EXAMPLE_RESOURCE));
+		while (it.hasNext()) {
+			RDFNode node = it.nextNode();
+			if (node.isURIResource()) {
+				resources.add(node.asResource().getURI());
+			}
+		}
+		return resources;
+
+	}
+
+	/**
+	 * Returns the sample URIs of a sitemap with semantic extension
+	 */
+	public static List<String> readSampleURIs(InputStream sitemap)
+			throws IOException {
+
+		StringBuilder xml = new StringBuilder();
+		Reader reader = new InputStreamReader(sitemap, "UTF-8");
+		char[] buffer = new char[8192];
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			xml.append(buffer, 0, n);
+		}
+
+		List<String> resources = new ArrayList<String>();
+		Matcher matcher = SAMPLE_URI.matcher(xml);
+		while (matcher.find()) {
+			resources.add(matcher.group(1));
+		}
+		return resources;
+
+	}
+
+	/**
+	 * Returns the resources (URIs, paths or Europeana IDs) of a resource list,
+	 * separated by whitespace or commas; lines starting with # are comments
+	 */
+	public static List<String> readResourceList(Reader list)
+			throws IOException {
+
+		List<String> resources = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(list);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.charAt(0) == '#') {
+				continue;
+			}
+			for (String token : line.split("[,\\s]+")) {
+				resources.add(token);
+			}
+		}
+		return resources;
+
+	}
+
+	/**
+	 * Returns the URIs of the resources most often requested successfully in
+	 * given access logs, most requested first
+	 */
+	public static List<String> readTopResources(List<File> accessLogs,
+			int count, ResourceRouter router, String resourcePrefix)
+			throws IOException {
+
+		final Map<String, Integer> requests = new HashMap<String, Integer>();
+
+		for (File accessLog : accessLogs) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(accessLog), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					Matcher matcher = LOGGED_REQUEST.matcher(line);
+					if (!matcher.find()) {
+						continue;
+					}
+					String path = matcher.group(1);
+					int query = path.indexOf('?');
+					if (query >= 0) {
+						path = path.substring(0, query);
+					}
+					if (router.route(path) == null) {
+						continue;
+					}
+					String resourceURI;
+					try {
+						resourceURI = router.toResourceURI(path, resourcePrefix);
+					} catch (IllegalArgumentException e) {
+						continue;
+					}
+					Integer n = requests.get(resourceURI);
+					requests.put(resourceURI, n == null ? 1 : n + 1);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		List<String> resources = new ArrayList<String>(requests.keySet());
+		Collections.sort(resources, new Comparator<String>() {
+			public int compare(String r1, String r2) {
+				int c = requests.get(r2).compareTo(requests.get(r1));
+				return c != 0 ? c : r1.compareTo(r2);
+			}
+		});
+		return resources.size() > count ? resources.subList(0, count)
+				: resources;
+
+	}
+
+	@Override
+	public String toString() {
+		return warmed + " of " + resources + " resources cached, "
+				+ diskCached + " on disk, " + missing + " missing, " + failed
+				+ " failed, " + timedOut + " timed out";
+	}
+
+	/**
+	 * Lists the most requested resources of access logs from the command
+	 * line, as a resource list for the warmFile init-param:
+	 *
+	 * CacheWarmer <count> <access log>...
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: CacheWarmer <count> <access log>...");
+			System.exit(1);
+		}
+
+		List<File> accessLogs = new ArrayList<File>();
+		for (int i = 1; i < args.length; i++) {
+			accessLogs.add(new File(args[i]));
+		}
+
+		String resourcePrefix = System.getProperty("resourcePrefix",
+				"http://data.europeana.eu");
+		for (String resourceURI : readTopResources(accessLogs, Integer
+				.parseInt(args[0]), ResourceRouter.DEFAULT, resourcePrefix)) {
+			System.out.println(resourceURI);
+		}
+
+	}
+
+}
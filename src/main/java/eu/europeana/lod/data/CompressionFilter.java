@@ -0,0 +1,175 @@
+package eu.europeana.lod.data;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import eu.europeana.lod.util.ContentEncoding;
+import eu.europeana.lod.util.EncodingOutputStream;
+
+/**
+ * Compresses the responses of the container's default servlet (void.ttl,
+ * sitemap.xml) if the client accepts gzip or deflate. Bodies are encoded while
+ * they are written; data responses are encoded by {@link EuropeanaResponse}
+ * itself. Range requests are passed through unencoded, since byte ranges
+ * refer to the plain body, and encoded responses do not offer ranges.
+ *
+ * @author agent
+ *
+ */
+public class CompressionFilter implements Filter {
+
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	public void doFilter(ServletRequest req, ServletResponse resp,
+			FilterChain chain) throws IOException, ServletException {
+
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) resp;
+
+		response.addHeader("Vary", "Accept-Encoding");
+
+		ContentEncoding encoding = ContentEncoding.negotiate(request
+				.getHeader("Accept-Encoding"));
+
+		if (encoding == ContentEncoding.IDENTITY
+				|| request.getHeader("Range") != null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		EncodingResponse encodingResponse = new EncodingResponse(response,
+				encoding);
+		chain.doFilter(request, encodingResponse);
+		encodingResponse.finish();
+
+	}
+
+	public void destroy() {
+	}
+
+	/**
+	 * A response encoding its body; the length of the plain body and the
+	 * ranges offered by the wrapped servlet are dropped
+	 */
+	private static class EncodingResponse extends HttpServletResponseWrapper {
+
+		private final ContentEncoding encoding;
+
+		private EncodingOutputStream body;
+
+		private ServletOutputStream out;
+
+		private PrintWriter writer;
+
+		EncodingResponse(HttpServletResponse response, ContentEncoding encoding) {
+			super(response);
+			this.encoding = encoding;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+
+			if (out == null) {
+				body = new EncodingOutputStream(super.getOutputStream(),
+						encoding) {
+					@Override
+					protected void onStart() {
+						setHeader("Content-Encoding", encoding.toString());
+					}
+				};
+				out = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						body.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len)
+							throws IOException {
+						body.write(b, off, len);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						body.flush();
+					}
+				};
+			}
+			return out;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(
+						getOutputStream(), getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void setContentLength(int len) {
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if (!isDropped(name)) {
+				super.setHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if (!isDropped(name)) {
+				super.addHeader(name, value);
+			}
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			if (!isDropped(name)) {
+				super.setIntHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			if (!isDropped(name)) {
+				super.addIntHeader(name, value);
+			}
+		}
+
+		private static boolean isDropped(String name) {
+			return "Content-Length".equalsIgnoreCase(name)
+					|| "Accept-Ranges".equalsIgnoreCase(name);
+		}
+
+		/**
+		 * Completes the encoded body, if any has been written
+		 */
+		void finish() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (body != null) {
+				body.finish();
+			}
+		}
+
+	}
+
+}
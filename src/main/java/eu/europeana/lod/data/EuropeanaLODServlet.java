@@ -1,12 +1,66 @@
 package eu.europeana.lod.data;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.JMException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.hp.hpl.jena.shared.JenaException;
+
+import eu.europeana.lod.cache.DiskCache;
+import eu.europeana.lod.cache.ResponseCache;
+import eu.europeana.lod.metrics.Metrics;
+import eu.europeana.lod.metrics.RequestMetrics;
+import eu.europeana.lod.metrics.Stage;
+import eu.europeana.lod.rdf.BlankNodeRules;
+import eu.europeana.lod.store.DumpStore;
+import eu.europeana.lod.store.DumpStoreBuilder;
+import eu.europeana.lod.store.ExistenceFilter;
+import eu.europeana.lod.store.RenderedStore;
+import eu.europeana.lod.store.ResourceStore;
+import eu.europeana.lod.store.UpstreamStore;
+import eu.europeana.lod.trace.Trace;
+import eu.europeana.lod.trace.TraceWriter;
+import eu.europeana.lod.trace.Tracer;
+import eu.europeana.lod.upstream.Cancellation;
+import eu.europeana.lod.upstream.CircuitBreaker;
+import eu.europeana.lod.upstream.Upstream;
+import eu.europeana.lod.upstream.UpstreamBalancer;
+import eu.europeana.lod.upstream.UpstreamClient;
+import eu.europeana.lod.upstream.UpstreamException;
+import eu.europeana.lod.upstream.UpstreamUnavailableException;
+import eu.europeana.lod.util.SingleFlight;
 import eu.europeana.lod.util.AcceptHeaderHandler;
 import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
 import eu.europeana.lod.util.AcceptHeaderHandler.MimeTypePattern;
@@ -26,6 +80,13 @@ public class EuropeanaLODServlet extends HttpServlet {
 
 	// TODO: find out how to set servlet params in tests and get rid of configs.
 
+	/**
+	 * The servlet context attribute set once the servlet has been initialized
+	 * successfully; the {@link ReadinessServlet} reports it to load balancers
+	 */
+	public static final String READY_ATTRIBUTE = EuropeanaLODServlet.class
+			.getName() + ".ready";
+
 	protected String website = "http://version1.europeana.eu/web/lod/";
 
 	protected String sparqlEndpoint = "http://data.mminf.univie.ac.at/sparql";
@@ -34,6 +95,218 @@ public class EuropeanaLODServlet extends HttpServlet {
 	
 	protected String voidFile = "/void.ttl";
 	
+	private static final String SITEMAP_FILE = "/sitemap.xml";
+	
+	protected long cacheMaxBytes = 64 * 1024 * 1024;
+	
+	protected long cacheTTL = 3600;
+	
+	protected ResponseCache responseCache;
+	
+	/**
+	 * The directory of the disk cache, the second level of the response
+	 * cache; null if responses are only cached in memory
+	 */
+	protected String diskCacheDir = null;
+	
+	protected long diskCacheMaxBytes = 4L * 1024 * 1024 * 1024;
+	
+	/**
+	 * The time-to-live (in seconds) of responses in the disk cache
+	 */
+	protected long diskCacheTTL = 86400;
+	
+	protected DiskCache diskCache;
+	
+	protected int upstreamConnectTimeout = 5000;
+	
+	protected int upstreamReadTimeout = 30000;
+	
+	protected int upstreamMaxConnections = 20;
+	
+	protected int upstreamRetries = 1;
+	
+	protected int upstreamMaxFailures = 3;
+	
+	protected long upstreamEjectTime = 30000;
+	
+	protected int upstreamCircuitFailures = 5;
+	
+	protected long upstreamCircuitOpenTime = 10000;
+	
+	protected int upstreamMaxConcurrent = 64;
+	
+	/**
+	 * The maximum number of resources described by a single upstream request
+	 * of a batch
+	 */
+	protected int upstreamBatchSize = 500;
+	
+	/**
+	 * The maximum number of resources in a batch request
+	 */
+	protected int batchMaxResources = 1000;
+	
+	/**
+	 * The pooled HTTP client(s) for the SPARQL endpoint replicas, shared by
+	 * all requests
+	 */
+	protected Upstream upstreamClient;
+	
+	/**
+	 * The backend data is served from: "upstream" (the SPARQL endpoint) or
+	 * "dump" (a local store built from the N-Triples dumps)
+	 */
+	protected String store = "upstream";
+	
+	protected String storeDir = "/var/lib/europeana-lod/store";
+	
+	protected ResourceStore resourceStore;
+	
+	/**
+	 * The directory of the pre-rendered data responses; null if there are
+	 * none
+	 */
+	protected String renderedDir = null;
+	
+	/**
+	 * The dumps or dump store directories listing all known resources;
+	 * requests for other resources are rejected without asking the resource
+	 * store. Null disables the existence filter.
+	 */
+	protected String existenceDumps = null;
+	
+	/**
+	 * The rate at which unknown resources pass the existence filter
+	 */
+	protected double existenceFalsePositiveRate = 0.01;
+	
+	/**
+	 * The interval (in seconds) in which the existence dumps are checked for
+	 * changes; 0 disables reloads
+	 */
+	protected long existenceReload = 3600;
+	
+	protected List<File> existenceSources;
+	
+	/**
+	 * The filter of known resources; null if there is none (yet)
+	 */
+	protected volatile ExistenceFilter existenceFilter;
+	
+	/**
+	 * Reloads the existence filter when the dumps change
+	 */
+	protected ScheduledExecutorService existenceReloader;
+	
+	/**
+	 * Whether the response cache is warmed at startup with the VoID example
+	 * resources, the sitemap sample URIs and the resources in warmFile
+	 */
+	protected boolean warmUp = false;
+	
+	/**
+	 * A list of resources (URIs, paths or IDs) to warm the cache with, e.g.,
+	 * the most requested resources of previous access logs; null if there is
+	 * none
+	 */
+	protected String warmFile = null;
+	
+	protected int warmMaxResources = 10000;
+	
+	/**
+	 * The number of resources retrieved at once while warming up
+	 */
+	protected int warmThreads = 4;
+	
+	/**
+	 * The time (in seconds) after which the servlet is ready even if warming
+	 * up has not finished
+	 */
+	protected long warmTimeout = 300;
+	
+	protected CacheWarmer cacheWarmer;
+	
+	protected RenderedStore renderedStore;
+	
+	/**
+	 * What happens to blank nodes in data responses: drop, skolemize or keep
+	 */
+	protected String blankNodes = "drop";
+	
+	protected String skolemBase = "http://data.europeana.eu/.well-known/genid/";
+	
+	protected BlankNodeRules blankNodeRules = BlankNodeRules.DROP;
+	
+	/**
+	 * The resource types served, as name=prefix pairs; null for the built-in
+	 * EDM resource types
+	 */
+	protected String resourceTypes = null;
+	
+	protected ResourceRouter router = ResourceRouter.DEFAULT;
+	
+	/**
+	 * Whether RDF/XML is written abbreviated, which is slower and cannot be
+	 * streamed, rather than plain
+	 */
+	protected boolean rdfXmlAbbrev = false;
+	
+	/**
+	 * Whether N-Triples descriptions are requested from the upstream
+	 * endpoint as such and relayed as received; other formats are parsed
+	 */
+	protected boolean upstreamPassthrough = true;
+	
+	/**
+	 * The upstream fetches in flight, shared by concurrent data requests
+	 */
+	protected SingleFlight<EuropeanaResponse.Description> fetches;
+	
+	protected boolean asyncData = false;
+	
+	protected long asyncTimeout = 30000;
+	
+	protected int asyncThreads = 32;
+	
+	protected int asyncQueueSize = 1000;
+	
+	/**
+	 * Runs upstream fetches and serialization off the request threads; null
+	 * if async processing is disabled
+	 */
+	protected ExecutorService dataExecutor;
+	
+	/**
+	 * Whether request metrics are recorded and exposed over JMX
+	 */
+	protected boolean metricsEnabled = true;
+	
+	/**
+	 * The request metrics, shared with the MetricsServlet; null if disabled
+	 */
+	protected Metrics metrics;
+	
+	/**
+	 * The fraction (0-1) of requests traced; 0 disables tracing
+	 */
+	protected double traceSampleRate = 0;
+	
+	/**
+	 * The file traces are appended to; null for standard error
+	 */
+	protected String traceFile = null;
+	
+	/**
+	 * The maximum number of traces waiting to be written; more are dropped
+	 */
+	protected int traceQueueSize = 10000;
+	
+	/**
+	 * Assigns request IDs and samples the traced requests
+	 */
+	protected Tracer tracer;
+	
 	@Override
 	public void init() throws ServletException {
 
@@ -58,6 +331,566 @@ public class EuropeanaLODServlet extends HttpServlet {
 					"voidFile");
 		}
 		
+		if (getServletConfig().getInitParameter("cacheMaxBytes") != null) {
+			cacheMaxBytes = Long.parseLong(getServletConfig().getInitParameter(
+					"cacheMaxBytes"));
+		}
+		
+		if (getServletConfig().getInitParameter("cacheTTL") != null) {
+			cacheTTL = Long.parseLong(getServletConfig().getInitParameter(
+					"cacheTTL"));
+		}
+		
+		// a zero byte budget disables the response cache
+		if (cacheMaxBytes > 0) {
+			responseCache = new ResponseCache(cacheMaxBytes, cacheTTL * 1000);
+		}
+		
+		if (getServletConfig().getInitParameter("diskCacheDir") != null) {
+			diskCacheDir = getServletConfig().getInitParameter("diskCacheDir");
+		}
+		
+		if (getServletConfig().getInitParameter("diskCacheMaxBytes") != null) {
+			diskCacheMaxBytes = Long.parseLong(getServletConfig().getInitParameter(
+					"diskCacheMaxBytes"));
+		}
+		
+		if (getServletConfig().getInitParameter("diskCacheTTL") != null) {
+			diskCacheTTL = Long.parseLong(getServletConfig().getInitParameter(
+					"diskCacheTTL"));
+		}
+		
+		// the disk cache reopens its index; it is rebuilt only after a crash
+		if (responseCache != null && diskCacheDir != null
+				&& diskCacheMaxBytes > 0) {
+			try {
+				long started = System.currentTimeMillis();
+				diskCache = new DiskCache(new File(diskCacheDir),
+						diskCacheMaxBytes, diskCacheTTL * 1000);
+				responseCache.setDiskCache(diskCache);
+				getServletContext().log((diskCache.isRebuilt() ? "Rebuilt" : "Opened")
+						+ " disk cache of " + diskCache.size() + " responses in "
+						+ (System.currentTimeMillis() - started) + " ms: "
+						+ diskCache);
+			} catch (IOException e) {
+				getServletContext().log("Could not open disk cache "
+						+ diskCacheDir, e);
+			}
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamConnectTimeout") != null) {
+			upstreamConnectTimeout = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamConnectTimeout"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamReadTimeout") != null) {
+			upstreamReadTimeout = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamReadTimeout"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamMaxConnections") != null) {
+			upstreamMaxConnections = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamMaxConnections"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamRetries") != null) {
+			upstreamRetries = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamRetries"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamMaxFailures") != null) {
+			upstreamMaxFailures = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamMaxFailures"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamEjectTime") != null) {
+			upstreamEjectTime = Long.parseLong(getServletConfig().getInitParameter(
+					"upstreamEjectTime"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamCircuitFailures") != null) {
+			upstreamCircuitFailures = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamCircuitFailures"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamCircuitOpenTime") != null) {
+			upstreamCircuitOpenTime = Long.parseLong(getServletConfig().getInitParameter(
+					"upstreamCircuitOpenTime"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamMaxConcurrent") != null) {
+			upstreamMaxConcurrent = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamMaxConcurrent"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamBatchSize") != null) {
+			upstreamBatchSize = Integer.parseInt(getServletConfig().getInitParameter(
+					"upstreamBatchSize"));
+		}
+		
+		if (getServletConfig().getInitParameter("batchMaxResources") != null) {
+			batchMaxResources = Integer.parseInt(getServletConfig().getInitParameter(
+					"batchMaxResources"));
+		}
+		
+		if (getServletConfig().getInitParameter("store") != null) {
+			store = getServletConfig().getInitParameter("store");
+		}
+		
+		if (getServletConfig().getInitParameter("storeDir") != null) {
+			storeDir = getServletConfig().getInitParameter("storeDir");
+		}
+		
+		if (getServletConfig().getInitParameter("blankNodes") != null) {
+			blankNodes = getServletConfig().getInitParameter("blankNodes");
+		}
+		
+		if (getServletConfig().getInitParameter("skolemBase") != null) {
+			skolemBase = getServletConfig().getInitParameter("skolemBase");
+		}
+		
+		try {
+			blankNodeRules = BlankNodeRules.valueOf(blankNodes, skolemBase);
+		} catch (IllegalArgumentException e) {
+			throw new ServletException("Invalid blankNodes " + blankNodes, e);
+		}
+		
+		if (getServletConfig().getInitParameter("resourceTypes") != null) {
+			resourceTypes = getServletConfig().getInitParameter("resourceTypes");
+		}
+		
+		if (resourceTypes != null) {
+			try {
+				router = ResourceRouter.valueOf(resourceTypes);
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("Invalid resourceTypes "
+						+ resourceTypes, e);
+			}
+		}
+		
+		getServletContext().log("Routing resource types " + router);
+		
+		if (getServletConfig().getInitParameter("rdfXmlAbbrev") != null) {
+			rdfXmlAbbrev = Boolean.parseBoolean(getServletConfig().getInitParameter(
+					"rdfXmlAbbrev"));
+		}
+		
+		if (getServletConfig().getInitParameter("upstreamPassthrough") != null) {
+			upstreamPassthrough = Boolean.parseBoolean(getServletConfig()
+					.getInitParameter("upstreamPassthrough"));
+		}
+		
+		if ("dump".equals(store)) {
+			resourceStore = openDumpStore();
+		} else {
+			upstreamClient = createUpstream();
+			resourceStore = new UpstreamStore(upstreamClient, upstreamBatchSize);
+		}
+		
+		getServletContext().log("Serving data from " + store + " store "
+				+ resourceStore);
+		
+		if (getServletConfig().getInitParameter("renderedDir") != null) {
+			renderedDir = getServletConfig().getInitParameter("renderedDir");
+		}
+		
+		// pre-rendered responses are optional; rendering is the fallback
+		if (renderedDir != null && RenderedStore.exists(new File(renderedDir))) {
+			try {
+				renderedStore = new RenderedStore(new File(renderedDir));
+				getServletContext().log("Serving "
+						+ renderedStore.getResourceCount()
+						+ " pre-rendered resources from " + renderedDir);
+				if (renderedStore.isAbbreviatedRDFXML() != rdfXmlAbbrev) {
+					getServletContext().log("Pre-rendered RDF/XML in "
+							+ renderedDir + " does not match rdfXmlAbbrev="
+							+ rdfXmlAbbrev + ", rendering RDF/XML instead");
+				}
+			} catch (IOException e) {
+				getServletContext().log("Could not open pre-rendered responses "
+						+ renderedDir, e);
+			}
+		}
+		
+		if (getServletConfig().getInitParameter("existenceDumps") != null) {
+			existenceDumps = getServletConfig().getInitParameter("existenceDumps");
+		}
+		
+		if (getServletConfig().getInitParameter("existenceFalsePositiveRate") != null) {
+			existenceFalsePositiveRate = Double.parseDouble(getServletConfig()
+					.getInitParameter("existenceFalsePositiveRate"));
+		}
+		
+		if (getServletConfig().getInitParameter("existenceReload") != null) {
+			existenceReload = Long.parseLong(getServletConfig().getInitParameter(
+					"existenceReload"));
+		}
+		
+		if (existenceDumps != null) {
+			existenceSources = ExistenceFilter.parseSources(existenceDumps);
+			reloadExistenceFilter();
+			if (existenceReload > 0) {
+				existenceReloader = Executors
+						.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+								"europeana-lod-existence"));
+				existenceReloader.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						reloadExistenceFilter();
+					}
+				}, existenceReload, existenceReload, TimeUnit.SECONDS);
+			}
+		}
+		
+		if (getServletConfig().getInitParameter("asyncData") != null) {
+			asyncData = Boolean.parseBoolean(getServletConfig().getInitParameter(
+					"asyncData"));
+		}
+		
+		if (getServletConfig().getInitParameter("asyncTimeout") != null) {
+			asyncTimeout = Long.parseLong(getServletConfig().getInitParameter(
+					"asyncTimeout"));
+		}
+		
+		if (getServletConfig().getInitParameter("asyncThreads") != null) {
+			asyncThreads = Integer.parseInt(getServletConfig().getInitParameter(
+					"asyncThreads"));
+		}
+		
+		if (getServletConfig().getInitParameter("asyncQueueSize") != null) {
+			asyncQueueSize = Integer.parseInt(getServletConfig().getInitParameter(
+					"asyncQueueSize"));
+		}
+		
+		// waiting for a concurrent fetch takes no longer than a deferred request
+		fetches = new SingleFlight<EuropeanaResponse.Description>(asyncTimeout);
+		
+		if (asyncData) {
+			dataExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+					60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+							asyncQueueSize), new DaemonThreadFactory(
+							"europeana-lod-data"));
+		}
+		
+		if (getServletConfig().getInitParameter("metrics") != null) {
+			metricsEnabled = Boolean.parseBoolean(getServletConfig().getInitParameter(
+					"metrics"));
+		}
+		
+		if (metricsEnabled) {
+			metrics = Metrics.get(getServletContext());
+			String contextPath = getServletContext().getContextPath();
+			try {
+				metrics.register(contextPath.length() == 0 ? "/" : contextPath);
+			} catch (JMException e) {
+				getServletContext().log("Could not register metrics MBean", e);
+			}
+		}
+		
+		if (getServletConfig().getInitParameter("traceSampleRate") != null) {
+			traceSampleRate = Double.parseDouble(getServletConfig().getInitParameter(
+					"traceSampleRate"));
+		}
+		
+		if (getServletConfig().getInitParameter("traceFile") != null) {
+			traceFile = getServletConfig().getInitParameter("traceFile");
+		}
+		
+		if (getServletConfig().getInitParameter("traceQueueSize") != null) {
+			traceQueueSize = Integer.parseInt(getServletConfig().getInitParameter(
+					"traceQueueSize"));
+		}
+		
+		tracer = createTracer();
+		
+		if (getServletConfig().getInitParameter("warmUp") != null) {
+			warmUp = Boolean.parseBoolean(getServletConfig().getInitParameter(
+					"warmUp"));
+		}
+		
+		if (getServletConfig().getInitParameter("warmFile") != null) {
+			warmFile = getServletConfig().getInitParameter("warmFile");
+		}
+		
+		if (getServletConfig().getInitParameter("warmMaxResources") != null) {
+			warmMaxResources = Integer.parseInt(getServletConfig().getInitParameter(
+					"warmMaxResources"));
+		}
+		
+		if (getServletConfig().getInitParameter("warmThreads") != null) {
+			warmThreads = Integer.parseInt(getServletConfig().getInitParameter(
+					"warmThreads"));
+		}
+		
+		if (getServletConfig().getInitParameter("warmTimeout") != null) {
+			warmTimeout = Long.parseLong(getServletConfig().getInitParameter(
+					"warmTimeout"));
+		}
+		
+		if (warmUp) {
+			startWarmUp();
+		}
+		
+		getServletContext().setAttribute(READY_ATTRIBUTE, Boolean.TRUE);
+		
+	}
+
+	/**
+	 * Starts warming the response cache in the background; the readiness
+	 * servlet reports the progress
+	 */
+	private void startWarmUp() {
+		
+		if (responseCache == null) {
+			getServletContext().log("No response cache to warm up");
+			return;
+		}
+		
+		List<String> resources = new ArrayList<String>();
+		
+		InputStream in = getServletContext().getResourceAsStream(voidFile);
+		if (in != null) {
+			try {
+				resources.addAll(CacheWarmer.readExampleResources(in));
+			} catch (JenaException e) {
+				getServletContext().log("Could not read example resources from "
+						+ voidFile, e);
+			} finally {
+				closeQuietly(in);
+			}
+		}
+		
+		in = getServletContext().getResourceAsStream(SITEMAP_FILE);
+		if (in != null) {
+			try {
+				resources.addAll(CacheWarmer.readSampleURIs(in));
+			} catch (IOException e) {
+				getServletContext().log("Could not read sample URIs from "
+						+ SITEMAP_FILE, e);
+			} finally {
+				closeQuietly(in);
+			}
+		}
+		
+		if (warmFile != null && !new File(warmFile).isFile()) {
+			getServletContext().log("No resource list " + warmFile);
+		} else if (warmFile != null) {
+			try {
+				Reader reader = new InputStreamReader(new FileInputStream(
+						warmFile), "UTF-8");
+				try {
+					resources.addAll(CacheWarmer.readResourceList(reader));
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				getServletContext().log("Could not read resources to warm up from "
+						+ warmFile, e);
+			}
+		}
+		
+		// unknown resources are never requested successfully
+		Set<String> resourceURIs = new LinkedHashSet<String>();
+		for (String resource : resources) {
+			if (resourceURIs.size() >= warmMaxResources) {
+				break;
+			}
+			try {
+				String resourceURI = router.toResourceURI(resource,
+						resourcePrefix);
+				if (mightExist(resourceURI)) {
+					resourceURIs.add(resourceURI);
+				}
+			} catch (IllegalArgumentException e) {
+				getServletContext().log("Not warming up " + e.getMessage());
+			}
+		}
+		
+		final long started = System.currentTimeMillis();
+		cacheWarmer = new CacheWarmer(resourceStore, blankNodeRules,
+				responseCache, rdfXmlAbbrev, warmThreads, warmTimeout * 1000) {
+			@Override
+			protected void onDone() {
+				getServletContext().log("Warmed up in "
+						+ (System.currentTimeMillis() - started) + " ms: "
+						+ this);
+			}
+		};
+		getServletContext().setAttribute(CacheWarmer.ATTRIBUTE, cacheWarmer);
+		
+		getServletContext().log("Warming up the response cache with "
+				+ resourceURIs.size() + " resources");
+		cacheWarmer.start(new ArrayList<String>(resourceURIs));
+		
+	}
+	
+	private static void closeQuietly(InputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+			// read completely or failed before
+		}
+	}
+
+	/**
+	 * Loads the existence filter if there is none yet or the dumps changed.
+	 * Until a filter could be loaded, all resources are looked up; a filter
+	 * loaded while the dumps changed is discarded.
+	 */
+	private void reloadExistenceFilter() {
+		
+		try {
+			ExistenceFilter current = existenceFilter;
+			if (current != null && !current.isStale(existenceSources)) {
+				return;
+			}
+			
+			long started = System.currentTimeMillis();
+			ExistenceFilter filter = ExistenceFilter.load(existenceSources,
+					existenceFalsePositiveRate);
+			if (filter.isStale(existenceSources)) {
+				getServletContext().log("Dumps " + existenceDumps
+						+ " changed while loading the existence filter");
+				return;
+			}
+			
+			existenceFilter = filter;
+			getServletContext().log("Loaded existence filter of "
+					+ filter.getResourceCount() + " resources from "
+					+ existenceDumps + " in "
+					+ (System.currentTimeMillis() - started) + " ms");
+		} catch (IOException e) {
+			getServletContext().log("Could not load existence filter from "
+					+ existenceDumps, e);
+		}
+		
+	}
+
+	/**
+	 * Returns false if a given resource is definitely unknown
+	 */
+	private boolean mightExist(String resourceURI) {
+		
+		ExistenceFilter filter = existenceFilter;
+		return filter == null || filter.mightExist(resourceURI);
+	}
+
+	/**
+	 * Creates the tracer; tracing is disabled if the trace file cannot be
+	 * opened
+	 */
+	private Tracer createTracer() {
+		
+		if (traceSampleRate <= 0) {
+			return new Tracer(0, null);
+		}
+		
+		Writer out;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(
+					traceFile == null ? System.err : new FileOutputStream(
+							traceFile, true), "UTF-8"), 64 * 1024);
+		} catch (IOException e) {
+			getServletContext().log("Could not open trace file " + traceFile,
+					e);
+			return new Tracer(0, null);
+		}
+		
+		getServletContext().log("Tracing " + traceSampleRate
+				+ " of all requests to "
+				+ (traceFile == null ? "standard error" : traceFile));
+		
+		// standard error is left open
+		return new Tracer(traceSampleRate, new TraceWriter(out, traceQueueSize,
+				traceFile != null));
+		
+	}
+
+	/**
+	 * Creates the client(s) for the upstream endpoint replicas
+	 */
+	private Upstream createUpstream() {
+		
+		// the sparqlEndpoint param may list several replicas
+		List<UpstreamClient> replicas = new ArrayList<UpstreamClient>();
+		for (String endpoint : sparqlEndpoint.trim().split("[,\\s]+")) {
+			replicas.add(new UpstreamClient(endpoint, upstreamConnectTimeout,
+					upstreamReadTimeout, upstreamMaxConnections));
+		}
+		
+		Upstream upstream;
+		if (replicas.size() == 1) {
+			upstream = replicas.get(0);
+		} else {
+			upstream = new UpstreamBalancer(replicas, upstreamRetries,
+					upstreamMaxFailures, upstreamEjectTime);
+		}
+		
+		// fail fast while the endpoint is down or overloaded
+		return new CircuitBreaker(upstream, upstreamCircuitFailures,
+				upstreamCircuitOpenTime, upstreamMaxConcurrent);
+		
+	}
+	
+	/**
+	 * Opens the local dump store. The store is not built here, since building
+	 * it from the full dumps takes hours; it must have been built beforehand
+	 * with the DumpStoreBuilder command line.
+	 */
+	private ResourceStore openDumpStore() throws ServletException {
+		
+		File directory = new File(storeDir);
+		
+		if (!DumpStore.exists(directory)) {
+			throw new ServletException("No dump store in " + storeDir
+					+ "; build it with " + DumpStoreBuilder.class.getName()
+					+ " first");
+		}
+		
+		try {
+			return new DumpStore(directory);
+		} catch (IOException e) {
+			throw new ServletException("Could not open dump store " + storeDir, e);
+		}
+		
+	}
+
+	@Override
+	public void destroy() {
+		
+		getServletContext().removeAttribute(READY_ATTRIBUTE);
+		
+		if (dataExecutor != null) {
+			dataExecutor.shutdownNow();
+		}
+		
+		if (existenceReloader != null) {
+			existenceReloader.shutdownNow();
+		}
+		
+		if (cacheWarmer != null) {
+			cacheWarmer.stop();
+			getServletContext().removeAttribute(CacheWarmer.ATTRIBUTE);
+		}
+		
+		if (resourceStore != null) {
+			resourceStore.close();
+		}
+		
+		if (renderedStore != null) {
+			renderedStore.close();
+		}
+		
+		if (diskCache != null) {
+			diskCache.close();
+		}
+		
+		if (metrics != null) {
+			metrics.unregister();
+		}
+		
+		if (tracer != null) {
+			tracer.close();
+		}
 		
 	}
 
@@ -66,17 +899,45 @@ public class EuropeanaLODServlet extends HttpServlet {
 			throws ServletException, IOException {
 
 		// wrap the response
-		EuropeanaResponse response = new EuropeanaResponse(resp);
+		EuropeanaResponse response = new EuropeanaResponse(resp,
+				resourceStore, renderedStore, blankNodeRules, fetches,
+				responseCache);
+		response.setAbbreviateRDFXML(rdfXmlAbbrev);
+		response.setUpstreamPassthrough(upstreamPassthrough);
+
+		Trace trace = tracer.start(req, response);
+		response.setTrace(trace);
+		Trace.bind(trace);
+
+		boolean completed = false;
+		try {
+			handleGet(req, response);
+			completed = true;
+		} finally {
+			Trace.bind(null);
+			// async requests are recorded when their async context completes
+			if (!response.getMetrics().isDeferred()) {
+				record(response, completed ? response.getStatus()
+						: HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		}
+
+	}
+
+	private void handleGet(HttpServletRequest req, EuropeanaResponse response)
+			throws ServletException, IOException {
 
 		// try to wrap the request; if fails -> URI not supported
 		EuropeanaRequest request = null;
 		try {
-			request = new EuropeanaRequest(req);
+			request = new EuropeanaRequest(req, router);
 		} catch (ServletException e) {
 			response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
 			return;
 		}
 
+		addRequestMetrics(request, response);
+
 		// distinguish between document (HTML) and data (RDF) requests
 		if (request.isDocumentRequest()) {
 			handleDocumentRequest(request, response);
@@ -92,6 +953,141 @@ public class EuropeanaLODServlet extends HttpServlet {
 
 	}
 
+	/**
+	 * Answers batch requests, which list the resources to be described in
+	 * their body; all other POST requests are not supported
+	 */
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		EuropeanaResponse response = new EuropeanaResponse(resp,
+				resourceStore, renderedStore, blankNodeRules, fetches,
+				responseCache);
+		response.setAbbreviateRDFXML(rdfXmlAbbrev);
+		response.setUpstreamPassthrough(upstreamPassthrough);
+
+		Trace trace = tracer.start(req, response);
+		response.setTrace(trace);
+		Trace.bind(trace);
+
+		boolean completed = false;
+		try {
+			handlePost(req, response);
+			completed = true;
+		} finally {
+			Trace.bind(null);
+			if (!response.getMetrics().isDeferred()) {
+				record(response, completed ? response.getStatus()
+						: HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		}
+
+	}
+
+	private void handlePost(HttpServletRequest req, EuropeanaResponse response)
+			throws ServletException, IOException {
+
+		EuropeanaRequest request = null;
+		try {
+			request = new EuropeanaRequest(req, router);
+		} catch (ServletException e) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+			return;
+		}
+
+		addRequestMetrics(request, response);
+
+		if (!request.isBatchRequest()) {
+			super.doPost(req, response);
+			return;
+		}
+
+		if (!request.isDataRequest()) {
+			response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
+					"Accept header " + request.getHeader("Accept")
+							+ " not supported for batch requests");
+			return;
+		}
+
+		List<String> resourceURIs;
+		try {
+			resourceURIs = request.getBatchResourceURIs(resourcePrefix,
+					batchMaxResources);
+		} catch (ServletException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		if (resourceURIs.isEmpty()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"No resources given");
+			return;
+		}
+
+		if (resourceURIs.size() > batchMaxResources) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					"At most " + batchMaxResources
+							+ " resources per batch request");
+			return;
+		}
+		
+		// unknown resources would not be described anyway
+		List<String> knownURIs = new ArrayList<String>(resourceURIs.size());
+		for (String resourceURI : resourceURIs) {
+			if (mightExist(resourceURI)) {
+				knownURIs.add(resourceURI);
+			}
+		}
+		
+		if (knownURIs.isEmpty()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"None of " + resourceURIs.size() + " resources is known");
+			return;
+		}
+		resourceURIs = knownURIs;
+
+		ContentType contentType = AcceptHeaderHandler.getContentType(request
+				.getPreferredAcceptMimeType());
+		response.getMetrics().setContentType(contentType);
+
+		sendBatch(request, response, resourceURIs, contentType);
+
+	}
+
+	/**
+	 * Adds the labels and parsing times of a request to the metrics of its
+	 * response
+	 */
+	private static void addRequestMetrics(EuropeanaRequest request,
+			EuropeanaResponse response) {
+
+		RequestMetrics requestMetrics = response.getMetrics();
+		requestMetrics.setResourceType(request.getResourceType());
+		requestMetrics.add(Stage.NEGOTIATION, request.getNegotiationTime());
+		requestMetrics.add(Stage.URI_PARSING, request.getParsingTime());
+
+	}
+
+	/**
+	 * Records a completed request in the metrics and writes its trace, if
+	 * it is traced
+	 */
+	private void record(EuropeanaResponse response, int status) {
+
+		if (metrics != null) {
+			metrics.record(response.getMetrics(), status, response
+					.getBytesWritten());
+		}
+
+		Trace trace = response.getTrace();
+		if (trace != null) {
+			trace.finish(response.getMetrics(), status, response
+					.getBytesWritten());
+			tracer.write(trace);
+		}
+
+	}
 	
 	/**
 	 * Handles all document (HTML) requests 
@@ -99,6 +1095,8 @@ public class EuropeanaLODServlet extends HttpServlet {
 	 */
 	private void handleDocumentRequest(EuropeanaRequest request, EuropeanaResponse response) {
 		
+		response.getMetrics().setContentType(ContentType.HTML);
+		
 		if (request.isRootRequest()) {
 			// redirect to the project website
 			response.sendRedirectTo(website, ContentType.HTML);
@@ -122,6 +1120,7 @@ public class EuropeanaLODServlet extends HttpServlet {
 		MimeTypePattern prefMimeType = request.getPreferredAcceptMimeType();
 		
 		ContentType contentType = AcceptHeaderHandler.getContentType(prefMimeType);
+		response.getMetrics().setContentType(contentType);
 		
 		if (request.isRootRequest()) {
 			// TODO: currently only TTL is supported
@@ -135,12 +1134,20 @@ public class EuropeanaLODServlet extends HttpServlet {
 			response.sendRedirectTo(voidURI, ContentType.TTL);
 		} else {
 
+			// Retrieve the non-information resource URI
+			String resourceURI = request.getNonInformationResourceURI(this.resourcePrefix);
+			
+			// neither describe nor redirect to resources not in the dumps
+			if (!mightExist(resourceURI)) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND,
+						"Unknown resource " + resourceURI);
+				return;
+			}
+
 			// deliver data in some RDF serialization
 			if (request.isInformationResourceRequest()) {
 
-				// Retrieve the non-information resource URI
-				String resourceURI = request.getNonInformationResourceURI(this.resourcePrefix);
-				response.sendData(resourceURI, this.sparqlEndpoint, contentType);
+				sendData(request, response, resourceURI, contentType);
 
 			} else {
 				// redirect to the information resource
@@ -154,6 +1161,225 @@ public class EuropeanaLODServlet extends HttpServlet {
 	}
 
 
+	/**
+	 * Sends the data for a given resource
+	 */
+	private void sendData(final EuropeanaRequest request,
+			final EuropeanaResponse response, final String resourceURI,
+			final ContentType contentType) throws IOException {
+
+		dispatch(request, response, resourceURI, new DataTask() {
+			public void send() throws IOException {
+				response.sendData(request, resourceURI, contentType);
+			}
+		});
+
+	}
+
+	/**
+	 * Sends the data for the resources of a batch request
+	 */
+	private void sendBatch(final EuropeanaRequest request,
+			final EuropeanaResponse response, final List<String> resourceURIs,
+			final ContentType contentType) throws IOException {
+
+		dispatch(request, response, resourceURIs.size() + " resources",
+				new DataTask() {
+					public void send() throws IOException {
+						response.sendBatch(request, resourceURIs, contentType);
+					}
+				});
+
+	}
+
+	/**
+	 * Runs a given data task. If async processing is enabled and supported by
+	 * the container, the request thread is released and the task runs on the
+	 * data executor.
+	 */
+	private void dispatch(final EuropeanaRequest request,
+			final EuropeanaResponse response, final String subject,
+			final DataTask task) throws IOException {
+
+		if (dataExecutor == null || !request.isAsyncSupported()) {
+			// lets a request whose client has gone leave shared fetches
+			Cancellation.bind(new Cancellation());
+			try {
+				task.send();
+			} catch (UpstreamUnavailableException e) {
+				response.sendUnavailable(e.getRetryAfter(), e.getMessage());
+			} catch (UpstreamException e) {
+				// a truncated body must not end like a complete one
+				if (response.isCommitted()) {
+					throw e;
+				}
+				sendBadGateway(response, subject, e);
+			} finally {
+				Cancellation.bind(null);
+			}
+			return;
+		}
+
+		response.getMetrics().setDeferred(true);
+
+		final AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(asyncTimeout);
+
+		// set by whoever finishes the request first: worker, timeout or error
+		final AtomicBoolean done = new AtomicBoolean(false);
+
+		// aborts the upstream requests of the task once it is not needed
+		final Cancellation cancellation = new Cancellation();
+		final AtomicReference<Future<?>> future = new AtomicReference<Future<?>>();
+
+		asyncContext.addListener(new AsyncListener() {
+
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true)) {
+					response.abandon(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+							"Timeout while retrieving " + subject);
+					cancel(future.get(), cancellation);
+					asyncContext.complete();
+				}
+			}
+
+			public void onError(AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true)) {
+					response.abandon(0, null);
+					cancel(future.get(), cancellation);
+					asyncContext.complete();
+				}
+			}
+
+			public void onComplete(AsyncEvent event) throws IOException {
+				record(response, response.getStatus());
+			}
+
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+
+		});
+
+		try {
+
+			future.set(dataExecutor.submit(new Runnable() {
+
+				public void run() {
+					Trace.bind(response.getTrace());
+					Cancellation.bind(cancellation);
+					try {
+						task.send();
+					} catch (UpstreamUnavailableException e) {
+						if (!done.get() && !response.isCommitted()) {
+							sendUnavailableQuietly(response, e);
+						}
+					} catch (UpstreamException e) {
+						if (!done.get()) {
+							sendBadGateway(response, subject, e);
+						}
+					} catch (Exception e) {
+						if (!done.get()) {
+							getServletContext().log(
+									"Could not send data for " + subject, e);
+							sendErrorQuietly(response,
+									HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+									e.getMessage());
+						}
+					} finally {
+						Cancellation.bind(null);
+						Trace.bind(null);
+						if (done.compareAndSet(false, true)) {
+							asyncContext.complete();
+						}
+					}
+				}
+
+			}));
+
+		} catch (RejectedExecutionException e) {
+			// all workers busy and the queue is full
+			done.set(true);
+			response.sendUnavailable(1, "Too many pending data requests");
+			asyncContext.complete();
+		}
+
+	}
+
+	/**
+	 * Stops a data task whose response has been given up: a task still
+	 * queued never runs, a running task has its upstream requests aborted.
+	 * Running tasks are not interrupted, since an interrupt closes the file
+	 * channels of the stores and the disk cache for all requests.
+	 */
+	private static void cancel(Future<?> future, Cancellation cancellation) {
+		cancellation.cancel();
+		if (future != null) {
+			future.cancel(false);
+		}
+	}
+
+	private static void sendErrorQuietly(HttpServletResponse response,
+			int status, String message) {
+		try {
+			if (!response.isCommitted()) {
+				response.sendError(status, message);
+			}
+		} catch (IOException e) {
+			// the client is gone
+		}
+	}
+
+	/**
+	 * Answers a data request with 502 Bad Gateway since the upstream
+	 * endpoint failed; unlike other errors, this is not a bug of ours
+	 */
+	private void sendBadGateway(HttpServletResponse response, String subject,
+			UpstreamException e) {
+		getServletContext().log("Upstream failure for " + subject + ": "
+				+ e.getMessage());
+		sendErrorQuietly(response, HttpServletResponse.SC_BAD_GATEWAY, e
+				.getMessage());
+	}
+
+	private static void sendUnavailableQuietly(EuropeanaResponse response,
+			UpstreamUnavailableException e) {
+		try {
+			response.sendUnavailable(e.getRetryAfter(), e.getMessage());
+		} catch (IOException ioe) {
+			// the client is gone
+		}
+	}
+
+	/**
+	 * Sends a data response, on the request thread or a worker thread
+	 */
+	private interface DataTask {
+		void send() throws IOException;
+	}
+
+	/**
+	 * Creates named daemon threads, so that worker threads never block a
+	 * container shutdown
+	 */
+	static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + "-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
 	private static final long serialVersionUID = 2734874416627565075L;
 
 }
\ No newline at end of file
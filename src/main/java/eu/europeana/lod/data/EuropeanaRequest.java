@@ -1,10 +1,19 @@
 package eu.europeana.lod.data;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
+import eu.europeana.lod.data.ResourceRouter.Route;
 import eu.europeana.lod.util.AcceptHeaderHandler;
+import eu.europeana.lod.util.ContentEncoding;
 import eu.europeana.lod.util.AcceptHeaderHandler.MimeTypePattern;
 
 /**
@@ -29,6 +38,11 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 
 	public static String IR_PATH = "/data";
 
+	/**
+	 * The path batch requests are posted to
+	 */
+	public static String BATCH_PATH = IR_PATH + "/batch";
+
 	public static final String EUROPEANA_HTML_BASE_URL = "http://www.europeana.eu/portal/record/";
 
 	public static enum ResourceType {
@@ -46,25 +60,6 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 			this.pathPrefix = pathPrefix;
 		}
 
-		/**
-		 * Returns the matching resource type for a given request URI
-		 * 
-		 * Returns null, if there is no matching resource type
-		 * 
-		 */
-		public static ResourceType getResourceType(String requestURI) {
-
-			for (ResourceType resourceType : values()) {
-
-				if (requestURI.startsWith(resourceType.toString())) {
-					return resourceType;
-				}
-
-			}
-
-			return null;
-		}
-
 		@Override
 		public String toString() {
 			return pathPrefix;
@@ -78,7 +73,7 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 
 	private String baseURI;
 
-	private ResourceType resourceType;
+	private Route route;
 
 	private String europeanaID;
 
@@ -86,13 +81,37 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 
 	private boolean informationResourceRequest = false;
 
+	private boolean batchRequest = false;
+
+	/* Routes request paths to resource types */
+
+	private final ResourceRouter router;
+
+	/* Time (ns) spent on parsing the request */
+
+	private long negotiationTime;
+
+	private long parsingTime;
+
 	public EuropeanaRequest(HttpServletRequest request) throws ServletException {
+		this(request, ResourceRouter.DEFAULT);
+	}
+
+	public EuropeanaRequest(HttpServletRequest request, ResourceRouter router)
+			throws ServletException {
 		super(request);
 
+		this.router = router;
+
+		long started = System.nanoTime();
+
 		// parse Accept Header Field
 		String acceptHeader = getHeader("accept");
 		this.mimeType = AcceptHeaderHandler.getMimeType(acceptHeader);
 
+		long negotiated = System.nanoTime();
+		this.negotiationTime = negotiated - started;
+
 		// construct the baseURI
 		if (getServerPort() != 80) {
 			this.baseURI = "http://" + getServerName() + ":" + getServerPort();
@@ -103,46 +122,58 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 		// parse Europeana URI path
 		if (getRequestURI() == null || getRequestURI().equalsIgnoreCase("/")) {
 			this.rootRequest = true;
+		} else if (getRequestURI().equals(BATCH_PATH)) {
+			this.batchRequest = true;
 		} else {
 			parseRequestURI(getRequestURI());
 		}
 
+		this.parsingTime = System.nanoTime() - negotiated;
+
 	}
 
 	/**
-	 * Parses info from the request by sequentially chopping of requestURI paths
+	 * Returns the time (ns) spent on parsing the Accept header
 	 */
-	private void parseRequestURI(String requestURI) throws ServletException {
+	public long getNegotiationTime() {
+		return this.negotiationTime;
+	}
 
-		// strip of trailing slash
-		if (requestURI.endsWith("/")) {
-			requestURI = requestURI.substring(0, requestURI.length() - 1);
-		}
+	/**
+	 * Returns the time (ns) spent on parsing the request URI
+	 */
+	public long getParsingTime() {
+		return this.parsingTime;
+	}
+
+	/**
+	 * Parses info from the request by routing its path to a resource type; the
+	 * remainder of the path is the europeanaID
+	 */
+	private void parseRequestURI(String requestURI) throws ServletException {
 
-		// check whether the request asks for an information or non-information
-		// resource
-		if (requestURI.startsWith(IR_PATH)) {
-			this.informationResourceRequest = true;
-			requestURI = requestURI.substring(IR_PATH.length(),
-					requestURI.length());
+		// a trailing slash is not part of the europeanaID
+		int end = requestURI.length();
+		if (end > 0 && requestURI.charAt(end - 1) == '/') {
+			end--;
 		}
 
-		// determine resource type
-		ResourceType resourceType = ResourceType.getResourceType(requestURI);
-		if (resourceType == null) {
+		// determine resource type and whether the request asks for an
+		// information or non-information resource
+		Route route = router.route(requestURI);
+		if (route == null) {
 			throw new ServletException("Invalid resource type in request URI "
 					+ getRequestURI());
 		}
-		this.resourceType = resourceType;
-		requestURI = requestURI.substring(resourceType.toString().length(),
-				requestURI.length());
+		this.route = route;
+		this.informationResourceRequest = route.isInformationResource();
 
 		// determine europeanaID -> the remainder of the request URI
-		if (requestURI.length() == 0) {
+		if (end <= route.getLength()) {
 			throw new ServletException("Invalid europeanaID in request URI "
 					+ getRequestURI());
 		}
-		this.europeanaID = requestURI;
+		this.europeanaID = requestURI.substring(route.getLength(), end);
 
 	}
 
@@ -162,6 +193,79 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 		return this.informationResourceRequest;
 	}
 
+	/**
+	 * Returns whether the request asks for the descriptions of several
+	 * resources listed in its body
+	 */
+	public boolean isBatchRequest() {
+
+		return this.batchRequest;
+	}
+
+	/**
+	 * Returns the distinct non-information resource URIs listed in the body
+	 * of a batch request, at most maxResources + 1 of them.
+	 * 
+	 * Resources are separated by whitespace or commas, or given as uri form
+	 * parameters. They can be listed by URI (http://data.europeana.eu/item/...),
+	 * by path (/item/..., /proxy/provider/...) or by europeanaID, which
+	 * denotes an item (00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154).
+	 */
+	public List<String> getBatchResourceURIs(String resourcePrefix,
+			int maxResources) throws ServletException, IOException {
+
+		Set<String> resourceURIs = new LinkedHashSet<String>();
+
+		String contentType = getContentType();
+		if (contentType != null
+				&& contentType.startsWith("application/x-www-form-urlencoded")) {
+			String[] values = getParameterValues("uri");
+			if (values != null) {
+				for (String value : values) {
+					addResourceURIs(value, resourcePrefix, resourceURIs);
+				}
+			}
+		} else {
+			BufferedReader reader = getReader();
+			String line;
+			while ((line = reader.readLine()) != null
+					&& resourceURIs.size() <= maxResources) {
+				addResourceURIs(line, resourcePrefix, resourceURIs);
+			}
+		}
+
+		List<String> result = new ArrayList<String>(resourceURIs);
+		return result.size() > maxResources ? result.subList(0,
+				maxResources + 1) : result;
+
+	}
+
+	private void addResourceURIs(String value, String resourcePrefix,
+			Set<String> resourceURIs) throws ServletException {
+
+		for (String token : value.split("[,\\s]+")) {
+			if (token.length() > 0) {
+				resourceURIs.add(toResourceURI(token, resourcePrefix));
+			}
+		}
+
+	}
+
+	/**
+	 * Returns the non-information resource URI for a resource listed in a
+	 * batch request
+	 */
+	private String toResourceURI(String token, String resourcePrefix)
+			throws ServletException {
+
+		try {
+			return router.toResourceURI(token, resourcePrefix);
+		} catch (IllegalArgumentException e) {
+			throw new ServletException(e.getMessage());
+		}
+
+	}
+
 	/**
 	 * Returns whether or not the request asks for a human-readable resource
 	 * representation
@@ -214,13 +318,24 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 
 	/**
 	 * Returns the requested resource type (europeana/provider
-	 * proxy/aggregation/item/rm)
+	 * proxy/aggregation/item/rm); null if the request path matched a
+	 * configured resource type without built-in counterpart
 	 * 
 	 * @return
 	 */
 	public ResourceType getResourceType() {
 
-		return this.resourceType;
+		return this.route == null ? null : this.route.getResourceType();
+
+	}
+
+	/**
+	 * Returns the route the request path matched; null for root and batch
+	 * requests
+	 */
+	public Route getRoute() {
+
+		return this.route;
 
 	}
 
@@ -239,7 +354,7 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 	 */
 	public String getNonInformationResourceURI(String resourcePrefix) {
 
-		return resourcePrefix + getResourceType() + getEuropeanaID();
+		return resourcePrefix + this.route.getPrefix() + getEuropeanaID();
 	}
 
 	/**
@@ -257,11 +372,85 @@ public class EuropeanaRequest extends HttpServletRequestWrapper {
 	 */
 	public String getDataInformationResource() {
 
-		return this.baseURI + EuropeanaRequest.IR_PATH + getResourceType()
+		return this.baseURI + EuropeanaRequest.IR_PATH + this.route.getPrefix()
 				+ getEuropeanaID();
 	}
 	
 	
+	/**
+	 * Returns the content coding the client prefers for response bodies
+	 */
+	public ContentEncoding getAcceptedEncoding() {
+
+		return ContentEncoding.negotiate(getHeader("Accept-Encoding"));
+	}
+
+	/**
+	 * Returns whether this is a conditional request, carrying validators for
+	 * a representation the client already holds
+	 */
+	public boolean isConditional() {
+
+		return getHeader("If-None-Match") != null
+				|| getHeader("If-Modified-Since") != null;
+	}
+
+	/**
+	 * Returns whether the client already holds the representation having a
+	 * given entity tag and modification time (ms), i.e., whether the
+	 * conditional request can be answered with 304 Not Modified.
+	 * 
+	 * If-None-Match takes precedence over If-Modified-Since; a negative
+	 * lastModified value means the modification time is unknown.
+	 */
+	public boolean isNotModified(String etag, long lastModified) {
+
+		String ifNoneMatch = getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return matchesETag(ifNoneMatch, etag);
+		}
+
+		if (lastModified < 0) {
+			return false;
+		}
+
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			// ignore unparseable dates
+			return false;
+		}
+
+		// HTTP dates have a resolution of seconds
+		return ifModifiedSince >= 0
+				&& (lastModified / 1000) * 1000 <= ifModifiedSince;
+
+	}
+
+	/**
+	 * Returns whether a given entity tag is listed in an If-None-Match header
+	 * value (weak comparison)
+	 */
+	private static boolean matchesETag(String ifNoneMatch, String etag) {
+
+		if (ifNoneMatch.trim().equals("*")) {
+			return true;
+		}
+
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+	
 	/**
 	 * Returns the URI for a given local static resource 
 	 */
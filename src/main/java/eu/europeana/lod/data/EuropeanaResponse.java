@@ -1,17 +1,28 @@
 package eu.europeana.lod.data;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -22,13 +33,36 @@ import com.hp.hpl.jena.rdf.model.RDFWriter;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
-import com.hp.hpl.jena.sparql.engine.http.HttpParams;
+import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
-import com.hp.hpl.jena.sparql.engine.http.HttpQuery;
 import com.hp.hpl.jena.sparql.util.graph.GraphFactory;
 
+import eu.europeana.lod.cache.CachedResponse;
+import eu.europeana.lod.cache.DiskCache;
+import eu.europeana.lod.cache.ResponseCache;
+import eu.europeana.lod.metrics.RequestMetrics;
+import eu.europeana.lod.metrics.Stage;
+import eu.europeana.lod.rdf.BlankNodeRules;
+import eu.europeana.lod.rdf.BlankNodeRules.Policy;
+import eu.europeana.lod.rdf.NTriplesRelay;
+import eu.europeana.lod.rdf.NTriplesStreamWriter;
+import eu.europeana.lod.rdf.RDFXMLStreamWriter;
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.rdf.TripleStreamWriter;
+import eu.europeana.lod.store.DumpStore;
+import eu.europeana.lod.store.RenderedStore;
+import eu.europeana.lod.store.ResourceStore;
+import eu.europeana.lod.store.UpstreamStore;
+import eu.europeana.lod.trace.Trace;
+import eu.europeana.lod.upstream.Cancellation;
+import eu.europeana.lod.upstream.UpstreamException;
+import eu.europeana.lod.upstream.UpstreamResponse;
+import eu.europeana.lod.util.CapturingOutputStream;
+import eu.europeana.lod.util.ContentEncoding;
+import eu.europeana.lod.util.EncodingOutputStream;
+import eu.europeana.lod.util.GraphDigest;
+import eu.europeana.lod.util.SingleFlight;
 import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
-import eu.europeana.lod.util.AcceptHeaderHandler.MimeTypePattern;
 
 /**
  * This class provides methods for sending Europeana LOD responses. It supports
@@ -44,11 +78,272 @@ import eu.europeana.lod.util.AcceptHeaderHandler.MimeTypePattern;
 public class EuropeanaResponse extends HttpServletResponseWrapper {
 
 	/**
-	 * Creates a new Europeana response
+	 * The store data is retrieved from: the upstream endpoint(s) or a local
+	 * dump store
+	 */
+	private ResourceStore resourceStore;
+
+	/**
+	 * Pre-rendered data responses; null if there are none
+	 */
+	private RenderedStore renderedStore;
+
+	/**
+	 * What happens to blank nodes in retrieved descriptions
+	 */
+	private BlankNodeRules blankNodeRules;
+
+	/**
+	 * The cache for serialized data responses; null if caching is disabled
+	 */
+	private ResponseCache responseCache;
+
+	/**
+	 * The upstream fetches currently in flight, shared by concurrent requests
+	 */
+	private SingleFlight<Description> fetches;
+
+	/**
+	 * The content coding of data response bodies, negotiated per request
+	 */
+	private ContentEncoding encoding = ContentEncoding.IDENTITY;
+
+	/**
+	 * Whether RDF/XML is written abbreviated (by Jena's RDF/XML-ABBREV
+	 * writer) rather than streamed as plain RDF/XML
+	 */
+	private boolean abbreviateRDFXML = false;
+
+	/**
+	 * Whether descriptions the upstream endpoint delivers in the requested
+	 * format are relayed as they are received
+	 */
+	private boolean upstreamPassthrough = false;
+
+	/**
+	 * The stage durations of this response
+	 */
+	private final RequestMetrics metrics = new RequestMetrics();
+
+	/**
+	 * The trace of this response; null if it is not traced
+	 */
+	private Trace trace;
+
+	/**
+	 * Counts the body bytes written; created with the first body
+	 */
+	private CountingOutputStream counter;
+
+	/**
+	 * Set once the response has been given up, e.g., after a timeout; guarded
+	 * by this response
+	 */
+	private boolean abandoned = false;
+
+	/**
+	 * The cancellation of the data task sending this response; null if there
+	 * is none
+	 */
+	private Cancellation cancellation;
+
+	/**
+	 * The failure of a write to the client while streaming a fetch shared
+	 * with concurrent requests; null if there was none
+	 */
+	private IOException clientFailure;
+
+	/**
+	 * The namespaces declared in streamed RDF/XML responses, covering the
+	 * properties of EDM descriptions
+	 */
+	private static final Map<String, String> NAMESPACES = new LinkedHashMap<String, String>();
+
+	static {
+		NAMESPACES.put("edm", "http://www.europeana.eu/schemas/edm/");
+		NAMESPACES.put("ore", "http://www.openarchives.org/ore/terms/");
+		NAMESPACES.put("dc", "http://purl.org/dc/elements/1.1/");
+		NAMESPACES.put("dcterms", "http://purl.org/dc/terms/");
+		NAMESPACES.put("skos", "http://www.w3.org/2004/02/skos/core#");
+		NAMESPACES.put("owl", "http://www.w3.org/2002/07/owl#");
+		NAMESPACES.put("foaf", "http://xmlns.com/foaf/0.1/");
+		NAMESPACES.put("wgs84_pos", "http://www.w3.org/2003/01/geo/wgs84_pos#");
+	}
+
+	/**
+	 * Data responses vary by content type and content coding
+	 */
+	private static final String VARY = "Accept, Accept-Encoding";
+
+	/**
+	 * The Accept header of relayed requests; RDF/XML is the fallback every
+	 * upstream endpoint supports
+	 */
+	private static final String NTRIPLES_ACCEPT = "application/n-triples, "
+			+ "text/plain;q=0.9, application/rdf+xml;q=0.5";
+
+	/**
+	 * Creates a new Europeana response; it can send redirects only
 	 */
 	public EuropeanaResponse(HttpServletResponse response) {
+		this(response, null, null, BlankNodeRules.DROP, null, null);
+
+	}
+
+	/**
+	 * Creates a new Europeana response, retrieving data from a given resource
+	 * store, sharing fetches in flight with concurrent requests, and serving
+	 * data responses from the pre-rendered responses and a given response
+	 * cache
+	 */
+	public EuropeanaResponse(HttpServletResponse response,
+			ResourceStore resourceStore, RenderedStore renderedStore,
+			BlankNodeRules blankNodeRules, SingleFlight<Description> fetches,
+			ResponseCache responseCache) {
 		super(response);
 
+		this.resourceStore = resourceStore;
+		this.renderedStore = renderedStore;
+		this.blankNodeRules = blankNodeRules;
+		this.fetches = fetches;
+		this.responseCache = responseCache;
+
+	}
+
+	/**
+	 * Returns the stage durations of this response
+	 */
+	public RequestMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the trace of this response; null if it is not traced
+	 */
+	public Trace getTrace() {
+		return trace;
+	}
+
+	public void setTrace(Trace trace) {
+		this.trace = trace;
+	}
+
+	public void setAbbreviateRDFXML(boolean abbreviateRDFXML) {
+		this.abbreviateRDFXML = abbreviateRDFXML;
+	}
+
+	public void setUpstreamPassthrough(boolean upstreamPassthrough) {
+		this.upstreamPassthrough = upstreamPassthrough;
+	}
+
+	/**
+	 * Returns the number of body bytes written so far (after encoding)
+	 */
+	public long getBytesWritten() {
+		return counter == null ? 0 : counter.count;
+	}
+
+	@Override
+	public synchronized ServletOutputStream getOutputStream()
+			throws IOException {
+		checkAbandoned();
+		if (counter == null) {
+			counter = new CountingOutputStream(super.getOutputStream());
+		}
+		return counter;
+	}
+
+	/**
+	 * Gives up this response, e.g., after a timeout, before it is completed
+	 * by another thread: from now on, body writes fail and status and header
+	 * changes are ignored, so that a data task still running cannot touch a
+	 * completed (and maybe recycled) response. A given error status is sent
+	 * if the response is not committed yet; 0 sends nothing.
+	 */
+	public synchronized void abandon(int status, String message)
+			throws IOException {
+
+		if (abandoned) {
+			return;
+		}
+		abandoned = true;
+		if (status > 0 && !isCommitted()) {
+			super.sendError(status, message);
+		}
+
+	}
+
+	public synchronized boolean isAbandoned() {
+		return abandoned;
+	}
+
+	private void checkAbandoned() throws IOException {
+		if (abandoned) {
+			throw new IOException("Response abandoned");
+		}
+	}
+
+	@Override
+	public synchronized void sendError(int sc, String msg) throws IOException {
+		if (!abandoned) {
+			super.sendError(sc, msg);
+		}
+	}
+
+	@Override
+	public synchronized void sendError(int sc) throws IOException {
+		if (!abandoned) {
+			super.sendError(sc);
+		}
+	}
+
+	@Override
+	public synchronized void setStatus(int sc) {
+		if (!abandoned) {
+			super.setStatus(sc);
+		}
+	}
+
+	@Override
+	public synchronized void setHeader(String name, String value) {
+		if (!abandoned) {
+			super.setHeader(name, value);
+		}
+	}
+
+	@Override
+	public synchronized void addHeader(String name, String value) {
+		if (!abandoned) {
+			super.addHeader(name, value);
+		}
+	}
+
+	@Override
+	public synchronized void setDateHeader(String name, long date) {
+		if (!abandoned) {
+			super.setDateHeader(name, date);
+		}
+	}
+
+	@Override
+	public synchronized void setIntHeader(String name, int value) {
+		if (!abandoned) {
+			super.setIntHeader(name, value);
+		}
+	}
+
+	@Override
+	public synchronized void setContentLength(int len) {
+		if (!abandoned) {
+			super.setContentLength(len);
+		}
+	}
+
+	@Override
+	public synchronized void setContentType(String type) {
+		if (!abandoned) {
+			super.setContentType(type);
+		}
 	}
 
 	/**
@@ -63,127 +358,629 @@ public class EuropeanaResponse extends HttpServletResponseWrapper {
 	}
 
 	/**
-	 * Sends RDF data about a given resource, retrieved from a given SPARQL
-	 * endpoint, serialized according to a given content-type
+	 * Sends a 503 Service Unavailable error, telling the client to retry after
+	 * a given number of seconds
 	 */
-	public void sendData(String resourceURI, String sparqlEndpoint,
+	public void sendUnavailable(long retryAfter, String message)
+			throws IOException {
+		setHeader("Retry-After", String.valueOf(retryAfter));
+		sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+	}
+
+	/**
+	 * Sends RDF data about a given resource, retrieved from the upstream
+	 * endpoint, serialized according to a given content-type.
+	 * 
+	 * Conditional requests (If-None-Match, If-Modified-Since) are answered
+	 * with 304 Not Modified if the client's copy is still valid; in that case
+	 * nothing is serialized.
+	 * 
+	 * Bodies are compressed if the client accepts gzip or deflate; cached and
+	 * pre-rendered responses are sent gzip encoded without compressing them
+	 * again.
+	 */
+	public void sendData(EuropeanaRequest request, final String resourceURI,
+			final ContentType contentType) throws IOException {
+
+		setContentType(contentType.toString());
+		encoding = request.getAcceptedEncoding();
+		cancellation = Cancellation.current();
+
+		CachedResponse cachedResponse = getCachedResponse(resourceURI,
+				contentType);
+
+		if (cachedResponse == null
+				&& sendDiskCached(request, resourceURI, contentType)) {
+			return;
+		}
+
+		// N-Triples stored verbatim in a dump store are copied as they are
+		if (cachedResponse == null && contentType == ContentType.N3
+				&& !request.isConditional()
+				&& resourceStore instanceof DumpStore) {
+
+			if (transferData((DumpStore) resourceStore, resourceURI)) {
+				return;
+			}
+		}
+
+		Description description = null;
+
+		if (cachedResponse == null) {
+
+			// N-Triples and plain RDF/XML can be streamed while fetching, and
+			// N-Triples relayed from the upstream endpoint, unless validators
+			// must be known up front; concurrent requests share the fetch and
+			// serialize the description in their own content types
+			final boolean stream = isStreamed(contentType)
+					&& !request.isConditional();
+			final boolean[] streamed = new boolean[] { false };
+
+			// requests waiting for a concurrent fetch spend that time fetching
+			long fetchStarted = System.nanoTime();
+			try {
+				description = fetches.execute(resourceURI,
+						new Callable<Description>() {
+							public Description call() throws IOException {
+								if (!stream) {
+									return new Description(
+											retrieveModel(resourceURI));
+								}
+								streamed[0] = true;
+								return isRelayed(contentType) ? relayData(
+										resourceURI, contentType) : streamData(
+										resourceURI, contentType, null);
+							}
+						});
+			} catch (IOException e) {
+				// a fetch nobody waits for any more is aborted
+				throw (clientFailure != null) ? clientFailure : e;
+			}
+			if (streamed[0]) {
+				// the fetch went on for the others if the client has gone
+				if (clientFailure != null) {
+					throw clientFailure;
+				}
+				return;
+			}
+			if (!metrics.hasRun(Stage.UPSTREAM_FETCH)) {
+				metrics.add(Stage.UPSTREAM_FETCH, System.nanoTime()
+						- fetchStarted);
+			}
+
+			// a concurrent request may have cached this content type already
+			cachedResponse = getCachedResponse(resourceURI, contentType);
+		}
+
+		if (cachedResponse == null) {
+
+			if (description.isEmpty()) {
+				sendError(HttpServletResponse.SC_NOT_FOUND, "Could not retrieve "
+						+ resourceURI);
+				return;
+			}
+
+			Model model = description.getModel();
+
+			// the graph digest allows revalidation without serializing
+			String etag = createETag(description.getDigest(), contentType);
+
+			if (request.isNotModified(encodeETag(etag), -1)) {
+				sendNotModified(etag, -1);
+				return;
+			}
+
+			if (responseCache == null) {
+				setValidators(etag, System.currentTimeMillis());
+				writeModel(model, contentType);
+				return;
+			}
+
+			// serialize once, keep the bytes for subsequent requests
+			long serializationStarted = System.nanoTime();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			getWriter(contentType, abbreviateRDFXML).write(model, buffer);
+			metrics.add(Stage.SERIALIZATION, System.nanoTime()
+					- serializationStarted);
+			cachedResponse = responseCache.put(resourceURI, contentType,
+					buffer.toByteArray(), etag);
+
+		} else if (request.isNotModified(encodeETag(cachedResponse.getETag()),
+				cachedResponse.getCreated())) {
+
+			sendNotModified(cachedResponse.getETag(),
+					cachedResponse.getCreated());
+			return;
+
+		}
+
+		setValidators(cachedResponse.getETag(), cachedResponse.getCreated());
+		writeBody(cachedResponse);
+
+	}
+
+	/**
+	 * Sends the descriptions of several resources as one graph, serialized
+	 * according to a given content type. The resource store retrieves them
+	 * with as few upstream requests as possible.
+	 * 
+	 * N-Triples and Turtle are streamed as N-Triples (a subset of Turtle),
+	 * triple by triple, and so is plain RDF/XML; abbreviated RDF/XML is
+	 * written from a model. Batch responses are neither cached nor
+	 * validated. Skolem IRIs are scoped by the described resource each blank
+	 * node belongs to, as in single data responses.
+	 */
+	public void sendBatch(EuropeanaRequest request, List<String> resourceURIs,
 			ContentType contentType) throws IOException {
 
 		setContentType(contentType.toString());
+		encoding = request.getAcceptedEncoding();
 
-		Model model = retrieveModel(resourceURI, sparqlEndpoint);
+		if (contentType == ContentType.RDF && abbreviateRDFXML) {
+
+			Model model = GraphFactory.makePlainModel();
+			final Graph graph = model.getGraph();
+			TimedDescription description = new TimedDescription(resourceURIs,
+					new TripleHandler() {
+						public void handle(Triple triple) {
+							graph.add(triple);
+						}
+					}, Stage.RDF_PARSE);
+			try {
+				resourceStore.describe(resourceURIs, description.getHandler());
+				description.flush();
+			} finally {
+				description.finish();
+			}
+
+			if (model.isEmpty()) {
+				sendError(HttpServletResponse.SC_NOT_FOUND,
+						"Could not retrieve any of " + resourceURIs.size()
+								+ " resources");
+				return;
+			}
+
+			addHeader("Vary", VARY);
+			writeModel(model, contentType);
+			return;
+		}
+
+		OutputStream body = getOutputStream();
+		if (encoding != ContentEncoding.IDENTITY) {
+			body = getEncodingOutputStream();
+		}
+		final TripleStreamWriter writer = createStreamWriter(contentType, body);
+
+		TimedDescription description = new TimedDescription(resourceURIs,
+				new TripleHandler() {
+					public void handle(Triple triple) {
+						if (writer.getTripleCount() == 0) {
+							addHeader("Vary", VARY);
+						}
+						writer.handle(triple);
+					}
+				}, Stage.SERIALIZATION);
+		try {
+			resourceStore.describe(resourceURIs, description.getHandler());
+			description.flush();
+		} finally {
+			description.finish();
+		}
+
+		if (writer.getTripleCount() == 0) {
+			sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Could not retrieve any of " + resourceURIs.size()
+							+ " resources");
+			return;
+		}
 
-		if (model.isEmpty()) {
+		writer.finish();
+		if (body instanceof EncodingOutputStream) {
+			((EncodingOutputStream) body).finish();
+		}
+
+	}
+
+	/**
+	 * Returns a serialized response from the response cache or, if there is
+	 * none, from the pre-rendered responses
+	 */
+	private CachedResponse getCachedResponse(String resourceURI,
+			ContentType contentType) throws IOException {
+
+		if (responseCache != null) {
+			CachedResponse cachedResponse = responseCache.get(resourceURI,
+					contentType);
+			if (cachedResponse != null) {
+				return cachedResponse;
+			}
+		}
+
+		// pre-rendered RDF/XML written by the other writer is not served
+		if (renderedStore != null
+				&& (contentType != ContentType.RDF || renderedStore
+						.isAbbreviatedRDFXML() == abbreviateRDFXML)) {
+			// only the body in the negotiated coding is read
+			RenderedStore.Rendered rendered = renderedStore.get(resourceURI,
+					contentType, encoding);
+			if (rendered != null) {
+				boolean gzip = encoding == ContentEncoding.GZIP;
+				return new CachedResponse(resourceURI, contentType,
+						gzip ? null : rendered.getBody(), gzip ? rendered
+								.getBody() : null, createETag(
+								rendered.getDigest(), contentType),
+						renderedStore.getCreated(), Long.MAX_VALUE);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Sends a response from the disk cache, if it holds one: the body in the
+	 * negotiated coding is transferred from the segment file without reading
+	 * it into the heap, unless it has to be encoded first. Returns whether a
+	 * response was sent.
+	 */
+	private boolean sendDiskCached(EuropeanaRequest request,
+			String resourceURI, ContentType contentType) throws IOException {
+
+		DiskCache diskCache = (responseCache != null) ? responseCache
+				.getDiskCache() : null;
+		if (diskCache == null) {
+			return false;
+		}
+
+		DiskCache.Entry entry = diskCache.get(resourceURI, contentType);
+		if (entry == null) {
+			return false;
+		}
+
+		try {
+			if (request.isNotModified(encodeETag(entry.getETag()), entry
+					.getCreated())) {
+				sendNotModified(entry.getETag(), entry.getCreated());
+				return true;
+			}
+
+			setValidators(entry.getETag(), entry.getCreated());
+
+			if (encoding == ContentEncoding.IDENTITY) {
+				setContentLength(entry.getBodyLength());
+				OutputStream out = getOutputStream();
+				entry.transferBody(Channels.newChannel(out));
+				out.flush();
+			} else if (encoding == ContentEncoding.GZIP && entry.hasGzipBody()) {
+				setHeader("Content-Encoding", encoding.toString());
+				setContentLength(entry.getGzipBodyLength());
+				OutputStream out = getOutputStream();
+				entry.transferGzipBody(Channels.newChannel(out));
+				out.flush();
+			} else {
+				writeBody(new CachedResponse(resourceURI, contentType, entry
+						.readBody(), entry.getETag(), entry.getCreated(), entry
+						.getExpires()));
+			}
+			return true;
+		} finally {
+			entry.release();
+		}
+
+	}
+
+	/**
+	 * Sends the N-Triples of a given resource straight from the data file of
+	 * a dump store. Returns false if the stored triples cannot be sent as they
+	 * are, since the blank node rules change them.
+	 */
+	private boolean transferData(DumpStore dumpStore, String resourceURI)
+			throws IOException {
+
+		long fetchStarted = System.nanoTime();
+		DumpStore.Range range = dumpStore.find(resourceURI);
+		metrics.add(Stage.UPSTREAM_FETCH, System.nanoTime() - fetchStarted);
+
+		if (range == null) {
 			sendError(HttpServletResponse.SC_NOT_FOUND, "Could not retrieve "
 					+ resourceURI);
-			return;
+			return true;
 		}
 
-		addHeader("Vary", "Accept");
+		if (!blankNodeRules.isVerbatim(range.hasBlankObjects())) {
+			return false;
+		}
 
-		writeModel(model, contentType.toString());
+		addHeader("Vary", VARY);
+
+		if (encoding != ContentEncoding.IDENTITY) {
+			EncodingOutputStream out = getEncodingOutputStream();
+			dumpStore.transferTo(range, Channels.newChannel(out));
+			out.finish();
+			return true;
+		}
+
+		setContentLength(range.getLength());
+
+		OutputStream out = getOutputStream();
+		dumpStore.transferTo(range, Channels.newChannel(out));
+		out.flush();
+
+		return true;
+	}
+
+	/**
+	 * Relays the N-Triples description of a given resource as the upstream
+	 * endpoint serializes it: the lines are copied to the response with the
+	 * blank node rules applied, and captured for the response cache with an
+	 * entity tag digesting the relayed graph, as for parsed descriptions. The
+	 * digest is computed line by line while relaying.
+	 * Other formats the endpoint falls back to are parsed and serialized
+	 * again.
+	 * 
+	 * Returns the relayed lines, for concurrent requests sharing the fetch.
+	 */
+	private Description relayData(String resourceURI, ContentType contentType)
+			throws IOException {
+
+		UpstreamStore upstreamStore = (UpstreamStore) resourceStore;
+
+		long fetchStarted = System.nanoTime();
+		UpstreamResponse response = upstreamStore.fetch(resourceURI,
+				NTRIPLES_ACCEPT);
+		if (response == null) {
+			metrics.add(Stage.UPSTREAM_FETCH, System.nanoTime() - fetchStarted);
+			sendError(HttpServletResponse.SC_NOT_FOUND, "Could not retrieve "
+					+ resourceURI);
+			return new Description(new ArrayList<Triple>(), null);
+		}
+
+		try {
+
+			String mimeType = response.getMimeType();
+			if (!UpstreamStore.NTRIPLES_TYPES.contains(mimeType)) {
+				metrics.add(Stage.UPSTREAM_FETCH, System.nanoTime()
+						- fetchStarted);
+				return streamData(resourceURI, contentType, response);
+			}
+
+			long captureLimit = (responseCache != null) ? responseCache
+					.getMaxEntryBytes() : -1;
+
+			ClientOutputStream body = new ClientOutputStream();
+			CapturingOutputStream out = new CapturingOutputStream(body,
+					captureLimit);
+
+			// no digest if the endpoint relays invalid N-Triples, which are
+			// not cached
+			final GraphDigest[] digest = new GraphDigest[] { new GraphDigest() };
+			final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+
+			long relayed = new NTriplesRelay(out, blankNodeRules, resourceURI) {
+				@Override
+				protected void onStart() {
+					addHeader("Vary", VARY);
+				}
+
+				@Override
+				protected void onTriple(byte[] b, int off, int len)
+						throws IOException {
+					lines.write(b, off, len);
+					if (digest[0] != null) {
+						try {
+							digest[0].add(new String(b, off, len, "UTF-8"));
+						} catch (IllegalArgumentException e) {
+							digest[0] = null;
+						}
+					}
+				}
+			}.relay(response.getBody());
+
+			metrics.add(Stage.UPSTREAM_FETCH, System.nanoTime() - fetchStarted);
+
+			String graphDigest = (digest[0] != null) ? digest[0].toString()
+					: null;
+
+			if (relayed == 0) {
+				sendError(HttpServletResponse.SC_NOT_FOUND,
+						"Could not retrieve " + resourceURI);
+				return new Description(new ArrayList<Triple>(), graphDigest);
+			}
+
+			body.finish();
+
+			byte[] captured = out.getCaptured();
+			if (captured != null && graphDigest != null) {
+				responseCache.put(resourceURI, contentType, captured,
+						createETag(graphDigest, contentType));
+			}
+
+			return new Description(resourceURI, lines.toByteArray(), relayed,
+					graphDigest);
+
+		} finally {
+			response.close();
+		}
+
+	}
+
+	/**
+	 * Creates a strong entity tag for a given graph digest; the content type
+	 * is part of the tag since each serialization is a different
+	 * representation
+	 */
+	private static String createETag(String graphDigest,
+			ContentType contentType) {
+
+		return "\"" + graphDigest + "-" + contentType.name().toLowerCase()
+				+ "\"";
+	}
+
+	/**
+	 * Returns the entity tag of a representation in the negotiated content
+	 * coding; encoded bodies are different representations
+	 */
+	private String encodeETag(String etag) {
+
+		if (encoding == ContentEncoding.IDENTITY) {
+			return etag;
+		}
+
+		return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+	}
+
+	/**
+	 * Sets the validator headers of a data response
+	 */
+	private void setValidators(String etag, long lastModified) {
+
+		addHeader("Vary", VARY);
+		setHeader("ETag", encodeETag(etag));
+		if (lastModified >= 0) {
+			setDateHeader("Last-Modified", lastModified);
+		}
+
+	}
+
+	/**
+	 * Sends a 304 Not Modified response without body
+	 */
+	private void sendNotModified(String etag, long lastModified) {
+
+		setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		setValidators(etag, lastModified);
 
 	}
 
 	/* RDF writing stuff */
 
 	/**
-	 * Retrieve a model for a given resource from a given SPARQL endpoint and
-	 * make sure that all BNode descriptions are included
+	 * Returns whether responses in a given content type can be streamed
+	 * triple by triple
 	 */
-	private Model retrieveModel(String resourceURI, String sparqlEndpoint) {
+	private boolean isStreamed(ContentType contentType) {
+
+		return contentType == ContentType.N3
+				|| (contentType == ContentType.RDF && !abbreviateRDFXML);
+	}
+
+	/**
+	 * Returns whether responses in a given content type are relayed from the
+	 * upstream endpoint. Only N-Triples are, since their lines tell whether
+	 * the description is empty and the blank node rules can be applied
+	 * without parsing; RDF/XML and Turtle are parsed, which also lets
+	 * rdfXmlAbbrev take effect.
+	 */
+	private boolean isRelayed(ContentType contentType) {
+
+		return upstreamPassthrough && resourceStore instanceof UpstreamStore
+				&& contentType == ContentType.N3;
+	}
+
+	/**
+	 * Creates a writer streaming triples in a given content type; Turtle is
+	 * written as N-Triples
+	 */
+	static TripleStreamWriter createStreamWriter(
+			ContentType contentType, OutputStream out) {
+
+		if (contentType == ContentType.RDF) {
+			return new RDFXMLStreamWriter(out, NAMESPACES);
+		}
+		return new NTriplesStreamWriter(out);
+	}
+
+	/**
+	 * Streams the description of a given resource as N-Triples or plain
+	 * RDF/XML: the triples read from the resource store are filtered and
+	 * written one by one, without building a model. The written bytes are
+	 * captured for the response cache as long as they fit into a cache
+	 * entry, before they are encoded.
+	 * 
+	 * The triples are read from a given upstream response or, if it is null,
+	 * from the resource store. Returns the written triples, for concurrent
+	 * requests sharing the fetch.
+	 */
+	private Description streamData(String resourceURI,
+			ContentType contentType, UpstreamResponse upstreamResponse)
+			throws IOException {
+
+		long captureLimit = (responseCache != null) ? responseCache
+				.getMaxEntryBytes() : -1;
+
+		ClientOutputStream body = new ClientOutputStream();
+		final CapturingOutputStream out = new CapturingOutputStream(body,
+				captureLimit);
+		final TripleStreamWriter writer = createStreamWriter(contentType, out);
+		final GraphDigest digest = new GraphDigest();
+		final List<Triple> triples = new ArrayList<Triple>();
+
+		TimedDescription description = new TimedDescription(resourceURI,
+				new TripleHandler() {
+					public void handle(Triple triple) {
+						if (digest.size() == 0) {
+							addHeader("Vary", VARY);
+						}
+						digest.add(triple);
+						triples.add(triple);
+						writer.handle(triple);
+					}
+				}, Stage.SERIALIZATION);
+		try {
+			if (upstreamResponse != null) {
+				((UpstreamStore) resourceStore).parse(upstreamResponse,
+						description.getHandler());
+			} else {
+				resourceStore.describe(resourceURI, description.getHandler());
+			}
+		} finally {
+			description.finish();
+		}
+
+		if (digest.size() == 0) {
+			sendError(HttpServletResponse.SC_NOT_FOUND, "Could not retrieve "
+					+ resourceURI);
+			return new Description(triples, digest.toString());
+		}
+
+		long flushStarted = System.nanoTime();
+		writer.finish();
+		body.finish();
+		metrics.add(Stage.SERIALIZATION, System.nanoTime() - flushStarted);
+
+		byte[] captured = out.getCaptured();
+		if (captured != null) {
+			responseCache.put(resourceURI, contentType, captured,
+					createETag(digest.toString(), contentType));
+		}
+
+		return new Description(triples, digest.toString());
+
+	}
+
+	/**
+	 * Retrieve a model for a given resource from the resource store, with
+	 * blank nodes handled according to the blank node rules
+	 */
+	private Model retrieveModel(String resourceURI) throws IOException {
 
-		// Retrieve the model
-		//String query = "DESCRIBE <" + resourceURI + ">";
-		//&_implicit=false&_equivalent=false&_form=%2Fsparql
-		String tempURI=sparqlEndpoint.substring(0, sparqlEndpoint.lastIndexOf('/')+1)+"resource";
-		String query = "DESCRIBE <" + resourceURI + ">";
-		QueryEngineHTTP endpoint = new QueryEngineHTTP(sparqlEndpoint, query);
-		//test cesare
-		HttpQuery hqep=new HttpQuery(tempURI);
-		hqep.addParam("uri", resourceURI);
-		/*hqep.addParam("query", query);
-		hqep.addParam("_implicit", "false");
-		hqep.addParam("_equivalent", "false");*/
-		endpoint.addParam("_implicit", "false");
-		endpoint.addParam("_equivalent", "false");
-		
-		
-		
 		//Model m =GraphFactory.makeJenaDefaultModel();
 		Model m =GraphFactory.makePlainModel();
 		
-		//Model model = endpoint.execDescribe();
-		
-	    //RDFReader arp = m.getReader();
-	  /*
-	    arp.setProperty("error-mode", "lax" );
-	    arp.setProperty("iri-rules", "lax" );
-	    arp.setProperty("WARN_UNQUALIFIED_RDF_ATTRIBUTE","EM_IGNORE");
-	    arp.setProperty("embedding",false);
-	    */
-	    hqep.setAccept(HttpParams.contentTypeRDFXML) ;
-	 // hqep.setAccept(HttpParams.contentTypeResultsXML) ;
-	    InputStream is=hqep.exec();
-	   
-	    /*
-	    InputStreamReader isr = new InputStreamReader(is);
-	    StringBuilder sb=new StringBuilder();
-	    BufferedReader br = new BufferedReader(isr);
-	    String read;
+		// blank node rules are applied while parsing, so that dropped
+		// statements never enter the graph
+		final Graph graph = m.getGraph();
+		TimedDescription description = new TimedDescription(resourceURI,
+				new TripleHandler() {
+					public void handle(Triple triple) {
+						graph.add(triple);
+					}
+				}, Stage.RDF_PARSE);
 		try {
-			read = br.readLine();
-			while(read != null) {
-		        System.out.println(read);
-		        sb.append(read);
-		        read =br.readLine();
-
-		    }
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-*/
-	    m.read(is, null);
-		//arp.read(m, is, "");
-	   // System.out.println("m "+ m.toString());
-		//end test
-		//System.out.println(endpoint.getContext());
-		//System.out.println(endpoint.toString());
-		//endpoint.addParam("equivalent", "true");
-		
-		// A temporary model for possible BNode descriptions
-	//	Model bNodeDescriptions = ModelFactory.createDefaultModel();
-		
-		// A list of statements having BNodes as values
-		List<Statement> bNodeStatements = new ArrayList<Statement>();
-		
-		// Retrieve the models for all possible blank node values
-		StmtIterator stmtIter = m.listStatements();
-		while (stmtIter.hasNext()) {
-			Statement stmt = stmtIter.next();
-			if (stmt.getObject().isAnon()) {
-				/*iResource subject = stmt.getSubject();
-				Property property = stmt.getPredicate();
-				Model bNodeDescription = retrieveBNodeDescription(subject,
-						property, sparqlEndpoint);
-				
-				// add BNode description to return model
-				bNodeDescriptions.add(bNodeDescription);
-				*/
-				// store statement for later deletion
-				bNodeStatements.add(stmt);
-
-			}
-		}
-		m.remove(bNodeStatements);
-		//if (! bNodeDescriptions.isEmpty()) {
-		//	model.remove(bNodeStatements);
-		//	model.add(bNodeDescriptions);
-		//}
-		System.out.println("model "+ m.toString());
-		//return model;
+			resourceStore.describe(resourceURI, description.getHandler());
+		} finally {
+			description.finish();
+		}
+
 		return m;
 
 	}
@@ -201,7 +998,6 @@ public class EuropeanaResponse extends HttpServletResponseWrapper {
 		//&_implicit=false&_equivalent=false&_form=%2Fsparql
 		
 		QueryEngineHTTP endpoint = new QueryEngineHTTP(sparqlEndpoint, query);
-		System.out.println("done");
 		
 		Model model = endpoint.execDescribe();
 
@@ -209,65 +1005,515 @@ public class EuropeanaResponse extends HttpServletResponseWrapper {
 
 	}
 
-	private void writeModel(Model model, String requestedMimeType)
+	private void writeModel(Model model, ContentType contentType)
 			throws IOException {
 
-		getWriter(requestedMimeType).write(model, this);
+		long started = System.nanoTime();
+
+		if (encoding != ContentEncoding.IDENTITY) {
+			EncodingOutputStream out = getEncodingOutputStream();
+			getWriter(contentType, abbreviateRDFXML).write(model, out);
+			out.finish();
+		} else {
+			getWriter(contentType, abbreviateRDFXML).write(model,
+					getOutputStream());
+			getOutputStream().flush();
+		}
+
+		metrics.add(Stage.SERIALIZATION, System.nanoTime() - started);
+
+	}
+
+	/**
+	 * Retrieves a description through the blank node rules and measures its
+	 * stages: the time until the first triple has been parsed counts as
+	 * fetch, the time spent in the rules and in the final handler (attributed
+	 * to a given stage) is measured per triple, and the rest is parsing.
+	 */
+	private class TimedDescription {
+
+		private final TripleHandler handler;
+
+		private final Stage handlerStage;
+
+		/**
+		 * The blank node rules of a batch; null for a single resource
+		 */
+		private final BlankNodeRules.BatchHandler batch;
+
+		private final long started = System.nanoTime();
+
+		private long firstTriple = -1;
+
+		private long rulesTime = 0;
+
+		private long handlerTime = 0;
+
+		TimedDescription(String scope, TripleHandler sink, Stage handlerStage) {
+			this(scope, false, sink, handlerStage);
+		}
+
+		/**
+		 * Retrieves the descriptions of a batch; skolem IRIs are scoped by
+		 * the root subject of each blank node, or by the first resource if
+		 * it has none
+		 */
+		TimedDescription(List<String> resourceURIs, TripleHandler sink,
+				Stage handlerStage) {
+			this(resourceURIs.get(0), true, sink, handlerStage);
+		}
+
+		private TimedDescription(String scope, boolean batched,
+				final TripleHandler sink, Stage handlerStage) {
+
+			this.handlerStage = handlerStage;
+
+			TripleHandler timed = new TripleHandler() {
+				public void handle(Triple triple) {
+					long now = System.nanoTime();
+					sink.handle(triple);
+					handlerTime += System.nanoTime() - now;
+				}
+			};
+
+			final TripleHandler rules;
+			if (batched) {
+				batch = blankNodeRules.applyBatch(scope, timed);
+				rules = batch;
+			} else {
+				batch = null;
+				rules = blankNodeRules.apply(scope, timed);
+			}
+
+			this.handler = new TripleHandler() {
+				public void handle(Triple triple) {
+					long now = System.nanoTime();
+					if (firstTriple < 0) {
+						firstTriple = now;
+					}
+					rules.handle(triple);
+					rulesTime += System.nanoTime() - now;
+				}
+			};
+
+		}
+
+		/**
+		 * Returns the handler to pass to the resource store
+		 */
+		TripleHandler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * Passes on the triples the blank node rules of a batch held back,
+		 * once the store is done
+		 */
+		void flush() {
+			if (batch != null) {
+				long now = System.nanoTime();
+				batch.finish();
+				rulesTime += System.nanoTime() - now;
+			}
+		}
+
+		/**
+		 * Records the stage durations once the store is done
+		 */
+		void finish() {
+
+			long finished = System.nanoTime();
+
+			if (firstTriple < 0) {
+				metrics.add(Stage.UPSTREAM_FETCH, finished - started);
+				return;
+			}
+
+			metrics.add(Stage.UPSTREAM_FETCH, firstTriple - started);
+			metrics.add(Stage.RDF_PARSE, finished - firstTriple - rulesTime);
+			metrics.add(Stage.BLANK_NODES, rulesTime - handlerTime);
+			metrics.add(handlerStage, handlerTime);
+
+		}
+
+	}
+
+	/**
+	 * The description of a resource as fetched once for concurrent requests,
+	 * which serialize it in their own content types: a model, or the triples
+	 * or N-Triples lines a streaming request wrote while fetching, from which
+	 * a model is only built if another request needs one. It must not be
+	 * modified.
+	 */
+	public static class Description {
+
+		private final String resourceURI;
+
+		private final long size;
+
+		private Model model;
+
+		private List<Triple> triples;
+
+		private byte[] ntriples;
+
+		private String digest;
+
+		Description(Model model) {
+			this.resourceURI = null;
+			this.size = model.size();
+			this.model = model;
+		}
+
+		/**
+		 * Creates a description from streamed triples and their graph digest
+		 */
+		Description(List<Triple> triples, String digest) {
+			this.resourceURI = null;
+			this.size = triples.size();
+			this.triples = triples;
+			this.digest = digest;
+		}
+
+		/**
+		 * Creates a description from relayed N-Triples lines and their graph
+		 * digest, which is null if the lines could not be digested
+		 */
+		Description(String resourceURI, byte[] ntriples, long size,
+				String digest) {
+			this.resourceURI = resourceURI;
+			this.size = size;
+			this.ntriples = ntriples;
+			this.digest = digest;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * Returns the model of this description, building it on first use
+		 */
+		synchronized Model getModel() throws IOException {
+
+			if (model != null) {
+				return model;
+			}
+
+			Model m = GraphFactory.makePlainModel();
+			if (ntriples != null) {
+				try {
+					m.read(new ByteArrayInputStream(ntriples), null, "N-TRIPLE");
+				} catch (JenaException e) {
+					throw new UpstreamException(
+							"Upstream endpoint relayed invalid N-Triples for "
+									+ resourceURI, e);
+				}
+			} else {
+				Graph graph = m.getGraph();
+				for (Triple triple : triples) {
+					graph.add(triple);
+				}
+			}
+
+			model = m;
+			triples = null;
+			ntriples = null;
+			return model;
+		}
+
+		/**
+		 * Returns the graph digest of this description
+		 */
+		synchronized String getDigest() throws IOException {
+
+			if (digest == null) {
+				digest = GraphDigest.digest(getModel());
+			}
+			return digest;
+		}
+
+	}
+
+	/**
+	 * Writes a serialized response in the negotiated content coding. A gzip
+	 * encoded body is kept in the response cache once it has been compressed.
+	 */
+	private void writeBody(CachedResponse response) throws IOException {
+
+		if (encoding == ContentEncoding.IDENTITY) {
+			writeBody(response.getBody());
+			return;
+		}
+
+		byte[] body;
+		if (encoding == ContentEncoding.GZIP) {
+			body = response.getGzipBody();
+			if (body == null) {
+				body = ContentEncoding.GZIP.encode(response.getBody());
+				if (responseCache != null) {
+					responseCache.put(response.withGzipBody(body));
+				}
+			}
+		} else {
+			body = encoding.encode(response.getBody());
+		}
+
+		setHeader("Content-Encoding", encoding.toString());
+		writeBody(body);
+
+	}
+
+	/**
+	 * Returns a stream encoding the response body in the negotiated content
+	 * coding; the Content-Encoding header is only set once there is a body
+	 */
+	private EncodingOutputStream getEncodingOutputStream() throws IOException {
+
+		return new EncodingOutputStream(getOutputStream(), encoding) {
+			@Override
+			protected void onStart() {
+				setHeader("Content-Encoding", encoding.toString());
+			}
+		};
+
+	}
+
+	private void writeBody(byte[] body) throws IOException {
+
+		setContentLength(body.length);
+
+		getOutputStream().write(body);
 
 		getOutputStream().flush();
 
 	}
 
+	/**
+	 * Counts the bytes written to the response body; once the response has
+	 * been abandoned, writes fail
+	 */
+	private class CountingOutputStream extends ServletOutputStream {
+
+		private final ServletOutputStream out;
+
+		private long count = 0;
+
+		CountingOutputStream(ServletOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			synchronized (EuropeanaResponse.this) {
+				checkAbandoned();
+				out.write(b);
+			}
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (EuropeanaResponse.this) {
+				checkAbandoned();
+				out.write(b, off, len);
+			}
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (EuropeanaResponse.this) {
+				checkAbandoned();
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (EuropeanaResponse.this) {
+				checkAbandoned();
+				out.close();
+			}
+		}
+
+	}
+
+	/**
+	 * The body of a response streamed while fetching a description that
+	 * concurrent requests may share, in the negotiated content coding. Once
+	 * a write fails, e.g., since the client has gone or the response has been
+	 * abandoned, the data task is cancelled, which leaves the shared fetch,
+	 * and further writes are dropped, so that the fetch goes on for the
+	 * others; the failure is thrown once the fetch is done.
+	 */
+	private class ClientOutputStream extends OutputStream {
+
+		private OutputStream out;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (clientFailure == null) {
+				try {
+					getBody().write(b);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (clientFailure == null) {
+				try {
+					getBody().write(b, off, len);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (clientFailure == null && out != null) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		/**
+		 * Writes what the content coding keeps back and flushes the body
+		 */
+		void finish() throws IOException {
+			if (out instanceof EncodingOutputStream && clientFailure == null) {
+				try {
+					((EncodingOutputStream) out).finish();
+				} catch (IOException e) {
+					fail(e);
+				}
+			} else {
+				flush();
+			}
+		}
+
+		private OutputStream getBody() throws IOException {
+			if (out == null) {
+				out = (encoding != ContentEncoding.IDENTITY)
+						? getEncodingOutputStream() : getOutputStream();
+			}
+			return out;
+		}
+
+		private void fail(IOException e) throws IOException {
+			if (cancellation == null) {
+				throw e;
+			}
+			clientFailure = e;
+			cancellation.cancel();
+		}
+
+	}
+
 	/*
 	 * The following code parts are taken from pubby
 	 * 
 	 * https://github.com/cygri/pubby/
 	 */
 
-	private ModelWriter getWriter(String mediaType) {
+	private static final ModelWriter RDFXML_WRITER = new RDFXMLStreamModelWriter();
+
+	private static final ModelWriter RDFXML_ABBREV_WRITER = new RDFXMLWriter();
+
+	private static final ModelWriter TURTLE_WRITER = new TurtleWriter();
+
+	private static final ModelWriter NTRIPLES_WRITER = new NTriplesWriter();
+
+	/**
+	 * Serializes a given model in a given content type; RDF/XML is written
+	 * plain
+	 */
+	static void render(Model model, ContentType contentType, OutputStream out)
+			throws IOException {
+		render(model, contentType, false, out);
+	}
+
+	/**
+	 * Serializes a given model in a given content type, writing RDF/XML
+	 * abbreviated or plain
+	 */
+	static void render(Model model, ContentType contentType,
+			boolean abbreviateRDFXML, OutputStream out) throws IOException {
+		getWriter(contentType, abbreviateRDFXML).write(model, out);
+	}
 
-		if (MimeTypePattern.matchMIMEType(mediaType, MimeTypePattern.RDF))
-			return new RDFXMLWriter();
-		if (MimeTypePattern.matchMIMEType(mediaType, MimeTypePattern.TTL))
-			return new TurtleWriter();
-		if (MimeTypePattern.matchMIMEType(mediaType, MimeTypePattern.N3))
-			return new NTriplesWriter();
+	/**
+	 * Serializes the description of a given resource into a response cache,
+	 * with the entity tag a data request would send
+	 */
+	static void cache(ResponseCache responseCache, String resourceURI,
+			Model model, String graphDigest, ContentType contentType,
+			boolean abbreviateRDFXML) throws IOException {
 
-		return new NTriplesWriter();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		render(model, contentType, abbreviateRDFXML, buffer);
+		responseCache.put(resourceURI, contentType, buffer.toByteArray(),
+				createETag(graphDigest, contentType));
+	}
+
+	private static ModelWriter getWriter(ContentType contentType,
+			boolean abbreviateRDFXML) {
+
+		switch (contentType) {
+		case RDF:
+			return abbreviateRDFXML ? RDFXML_ABBREV_WRITER : RDFXML_WRITER;
+		case TTL:
+			return TURTLE_WRITER;
+		case N3:
+			return NTRIPLES_WRITER;
+		default:
+			return NTRIPLES_WRITER;
+		}
 	}
 
 	private interface ModelWriter {
-		void write(Model model, HttpServletResponse response)
+		void write(Model model, OutputStream out)
 				throws IOException;
 	}
 
-	private class NTriplesWriter implements ModelWriter {
-		public void write(Model model, HttpServletResponse response)
+	private static class NTriplesWriter implements ModelWriter {
+		public void write(Model model, OutputStream out)
+				throws IOException {
+			model.getWriter("N-TRIPLES").write(model, out, null);
+		}
+	}
+
+	private static class TurtleWriter implements ModelWriter {
+		public void write(Model model, OutputStream out)
 				throws IOException {
-			model.getWriter("N-TRIPLES").write(model,
-					response.getOutputStream(), null);
+			model.getWriter("TURTLE").write(model, out, null);
 		}
 	}
 
-	private class TurtleWriter implements ModelWriter {
-		public void write(Model model, HttpServletResponse response)
+	private static class RDFXMLStreamModelWriter implements ModelWriter {
+		public void write(Model model, OutputStream out)
 				throws IOException {
-			model.getWriter("TURTLE").write(model, response.getOutputStream(),
-					null);
+			RDFXMLStreamWriter.write(model, NAMESPACES, out);
 		}
 	}
 
-	private class RDFXMLWriter implements ModelWriter {
-		public void write(Model model, HttpServletResponse response)
+	private static class RDFXMLWriter implements ModelWriter {
+		public void write(Model model, OutputStream out)
 				throws IOException {
 			RDFWriter writer = model.getWriter("RDF/XML-ABBREV");
 			writer.setProperty("showXmlDeclaration", "true");
 			writer.setProperty("blockRules", "propertyAttr");
 			writer.setProperty("allowBadURIs", "true");
-			writer.write(
-					model,
-					new OutputStreamWriter(response.getOutputStream(), "utf-8"),
-					null);
+			Writer utf8Writer = new OutputStreamWriter(out, "utf-8");
+			writer.write(model, utf8Writer, null);
+			utf8Writer.flush();
 		}
 	}
 
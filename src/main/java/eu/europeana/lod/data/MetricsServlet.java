@@ -0,0 +1,34 @@
+package eu.europeana.lod.data;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import eu.europeana.lod.metrics.Metrics;
+
+/**
+ * Serves the metrics recorded by the {@link EuropeanaLODServlet} of the same
+ * web application as plain text (Prometheus exposition format).
+ * 
+ * @author agent
+ * 
+ */
+public class MetricsServlet extends HttpServlet {
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		Metrics.get(getServletContext()).writeText(resp.getWriter());
+
+	}
+
+	private static final long serialVersionUID = 1L;
+
+}
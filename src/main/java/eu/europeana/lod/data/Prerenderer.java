@@ -0,0 +1,236 @@
+package eu.europeana.lod.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.util.graph.GraphFactory;
+
+import eu.europeana.lod.rdf.BlankNodeRules;
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.store.DumpStore;
+import eu.europeana.lod.store.RenderedStore;
+import eu.europeana.lod.store.RenderedStoreWriter;
+import eu.europeana.lod.util.ContentEncoding;
+import eu.europeana.lod.util.GraphDigest;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * Renders the data responses of all resources in a dump store, in all RDF
+ * content types, into a rendered store, which the servlet then serves
+ * without rendering.
+ *
+ * Resources are rendered in batches on all cores; the batches are written in
+ * order, since the rendered store expects the order of the dump store. Each
+ * body is also stored gzip encoded, so that it is never compressed while
+ * serving.
+ *
+ * @author agent
+ *
+ */
+public class Prerenderer {
+
+	private static final int BATCH_SIZE = 256;
+
+	private final DumpStore dumpStore;
+
+	private final BlankNodeRules blankNodeRules;
+
+	private final boolean abbreviateRDFXML;
+
+	private final int threads;
+
+	/**
+	 * Creates a new prerenderer; the blank node rules and the RDF/XML writer
+	 * must be the ones the servlet uses
+	 */
+	public Prerenderer(DumpStore dumpStore, BlankNodeRules blankNodeRules,
+			boolean abbreviateRDFXML, int threads) {
+		this.dumpStore = dumpStore;
+		this.blankNodeRules = blankNodeRules;
+		this.abbreviateRDFXML = abbreviateRDFXML;
+		this.threads = threads;
+	}
+
+	/**
+	 * Renders all resources into a given directory; returns the number of
+	 * rendered resources
+	 */
+	public long render(File directory) throws IOException {
+
+		RenderedStoreWriter writer = new RenderedStoreWriter(directory,
+				abbreviateRDFXML);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		boolean complete = false;
+
+		try {
+
+			long entries = dumpStore.getSubjectCount();
+			long next = 0;
+
+			// a bounded window of batches, completed in order
+			LinkedList<Future<List<Rendering>>> batches = new LinkedList<Future<List<Rendering>>>();
+
+			while (next < entries || !batches.isEmpty()) {
+
+				while (next < entries && batches.size() < threads * 4) {
+					final long from = next;
+					final long to = Math.min(entries, next + BATCH_SIZE);
+					batches.add(executor.submit(new Callable<List<Rendering>>() {
+						public List<Rendering> call() throws IOException {
+							return renderBatch(from, to);
+						}
+					}));
+					next = to;
+				}
+
+				for (Rendering rendering : get(batches.removeFirst())) {
+					writer.add(rendering.resourceURI, rendering.digest,
+							rendering.bodies, rendering.gzipBodies);
+				}
+
+			}
+
+			writer.close();
+			complete = true;
+
+		} finally {
+			executor.shutdownNow();
+			if (!complete) {
+				writer.abort();
+			}
+		}
+
+		return writer.getResourceCount();
+
+	}
+
+	private List<Rendering> renderBatch(long from, long to) throws IOException {
+
+		List<Rendering> renderings = new ArrayList<Rendering>((int) (to - from));
+
+		for (long entry = from; entry < to; entry++) {
+
+			String resourceURI = dumpStore.getResourceURI(entry);
+			Model model = GraphFactory.makePlainModel();
+			final Graph graph = model.getGraph();
+
+			// the same triples the servlet would render
+			dumpStore.describe(entry, blankNodeRules.apply(resourceURI,
+					new TripleHandler() {
+						public void handle(Triple triple) {
+							graph.add(triple);
+						}
+					}));
+
+			if (model.isEmpty()) {
+				continue;
+			}
+
+			ContentType[] contentTypes = RenderedStore.CONTENT_TYPES;
+			byte[][] bodies = new byte[contentTypes.length][];
+			byte[][] gzipBodies = new byte[contentTypes.length][];
+			for (int i = 0; i < contentTypes.length; i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				EuropeanaResponse.render(model, contentTypes[i],
+						abbreviateRDFXML, out);
+				bodies[i] = out.toByteArray();
+				gzipBodies[i] = ContentEncoding.GZIP.encode(bodies[i]);
+			}
+
+			renderings.add(new Rendering(resourceURI,
+					GraphDigest.digest(model), bodies, gzipBodies));
+		}
+
+		return renderings;
+	}
+
+	private static List<Rendering> get(Future<List<Rendering>> batch)
+			throws IOException {
+
+		try {
+			return batch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while rendering");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+
+	}
+
+	/**
+	 * The rendered representations of a single resource
+	 */
+	private static class Rendering {
+
+		private final String resourceURI;
+
+		private final String digest;
+
+		private final byte[][] bodies;
+
+		private final byte[][] gzipBodies;
+
+		Rendering(String resourceURI, String digest, byte[][] bodies,
+				byte[][] gzipBodies) {
+			this.resourceURI = resourceURI;
+			this.digest = digest;
+			this.bodies = bodies;
+			this.gzipBodies = gzipBodies;
+		}
+
+	}
+
+	/**
+	 * Renders a dump store from the command line:
+	 *
+	 * Prerenderer <dump store directory> <rendered store directory> [threads]
+	 *
+	 * The blank node rules and the RDF/XML writer are taken from the system
+	 * properties blankNodes, skolemBase and rdfXmlAbbrev, which must match the
+	 * servlet's init-params.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: Prerenderer <dump store directory> <rendered store directory> [threads]");
+			System.exit(1);
+		}
+
+		int threads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime
+				.getRuntime().availableProcessors();
+
+		BlankNodeRules blankNodeRules = BlankNodeRules.valueOf(
+				System.getProperty("blankNodes", "drop"),
+				System.getProperty("skolemBase"));
+
+		DumpStore dumpStore = new DumpStore(new File(args[0]));
+		try {
+			long start = System.currentTimeMillis();
+			long resources = new Prerenderer(dumpStore, blankNodeRules,
+					Boolean.getBoolean("rdfXmlAbbrev"), threads)
+					.render(new File(args[1]));
+			System.out.println("Rendered " + resources + " resources in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			dumpStore.close();
+		}
+
+	}
+
+}
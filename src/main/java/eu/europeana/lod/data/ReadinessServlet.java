@@ -0,0 +1,57 @@
+package eu.europeana.lod.data;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tells load balancers whether the {@link EuropeanaLODServlet} of the same
+ * web application should receive requests: 503 Service Unavailable until it
+ * has been initialized successfully and while it warms its response cache
+ * (see {@link CacheWarmer}), 200 OK afterwards.
+ *
+ * @author agent
+ *
+ */
+public class ReadinessServlet extends HttpServlet {
+
+	/**
+	 * The delay (in seconds) after which load balancers should ask again
+	 */
+	private static final int RETRY_AFTER = 5;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		resp.setContentType("text/plain; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		if (getServletContext().getAttribute(
+				EuropeanaLODServlet.READY_ATTRIBUTE) == null) {
+			resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			resp.setIntHeader("Retry-After", RETRY_AFTER);
+			resp.getWriter().println("not initialized");
+			return;
+		}
+
+		CacheWarmer warmer = (CacheWarmer) getServletContext().getAttribute(
+				CacheWarmer.ATTRIBUTE);
+
+		if (warmer != null && !warmer.isReady()) {
+			resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			resp.setIntHeader("Retry-After", RETRY_AFTER);
+			resp.getWriter().println("warming up: " + warmer);
+			return;
+		}
+
+		resp.getWriter().println(warmer != null ? "ready: " + warmer : "ready");
+
+	}
+
+	private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,337 @@
+package eu.europeana.lod.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.europeana.lod.data.EuropeanaRequest.ResourceType;
+
+/**
+ * Routes request paths to the resource types they denote, by matching them
+ * against the configured resource type path prefixes (/item/, /concept/, ...),
+ * with or without the information resource prefix (/data).
+ *
+ * All prefixes are kept in a trie, so that a path is routed in a single pass
+ * over its characters, however many resource types are configured, and
+ * without creating intermediate strings. A router is immutable once built and
+ * shared by all request threads.
+ *
+ * @author agent
+ *
+ */
+public class ResourceRouter {
+
+	/**
+	 * Routes the built-in EDM resource types
+	 */
+	public static final ResourceRouter DEFAULT = createDefault();
+
+	private final Node root = new Node();
+
+	private final List<Route> routes = new ArrayList<Route>();
+
+	private ResourceRouter() {
+	}
+
+	/**
+	 * Creates a router from a configuration listing resource types as
+	 * name=prefix pairs, separated by whitespace or commas, e.g.,
+	 * "item=/item/ concept=/concept/". Names of built-in resource types
+	 * (proxy_provider, item, ...) denote these types.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a pair is malformed, or prefixes are ambiguous
+	 */
+	public static ResourceRouter valueOf(String config) {
+
+		ResourceRouter router = new ResourceRouter();
+
+		for (String pair : config.trim().split("[,\\s]+")) {
+			int index = pair.indexOf('=');
+			if (index <= 0) {
+				throw new IllegalArgumentException("Expected name=prefix: "
+						+ pair);
+			}
+			router.add(pair.substring(0, index), pair.substring(index + 1));
+		}
+
+		return router;
+
+	}
+
+	private static ResourceRouter createDefault() {
+
+		ResourceRouter router = new ResourceRouter();
+		for (ResourceType resourceType : ResourceType.values()) {
+			router.add(resourceType.name().toLowerCase(), resourceType
+					.toString());
+		}
+		return router;
+
+	}
+
+	private void add(String name, String prefix) {
+
+		if (prefix.length() < 3 || !prefix.startsWith("/")
+				|| !prefix.endsWith("/")) {
+			throw new IllegalArgumentException("Invalid prefix for " + name
+					+ ": " + prefix);
+		}
+
+		if (prefix.startsWith(EuropeanaRequest.IR_PATH + "/")) {
+			throw new IllegalArgumentException("Prefix for " + name
+					+ " overlaps the information resource path: " + prefix);
+		}
+
+		for (Route route : routes) {
+			if (route.getName().equals(name)) {
+				throw new IllegalArgumentException("Duplicate resource type "
+						+ name);
+			}
+		}
+
+		ResourceType resourceType = null;
+		try {
+			resourceType = ResourceType.valueOf(name.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			// a resource type without built-in counterpart
+		}
+
+		Route route = new Route(name, prefix, resourceType, false);
+		insert(prefix, route);
+		insert(EuropeanaRequest.IR_PATH + prefix, new Route(name, prefix,
+				resourceType, true));
+		routes.add(route);
+
+	}
+
+	private void insert(String path, Route route) {
+
+		Node node = root;
+		for (int i = 0; i < path.length(); i++) {
+			node = node.addChild(path.charAt(i));
+		}
+
+		if (node.route != null) {
+			throw new IllegalArgumentException("Duplicate prefix " + path);
+		}
+		node.route = route;
+
+	}
+
+	/**
+	 * Returns the route of the longest prefix a path starts with; null if it
+	 * starts with none of them
+	 */
+	public Route route(String path) {
+
+		Route match = null;
+
+		Node node = root;
+		for (int i = 0, n = path.length(); i < n; i++) {
+			node = node.getChild(path.charAt(i));
+			if (node == null) {
+				break;
+			}
+			if (node.route != null) {
+				match = node.route;
+			}
+		}
+
+		return match;
+
+	}
+
+	/**
+	 * Returns the non-information resource URI for a resource given by its
+	 * URI, its (information or non-information resource) path or its
+	 * Europeana ID, which denotes an item
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the token does not denote a resource below the given
+	 *             prefix
+	 */
+	public String toResourceURI(String token, String resourcePrefix) {
+
+		String path = token;
+		if (token.startsWith("http://") || token.startsWith("https://")) {
+			if (!token.startsWith(resourcePrefix + "/")) {
+				throw new IllegalArgumentException("Not a Europeana resource: "
+						+ token);
+			}
+			path = token.substring(resourcePrefix.length());
+		} else if (!path.startsWith("/")) {
+			path = "/" + path;
+		}
+
+		// information resources denote the same resources
+		Route route = route(path);
+		if (route == null) {
+			path = ResourceType.ITEM + path.substring(1);
+		} else if (path.length() == route.getLength()) {
+			throw new IllegalArgumentException("Invalid europeanaID: " + token);
+		} else if (route.isInformationResource()) {
+			path = path.substring(EuropeanaRequest.IR_PATH.length());
+		}
+
+		// the URIs end up in upstream queries
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c <= ' ' || "<>\"{}|^`\\".indexOf(c) >= 0) {
+				throw new IllegalArgumentException("Invalid character in "
+						+ token);
+			}
+		}
+
+		return resourcePrefix + path;
+
+	}
+
+	/**
+	 * Returns the route of the resource type having a given name; null if
+	 * there is no such resource type
+	 */
+	public Route getRoute(String name) {
+
+		for (Route route : routes) {
+			if (route.getName().equals(name)) {
+				return route;
+			}
+		}
+		return null;
+
+	}
+
+	/**
+	 * Returns the (non-information resource) routes of all resource types
+	 */
+	public List<Route> getRoutes() {
+		return Collections.unmodifiableList(routes);
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder sb = new StringBuilder();
+		for (Route route : routes) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(route.getName()).append('=').append(route.getPrefix());
+		}
+		return sb.toString();
+
+	}
+
+	/**
+	 * The resource type a request path is routed to
+	 */
+	public static class Route {
+
+		private final String name;
+
+		private final String prefix;
+
+		private final ResourceType resourceType;
+
+		private final boolean informationResource;
+
+		private final int length;
+
+		Route(String name, String prefix, ResourceType resourceType,
+				boolean informationResource) {
+			this.name = name;
+			this.prefix = prefix;
+			this.resourceType = resourceType;
+			this.informationResource = informationResource;
+			this.length = (informationResource ? EuropeanaRequest.IR_PATH
+					.length() : 0)
+					+ prefix.length();
+		}
+
+		/**
+		 * Returns the configured name of the resource type
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the path prefix of the resource type, without the
+		 * information resource prefix
+		 */
+		public String getPrefix() {
+			return prefix;
+		}
+
+		/**
+		 * Returns the built-in resource type; null if the resource type has
+		 * been configured only
+		 */
+		public ResourceType getResourceType() {
+			return resourceType;
+		}
+
+		/**
+		 * Returns whether matching paths denote information resources
+		 */
+		public boolean isInformationResource() {
+			return informationResource;
+		}
+
+		/**
+		 * Returns the length of the matched path prefix, i.e., the offset of
+		 * the europeanaID in a matching path
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return (informationResource ? EuropeanaRequest.IR_PATH : "")
+					+ prefix;
+		}
+
+	}
+
+	/**
+	 * A trie node, having a child per following character
+	 */
+	private static class Node {
+
+		private char[] chars = new char[0];
+
+		private Node[] children = new Node[0];
+
+		private Route route;
+
+		Node getChild(char c) {
+			char[] chars = this.chars;
+			for (int i = 0; i < chars.length; i++) {
+				if (chars[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node child = getChild(c);
+			if (child == null) {
+				int n = chars.length;
+				char[] newChars = new char[n + 1];
+				Node[] newChildren = new Node[n + 1];
+				System.arraycopy(chars, 0, newChars, 0, n);
+				System.arraycopy(children, 0, newChildren, 0, n);
+				newChars[n] = c;
+				child = newChildren[n] = new Node();
+				chars = newChars;
+				children = newChildren;
+			}
+			return child;
+		}
+
+	}
+
+}
@@ -0,0 +1,127 @@
+package eu.europeana.lod.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations. Values are counted in log-linear
+ * buckets of microseconds (four buckets per power of two), so that recording
+ * is a few atomic increments and percentiles are accurate within 25%.
+ * 
+ * @author agent
+ * 
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKETS = 4;
+
+	// 2^40 us (about 12 days) is the largest distinguished value
+	private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration in nanoseconds
+	 */
+	public void record(long nanos) {
+
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		counts.incrementAndGet(getBucket(nanos / 1000));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+
+	}
+
+	/**
+	 * Returns the number of recorded durations
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of all recorded durations (ns)
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the longest recorded duration (ns)
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the duration (ns) below which a given percentile (0-100) of the
+	 * recorded durations fall; 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= rank) {
+				return Math.min(max.get(), getUpperBound(bucket) * 1000);
+			}
+		}
+
+		return max.get();
+
+	}
+
+	/**
+	 * Returns the bucket of a given number of microseconds
+	 */
+	static int getBucket(long micros) {
+
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+
+		int log = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (log - 2)) & (SUB_BUCKETS - 1);
+
+		return Math.min(BUCKETS - 1, (log - 1) * SUB_BUCKETS + sub);
+
+	}
+
+	/**
+	 * Returns the (exclusive) upper bound of a bucket in microseconds
+	 */
+	static long getUpperBound(int bucket) {
+
+		if (bucket < SUB_BUCKETS) {
+			return bucket + 1;
+		}
+
+		int log = bucket / SUB_BUCKETS + 1;
+		int sub = bucket % SUB_BUCKETS;
+
+		return (long) (SUB_BUCKETS + sub + 1) << (log - 2);
+
+	}
+
+}
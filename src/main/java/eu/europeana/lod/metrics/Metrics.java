@@ -0,0 +1,414 @@
+package eu.europeana.lod.metrics;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.servlet.ServletContext;
+
+import eu.europeana.lod.data.EuropeanaRequest.ResourceType;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * Collects request latencies, per-stage latencies, response bytes and status
+ * codes of the Europeana LOD servlet, broken down by resource type and content
+ * type. All counters are lock-free, so recording adds little to a request.
+ * 
+ * The metrics are exposed as read-only attributes of a dynamic MBean and as
+ * plain text in the Prometheus exposition format (see MetricsServlet).
+ * 
+ * @author agent
+ * 
+ */
+public class Metrics implements DynamicMBean {
+
+	/**
+	 * The servlet context attribute holding the metrics of a web application
+	 */
+	public static final String ATTRIBUTE = Metrics.class.getName();
+
+	private static final String PREFIX = "europeana_lod_";
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	// the last index of each dimension stands for none (e.g., root requests)
+	private static final int RESOURCE_TYPES = ResourceType.values().length + 1;
+
+	private static final int CONTENT_TYPES = ContentType.values().length + 1;
+
+	private static final int SERIES = RESOURCE_TYPES * CONTENT_TYPES;
+
+	private static final int MAX_STATUS = 600;
+
+	private final AtomicReferenceArray<Histogram> requests = new AtomicReferenceArray<Histogram>(
+			SERIES);
+
+	private final AtomicReferenceArray<Histogram> stages = new AtomicReferenceArray<Histogram>(
+			SERIES * Stage.values().length);
+
+	private final AtomicLongArray bytes = new AtomicLongArray(SERIES);
+
+	private final AtomicLongArray statusCounts = new AtomicLongArray(
+			MAX_STATUS);
+
+	private ObjectName objectName;
+
+	/**
+	 * Returns the metrics shared by the servlets of a web application,
+	 * creating them if needed
+	 */
+	public static Metrics get(ServletContext context) {
+
+		synchronized (context) {
+			Metrics metrics = (Metrics) context.getAttribute(ATTRIBUTE);
+			if (metrics == null) {
+				metrics = new Metrics();
+				context.setAttribute(ATTRIBUTE, metrics);
+			}
+			return metrics;
+		}
+
+	}
+
+	/**
+	 * Records a completed request
+	 * 
+	 * @param request
+	 *            the stage durations and labels of the request
+	 * @param status
+	 *            the response status code
+	 * @param bodyBytes
+	 *            the number of body bytes written
+	 */
+	public void record(RequestMetrics request, int status, long bodyBytes) {
+
+		int series = getSeries(request.getResourceType(), request
+				.getContentType());
+
+		getHistogram(requests, series).record(request.getElapsedTime());
+
+		for (Stage stage : Stage.values()) {
+			if (request.hasRun(stage)) {
+				getHistogram(stages, stage.ordinal() * SERIES + series).record(
+						request.getTime(stage));
+			}
+		}
+
+		bytes.addAndGet(series, bodyBytes);
+		statusCounts.incrementAndGet(Math.min(Math.max(status, 0),
+				MAX_STATUS - 1));
+
+	}
+
+	/**
+	 * Returns the number of responses with a given status code
+	 */
+	public long getStatusCount(int status) {
+		return statusCounts.get(status);
+	}
+
+	/**
+	 * Returns the request latencies for a given resource type and content
+	 * type (either may be null); null if there have been no such requests
+	 */
+	public Histogram getRequestHistogram(ResourceType resourceType,
+			ContentType contentType) {
+		return requests.get(getSeries(resourceType, contentType));
+	}
+
+	/**
+	 * Returns the latencies of a stage for a given resource type and content
+	 * type (either may be null); null if the stage has not been run for such
+	 * requests
+	 */
+	public Histogram getStageHistogram(Stage stage, ResourceType resourceType,
+			ContentType contentType) {
+		return stages.get(stage.ordinal() * SERIES
+				+ getSeries(resourceType, contentType));
+	}
+
+	private static int getSeries(ResourceType resourceType,
+			ContentType contentType) {
+
+		int resourceTypeIndex = resourceType == null ? RESOURCE_TYPES - 1
+				: resourceType.ordinal();
+		int contentTypeIndex = contentType == null ? CONTENT_TYPES - 1
+				: contentType.ordinal();
+
+		return resourceTypeIndex * CONTENT_TYPES + contentTypeIndex;
+
+	}
+
+	private static Histogram getHistogram(
+			AtomicReferenceArray<Histogram> histograms, int index) {
+
+		Histogram histogram = histograms.get(index);
+		if (histogram == null) {
+			histograms.compareAndSet(index, null, new Histogram());
+			histogram = histograms.get(index);
+		}
+		return histogram;
+
+	}
+
+	private static String getResourceTypeLabel(int series) {
+		int index = series / CONTENT_TYPES;
+		return index == RESOURCE_TYPES - 1 ? "none" : ResourceType.values()[index]
+				.name().toLowerCase();
+	}
+
+	private static String getContentTypeLabel(int series) {
+		int index = series % CONTENT_TYPES;
+		return index == CONTENT_TYPES - 1 ? "none" : ContentType.values()[index]
+				.name().toLowerCase();
+	}
+
+	/* Text exposition */
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format
+	 */
+	public void writeText(PrintWriter out) {
+
+		out.println("# TYPE " + PREFIX + "request_seconds summary");
+		for (int series = 0; series < SERIES; series++) {
+			writeSummary(out, "request_seconds", requests.get(series), "",
+					series);
+		}
+
+		out.println("# TYPE " + PREFIX + "stage_seconds summary");
+		for (Stage stage : Stage.values()) {
+			for (int series = 0; series < SERIES; series++) {
+				writeSummary(out, "stage_seconds", stages.get(stage.ordinal()
+						* SERIES + series), "stage=\"" + stage.getLabel()
+						+ "\",", series);
+			}
+		}
+
+		out.println("# TYPE " + PREFIX + "response_bytes_total counter");
+		for (int series = 0; series < SERIES; series++) {
+			if (requests.get(series) != null) {
+				out.println(PREFIX + "response_bytes_total{"
+						+ getLabels(series) + "} " + bytes.get(series));
+			}
+		}
+
+		out.println("# TYPE " + PREFIX + "responses_total counter");
+		for (int status = 0; status < MAX_STATUS; status++) {
+			long count = statusCounts.get(status);
+			if (count > 0) {
+				out.println(PREFIX + "responses_total{status=\"" + status
+						+ "\"} " + count);
+			}
+		}
+
+		out.flush();
+
+	}
+
+	private static void writeSummary(PrintWriter out, String name,
+			Histogram histogram, String labels, int series) {
+
+		if (histogram == null) {
+			return;
+		}
+
+		labels += getLabels(series);
+
+		for (double quantile : QUANTILES) {
+			out.println(PREFIX + name + "{" + labels + ",quantile=\""
+					+ quantile + "\"} "
+					+ seconds(histogram.getPercentile(quantile * 100)));
+		}
+		out.println(PREFIX + name + "_count{" + labels + "} "
+				+ histogram.getCount());
+		out.println(PREFIX + name + "_sum{" + labels + "} "
+				+ seconds(histogram.getSum()));
+		out.println(PREFIX + name + "_max{" + labels + "} "
+				+ seconds(histogram.getMax()));
+
+	}
+
+	private static String getLabels(int series) {
+		return "resource_type=\"" + getResourceTypeLabel(series)
+				+ "\",content_type=\"" + getContentTypeLabel(series) + "\"";
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+
+	/* JMX */
+
+	/**
+	 * Registers these metrics with the platform MBean server under a given
+	 * name (e.g., the context path)
+	 */
+	public void register(String name) throws JMException {
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("eu.europeana.lod:type=Metrics,name="
+				+ ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+
+	}
+
+	/**
+	 * Unregisters these metrics from the platform MBean server, if they are
+	 * registered
+	 */
+	public void unregister() {
+
+		if (objectName == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException e) {
+			// already gone
+		}
+		objectName = null;
+
+	}
+
+	/**
+	 * Returns the current values as attributes, for every series that has
+	 * been recorded: request.item.rdf.p99Millis, stage.upstream_fetch.item.rdf.count,
+	 * bytes.item.rdf, status.404, ...
+	 */
+	Map<String, Object> getAttributes() {
+
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+		for (int series = 0; series < SERIES; series++) {
+			addAttributes(attributes, "request." + getAttributeLabels(series),
+					requests.get(series));
+		}
+
+		for (Stage stage : Stage.values()) {
+			for (int series = 0; series < SERIES; series++) {
+				addAttributes(attributes, "stage." + stage.getLabel() + "."
+						+ getAttributeLabels(series), stages.get(stage
+						.ordinal()
+						* SERIES + series));
+			}
+		}
+
+		for (int series = 0; series < SERIES; series++) {
+			if (requests.get(series) != null) {
+				attributes.put("bytes." + getAttributeLabels(series), bytes
+						.get(series));
+			}
+		}
+
+		for (int status = 0; status < MAX_STATUS; status++) {
+			long count = statusCounts.get(status);
+			if (count > 0) {
+				attributes.put("status." + status, count);
+			}
+		}
+
+		return attributes;
+
+	}
+
+	private static void addAttributes(Map<String, Object> attributes,
+			String name, Histogram histogram) {
+
+		if (histogram == null) {
+			return;
+		}
+
+		attributes.put(name + ".count", histogram.getCount());
+		attributes.put(name + ".meanMillis", histogram.getSum() / 1e6
+				/ Math.max(1, histogram.getCount()));
+		for (double quantile : QUANTILES) {
+			attributes.put(name + ".p" + (int) (quantile * 100) + "Millis",
+					histogram.getPercentile(quantile * 100) / 1e6);
+		}
+		attributes.put(name + ".maxMillis", histogram.getMax() / 1e6);
+
+	}
+
+	private static String getAttributeLabels(int series) {
+		return getResourceTypeLabel(series) + "."
+				+ getContentTypeLabel(series);
+	}
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+
+		Object value = getAttributes().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+
+	}
+
+	public AttributeList getAttributes(String[] names) {
+
+		Map<String, Object> attributes = getAttributes();
+
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			if (attributes.containsKey(name)) {
+				list.add(new Attribute(name, attributes.get(name)));
+			}
+		}
+		return list;
+
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Read-only: "
+				+ attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+
+		List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Object> attribute : getAttributes().entrySet()) {
+			infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute
+					.getValue().getClass().getName(), attribute.getKey(),
+					true, false, false));
+		}
+
+		return new MBeanInfo(getClass().getName(),
+				"Europeana LOD request metrics", infos
+						.toArray(new MBeanAttributeInfo[infos.size()]), null,
+				new MBeanOperationInfo[0], null);
+
+	}
+
+}
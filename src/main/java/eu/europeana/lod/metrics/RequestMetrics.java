@@ -0,0 +1,92 @@
+package eu.europeana.lod.metrics;
+
+import eu.europeana.lod.data.EuropeanaRequest.ResourceType;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * The stage durations of a single request, collected while it is processed
+ * and recorded in the {@link Metrics} when it is complete. A request is
+ * processed by one thread at a time, so nothing here is synchronized.
+ * 
+ * @author agent
+ * 
+ */
+public class RequestMetrics {
+
+	private final long started = System.nanoTime();
+
+	private final long[] stageTimes = new long[Stage.values().length];
+
+	private final boolean[] stagesRun = new boolean[Stage.values().length];
+
+	private ResourceType resourceType;
+
+	private ContentType contentType;
+
+	private boolean deferred = false;
+
+	/**
+	 * Adds time (ns) spent in a given stage
+	 */
+	public void add(Stage stage, long nanos) {
+		stageTimes[stage.ordinal()] += nanos;
+		stagesRun[stage.ordinal()] = true;
+	}
+
+	/**
+	 * Returns whether a given stage has been run
+	 */
+	public boolean hasRun(Stage stage) {
+		return stagesRun[stage.ordinal()];
+	}
+
+	/**
+	 * Returns the time (ns) spent in a given stage
+	 */
+	public long getTime(Stage stage) {
+		return stageTimes[stage.ordinal()];
+	}
+
+	/**
+	 * Returns the time (ns) since the request has been received
+	 */
+	public long getElapsedTime() {
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * Returns the requested resource type; null for root, batch and invalid
+	 * requests
+	 */
+	public ResourceType getResourceType() {
+		return resourceType;
+	}
+
+	public void setResourceType(ResourceType resourceType) {
+		this.resourceType = resourceType;
+	}
+
+	/**
+	 * Returns the negotiated content type; null if there is none
+	 */
+	public ContentType getContentType() {
+		return contentType;
+	}
+
+	public void setContentType(ContentType contentType) {
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Returns whether the request completes asynchronously, so that it is
+	 * recorded by whoever completes it rather than by the request thread
+	 */
+	public boolean isDeferred() {
+		return deferred;
+	}
+
+	public void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+}
@@ -0,0 +1,50 @@
+package eu.europeana.lod.metrics;
+
+/**
+ * The stages of a request whose durations are measured
+ * 
+ * @author agent
+ * 
+ */
+public enum Stage {
+
+	/**
+	 * Parsing the Accept header
+	 */
+	NEGOTIATION,
+
+	/**
+	 * Parsing the request URI into resource type and europeanaID
+	 */
+	URI_PARSING,
+
+	/**
+	 * Retrieving a description from the resource store (the upstream endpoint
+	 * or the dump store), up to its first triple; includes waiting for a
+	 * concurrent request fetching the same resource
+	 */
+	UPSTREAM_FETCH,
+
+	/**
+	 * Parsing the retrieved description and building the model
+	 */
+	RDF_PARSE,
+
+	/**
+	 * Applying the blank node rules to the parsed triples
+	 */
+	BLANK_NODES,
+
+	/**
+	 * Writing the response body in the requested RDF serialization
+	 */
+	SERIALIZATION;
+
+	/**
+	 * Returns the name used in metric labels and attribute names
+	 */
+	public String getLabel() {
+		return name().toLowerCase();
+	}
+
+}
@@ -0,0 +1,28 @@
+package eu.europeana.lod.rdf;
+
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Drops all triples having a blank node as object and passes all other
+ * triples on to a given handler.
+ * 
+ * @author agent
+ * 
+ */
+public class BlankNodeFilter implements TripleHandler {
+
+	private final TripleHandler handler;
+
+	public BlankNodeFilter(TripleHandler handler) {
+		this.handler = handler;
+	}
+
+	public void handle(Triple triple) {
+
+		if (!triple.getObject().isBlank()) {
+			handler.handle(triple);
+		}
+
+	}
+
+}
@@ -0,0 +1,298 @@
+package eu.europeana.lod.rdf;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Decides what happens to blank nodes while triples are parsed, before they
+ * reach a graph or a writer:
+ *
+ * - DROP: triples having a blank node object are dropped (the default)
+ * - SKOLEMIZE: blank nodes are replaced by IRIs below a given base; since
+ * parser labels differ between parses, the IRIs are derived from the
+ * described resource and the order in which its blank nodes first appear
+ * - KEEP: all triples are passed on unchanged
+ *
+ * @author agent
+ *
+ */
+public class BlankNodeRules {
+
+	public enum Policy {
+		DROP, SKOLEMIZE, KEEP
+	}
+
+	/**
+	 * Drops triples having blank node objects
+	 */
+	public static final BlankNodeRules DROP = new BlankNodeRules(Policy.DROP,
+			null);
+
+	private final Policy policy;
+
+	private final String skolemBase;
+
+	/**
+	 * Creates new rules
+	 *
+	 * @param policy
+	 *            what to do with blank nodes
+	 * @param skolemBase
+	 *            the base of the IRIs replacing blank nodes; only used if
+	 *            blank nodes are skolemized
+	 */
+	public BlankNodeRules(Policy policy, String skolemBase) {
+
+		if (policy == Policy.SKOLEMIZE && skolemBase == null) {
+			throw new IllegalArgumentException("Skolemization requires a base IRI");
+		}
+
+		this.policy = policy;
+		this.skolemBase = skolemBase;
+	}
+
+	/**
+	 * Returns the rules for a given policy name (drop, skolemize or keep)
+	 */
+	public static BlankNodeRules valueOf(String policy, String skolemBase) {
+		return new BlankNodeRules(Policy.valueOf(policy.trim().toUpperCase()),
+				skolemBase);
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns a handler that applies these rules to all triples describing a
+	 * given resource before passing them to a given handler
+	 */
+	public TripleHandler apply(String resourceURI, final TripleHandler handler) {
+
+		switch (policy) {
+		case KEEP:
+			return handler;
+		case SKOLEMIZE:
+			final String prefix = getSkolemPrefix(resourceURI);
+			final Map<String, Node> skolems = new HashMap<String, Node>();
+			return new TripleHandler() {
+				public void handle(Triple triple) {
+					if (triple.getSubject().isBlank()
+							|| triple.getObject().isBlank()) {
+						triple = new Triple(skolemize(triple.getSubject()),
+								triple.getPredicate(),
+								skolemize(triple.getObject()));
+					}
+					handler.handle(triple);
+				}
+
+				private Node skolemize(Node node) {
+					if (!node.isBlank()) {
+						return node;
+					}
+					String label = node.getBlankNodeLabel();
+					Node skolem = skolems.get(label);
+					if (skolem == null) {
+						skolem = Node.createURI(prefix + (skolems.size() + 1));
+						skolems.put(label, skolem);
+					}
+					return skolem;
+				}
+			};
+		default:
+			return new BlankNodeFilter(handler);
+		}
+
+	}
+
+	/**
+	 * Returns a handler that applies these rules to the triples describing
+	 * several resources at once, e.g., an upstream DESCRIBE of a batch. Skolem
+	 * IRIs are scoped by the root subject of each blank node, i.e., the
+	 * described resource it hangs off, so that a resource gets the same IRIs
+	 * as if it had been described on its own.
+	 */
+	public BatchHandler applyBatch(String fallbackScope, TripleHandler handler) {
+		return new BatchHandler(fallbackScope, handler);
+	}
+
+	/**
+	 * Returns the prefix of the IRIs replacing the blank nodes in the
+	 * description of a given resource; they are numbered from 1 in the order
+	 * the blank nodes first appear
+	 */
+	public String getSkolemPrefix(String resourceURI) {
+		return skolemBase + shortHash(resourceURI) + "-";
+	}
+
+	/**
+	 * Returns whether a description can be served as it is stored, given
+	 * whether it contains blank nodes
+	 */
+	public boolean isVerbatim(boolean hasBlankNodes) {
+		return !hasBlankNodes || policy == Policy.KEEP;
+	}
+
+	/**
+	 * The first 8 bytes of the MD5 of a resource URI, in hex
+	 */
+	private static String shortHash(String resourceURI) {
+
+		try {
+			byte[] md5 = MessageDigest.getInstance("MD5").digest(
+					resourceURI.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(16);
+			for (int i = 0; i < 8; i++) {
+				hex.append(Character.forDigit((md5[i] >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(md5[i] & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not supported", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	/**
+	 * Applies the rules to the triples of several descriptions. The triples
+	 * of a blank node are held back until the triple linking it to its root
+	 * subject has been seen; {@link #finish()} passes on those that were
+	 * never linked, scoped by a fallback resource.
+	 */
+	public class BatchHandler implements TripleHandler {
+
+		private final String fallbackScope;
+
+		private final TripleHandler handler;
+
+		/**
+		 * The root subject of each blank node (label) linked so far
+		 */
+		private final Map<String, String> roots = new HashMap<String, String>();
+
+		/**
+		 * The skolem IRI of each linked blank node (label)
+		 */
+		private final Map<String, Node> skolems = new HashMap<String, Node>();
+
+		/**
+		 * The number of blank nodes per root subject
+		 */
+		private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+		/**
+		 * The triples of blank nodes (labels) not linked to a root yet
+		 */
+		private final Map<String, List<Triple>> waiting = new HashMap<String, List<Triple>>();
+
+		BatchHandler(String fallbackScope, TripleHandler handler) {
+			this.fallbackScope = fallbackScope;
+			this.handler = (policy == Policy.SKOLEMIZE) ? handler : apply(
+					fallbackScope, handler);
+		}
+
+		public void handle(Triple triple) {
+
+			if (policy != Policy.SKOLEMIZE) {
+				handler.handle(triple);
+				return;
+			}
+
+			Node subject = triple.getSubject();
+			if (!subject.isBlank()) {
+				pass(subject.getURI(), triple);
+				return;
+			}
+
+			String label = subject.getBlankNodeLabel();
+			String root = roots.get(label);
+			if (root != null) {
+				pass(root, triple);
+				return;
+			}
+
+			List<Triple> triples = waiting.get(label);
+			if (triples == null) {
+				triples = new ArrayList<Triple>();
+				waiting.put(label, triples);
+			}
+			triples.add(triple);
+
+		}
+
+		/**
+		 * Passes on the triples of blank nodes that are not linked to any
+		 * described resource
+		 */
+		public void finish() {
+			while (!waiting.isEmpty()) {
+				String label = waiting.keySet().iterator().next();
+				link(label, fallbackScope);
+			}
+		}
+
+		private void pass(String root, Triple triple) {
+
+			Node object = triple.getObject();
+			String linked = null;
+			if (object.isBlank()
+					&& !roots.containsKey(object.getBlankNodeLabel())) {
+				linked = object.getBlankNodeLabel();
+				skolem(linked, root);
+			}
+
+			handler.handle(new Triple(skolemize(triple.getSubject()), triple
+					.getPredicate(), skolemize(object)));
+
+			if (linked != null) {
+				release(linked, root);
+			}
+
+		}
+
+		private void link(String label, String root) {
+			skolem(label, root);
+			release(label, root);
+		}
+
+		private void skolem(String label, String root) {
+			Integer count = counts.get(root);
+			count = (count == null) ? 1 : count + 1;
+			counts.put(root, count);
+			roots.put(label, root);
+			skolems.put(label, Node.createURI(getSkolemPrefix(root) + count));
+		}
+
+		private void release(String label, String root) {
+			List<Triple> triples = waiting.remove(label);
+			if (triples != null) {
+				for (Triple triple : triples) {
+					pass(root, triple);
+				}
+			}
+		}
+
+		private Node skolemize(Node node) {
+			return node.isBlank() ? skolems.get(node.getBlankNodeLabel())
+					: node;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return policy == Policy.SKOLEMIZE ? policy + " " + skolemBase : policy
+				.toString();
+	}
+
+}
@@ -0,0 +1,279 @@
+package eu.europeana.lod.rdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import eu.europeana.lod.rdf.BlankNodeRules.Policy;
+
+/**
+ * Relays N-Triples from an input to an output stream line by line, applying
+ * blank node rules without parsing: lines without blank nodes are copied byte
+ * for byte, lines having a blank node object are dropped or have their blank
+ * nodes replaced by skolem IRIs.
+ *
+ * The object of a line is the last whitespace separated token before the
+ * final dot; it is a blank node if it starts with _: and is neither a literal
+ * nor an IRI. Empty lines and comments are not relayed.
+ *
+ * @author agent
+ *
+ */
+public class NTriplesRelay {
+
+	private final OutputStream out;
+
+	private final Policy policy;
+
+	private final String skolemPrefix;
+
+	private final Map<String, Integer> skolems = new HashMap<String, Integer>();
+
+	private byte[] line = new byte[512];
+
+	private int length = 0;
+
+	/**
+	 * A line with skolem IRIs in place of its blank nodes
+	 */
+	private final ByteArrayOutputStream rewritten = new ByteArrayOutputStream(
+			512);
+
+	private final byte[] buffer;
+
+	private int count = 0;
+
+	private boolean started = false;
+
+	private long triples = 0;
+
+	/**
+	 * Creates a relay applying given blank node rules to the description of
+	 * a given resource
+	 */
+	public NTriplesRelay(OutputStream out, BlankNodeRules rules,
+			String resourceURI) {
+		this.out = out;
+		this.policy = rules.getPolicy();
+		this.skolemPrefix = policy == Policy.SKOLEMIZE ? rules
+				.getSkolemPrefix(resourceURI) : null;
+		this.buffer = new byte[8192];
+	}
+
+	/**
+	 * Called before the first triple is relayed, e.g., to set response
+	 * headers
+	 */
+	protected void onStart() throws IOException {
+	}
+
+	/**
+	 * Called for each relayed triple with its line as it is relayed, e.g., to
+	 * digest the relayed graph
+	 */
+	protected void onTriple(byte[] b, int off, int len) throws IOException {
+	}
+
+	/**
+	 * Relays all lines of a given input stream and flushes the output stream
+	 * unless nothing was relayed; returns the number of triples relayed
+	 */
+	public long relay(InputStream in) throws IOException {
+
+		byte[] input = new byte[8192];
+		int n;
+		while ((n = in.read(input)) != -1) {
+			int start = 0;
+			for (int i = 0; i < n; i++) {
+				if (input[i] == '\n') {
+					append(input, start, i + 1 - start);
+					relayLine();
+					start = i + 1;
+				}
+			}
+			append(input, start, n - start);
+		}
+
+		if (length > 0) {
+			append(new byte[] { '\n' }, 0, 1);
+			relayLine();
+		}
+
+		// an empty relay leaves the response uncommitted for an error
+		if (started) {
+			flushBuffer();
+			out.flush();
+		}
+
+		return triples;
+
+	}
+
+	/**
+	 * Returns the number of triples relayed so far
+	 */
+	public long getTripleCount() {
+		return triples;
+	}
+
+	private void append(byte[] b, int off, int len) {
+
+		if (length + len > line.length) {
+			byte[] grown = new byte[Math.max(line.length * 2, length + len)];
+			System.arraycopy(line, 0, grown, 0, length);
+			line = grown;
+		}
+		System.arraycopy(b, off, line, length, len);
+		length += len;
+
+	}
+
+	private void relayLine() throws IOException {
+
+		int start = 0;
+		while (start < length && isWhitespace(line[start])) {
+			start++;
+		}
+
+		if (start == length || line[start] == '#') {
+			length = 0;
+			return;
+		}
+
+		if (policy == Policy.KEEP || !hasBlankNode(start)) {
+			relayTriple(line, 0, length);
+			length = 0;
+			return;
+		}
+
+		// the object ends before the final dot
+		int end = length;
+		while (end > start && isWhitespace(line[end - 1])) {
+			end--;
+		}
+		if (end > start && line[end - 1] == '.') {
+			end--;
+		}
+		while (end > start && isWhitespace(line[end - 1])) {
+			end--;
+		}
+		int objectStart = end;
+		while (objectStart > start && !isWhitespace(line[objectStart - 1])) {
+			objectStart--;
+		}
+
+		boolean blankObject = isBlankNode(objectStart, end);
+
+		if (policy == Policy.DROP) {
+			if (!blankObject) {
+				relayTriple(line, 0, length);
+			}
+			length = 0;
+			return;
+		}
+
+		int subjectEnd = start;
+		while (subjectEnd < length && !isWhitespace(line[subjectEnd])) {
+			subjectEnd++;
+		}
+
+		rewritten.reset();
+		int position = 0;
+		if (isBlankNode(start, subjectEnd)) {
+			rewritten.write(line, 0, start);
+			writeSkolem(start, subjectEnd);
+			position = subjectEnd;
+		}
+		if (blankObject && objectStart >= position) {
+			rewritten.write(line, position, objectStart - position);
+			writeSkolem(objectStart, end);
+			position = end;
+		}
+		rewritten.write(line, position, length - position);
+		relayTriple(rewritten.toByteArray(), 0, rewritten.size());
+		length = 0;
+
+	}
+
+	/**
+	 * Returns whether the line contains _: anywhere after a given offset
+	 */
+	private boolean hasBlankNode(int start) {
+
+		for (int i = start; i < length - 1; i++) {
+			if (line[i] == '_' && line[i + 1] == ':') {
+				return true;
+			}
+		}
+		return false;
+
+	}
+
+	private boolean isBlankNode(int start, int end) {
+
+		if (end - start < 3 || line[start] != '_' || line[start + 1] != ':') {
+			return false;
+		}
+		for (int i = start + 2; i < end; i++) {
+			if (line[i] == '"' || line[i] == '>') {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+	private void writeSkolem(int start, int end) throws IOException {
+
+		String label = new String(line, start + 2, end - start - 2, "US-ASCII");
+		Integer number = skolems.get(label);
+		if (number == null) {
+			number = skolems.size() + 1;
+			skolems.put(label, number);
+		}
+
+		byte[] iri = ("<" + skolemPrefix + number + ">").getBytes("UTF-8");
+		rewritten.write(iri, 0, iri.length);
+
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private void relayTriple(byte[] b, int off, int len) throws IOException {
+		write(b, off, len);
+		triples++;
+		onTriple(b, off, len);
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+
+		if (!started) {
+			started = true;
+			onStart();
+		}
+
+		if (len > buffer.length - count) {
+			flushBuffer();
+			if (len > buffer.length) {
+				out.write(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package eu.europeana.lod.rdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.WrappedIOException;
+
+/**
+ * Writes triples as N-Triples to an output stream, one line per triple, as
+ * they are handed over.
+ *
+ * The output is pure ASCII: characters outside the printable ASCII range are
+ * escaped the same way Jena's N-TRIPLES writer does, so that the bytes can be
+ * buffered and written without a charset encoder.
+ *
+ * @author agent
+ *
+ */
+public class NTriplesStreamWriter implements TripleStreamWriter {
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	private final OutputStream out;
+
+	private final byte[] buffer;
+
+	private int count = 0;
+
+	private long triples = 0;
+
+	public NTriplesStreamWriter(OutputStream out) {
+		this(out, 8192);
+	}
+
+	public NTriplesStreamWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+	}
+
+	public void handle(Triple triple) {
+
+		try {
+			write(triple);
+		} catch (IOException e) {
+			throw new WrappedIOException(e);
+		}
+
+	}
+
+	/**
+	 * Writes a single triple
+	 */
+	public void write(Triple triple) throws IOException {
+
+		writeNode(triple.getSubject());
+		write(' ');
+		writeNode(triple.getPredicate());
+		write(' ');
+		writeNode(triple.getObject());
+		write(' ');
+		write('.');
+		write('\n');
+
+		triples++;
+	}
+
+	/**
+	 * Returns the number of triples written so far
+	 */
+	public long getTripleCount() {
+		return triples;
+	}
+
+	/**
+	 * Writes all buffered bytes to the underlying stream and flushes it
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * N-Triples need no completion; same as {@link #flush()}
+	 */
+	public void finish() throws IOException {
+		flush();
+	}
+
+	private void writeNode(Node node) throws IOException {
+
+		if (node.isURI()) {
+			write('<');
+			writeURI(node.getURI());
+			write('>');
+		} else if (node.isBlank()) {
+			write('_');
+			write(':');
+			write('A');
+			writeBlankNodeLabel(node.getBlankNodeLabel());
+		} else {
+			write('"');
+			writeString(node.getLiteralLexicalForm());
+			write('"');
+			String lang = node.getLiteralLanguage();
+			if (lang != null && lang.length() > 0) {
+				write('@');
+				writeString(lang);
+			}
+			String datatypeURI = node.getLiteralDatatypeURI();
+			if (datatypeURI != null && datatypeURI.length() > 0) {
+				write('^');
+				write('^');
+				write('<');
+				writeURI(datatypeURI);
+				write('>');
+			}
+		}
+
+	}
+
+	private void writeURI(String uri) throws IOException {
+
+		for (int i = 0; i < uri.length(); i++) {
+			char c = uri.charAt(i);
+			if (c > 32 && c < 127 && c != '<' && c != '>' && c != '\\'
+					&& c != '"') {
+				write(c);
+			} else {
+				writeUnicodeEscape(c);
+			}
+		}
+
+	}
+
+	private void writeString(String s) throws IOException {
+
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' || c == '"') {
+				write('\\');
+				write(c);
+			} else if (c == '\n') {
+				write('\\');
+				write('n');
+			} else if (c == '\r') {
+				write('\\');
+				write('r');
+			} else if (c == '\t') {
+				write('\\');
+				write('t');
+			} else if (c >= 32 && c < 127) {
+				write(c);
+			} else {
+				writeUnicodeEscape(c);
+			}
+		}
+
+	}
+
+	private void writeBlankNodeLabel(String label) throws IOException {
+
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9')) {
+				write(c);
+			} else {
+				write('X');
+				write(HEX[(c >> 12) & 0xf]);
+				write(HEX[(c >> 8) & 0xf]);
+				write(HEX[(c >> 4) & 0xf]);
+				write(HEX[c & 0xf]);
+			}
+		}
+
+	}
+
+	private void writeUnicodeEscape(char c) throws IOException {
+		write('\\');
+		write('u');
+		write(HEX[(c >> 12) & 0xf]);
+		write(HEX[(c >> 8) & 0xf]);
+		write(HEX[(c >> 4) & 0xf]);
+		write(HEX[c & 0xf]);
+	}
+
+	private void write(int b) throws IOException {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+}
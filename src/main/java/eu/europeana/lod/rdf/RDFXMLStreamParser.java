@@ -0,0 +1,87 @@
+package eu.europeana.lod.rdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xml.sax.SAXException;
+
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.arp.ALiteral;
+import com.hp.hpl.jena.rdf.arp.ARP;
+import com.hp.hpl.jena.rdf.arp.AResource;
+import com.hp.hpl.jena.rdf.arp.StatementHandler;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * Parses RDF/XML with ARP and pushes each triple to a handler as soon as it
+ * has been parsed, without building a model.
+ * 
+ * @author agent
+ * 
+ */
+public class RDFXMLStreamParser {
+
+	/**
+	 * Parses RDF/XML from a given input stream and passes all triples to a
+	 * given handler
+	 */
+	public static void parse(InputStream in, String base,
+			final TripleHandler handler) throws IOException {
+
+		ARP arp = new ARP();
+
+		arp.getHandlers().setStatementHandler(new StatementHandler() {
+
+			public void statement(AResource subj, AResource pred, AResource obj) {
+				handler.handle(new Triple(convert(subj), convert(pred),
+						convert(obj)));
+			}
+
+			public void statement(AResource subj, AResource pred, ALiteral lit) {
+				handler.handle(new Triple(convert(subj), convert(pred),
+						convert(lit)));
+			}
+
+		});
+
+		try {
+			arp.load(in, base == null ? "" : base);
+		} catch (SAXException e) {
+			throw new JenaException(e);
+		}
+
+	}
+
+	private static Node convert(AResource resource) {
+
+		if (resource.isAnonymous()) {
+			return Node.createAnon(new AnonId(resource.getAnonymousID()));
+		}
+
+		return Node.createURI(resource.getURI());
+	}
+
+	private static Node convert(ALiteral literal) {
+
+		String datatypeURI = literal.getDatatypeURI();
+
+		if (datatypeURI == null) {
+			return Node.createLiteral(literal.toString(), literal.getLang(),
+					false);
+		}
+
+		if (literal.isWellFormedXML()) {
+			return Node.createLiteral(literal.toString(), null, true);
+		}
+
+		RDFDatatype datatype = TypeMapper.getInstance().getSafeTypeByName(
+				datatypeURI);
+
+		return Node.createLiteral(literal.toString(), null, datatype);
+	}
+
+}
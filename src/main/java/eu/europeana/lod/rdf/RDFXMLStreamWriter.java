@@ -0,0 +1,474 @@
+package eu.europeana.lod.rdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.impl.Util;
+import com.hp.hpl.jena.shared.InvalidPropertyURIException;
+import com.hp.hpl.jena.shared.WrappedIOException;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Writes triples as plain (non-abbreviated) RDF/XML to an output stream, as
+ * they are handed over. Consecutive triples having the same subject are
+ * grouped into one rdf:Description element.
+ *
+ * Unlike Jena's RDF/XML-ABBREV writer, nothing is analyzed up front, and
+ * the document is encoded in UTF-8 straight into a byte buffer. Namespaces
+ * passed to the writer are declared on the document element; the namespaces
+ * of other properties are declared on the property elements.
+ *
+ * @author agent
+ *
+ */
+public class RDFXMLStreamWriter implements TripleStreamWriter {
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	private static final String RDF_NS = RDF.getURI();
+
+	private final OutputStream out;
+
+	private final byte[] buffer;
+
+	private int count = 0;
+
+	/**
+	 * Declared namespaces, by URI
+	 */
+	private final Map<String, String> prefixes = new LinkedHashMap<String, String>();
+
+	/**
+	 * The element names of the properties written so far: the start tag name,
+	 * possibly declaring its namespace, and the end tag name
+	 */
+	private final Map<Node, String[]> elementNames = new HashMap<Node, String[]>();
+
+	private boolean started = false;
+
+	private Node subject;
+
+	private long triples = 0;
+
+	public RDFXMLStreamWriter(OutputStream out) {
+		this(out, new HashMap<String, String>());
+	}
+
+	/**
+	 * Creates a writer declaring the given namespaces (prefix to URI)
+	 */
+	public RDFXMLStreamWriter(OutputStream out, Map<String, String> namespaces) {
+		this(out, namespaces, 8192);
+	}
+
+	public RDFXMLStreamWriter(OutputStream out, Map<String, String> namespaces,
+			int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+
+		prefixes.put(RDF_NS, "rdf");
+		for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+			String prefix = namespace.getKey();
+			if (isPrefix(prefix) && !prefixes.containsKey(namespace.getValue())
+					&& !prefixes.containsValue(prefix)) {
+				prefixes.put(namespace.getValue(), prefix);
+			}
+		}
+	}
+
+	/**
+	 * Writes a model, grouping the triples by subject. The namespaces of the
+	 * model's properties are all declared on the document element.
+	 */
+	public static void write(Model model, OutputStream out) throws IOException {
+		write(model, new HashMap<String, String>(), out);
+	}
+
+	/**
+	 * Writes a model, declaring the given namespaces (prefix to URI) besides
+	 * those of the model and its properties
+	 */
+	public static void write(Model model, Map<String, String> namespaces,
+			OutputStream out) throws IOException {
+
+		Graph graph = model.getGraph();
+
+		namespaces = new LinkedHashMap<String, String>(namespaces);
+		namespaces.putAll(model.getNsPrefixMap());
+
+		// plain graphs have no subject index, so triples are grouped by
+		// subject in a single pass
+		Map<Node, List<Triple>> descriptions = new LinkedHashMap<Node, List<Triple>>();
+		Set<Node> predicates = new HashSet<Node>();
+		int generated = 0;
+		ExtendedIterator<Triple> it = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while (it.hasNext()) {
+				Triple triple = it.next();
+				Node predicate = triple.getPredicate();
+				if (predicates.add(predicate)) {
+					String uri = predicate.getURI();
+					String namespace = uri.substring(0, split(uri));
+					if (!namespaces.containsValue(namespace)) {
+						namespaces.put("j." + generated++, namespace);
+					}
+				}
+				List<Triple> description = descriptions.get(triple.getSubject());
+				if (description == null) {
+					description = new ArrayList<Triple>();
+					descriptions.put(triple.getSubject(), description);
+				}
+				description.add(triple);
+			}
+		} finally {
+			it.close();
+		}
+
+		RDFXMLStreamWriter writer = new RDFXMLStreamWriter(out, namespaces);
+		for (List<Triple> description : descriptions.values()) {
+			for (Triple triple : description) {
+				writer.write(triple);
+			}
+		}
+
+		writer.finish();
+
+	}
+
+	public void handle(Triple triple) {
+
+		try {
+			write(triple);
+		} catch (IOException e) {
+			throw new WrappedIOException(e);
+		}
+
+	}
+
+	/**
+	 * Writes a single triple
+	 */
+	public void write(Triple triple) throws IOException {
+
+		String[] elementName = getElementName(triple.getPredicate());
+
+		if (!started) {
+			writeStart();
+		}
+
+		Node subject = triple.getSubject();
+		if (!subject.equals(this.subject)) {
+			if (this.subject != null) {
+				write("  </rdf:Description>\n");
+			}
+			write("  <rdf:Description ");
+			writeResource(subject, "rdf:about");
+			write(">\n");
+			this.subject = subject;
+		}
+
+		write("    <");
+		write(elementName[0]);
+
+		Node object = triple.getObject();
+		if (object.isLiteral()) {
+			String lang = object.getLiteralLanguage();
+			if (lang != null && lang.length() > 0) {
+				write(" xml:lang=\"");
+				writeEscaped(lang, true);
+				write('"');
+			}
+			String datatypeURI = object.getLiteralDatatypeURI();
+			if (datatypeURI != null && datatypeURI.length() > 0) {
+				write(" rdf:datatype=\"");
+				writeEscaped(datatypeURI, true);
+				write('"');
+			}
+			write('>');
+			writeEscaped(object.getLiteralLexicalForm(), false);
+			write("</");
+			write(elementName[1]);
+			write(">\n");
+		} else {
+			write(' ');
+			writeResource(object, "rdf:resource");
+			write("/>\n");
+		}
+
+		triples++;
+	}
+
+	/**
+	 * Returns the number of triples written so far
+	 */
+	public long getTripleCount() {
+		return triples;
+	}
+
+	/**
+	 * Completes the document, writes all buffered bytes to the underlying
+	 * stream and flushes it
+	 */
+	public void finish() throws IOException {
+
+		if (!started) {
+			writeStart();
+		}
+		if (subject != null) {
+			write("  </rdf:Description>\n");
+			subject = null;
+		}
+		write("</rdf:RDF>\n");
+
+		flushBuffer();
+		out.flush();
+
+	}
+
+	private void writeStart() throws IOException {
+
+		write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<rdf:RDF");
+		for (Map.Entry<String, String> namespace : prefixes.entrySet()) {
+			write("\n    xmlns:");
+			write(namespace.getValue());
+			write("=\"");
+			writeEscaped(namespace.getKey(), true);
+			write('"');
+		}
+		write(">\n");
+
+		started = true;
+
+	}
+
+	/**
+	 * Writes a subject or object resource as rdf:nodeID attribute, if it is a
+	 * blank node, or else as URI attribute having a given name
+	 */
+	private void writeResource(Node node, String attribute) throws IOException {
+
+		if (node.isBlank()) {
+			write("rdf:nodeID=\"A");
+			writeBlankNodeLabel(node.getBlankNodeLabel());
+		} else {
+			write(attribute);
+			write("=\"");
+			writeEscaped(node.getURI(), true);
+		}
+		write('"');
+
+	}
+
+	private String[] getElementName(Node predicate) {
+
+		String[] elementName = elementNames.get(predicate);
+		if (elementName == null) {
+			String uri = predicate.getURI();
+			int index = split(uri);
+			String namespace = uri.substring(0, index);
+			String localName = uri.substring(index);
+
+			String prefix = prefixes.get(namespace);
+			if (prefix != null) {
+				String name = prefix + ":" + localName;
+				elementName = new String[] { name, name };
+			} else {
+				// declared on the element, as it is only known now
+				String name = "j:" + localName;
+				elementName = new String[] {
+						name + " xmlns:j=\"" + escape(namespace) + "\"", name };
+			}
+			elementNames.put(predicate, elementName);
+		}
+		return elementName;
+
+	}
+
+	/**
+	 * Returns the index of the local name in a property URI
+	 *
+	 * @throws InvalidPropertyURIException
+	 *             if it has none, i.e., it cannot be written in RDF/XML
+	 */
+	private static int split(String uri) {
+
+		int index = Util.splitNamespace(uri);
+		if (index == uri.length() || index == 0) {
+			throw new InvalidPropertyURIException(uri);
+		}
+		return index;
+
+	}
+
+	private static boolean isPrefix(String prefix) {
+
+		if (prefix.length() == 0 || prefix.toLowerCase().startsWith("xml")) {
+			return false;
+		}
+		if (!Character.isLetter(prefix.charAt(0)) && prefix.charAt(0) != '_') {
+			return false;
+		}
+		for (int i = 1; i < prefix.length(); i++) {
+			char c = prefix.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '_' && c != '-'
+					&& c != '.') {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+	private static String escape(String s) {
+
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '&') {
+				sb.append("&amp;");
+			} else if (c == '<') {
+				sb.append("&lt;");
+			} else if (c == '"') {
+				sb.append("&quot;");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+
+	}
+
+	/**
+	 * Writes text or an attribute value, escaping markup and the characters
+	 * an XML parser would normalize. Characters XML 1.0 does not allow at
+	 * all, not even as references (control characters other than tab, line
+	 * feed and carriage return, U+FFFE and U+FFFF), are dropped.
+	 */
+	private void writeEscaped(String s, boolean attribute) throws IOException {
+
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				if (c == '\ufffe' || c == '\uffff') {
+					continue;
+				}
+				if (Character.isHighSurrogate(c) && i + 1 < n
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+				} else {
+					writeCodePoint(c);
+				}
+			} else if (c == '&') {
+				write("&amp;");
+			} else if (c == '<') {
+				write("&lt;");
+			} else if (c == '>') {
+				write("&gt;");
+			} else if (c == '"' && attribute) {
+				write("&quot;");
+			} else if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+				continue;
+			} else if (c == '\r' || c < 0x20 && attribute) {
+				writeCharacterReference(c);
+			} else {
+				write(c);
+			}
+		}
+
+	}
+
+	private void writeCharacterReference(char c) throws IOException {
+		write("&#x");
+		write(HEX[(c >> 4) & 0xf]);
+		write(HEX[c & 0xf]);
+		write(';');
+	}
+
+	private void writeBlankNodeLabel(String label) throws IOException {
+
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9')) {
+				write(c);
+			} else {
+				write('X');
+				write(HEX[(c >> 12) & 0xf]);
+				write(HEX[(c >> 8) & 0xf]);
+				write(HEX[(c >> 4) & 0xf]);
+				write(HEX[c & 0xf]);
+			}
+		}
+
+	}
+
+	/**
+	 * Writes a non-ASCII code point in UTF-8
+	 */
+	private void writeCodePoint(int c) throws IOException {
+
+		if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+			// an unpaired surrogate
+			write('?');
+		} else if (c < 0x800) {
+			write(0xc0 | (c >> 6));
+			write(0x80 | (c & 0x3f));
+		} else if (c < 0x10000) {
+			write(0xe0 | (c >> 12));
+			write(0x80 | ((c >> 6) & 0x3f));
+			write(0x80 | (c & 0x3f));
+		} else {
+			write(0xf0 | (c >> 18));
+			write(0x80 | ((c >> 12) & 0x3f));
+			write(0x80 | ((c >> 6) & 0x3f));
+			write(0x80 | (c & 0x3f));
+		}
+
+	}
+
+	/**
+	 * Writes markup; names and markup are not escaped
+	 */
+	private void write(String s) throws IOException {
+
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				write(c);
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+			} else {
+				writeCodePoint(c);
+			}
+		}
+
+	}
+
+	private void write(int b) throws IOException {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+package eu.europeana.lod.rdf;
+
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Receives triples one by one, e.g., while an upstream response is parsed.
+ * 
+ * I/O errors are reported as WrappedIOException, since triples are usually
+ * pushed from parser callbacks that cannot throw checked exceptions.
+ * 
+ * @author agent
+ * 
+ */
+public interface TripleHandler {
+
+	/**
+	 * Handles a single triple
+	 */
+	void handle(Triple triple);
+
+}
@@ -0,0 +1,25 @@
+package eu.europeana.lod.rdf;
+
+import java.io.IOException;
+
+/**
+ * Serializes triples to an output stream as they are handed over, e.g.,
+ * while a description is read from the resource store.
+ * 
+ * @author agent
+ * 
+ */
+public interface TripleStreamWriter extends TripleHandler {
+
+	/**
+	 * Returns the number of triples written so far
+	 */
+	long getTripleCount();
+
+	/**
+	 * Completes the serialization, writes all buffered bytes to the underlying
+	 * stream and flushes it
+	 */
+	void finish() throws IOException;
+
+}
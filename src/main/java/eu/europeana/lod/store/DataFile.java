@@ -0,0 +1,76 @@
+package eu.europeana.lod.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The data file of a store, read at given positions; positional reads do
+ * not move a shared file pointer, so the file is read by all request
+ * threads at once.
+ *
+ * @author agent
+ *
+ */
+final class DataFile {
+
+	private final File file;
+
+	private final RandomAccessFile randomAccessFile;
+
+	private final FileChannel channel;
+
+	DataFile(File file) throws IOException {
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "r");
+		this.channel = randomAccessFile.getChannel();
+	}
+
+	/**
+	 * Reads a given number of bytes at a given position
+	 */
+	byte[] read(long position, int length) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0) {
+				throw new IOException("Truncated data file " + file);
+			}
+		}
+		return buffer.array();
+
+	}
+
+	/**
+	 * Copies a given range to a given channel; the file system cache is used
+	 * directly if the channel supports it
+	 */
+	void transferTo(long position, long length, WritableByteChannel target)
+			throws IOException {
+
+		long remaining = length;
+		while (remaining > 0) {
+			long n = channel.transferTo(position, remaining, target);
+			if (n <= 0) {
+				throw new IOException("Could not transfer " + length
+						+ " bytes at " + position + " from " + file);
+			}
+			position += n;
+			remaining -= n;
+		}
+
+	}
+
+	void close() {
+		try {
+			randomAccessFile.close();
+		} catch (IOException e) {
+			// read-only, nothing to lose
+		}
+	}
+
+}
@@ -0,0 +1,375 @@
+package eu.europeana.lod.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.n3.turtle.TurtleEventHandler;
+import com.hp.hpl.jena.n3.turtle.parser.ParseException;
+import com.hp.hpl.jena.n3.turtle.parser.TokenMgrError;
+import com.hp.hpl.jena.n3.turtle.parser.TurtleParser;
+import com.hp.hpl.jena.shared.WrappedIOException;
+
+import eu.europeana.lod.rdf.TripleHandler;
+
+/**
+ * A local, read-only store built from the N-Triples data dumps (see
+ * {@link DumpStoreBuilder}).
+ *
+ * The store consists of a data file, in which the triples of each subject
+ * are stored next to each other, and a subject index (see
+ * {@link SubjectIndex}) of entries (subject hash, offset, length). A lookup
+ * is a binary search in the index; hash collisions are resolved by comparing
+ * the subject in the data file.
+ *
+ * Since the triples of a subject form a single byte range, an N-Triples
+ * description can be sent without parsing it (see
+ * {@link #transferTo(Range, WritableByteChannel)}).
+ *
+ * @author agent
+ *
+ */
+public class DumpStore implements ResourceStore {
+
+	static final String DATA_FILE = "data.nt";
+
+	static final String INDEX_FILE = "subjects.idx";
+
+	/**
+	 * Present while the builder moves a new data and index file into place
+	 */
+	static final String PENDING_FILE = "store.pending";
+
+	/**
+	 * The size of an index entry: hash (8), offset (8), length and flags (4)
+	 */
+	static final int ENTRY_SIZE = 20;
+
+	/**
+	 * Flag set in the length field if the range has blank node objects
+	 */
+	static final int BLANK_OBJECTS = 0x80000000;
+
+	static final int MAX_LENGTH = 0x7fffffff;
+
+	private final File directory;
+
+	private final DataFile data;
+
+	private final SubjectIndex index;
+
+	/**
+	 * Opens the store in a given directory
+	 */
+	public DumpStore(File directory) throws IOException {
+
+		this.directory = directory;
+
+		if (new File(directory, PENDING_FILE).exists()) {
+			throw new IOException("Incomplete dump store in " + directory);
+		}
+
+		index = new SubjectIndex(new File(directory, INDEX_FILE), ENTRY_SIZE);
+		data = new DataFile(new File(directory, DATA_FILE));
+
+	}
+
+	/**
+	 * Returns whether a complete store has been built in a given directory
+	 */
+	public static boolean exists(File directory) {
+		return new File(directory, DATA_FILE).isFile()
+				&& new File(directory, INDEX_FILE).isFile()
+				&& !new File(directory, PENDING_FILE).exists();
+	}
+
+	public boolean describe(String resourceURI, TripleHandler handler)
+			throws IOException {
+
+		Range range = find(resourceURI);
+		if (range == null) {
+			return false;
+		}
+
+		describe(range, handler);
+		return true;
+
+	}
+
+	public boolean describe(List<String> resourceURIs, TripleHandler handler)
+			throws IOException {
+
+		boolean found = false;
+		for (String resourceURI : resourceURIs) {
+			found |= describe(resourceURI, handler);
+		}
+		return found;
+
+	}
+
+	/**
+	 * Passes all triples of the subject at a given index entry to a given
+	 * handler; entries are numbered from 0 to getSubjectCount() - 1
+	 */
+	public void describe(long entry, TripleHandler handler) throws IOException {
+		describe(entryRange(entry), handler);
+	}
+
+	/**
+	 * Returns the resource URI of the subject at a given index entry
+	 */
+	public String getResourceURI(long entry) throws IOException {
+
+		Range range = entryRange(entry);
+
+		// the subject is followed by whitespace
+		byte[] head = data.read(range.offset, Math.min(range.length, 8192));
+		int end = 0;
+		while (end < head.length && head[end] != ' ' && head[end] != '\t') {
+			end++;
+		}
+
+		return new String(head, 1, end - 2, "UTF-8");
+	}
+
+	private void describe(Range range, TripleHandler handler)
+			throws IOException {
+
+		String lines = new String(data.read(range.offset, range.length),
+				"UTF-8");
+
+		// N-Triples is a subset of Turtle; the Turtle parser delivers the
+		// triples in file order instead of collecting them in a graph first
+		TurtleParser parser = new TurtleParser(new StringReader(lines));
+		parser.setEventHandler(new TripleEvents(handler));
+
+		try {
+			parser.parse();
+		} catch (WrappedIOException e) {
+			throw (IOException) e.getCause();
+		} catch (ParseException e) {
+			throw new IOException("Invalid N-Triples at " + range.offset
+					+ ": " + e.getMessage());
+		} catch (TokenMgrError e) {
+			throw new IOException("Invalid N-Triples at " + range.offset
+					+ ": " + e.getMessage());
+		}
+
+	}
+
+	/**
+	 * Returns the byte range of the N-Triples describing a given resource;
+	 * null if the resource is unknown
+	 */
+	public Range find(String resourceURI) throws IOException {
+
+		String subject = "<" + resourceURI + ">";
+		long hash = hash(subject);
+
+		long found = index.find(hash);
+		if (found < 0) {
+			return null;
+		}
+
+		byte[] subjectBytes = (subject + " ").getBytes("UTF-8");
+
+		long entries = index.size();
+		for (long i = found; i < entries && index.getHash(i) == hash; i++) {
+			Range range = entryRange(i);
+			byte[] head = data.read(range.offset, Math.min(
+					subjectBytes.length, range.length));
+			if (matches(head, subjectBytes)) {
+				return range;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Copies a given range of the data file to a given channel; the file
+	 * system cache is used directly if the channel supports it
+	 */
+	public void transferTo(Range range, WritableByteChannel target)
+			throws IOException {
+
+		data.transferTo(range.offset, range.length, target);
+
+	}
+
+	/**
+	 * Returns the number of subjects in the store
+	 */
+	public long getSubjectCount() {
+		return index.size();
+	}
+
+	public void close() {
+		data.close();
+	}
+
+	@Override
+	public String toString() {
+		return directory.getPath();
+	}
+
+	private Range entryRange(long entry) {
+		int length = index.getInt(entry, 16);
+		return new Range(index.getLong(entry, 8), length & MAX_LENGTH,
+				(length & BLANK_OBJECTS) != 0);
+	}
+
+	private static boolean matches(byte[] head, byte[] subjectBytes) {
+		if (head.length < subjectBytes.length) {
+			return false;
+		}
+		// the subject is followed by a space or a tab
+		for (int i = 0; i < subjectBytes.length - 1; i++) {
+			if (head[i] != subjectBytes[i]) {
+				return false;
+			}
+		}
+		byte last = head[subjectBytes.length - 1];
+		return last == ' ' || last == '\t';
+	}
+
+	/**
+	 * Returns the 64-bit FNV-1a hash of the subject of an N-Triples line (or
+	 * of a subject)
+	 */
+	public static long hash(String line) {
+		long hash = 0xcbf29ce484222325L;
+		int end = tokenEnd(line);
+		for (int i = 0; i < end; i++) {
+			hash ^= line.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Compares the subjects of two N-Triples lines (or two subjects)
+	 */
+	static int compareSubjects(String line1, String line2) {
+
+		int end1 = tokenEnd(line1);
+		int end2 = tokenEnd(line2);
+		int n = Math.min(end1, end2);
+
+		for (int i = 0; i < n; i++) {
+			char c1 = line1.charAt(i);
+			char c2 = line2.charAt(i);
+			if (c1 != c2) {
+				return c1 - c2;
+			}
+		}
+
+		return end1 - end2;
+	}
+
+	/**
+	 * Returns whether the object of an N-Triples line is a blank node
+	 */
+	static boolean hasBlankObject(String line) {
+
+		// subject and predicate are IRIs and cannot contain whitespace
+		int i = tokenEnd(line);
+		while (i < line.length() && isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		while (i < line.length() && !isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		while (i < line.length() && isWhitespace(line.charAt(i))) {
+			i++;
+		}
+
+		return line.startsWith("_:", i);
+	}
+
+	private static int tokenEnd(String line) {
+		for (int i = 0; i < line.length(); i++) {
+			if (isWhitespace(line.charAt(i))) {
+				return i;
+			}
+		}
+		return line.length();
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	/**
+	 * The byte range of the triples of a single subject in the data file
+	 */
+	public static class Range {
+
+		private final long offset;
+
+		private final int length;
+
+		private final boolean blankObjects;
+
+		Range(long offset, int length, boolean blankObjects) {
+			this.offset = offset;
+			this.length = length;
+			this.blankObjects = blankObjects;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Returns whether any of the triples has a blank node object
+		 */
+		public boolean hasBlankObjects() {
+			return blankObjects;
+		}
+
+		@Override
+		public String toString() {
+			return offset + "+" + length;
+		}
+
+	}
+
+	/**
+	 * Passes the triples delivered by the Turtle parser on to a triple
+	 * handler
+	 */
+	static class TripleEvents implements TurtleEventHandler {
+
+		private final TripleHandler handler;
+
+		TripleEvents(TripleHandler handler) {
+			this.handler = handler;
+		}
+
+		public void triple(int line, int col, Triple triple) {
+			handler.handle(triple);
+		}
+
+		public void prefix(int line, int col, String prefix, String iri) {
+			// not part of N-Triples
+		}
+
+		public void startFormula(int line, int col) {
+			// not part of N-Triples
+		}
+
+		public void endFormula(int line, int col) {
+			// not part of N-Triples
+		}
+
+	}
+
+}
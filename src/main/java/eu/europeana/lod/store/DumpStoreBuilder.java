@@ -0,0 +1,395 @@
+package eu.europeana.lod.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Builds a dump store from a set of N-Triples dumps (plain, .gz or .bz2).
+ *
+ * The triples are grouped by subject with an external merge sort: sorted runs
+ * of a bounded number of lines are written to temporary files and merged
+ * into the data file. Subjects are ordered by their hash, so that the index
+ * entries are produced in index order while merging and never have to be
+ * held in memory. Triples having a blank node subject are skipped, since
+ * blank nodes are never requested.
+ *
+ * The data and index file are written to temporary files and then moved into
+ * place. The two moves are marked by a pending file, which is removed only
+ * once both are done; a store interrupted in between is not opened, but
+ * reported as missing, so that it is built again.
+ *
+ * @author agent
+ *
+ */
+public class DumpStoreBuilder {
+
+	private final File directory;
+
+	private final int runSize;
+
+	private final List<File> runs = new ArrayList<File>();
+
+	private List<Line> run = new ArrayList<Line>();
+
+	private long triples = 0;
+
+	private long subjects = 0;
+
+	/**
+	 * Creates a new builder with default settings
+	 */
+	public DumpStoreBuilder(File directory) {
+		this(directory, 500000);
+	}
+
+	/**
+	 * Creates a new builder
+	 *
+	 * @param directory
+	 *            the store directory
+	 * @param runSize
+	 *            the number of triples sorted in memory at once
+	 */
+	public DumpStoreBuilder(File directory, int runSize) {
+		this.directory = directory;
+		this.runSize = runSize;
+	}
+
+	/**
+	 * Adds all triples from a given dump file
+	 */
+	public void add(File dump) throws IOException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				open(dump), "UTF-8"));
+
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				add(line);
+			}
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * Adds a single N-Triples line; comments and empty lines are ignored
+	 */
+	public void add(String line) throws IOException {
+
+		line = line.trim();
+
+		if (line.length() == 0 || line.charAt(0) == '#'
+				|| line.startsWith("_:")) {
+			return;
+		}
+
+		run.add(new Line(line));
+		triples++;
+
+		if (run.size() >= runSize) {
+			flushRun();
+		}
+
+	}
+
+	/**
+	 * Returns the number of triples added so far
+	 */
+	public long getTripleCount() {
+		return triples;
+	}
+
+	/**
+	 * Returns the number of distinct subjects stored by the last build
+	 */
+	public long getSubjectCount() {
+		return subjects;
+	}
+
+	/**
+	 * Merges all runs into the data and index files of the store
+	 */
+	public void build() throws IOException {
+
+		flushRun();
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+
+		File dataFile = new File(directory, DumpStore.DATA_FILE);
+		File indexFile = new File(directory, DumpStore.INDEX_FILE);
+		File tmpData = new File(directory, DumpStore.DATA_FILE + ".tmp");
+		File tmpIndex = new File(directory, DumpStore.INDEX_FILE + ".tmp");
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+				Math.max(1, runs.size()), RUN_ORDER);
+		for (int i = 0; i < runs.size(); i++) {
+			RunReader reader = new RunReader(runs.get(i), i);
+			if (reader.next()) {
+				queue.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				tmpData), 65536);
+		DataOutputStream index = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpIndex), 65536));
+		try {
+
+			long offset = 0;
+			subjects = 0;
+
+			// the subject block currently written
+			Line first = null;
+			long blockOffset = 0;
+			boolean blankObjects = false;
+
+			while (!queue.isEmpty()) {
+
+				RunReader reader = queue.poll();
+				Line line = reader.line;
+
+				if (first == null || LINE_ORDER.compare(first, line) != 0) {
+					if (first != null) {
+						writeEntry(index, first.hash, blockOffset, offset
+								- blockOffset, blankObjects);
+					}
+					first = line;
+					blockOffset = offset;
+					blankObjects = false;
+				}
+
+				blankObjects |= DumpStore.hasBlankObject(line.text);
+
+				byte[] bytes = (line.text + "\n").getBytes("UTF-8");
+				out.write(bytes);
+				offset += bytes.length;
+
+				if (reader.next()) {
+					queue.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+
+			if (first != null) {
+				writeEntry(index, first.hash, blockOffset,
+						offset - blockOffset, blankObjects);
+			}
+
+		} finally {
+			out.close();
+			index.close();
+			for (RunReader reader : queue) {
+				reader.close();
+			}
+			for (File runFile : runs) {
+				runFile.delete();
+			}
+			runs.clear();
+		}
+
+		File pending = new File(directory, DumpStore.PENDING_FILE);
+		if (!pending.exists() && !pending.createNewFile()) {
+			throw new IOException("Could not create " + pending);
+		}
+		replace(tmpData, dataFile);
+		replace(tmpIndex, indexFile);
+		if (!pending.delete()) {
+			throw new IOException("Could not delete " + pending);
+		}
+
+	}
+
+	private void writeEntry(DataOutputStream index, long hash, long offset,
+			long length, boolean blankObjects) throws IOException {
+
+		if (length > DumpStore.MAX_LENGTH) {
+			throw new IOException("Description too large at offset " + offset);
+		}
+
+		index.writeLong(hash);
+		index.writeLong(offset);
+		index.writeInt((int) length | (blankObjects ? DumpStore.BLANK_OBJECTS : 0));
+
+		subjects++;
+
+	}
+
+	private void flushRun() throws IOException {
+
+		if (run.isEmpty()) {
+			return;
+		}
+
+		// stable, so the triples of a subject keep their dump order
+		Collections.sort(run, LINE_ORDER);
+
+		File runFile = File.createTempFile("europeana-lod-run", ".nt");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(runFile), "UTF-8"), 65536);
+		try {
+			for (Line line : run) {
+				writer.write(line.text);
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+
+		runs.add(runFile);
+		run = new ArrayList<Line>();
+
+	}
+
+	private static void replace(File source, File target) throws IOException {
+		if (target.exists() && !target.delete()) {
+			throw new IOException("Could not replace " + target);
+		}
+		if (!source.renameTo(target)) {
+			throw new IOException("Could not move " + source + " to " + target);
+		}
+	}
+
+	/**
+	 * Opens a given dump file, decompressing it according to its extension
+	 */
+	static InputStream open(File dump) throws IOException {
+
+		InputStream in = new BufferedInputStream(new FileInputStream(dump),
+				65536);
+		String name = dump.getName();
+
+		if (name.endsWith(".bz2")) {
+			return new BZip2CompressorInputStream(in, true);
+		}
+		if (name.endsWith(".gz")) {
+			return new GZIPInputStream(in, 65536);
+		}
+		return in;
+
+	}
+
+	/**
+	 * Orders lines by subject hash, then by subject
+	 */
+	private static final Comparator<Line> LINE_ORDER = new Comparator<Line>() {
+		public int compare(Line line1, Line line2) {
+			if (line1.hash != line2.hash) {
+				return line1.hash < line2.hash ? -1 : 1;
+			}
+			return DumpStore.compareSubjects(line1.text, line2.text);
+		}
+	};
+
+	/**
+	 * Orders run heads by line, then by run, which keeps the merge stable
+	 */
+	private static final Comparator<RunReader> RUN_ORDER = new Comparator<RunReader>() {
+		public int compare(RunReader r1, RunReader r2) {
+			int c = LINE_ORDER.compare(r1.line, r2.line);
+			return c != 0 ? c : r1.index - r2.index;
+		}
+	};
+
+	/**
+	 * An N-Triples line and the hash of its subject
+	 */
+	private static class Line {
+
+		private final String text;
+
+		private final long hash;
+
+		Line(String text) {
+			this.text = text;
+			this.hash = DumpStore.hash(text);
+		}
+
+	}
+
+	/**
+	 * Reads a sorted run line by line
+	 */
+	private static class RunReader {
+
+		private final BufferedReader reader;
+
+		private final int index;
+
+		private Line line;
+
+		RunReader(File file, int index) throws IOException {
+			this.reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"), 65536);
+			this.index = index;
+		}
+
+		boolean next() throws IOException {
+			String text = reader.readLine();
+			line = (text != null) ? new Line(text) : null;
+			return line != null;
+		}
+
+		void close() {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// a temporary file only
+			}
+		}
+
+	}
+
+	/**
+	 * Builds a dump store from the command line:
+	 *
+	 * DumpStoreBuilder <store directory> <dump file>...
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: DumpStoreBuilder <store directory> <dump file>...");
+			System.exit(1);
+		}
+
+		DumpStoreBuilder builder = new DumpStoreBuilder(new File(args[0]));
+		for (int i = 1; i < args.length; i++) {
+			System.out.println("Adding " + args[i]);
+			builder.add(new File(args[i]));
+		}
+		builder.build();
+
+		System.out.println("Stored " + builder.getTripleCount()
+				+ " triples of " + builder.getSubjectCount() + " subjects in "
+				+ args[0]);
+
+	}
+
+}
@@ -0,0 +1,229 @@
+package eu.europeana.lod.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.europeana.lod.util.BloomFilter;
+
+/**
+ * Knows which resources are described in the data dumps, so that requests
+ * for unknown resources can be answered without asking the resource store.
+ *
+ * The filter holds the subject hashes (see {@link DumpStore#hash(String)})
+ * of all resources in a set of sources in a {@link BloomFilter}: a resource
+ * it rejects is definitely not in the dumps, a resource it accepts is in
+ * them with a probability given by the false positive rate. A source is
+ * either a dump store directory, whose subject index already holds the
+ * hashes, or an N-Triples dump (plain, .gz or .bz2), which is read twice:
+ * once to count its subjects and once to add them.
+ *
+ * @author agent
+ *
+ */
+public class ExistenceFilter {
+
+	private final BloomFilter filter;
+
+	private final long resources;
+
+	private final long fingerprint;
+
+	private ExistenceFilter(BloomFilter filter, long resources,
+			long fingerprint) {
+		this.filter = filter;
+		this.resources = resources;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Loads a filter with the resources of given sources
+	 */
+	public static ExistenceFilter load(List<File> sources,
+			double falsePositiveRate) throws IOException {
+
+		long fingerprint = fingerprint(sources);
+
+		long expected = 0;
+		for (File source : sources) {
+			expected += DumpStore.exists(source) ? countEntries(source)
+					: countSubjects(source);
+		}
+
+		BloomFilter filter = new BloomFilter(expected, falsePositiveRate);
+		for (File source : sources) {
+			if (DumpStore.exists(source)) {
+				addEntries(source, filter);
+			} else {
+				addSubjects(source, filter);
+			}
+		}
+
+		return new ExistenceFilter(filter, expected, fingerprint);
+
+	}
+
+	/**
+	 * Parses a list of sources separated by whitespace or commas
+	 */
+	public static List<File> parseSources(String sources) {
+
+		List<File> files = new ArrayList<File>();
+		for (String source : sources.trim().split("[,\\s]+")) {
+			if (source.length() > 0) {
+				files.add(new File(source));
+			}
+		}
+		return files;
+
+	}
+
+	/**
+	 * Returns false if a given resource is definitely not in the dumps
+	 */
+	public boolean mightExist(String resourceURI) {
+		return filter.mightContain(DumpStore.hash("<" + resourceURI + ">"));
+	}
+
+	/**
+	 * Returns the number of resources the filter was built from
+	 */
+	public long getResourceCount() {
+		return resources;
+	}
+
+	/**
+	 * Returns whether given sources changed since this filter was loaded
+	 */
+	public boolean isStale(List<File> sources) throws IOException {
+		return fingerprint(sources) != fingerprint;
+	}
+
+	/**
+	 * Combines the modification times and sizes of the files sources are
+	 * read from; fails if a source does not exist
+	 */
+	private static long fingerprint(List<File> sources) throws IOException {
+
+		long fingerprint = 17;
+		for (File source : sources) {
+			File file = DumpStore.exists(source) ? new File(source,
+					DumpStore.INDEX_FILE) : source;
+			if (!file.isFile()) {
+				throw new IOException("No dump or dump store at " + source);
+			}
+			fingerprint = fingerprint * 31 + file.lastModified();
+			fingerprint = fingerprint * 31 + file.length();
+		}
+		return fingerprint;
+
+	}
+
+	private static long countEntries(File directory) {
+		return new File(directory, DumpStore.INDEX_FILE).length()
+				/ DumpStore.ENTRY_SIZE;
+	}
+
+	private static void addEntries(File directory, BloomFilter filter)
+			throws IOException {
+
+		long entries = countEntries(directory);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(directory, DumpStore.INDEX_FILE)),
+				65536));
+		try {
+			for (long i = 0; i < entries; i++) {
+				filter.add(in.readLong());
+				in.readLong();
+				in.readInt();
+			}
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Counts the subjects of a dump; subjects spread over several groups
+	 * of lines are counted more than once, which only makes the filter
+	 * larger
+	 */
+	private static long countSubjects(File dump) throws IOException {
+
+		SubjectReader reader = new SubjectReader(dump);
+		try {
+			long subjects = 0;
+			while (reader.next()) {
+				subjects++;
+			}
+			return subjects;
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	private static void addSubjects(File dump, BloomFilter filter)
+			throws IOException {
+
+		SubjectReader reader = new SubjectReader(dump);
+		try {
+			while (reader.next()) {
+				filter.add(reader.hash);
+			}
+		} finally {
+			reader.close();
+		}
+
+	}
+
+	/**
+	 * Reads the subject hashes of a dump, once per group of lines having the
+	 * same subject; comments and blank node subjects are skipped
+	 */
+	private static class SubjectReader {
+
+		private final BufferedReader reader;
+
+		private long hash;
+
+		private String subject = null;
+
+		SubjectReader(File dump) throws IOException {
+			reader = new BufferedReader(new InputStreamReader(
+					DumpStoreBuilder.open(dump), "UTF-8"));
+		}
+
+		boolean next() throws IOException {
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) != '<') {
+					continue;
+				}
+				if (subject != null
+						&& DumpStore.compareSubjects(line, subject) == 0) {
+					continue;
+				}
+				subject = line;
+				hash = DumpStore.hash(line);
+				return true;
+			}
+			return false;
+
+		}
+
+		void close() throws IOException {
+			reader.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,232 @@
+package eu.europeana.lod.store;
+
+import java.io.File;
+import java.io.IOException;
+
+import eu.europeana.lod.util.ContentEncoding;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * A read-only store of pre-rendered data responses: each resource is stored
+ * serialized in all RDF content types (see {@link RenderedStoreWriter}).
+ *
+ * The bytes of a resource are packed into a single data file, one block per
+ * resource: the subject, the graph digest and the RDF/XML, Turtle and
+ * N-Triples serializations, each followed by its gzip encoded form. The
+ * blocks are found through a subject index, like in the dump store.
+ *
+ * @author agent
+ *
+ */
+public class RenderedStore {
+
+	static final String DATA_FILE = "rendered.dat";
+
+	static final String INDEX_FILE = "rendered.idx";
+
+	/**
+	 * Present while the writer moves a new data and index file into place
+	 */
+	static final String PENDING_FILE = "rendered.pending";
+
+	/**
+	 * Present if the RDF/XML bodies are abbreviated (RDF/XML-ABBREV)
+	 */
+	static final String ABBREV_FILE = "rendered.abbrev";
+
+	/**
+	 * The content types that are pre-rendered, in the order they are stored
+	 */
+	public static final ContentType[] CONTENT_TYPES = new ContentType[] {
+			ContentType.RDF, ContentType.TTL, ContentType.N3 };
+
+	/**
+	 * The size of the graph digest (hex) following the subject
+	 */
+	static final int DIGEST_SIZE = 32;
+
+	/**
+	 * The size of an index entry: hash (8), offset (8), subject length (4),
+	 * two body lengths (4), plain and gzip encoded, per content type
+	 */
+	static final int ENTRY_SIZE = 20 + 8 * CONTENT_TYPES.length;
+
+	private final File directory;
+
+	private final DataFile data;
+
+	private final SubjectIndex index;
+
+	private final long created;
+
+	private final boolean abbreviatedRDFXML;
+
+	/**
+	 * Opens the store in a given directory
+	 */
+	public RenderedStore(File directory) throws IOException {
+
+		this.directory = directory;
+
+		if (new File(directory, PENDING_FILE).exists()) {
+			throw new IOException("Incomplete rendered store in " + directory);
+		}
+
+		File file = new File(directory, INDEX_FILE);
+		created = file.lastModified();
+		abbreviatedRDFXML = new File(directory, ABBREV_FILE).exists();
+
+		index = new SubjectIndex(file, ENTRY_SIZE);
+		data = new DataFile(new File(directory, DATA_FILE));
+
+	}
+
+	/**
+	 * Returns whether a complete store has been rendered in a given
+	 * directory
+	 */
+	public static boolean exists(File directory) {
+		return new File(directory, DATA_FILE).isFile()
+				&& new File(directory, INDEX_FILE).isFile()
+				&& !new File(directory, PENDING_FILE).exists();
+	}
+
+	/**
+	 * Returns the pre-rendered representation of a given resource in a given
+	 * content type; null if there is none
+	 */
+	public Rendered get(String resourceURI, ContentType contentType)
+			throws IOException {
+		return get(resourceURI, contentType, ContentEncoding.IDENTITY);
+	}
+
+	/**
+	 * Returns the pre-rendered representation of a given resource in a given
+	 * content type and content coding; null if there is none. Only gzip
+	 * encoded bodies are stored, all other codings yield the plain body.
+	 */
+	public Rendered get(String resourceURI, ContentType contentType,
+			ContentEncoding encoding) throws IOException {
+
+		int type = typeIndex(contentType);
+		if (type < 0) {
+			return null;
+		}
+
+		// the lengths of plain and gzip bodies alternate
+		int body = 2 * type + (encoding == ContentEncoding.GZIP ? 1 : 0);
+
+		String subject = "<" + resourceURI + ">";
+		long hash = DumpStore.hash(subject);
+
+		long found = index.find(hash);
+		if (found < 0) {
+			return null;
+		}
+
+		byte[] subjectBytes = subject.getBytes("UTF-8");
+
+		long entries = index.size();
+		for (long i = found; i < entries && index.getHash(i) == hash; i++) {
+
+			long offset = index.getLong(i, 8);
+			int subjectLength = index.getInt(i, 16);
+
+			if (subjectLength != subjectBytes.length) {
+				continue;
+			}
+
+			// subject and digest are read together
+			byte[] head = data.read(offset, subjectLength + DIGEST_SIZE);
+			if (!startsWith(head, subjectBytes)) {
+				continue;
+			}
+
+			long bodyOffset = offset + head.length;
+			for (int b = 0; b < body; b++) {
+				bodyOffset += index.getInt(i, 20 + 4 * b);
+			}
+			int bodyLength = index.getInt(i, 20 + 4 * body);
+
+			return new Rendered(new String(head, subjectLength, DIGEST_SIZE,
+					"US-ASCII"), data.read(bodyOffset, bodyLength));
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the time (ms) the store was rendered
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Returns whether the RDF/XML bodies were written abbreviated; they
+	 * should only be served if the servlet writes RDF/XML the same way
+	 */
+	public boolean isAbbreviatedRDFXML() {
+		return abbreviatedRDFXML;
+	}
+
+	/**
+	 * Returns the number of resources in the store
+	 */
+	public long getResourceCount() {
+		return index.size();
+	}
+
+	public void close() {
+		data.close();
+	}
+
+	@Override
+	public String toString() {
+		return directory.getPath();
+	}
+
+	private static int typeIndex(ContentType contentType) {
+		for (int i = 0; i < CONTENT_TYPES.length; i++) {
+			if (CONTENT_TYPES[i] == contentType) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(byte[] bytes, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A pre-rendered representation and the digest of the graph it was
+	 * rendered from
+	 */
+	public static class Rendered {
+
+		private final String digest;
+
+		private final byte[] body;
+
+		Rendered(String digest, byte[] body) {
+			this.digest = digest;
+			this.body = body;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+	}
+
+}
@@ -0,0 +1,185 @@
+package eu.europeana.lod.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a rendered store. Resources must be added in the order of their
+ * subject hash, which is the order of the entries in a dump store.
+ *
+ * The store is written to temporary files, which replace the previous store
+ * when the writer is closed. While they are moved into place, a marker file
+ * tells that the store is incomplete; if the move is interrupted, e.g., by a
+ * crash, the marker stays and the store is not opened until it is written
+ * again.
+ *
+ * @author agent
+ *
+ */
+public class RenderedStoreWriter {
+
+	private final File directory;
+
+	private final boolean abbreviatedRDFXML;
+
+	private final File tmpData;
+
+	private final File tmpIndex;
+
+	private final OutputStream data;
+
+	private final DataOutputStream index;
+
+	private long offset = 0;
+
+	private long lastHash = Long.MIN_VALUE;
+
+	private long resources = 0;
+
+	/**
+	 * Creates a writer for a given directory, recording whether the RDF/XML
+	 * bodies are written abbreviated
+	 */
+	public RenderedStoreWriter(File directory, boolean abbreviatedRDFXML)
+			throws IOException {
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+
+		this.directory = directory;
+		this.abbreviatedRDFXML = abbreviatedRDFXML;
+		this.tmpData = new File(directory, RenderedStore.DATA_FILE + ".tmp");
+		this.tmpIndex = new File(directory, RenderedStore.INDEX_FILE + ".tmp");
+
+		this.data = new BufferedOutputStream(new FileOutputStream(tmpData),
+				65536);
+		this.index = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmpIndex), 65536));
+
+	}
+
+	/**
+	 * Adds the representations of a given resource
+	 *
+	 * @param resourceURI
+	 *            the resource URI
+	 * @param digest
+	 *            the graph digest (hex)
+	 * @param bodies
+	 *            the serialized bodies, one per pre-rendered content type (RDF,
+	 *            TTL, N3)
+	 * @param gzipBodies
+	 *            the gzip encoded bodies, in the same order
+	 */
+	public void add(String resourceURI, String digest, byte[][] bodies,
+			byte[][] gzipBodies) throws IOException {
+
+		String subject = "<" + resourceURI + ">";
+		long hash = DumpStore.hash(subject);
+
+		if (hash < lastHash) {
+			throw new IllegalStateException(resourceURI
+					+ " added out of hash order");
+		}
+		if (digest.length() != RenderedStore.DIGEST_SIZE
+				|| bodies.length != RenderedStore.CONTENT_TYPES.length
+				|| gzipBodies.length != bodies.length) {
+			throw new IllegalArgumentException("Invalid representations of "
+					+ resourceURI);
+		}
+
+		byte[] subjectBytes = subject.getBytes("UTF-8");
+
+		index.writeLong(hash);
+		index.writeLong(offset);
+		index.writeInt(subjectBytes.length);
+		for (int i = 0; i < bodies.length; i++) {
+			index.writeInt(bodies[i].length);
+			index.writeInt(gzipBodies[i].length);
+		}
+
+		data.write(subjectBytes);
+		data.write(digest.getBytes("US-ASCII"));
+		offset += subjectBytes.length + RenderedStore.DIGEST_SIZE;
+		for (int i = 0; i < bodies.length; i++) {
+			data.write(bodies[i]);
+			data.write(gzipBodies[i]);
+			offset += bodies[i].length + gzipBodies[i].length;
+		}
+
+		lastHash = hash;
+		resources++;
+
+	}
+
+	/**
+	 * Returns the number of resources added so far
+	 */
+	public long getResourceCount() {
+		return resources;
+	}
+
+	/**
+	 * Completes the store and moves it into place
+	 */
+	public void close() throws IOException {
+
+		data.close();
+		index.close();
+
+		File pending = new File(directory, RenderedStore.PENDING_FILE);
+		if (!pending.exists() && !pending.createNewFile()) {
+			throw new IOException("Could not create " + pending);
+		}
+		replace(tmpData, new File(directory, RenderedStore.DATA_FILE));
+		replace(tmpIndex, new File(directory, RenderedStore.INDEX_FILE));
+		File abbrev = new File(directory, RenderedStore.ABBREV_FILE);
+		if (abbreviatedRDFXML) {
+			if (!abbrev.exists() && !abbrev.createNewFile()) {
+				throw new IOException("Could not create " + abbrev);
+			}
+		} else if (abbrev.exists() && !abbrev.delete()) {
+			throw new IOException("Could not delete " + abbrev);
+		}
+		if (!pending.delete()) {
+			throw new IOException("Could not delete " + pending);
+		}
+
+	}
+
+	/**
+	 * Discards the store written so far; the previous store is kept
+	 */
+	public void abort() {
+
+		try {
+			data.close();
+		} catch (IOException e) {
+			// deleted anyway
+		}
+		try {
+			index.close();
+		} catch (IOException e) {
+			// deleted anyway
+		}
+
+		tmpData.delete();
+		tmpIndex.delete();
+
+	}
+
+	private static void replace(File source, File target) throws IOException {
+		if (target.exists() && !target.delete()) {
+			throw new IOException("Could not replace " + target);
+		}
+		if (!source.renameTo(target)) {
+			throw new IOException("Could not move " + source + " to " + target);
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package eu.europeana.lod.store;
+
+import java.io.IOException;
+import java.util.List;
+
+import eu.europeana.lod.rdf.TripleHandler;
+
+/**
+ * The backend data requests are answered from: the remote upstream endpoint
+ * or a local store built from the data dumps.
+ *
+ * @author agent
+ *
+ */
+public interface ResourceStore {
+
+	/**
+	 * Passes all triples describing a given resource to a given handler, as
+	 * they are read. Returns false if the store does not know the resource.
+	 */
+	boolean describe(String resourceURI, TripleHandler handler)
+			throws IOException;
+
+	/**
+	 * Passes all triples describing several resources to a given handler, as
+	 * they are read. Returns false if the store knows none of the resources.
+	 */
+	boolean describe(List<String> resourceURIs, TripleHandler handler)
+			throws IOException;
+
+	/**
+	 * Releases all resources held by the store
+	 */
+	void close();
+
+}
@@ -0,0 +1,118 @@
+package eu.europeana.lod.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The subject index of a store: a sorted array of fixed-size entries, each
+ * starting with a subject hash (see {@link DumpStore#hash(String)}) followed
+ * by fields specific to the store. The index is memory-mapped in segments of
+ * less than 2GB, so that it lives outside the heap and is paged in by the OS
+ * as needed.
+ *
+ * @author agent
+ *
+ */
+final class SubjectIndex {
+
+	private final int entrySize;
+
+	/**
+	 * The number of entries per mapped segment
+	 */
+	private final int segmentEntries;
+
+	private final MappedByteBuffer[] segments;
+
+	private final long entries;
+
+	/**
+	 * Maps a given index file having entries of a given size (in bytes)
+	 */
+	SubjectIndex(File file, int entrySize) throws IOException {
+
+		this.entrySize = entrySize;
+		this.segmentEntries = Integer.MAX_VALUE / entrySize;
+
+		RandomAccessFile indexFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = indexFile.getChannel();
+			entries = channel.size() / entrySize;
+			int count = (int) ((entries + segmentEntries - 1) / segmentEntries);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long first = (long) i * segmentEntries;
+				long size = Math.min(segmentEntries, entries - first);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, first
+						* entrySize, size * entrySize);
+			}
+		} finally {
+			// the mappings stay valid
+			indexFile.close();
+		}
+
+	}
+
+	/**
+	 * Returns the number of entries
+	 */
+	long size() {
+		return entries;
+	}
+
+	/**
+	 * Returns the first entry having a given hash; -1 if there is none. The
+	 * entries having the same hash follow it.
+	 */
+	long find(long hash) {
+
+		long low = 0;
+		long high = entries - 1;
+		long found = -1;
+		while (low <= high) {
+			long mid = (low + high) >>> 1;
+			long midHash = getHash(mid);
+			if (midHash < hash) {
+				low = mid + 1;
+			} else {
+				if (midHash == hash) {
+					found = mid;
+				}
+				high = mid - 1;
+			}
+		}
+		return found;
+
+	}
+
+	long getHash(long entry) {
+		return getLong(entry, 0);
+	}
+
+	/**
+	 * Returns the long field at a given position (in bytes) of an entry
+	 */
+	long getLong(long entry, int field) {
+		return segment(entry).getLong(position(entry) + field);
+	}
+
+	/**
+	 * Returns the int field at a given position (in bytes) of an entry
+	 */
+	int getInt(long entry, int field) {
+		return segment(entry).getInt(position(entry) + field);
+	}
+
+	private ByteBuffer segment(long entry) {
+		return segments[(int) (entry / segmentEntries)];
+	}
+
+	private int position(long entry) {
+		return (int) (entry % segmentEntries) * entrySize;
+	}
+
+}
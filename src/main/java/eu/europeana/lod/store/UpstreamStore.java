@@ -0,0 +1,209 @@
+package eu.europeana.lod.store;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.n3.turtle.parser.ParseException;
+import com.hp.hpl.jena.n3.turtle.parser.TokenMgrError;
+import com.hp.hpl.jena.n3.turtle.parser.TurtleParser;
+import com.hp.hpl.jena.shared.WrappedIOException;
+import com.hp.hpl.jena.sparql.engine.http.HttpParams;
+
+import eu.europeana.lod.rdf.RDFXMLStreamParser;
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.upstream.Upstream;
+import eu.europeana.lod.upstream.UpstreamException;
+import eu.europeana.lod.upstream.UpstreamResponse;
+
+/**
+ * Retrieves resource descriptions from the remote upstream endpoint(s) as
+ * RDF/XML and parses them while they are received. Descriptions can also be
+ * fetched in other formats, e.g., to relay them as they are.
+ *
+ * @author agent
+ *
+ */
+public class UpstreamStore implements ResourceStore {
+
+	/**
+	 * The mime-types endpoints send N-Triples as
+	 */
+	public static final List<String> NTRIPLES_TYPES = Arrays.asList(
+			"application/n-triples", "text/plain");
+
+	/**
+	 * The mime-types endpoints send Turtle as
+	 */
+	public static final List<String> TURTLE_TYPES = Arrays.asList(
+			"text/turtle", "application/x-turtle", "application/turtle");
+
+	private final Upstream upstream;
+
+	private final int batchSize;
+
+	public UpstreamStore(Upstream upstream) {
+		this(upstream, 500);
+	}
+
+	/**
+	 * Creates a new store, describing at most batchSize resources with a
+	 * single upstream request
+	 */
+	public UpstreamStore(Upstream upstream, int batchSize) {
+		this.upstream = upstream;
+		this.batchSize = batchSize;
+	}
+
+	public boolean describe(String resourceURI, TripleHandler handler)
+			throws IOException {
+
+		UpstreamResponse response = fetch(resourceURI,
+				HttpParams.contentTypeRDFXML);
+		if (response == null) {
+			return false;
+		}
+
+		try {
+			parse(response, handler);
+			return true;
+		} finally {
+			response.close();
+		}
+
+	}
+
+	/**
+	 * Retrieves the description of a given resource in a given format
+	 * (Accept header value), as the endpoint serializes it. Returns null if
+	 * the endpoint does not know the resource; the returned response must be
+	 * closed by the caller.
+	 */
+	public UpstreamResponse fetch(String resourceURI, String accept)
+			throws IOException {
+
+		UpstreamResponse response = upstream.describe(resourceURI, accept);
+
+		if (response.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+			response.close();
+			return null;
+		}
+
+		if (!response.isSuccess()) {
+			response.close();
+			throw new UpstreamException("Upstream endpoint " + upstream
+					+ " returned " + response.getStatus() + " for "
+					+ resourceURI);
+		}
+
+		return response;
+
+	}
+
+	/**
+	 * Parses the body of an upstream response according to its mime-type
+	 * (RDF/XML, N-Triples or Turtle) and passes the triples to a given
+	 * handler, as they are read
+	 */
+	public void parse(UpstreamResponse response, TripleHandler handler)
+			throws IOException {
+
+		String mimeType = response.getMimeType();
+
+		try {
+
+			if (mimeType == null || mimeType.equals(HttpParams.contentTypeRDFXML)) {
+				RDFXMLStreamParser.parse(response.getBody(), null, handler);
+			} else if (NTRIPLES_TYPES.contains(mimeType)
+					|| TURTLE_TYPES.contains(mimeType)) {
+				// N-Triples is a subset of Turtle
+				TurtleParser parser = new TurtleParser(new InputStreamReader(
+						response.getBody(), "UTF-8"));
+				parser.setEventHandler(new DumpStore.TripleEvents(handler));
+				parser.parse();
+			} else {
+				throw new UpstreamException("Upstream endpoint " + upstream
+						+ " returned unsupported format " + mimeType);
+			}
+
+		} catch (WrappedIOException e) {
+			throw (IOException) e.getCause();
+		} catch (ParseException e) {
+			throw new UpstreamException("Invalid " + mimeType
+					+ " from upstream: " + e.getMessage());
+		} catch (TokenMgrError e) {
+			throw new UpstreamException("Invalid " + mimeType
+					+ " from upstream: " + e.getMessage());
+		}
+
+	}
+
+	/**
+	 * Retrieves the descriptions with batched upstream requests, each
+	 * describing up to batchSize resources
+	 */
+	public boolean describe(List<String> resourceURIs,
+			final TripleHandler handler) throws IOException {
+
+		final boolean[] found = new boolean[] { false };
+		TripleHandler counter = new TripleHandler() {
+			public void handle(Triple triple) {
+				found[0] = true;
+				handler.handle(triple);
+			}
+		};
+
+		for (int from = 0; from < resourceURIs.size(); from += batchSize) {
+
+			List<String> batch = resourceURIs.subList(from, Math.min(
+					resourceURIs.size(), from + batchSize));
+
+			UpstreamResponse response = upstream.describeAll(batch,
+					HttpParams.contentTypeRDFXML);
+
+			try {
+
+				if (response.getStatus() == HttpServletResponse.SC_NOT_FOUND) {
+					continue;
+				}
+
+				if (!response.isSuccess()) {
+					throw new UpstreamException("Upstream endpoint " + upstream
+							+ " returned " + response.getStatus() + " for "
+							+ batch.size() + " resources");
+				}
+
+				RDFXMLStreamParser.parse(response.getBody(), null, counter);
+
+			} catch (WrappedIOException e) {
+				throw (IOException) e.getCause();
+			} finally {
+				response.close();
+			}
+		}
+
+		return found[0];
+
+	}
+
+	/**
+	 * Returns the upstream endpoint(s)
+	 */
+	public Upstream getUpstream() {
+		return upstream;
+	}
+
+	public void close() {
+		upstream.close();
+	}
+
+	@Override
+	public String toString() {
+		return upstream.toString();
+	}
+
+}
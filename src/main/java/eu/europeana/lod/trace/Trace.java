@@ -0,0 +1,166 @@
+package eu.europeana.lod.trace;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import eu.europeana.lod.metrics.RequestMetrics;
+import eu.europeana.lod.metrics.Stage;
+
+/**
+ * The trace of a single sampled request: its ID, the request line, the
+ * upstream calls it made, its stage timings, status and response size.
+ * 
+ * While a request is processed, its trace is bound to the processing thread,
+ * so that the upstream client can add its calls without the trace being
+ * passed through the resource stores. A trace is formatted as a single line
+ * by the {@link TraceWriter}, off the request thread.
+ * 
+ * @author agent
+ * 
+ */
+public class Trace {
+
+	private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>();
+
+	private final String requestId;
+
+	private final long started = System.currentTimeMillis();
+
+	private final String method;
+
+	private final String path;
+
+	private final String accept;
+
+	private final List<String> upstreamCalls = new ArrayList<String>(1);
+
+	private final long[] stageTimes = new long[Stage.values().length];
+
+	private final boolean[] stagesRun = new boolean[Stage.values().length];
+
+	private String labels = "";
+
+	private int status;
+
+	private long bytes;
+
+	private long time;
+
+	public Trace(String requestId, String method, String path, String accept) {
+		this.requestId = requestId;
+		this.method = method;
+		this.path = path;
+		this.accept = accept;
+	}
+
+	/**
+	 * Returns the trace bound to the current thread; null if the current
+	 * request is not traced
+	 */
+	public static Trace current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Binds a trace (or null) to the current thread
+	 */
+	public static void bind(Trace trace) {
+		if (trace == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(trace);
+		}
+	}
+
+	/**
+	 * Returns the request ID
+	 */
+	public String getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Adds a call made to an upstream endpoint
+	 * 
+	 * @param url
+	 *            the requested URL
+	 * @param status
+	 *            the response status; -1 if there is none
+	 * @param nanos
+	 *            the time until the response headers were received
+	 */
+	public synchronized void addUpstreamCall(String url, int status,
+			long nanos) {
+		upstreamCalls.add(url + " " + status + " " + millis(nanos) + "ms");
+	}
+
+	/**
+	 * Completes this trace with the metrics of the finished request
+	 */
+	public synchronized void finish(RequestMetrics metrics, int status,
+			long bytes) {
+
+		for (Stage stage : Stage.values()) {
+			stageTimes[stage.ordinal()] = metrics.getTime(stage);
+			stagesRun[stage.ordinal()] = metrics.hasRun(stage);
+		}
+
+		this.labels = (metrics.getResourceType() == null ? "none" : metrics
+				.getResourceType().name().toLowerCase())
+				+ "/"
+				+ (metrics.getContentType() == null ? "none" : metrics
+						.getContentType().name().toLowerCase());
+		this.status = status;
+		this.bytes = bytes;
+		this.time = metrics.getElapsedTime();
+
+	}
+
+	/**
+	 * Returns the trace as a single line
+	 */
+	@Override
+	public synchronized String toString() {
+
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		StringBuilder line = new StringBuilder();
+		line.append(format.format(new Date(started)));
+		line.append(" id=").append(requestId);
+		line.append(' ').append(method).append(' ').append(path);
+		line.append(" accept=\"").append(accept == null ? "" : accept)
+				.append('"');
+		line.append(" type=").append(labels);
+		line.append(" status=").append(status);
+		line.append(" bytes=").append(bytes);
+		line.append(" time=").append(millis(time)).append("ms");
+
+		line.append(" stages=");
+		String separator = "";
+		for (Stage stage : Stage.values()) {
+			if (stagesRun[stage.ordinal()]) {
+				line.append(separator).append(stage.getLabel()).append(':')
+						.append(millis(stageTimes[stage.ordinal()]));
+				separator = ",";
+			}
+		}
+
+		for (String upstreamCall : upstreamCalls) {
+			line.append(" upstream=[").append(upstreamCall).append(']');
+		}
+
+		return line.toString();
+
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+}
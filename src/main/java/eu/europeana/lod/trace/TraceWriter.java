@@ -0,0 +1,167 @@
+package eu.europeana.lod.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes traces asynchronously: request threads only put finished traces
+ * into a bounded queue, and a background thread formats them and writes them
+ * through a buffer. If the queue is full, traces are dropped rather than
+ * blocking a request; the number of dropped traces is written with the next
+ * trace.
+ * 
+ * @author agent
+ * 
+ */
+public class TraceWriter {
+
+	private final BlockingQueue<Trace> queue;
+
+	private final Writer out;
+
+	private final boolean closeOut;
+
+	private final Thread thread;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new trace writer, leaving the given writer open when it is
+	 * closed
+	 */
+	public TraceWriter(Writer out, int capacity) {
+		this(out, capacity, false);
+	}
+
+	/**
+	 * Creates a new trace writer and starts its background thread
+	 * 
+	 * @param out
+	 *            the (buffered) writer the traces are written to
+	 * @param capacity
+	 *            the maximum number of traces waiting to be written
+	 * @param closeOut
+	 *            whether the writer is closed once the remaining traces are
+	 *            written, e.g., unless it writes to standard error
+	 */
+	public TraceWriter(Writer out, int capacity, boolean closeOut) {
+
+		this.queue = new ArrayBlockingQueue<Trace>(capacity);
+		this.out = out;
+		this.closeOut = closeOut;
+
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				writeTraces();
+			}
+		}, "europeana-lod-trace");
+		this.thread.setDaemon(true);
+		this.thread.start();
+
+	}
+
+	/**
+	 * Queues a finished trace for writing; returns false if it has been
+	 * dropped since the queue is full
+	 */
+	public boolean write(Trace trace) {
+
+		if (closed || !queue.offer(trace)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of traces dropped so far
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes the queued traces, stops the background thread and closes the
+	 * writer if it is owned by the trace writer
+	 */
+	public void close() {
+
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	private void writeTraces() {
+
+		List<Trace> traces = new ArrayList<Trace>();
+		long reportedDropped = 0;
+
+		try {
+			while (!closed || !queue.isEmpty()) {
+
+				Trace trace;
+				try {
+					trace = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// closed; write what is left
+					trace = queue.poll();
+				}
+
+				if (trace == null) {
+					out.flush();
+					continue;
+				}
+
+				traces.add(trace);
+				queue.drainTo(traces);
+
+				long currentDropped = dropped.get();
+				if (currentDropped > reportedDropped) {
+					out.write("dropped " + (currentDropped - reportedDropped)
+							+ " traces\n");
+					reportedDropped = currentDropped;
+				}
+
+				for (Trace queued : traces) {
+					out.write(queued.toString());
+					out.write('\n');
+				}
+				traces.clear();
+
+				// flush once the burst is written
+				if (queue.isEmpty()) {
+					out.flush();
+				}
+
+			}
+		} catch (IOException e) {
+			closed = true;
+		} finally {
+			try {
+				if (closeOut) {
+					out.close();
+				} else {
+					out.flush();
+				}
+			} catch (IOException e) {
+				// nothing left to do
+			}
+		}
+
+	}
+
+}
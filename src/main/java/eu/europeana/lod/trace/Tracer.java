@@ -0,0 +1,88 @@
+package eu.europeana.lod.trace;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Assigns request IDs and decides which requests are traced: one request out
+ * of every 1/sampleRate requests. Traces of sampled requests are written by a
+ * {@link TraceWriter}.
+ * 
+ * @author agent
+ * 
+ */
+public class Tracer {
+
+	/**
+	 * The response header carrying the request ID
+	 */
+	public static final String REQUEST_ID_HEADER = "X-Request-Id";
+
+	private final long sampleInterval;
+
+	private final TraceWriter writer;
+
+	// distinguishes the IDs of several servlet instances or restarts
+	private final String idPrefix = String.format("%08x",
+			new Random().nextInt());
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Creates a new tracer
+	 * 
+	 * @param sampleRate
+	 *            the fraction (0-1) of requests traced; 0 traces none
+	 * @param writer
+	 *            the writer of the traces; may be null if none are sampled
+	 */
+	public Tracer(double sampleRate, TraceWriter writer) {
+		this.sampleInterval = sampleRate > 0 ? Math.max(1, Math
+				.round(1 / sampleRate)) : 0;
+		this.writer = writer;
+	}
+
+	/**
+	 * Starts a new request: assigns its ID, which is sent in the
+	 * X-Request-Id header, and returns its trace; null if it is not sampled
+	 */
+	public Trace start(HttpServletRequest request, HttpServletResponse response) {
+
+		long number = sequence.incrementAndGet();
+		String requestId = idPrefix + "-" + Long.toHexString(number);
+		response.setHeader(REQUEST_ID_HEADER, requestId);
+
+		if (sampleInterval == 0 || number % sampleInterval != 0) {
+			return null;
+		}
+
+		String path = request.getRequestURI();
+		if (request.getQueryString() != null) {
+			path += "?" + request.getQueryString();
+		}
+
+		return new Trace(requestId, request.getMethod(), path, request
+				.getHeader("Accept"));
+
+	}
+
+	/**
+	 * Writes a finished trace
+	 */
+	public void write(Trace trace) {
+		writer.write(trace);
+	}
+
+	/**
+	 * Stops writing traces
+	 */
+	public void close() {
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+}
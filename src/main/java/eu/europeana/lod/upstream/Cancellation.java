@@ -0,0 +1,124 @@
+package eu.europeana.lod.upstream;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Aborts the upstream requests of a data task whose response is no longer
+ * needed, e.g., because the client's request has timed out. The cancellation
+ * is bound to the thread running the task; the upstream client registers the
+ * requests it sends on that thread until their responses are closed.
+ *
+ * Listeners learn about a cancellation, e.g., to leave a fetch shared with
+ * other tasks, which has a cancellation of its own.
+ *
+ * @author agent
+ *
+ */
+public class Cancellation {
+
+	private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<Cancellation>();
+
+	private final Set<HttpRequestBase> requests = new HashSet<HttpRequestBase>();
+
+	private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+	private boolean cancelled = false;
+
+	/**
+	 * Returns the cancellation bound to the current thread; null if there is
+	 * none
+	 */
+	public static Cancellation current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Returns whether the cancellation bound to the current thread has been
+	 * cancelled, i.e., whether upstream requests failing on this thread have
+	 * been aborted on our side
+	 */
+	static boolean isCurrentCancelled() {
+		Cancellation cancellation = CURRENT.get();
+		return cancellation != null && cancellation.isCancelled();
+	}
+
+	/**
+	 * Binds a cancellation (or null) to the current thread
+	 */
+	public static void bind(Cancellation cancellation) {
+		if (cancellation == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(cancellation);
+		}
+	}
+
+	/**
+	 * Aborts all registered requests and those registered from now on, and
+	 * runs the listeners
+	 */
+	public void cancel() {
+
+		List<Runnable> notified;
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			for (HttpRequestBase request : requests) {
+				request.abort();
+			}
+			requests.clear();
+			notified = new ArrayList<Runnable>(listeners);
+			listeners.clear();
+		}
+
+		// outside the lock, listeners may cancel other cancellations
+		for (Runnable listener : notified) {
+			listener.run();
+		}
+
+	}
+
+	/**
+	 * Adds a listener run once this cancellation is cancelled; at once if it
+	 * already is
+	 */
+	public void addListener(Runnable listener) {
+
+		synchronized (this) {
+			if (!cancelled) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+
+	}
+
+	public synchronized void removeListener(Runnable listener) {
+		listeners.remove(listener);
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	synchronized void register(HttpRequestBase request) {
+		if (cancelled) {
+			request.abort();
+		} else {
+			requests.add(request);
+		}
+	}
+
+	synchronized void unregister(HttpRequestBase request) {
+		requests.remove(request);
+	}
+
+}
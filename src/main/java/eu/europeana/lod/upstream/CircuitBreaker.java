@@ -0,0 +1,248 @@
+package eu.europeana.lod.upstream;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Protects the servlet from a slow or failing upstream endpoint.
+ *
+ * The circuit opens after a number of consecutive failures (I/O errors, also
+ * while the body is read, or 5xx responses); while it is open, requests fail
+ * immediately. Once the open time has passed, a single probe request is let
+ * through (half-open): if it succeeds, the circuit closes again, otherwise it
+ * re-opens. Calls sent before the circuit opened do not change its state.
+ *
+ * In addition, a bulkhead caps the number of upstream requests in flight, so
+ * that a slow endpoint cannot tie up all worker threads. A request counts as
+ * in flight until its response has been closed.
+ *
+ * @author agent
+ *
+ */
+public class CircuitBreaker implements Upstream {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final Upstream upstream;
+
+	private final int failureThreshold;
+
+	private final long openTime;
+
+	private final int maxConcurrent;
+
+	private final Semaphore bulkhead;
+
+	private State state = State.CLOSED;
+
+	private int consecutiveFailures = 0;
+
+	private long openedAt = 0;
+
+	/**
+	 * Creates a new circuit breaker
+	 *
+	 * @param upstream
+	 *            the protected upstream endpoint(s)
+	 * @param failureThreshold
+	 *            the number of consecutive failures that opens the circuit
+	 * @param openTime
+	 *            the time (ms) the circuit stays open before a probe request
+	 *            is let through
+	 * @param maxConcurrent
+	 *            the maximum number of upstream requests in flight
+	 */
+	public CircuitBreaker(Upstream upstream, int failureThreshold,
+			long openTime, int maxConcurrent) {
+
+		this.upstream = upstream;
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+		this.maxConcurrent = maxConcurrent;
+		this.bulkhead = new Semaphore(maxConcurrent);
+
+	}
+
+	public UpstreamResponse describe(final String resourceURI,
+			final String accept) throws IOException {
+
+		return execute(new UpstreamCall() {
+			public UpstreamResponse execute(Upstream upstream)
+					throws IOException {
+				return upstream.describe(resourceURI, accept);
+			}
+		});
+
+	}
+
+	public UpstreamResponse describeAll(final List<String> resourceURIs,
+			final String accept) throws IOException {
+
+		return execute(new UpstreamCall() {
+			public UpstreamResponse execute(Upstream upstream)
+					throws IOException {
+				return upstream.describeAll(resourceURIs, accept);
+			}
+		});
+
+	}
+
+	/**
+	 * Executes a given call if the circuit and the bulkhead let it pass
+	 */
+	private UpstreamResponse execute(UpstreamCall call) throws IOException {
+
+		final boolean probe = acquireCircuit();
+
+		if (!bulkhead.tryAcquire()) {
+			if (probe) {
+				releaseProbe();
+			}
+			throw new UpstreamUnavailableException(
+					"Too many pending upstream requests", 1);
+		}
+
+		final UpstreamResponse response;
+		try {
+			response = call.execute(upstream);
+		} catch (UpstreamUnavailableException e) {
+			bulkhead.release();
+			if (probe) {
+				releaseProbe();
+			}
+			throw e;
+		} catch (IOException e) {
+			bulkhead.release();
+			// an aborted request says nothing about the endpoint
+			if (!Cancellation.isCurrentCancelled()) {
+				onFailure(probe);
+			} else if (probe) {
+				releaseProbe();
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			bulkhead.release();
+			onFailure(probe);
+			throw e;
+		}
+
+		if (response.getStatus() >= 500) {
+			onFailure(probe);
+			response.addCloseHook(new Runnable() {
+				public void run() {
+					bulkhead.release();
+				}
+			});
+			return response;
+		}
+
+		// a body failing while it is read, e.g., a read timeout, is a
+		// failure as well, so the outcome is known once the response is
+		// closed
+		response.addCloseHook(new Runnable() {
+			public void run() {
+				bulkhead.release();
+				if (response.isFailed()) {
+					onFailure(probe);
+				} else if (!response.isAborted()) {
+					onSuccess(probe);
+				} else if (probe) {
+					releaseProbe();
+				}
+			}
+		});
+
+		return response;
+	}
+
+	/**
+	 * Returns the current state of the circuit
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of upstream requests currently in flight
+	 */
+	public int getInFlight() {
+		return maxConcurrent - bulkhead.availablePermits();
+	}
+
+	public void close() {
+		upstream.close();
+	}
+
+	@Override
+	public String toString() {
+		return upstream + " [" + getState() + "]";
+	}
+
+	/**
+	 * Checks whether a request may pass the circuit; returns true if the
+	 * request is the half-open probe
+	 */
+	private synchronized boolean acquireCircuit()
+			throws UpstreamUnavailableException {
+
+		switch (state) {
+		case CLOSED:
+			return false;
+		case OPEN:
+			long remaining = openedAt + openTime - System.currentTimeMillis();
+			if (remaining <= 0) {
+				state = State.HALF_OPEN;
+				return true;
+			}
+			throw new UpstreamUnavailableException("Upstream circuit is open",
+					Math.max(1, (remaining + 999) / 1000));
+		default:
+			// a probe is already in flight
+			throw new UpstreamUnavailableException(
+					"Upstream circuit is half-open", 1);
+		}
+
+	}
+
+	/**
+	 * Lets the next request probe again if the probe was never sent
+	 */
+	private synchronized void releaseProbe() {
+		if (state == State.HALF_OPEN) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis() - openTime;
+		}
+	}
+
+	/**
+	 * Records a successful call; while the circuit is not closed, only the
+	 * probe's result counts, calls sent before it opened may finish late
+	 */
+	private synchronized void onSuccess(boolean probe) {
+		if (probe || state == State.CLOSED) {
+			consecutiveFailures = 0;
+			state = State.CLOSED;
+		}
+	}
+
+	/**
+	 * Records a failed call; while the circuit is not closed, only the
+	 * probe's result counts
+	 */
+	private synchronized void onFailure(boolean probe) {
+		if (probe) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			consecutiveFailures = 0;
+		} else if (state == State.CLOSED
+				&& ++consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			consecutiveFailures = 0;
+		}
+	}
+
+}
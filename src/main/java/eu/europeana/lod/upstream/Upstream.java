@@ -0,0 +1,35 @@
+package eu.europeana.lod.upstream;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The source of resource descriptions behind the servlet: a single endpoint
+ * or a set of endpoint replicas.
+ * 
+ * @author agent
+ * 
+ */
+public interface Upstream {
+
+	/**
+	 * Retrieves the description of a given resource in a given format
+	 * (mime-type). The returned response must be closed by the caller.
+	 */
+	UpstreamResponse describe(String resourceURI, String accept)
+			throws IOException;
+
+	/**
+	 * Retrieves the descriptions of several resources with a single request,
+	 * as one graph in a given format (mime-type). The returned response must
+	 * be closed by the caller.
+	 */
+	UpstreamResponse describeAll(List<String> resourceURIs, String accept)
+			throws IOException;
+
+	/**
+	 * Releases all connections
+	 */
+	void close();
+
+}
@@ -0,0 +1,279 @@
+package eu.europeana.lod.upstream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads upstream requests across a set of endpoint replicas.
+ *
+ * Replicas are chosen by the "power of two choices" rule: two random
+ * candidates are compared and the one with the lower load score wins. The
+ * score combines the observed latency (an exponentially weighted moving
+ * average) with the number of outstanding requests.
+ *
+ * Failing replicas are detected passively: after a number of consecutive
+ * failures (I/O errors or 5xx responses) a replica is ejected for a while. A
+ * failed DESCRIBE is idempotent and is retried on another replica.
+ *
+ * @author agent
+ *
+ */
+public class UpstreamBalancer implements Upstream {
+
+	/**
+	 * The weight of the latest sample in the latency average
+	 */
+	private static final double LATENCY_ALPHA = 0.3;
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+
+	private final int retries;
+
+	private final int maxFailures;
+
+	private final long ejectTime;
+
+	private final Random random = new Random();
+
+	/**
+	 * Creates a new balancer
+	 *
+	 * @param clients
+	 *            the clients of all endpoint replicas
+	 * @param retries
+	 *            how often a failed request is retried on another replica
+	 * @param maxFailures
+	 *            the number of consecutive failures after which a replica is
+	 *            ejected
+	 * @param ejectTime
+	 *            the time (ms) an ejected replica receives no requests
+	 */
+	public UpstreamBalancer(List<UpstreamClient> clients, int retries,
+			int maxFailures, long ejectTime) {
+
+		if (clients.isEmpty()) {
+			throw new IllegalArgumentException("No upstream endpoint given");
+		}
+
+		for (UpstreamClient client : clients) {
+			replicas.add(new Replica(client));
+		}
+
+		this.retries = retries;
+		this.maxFailures = maxFailures;
+		this.ejectTime = ejectTime;
+	}
+
+	public UpstreamResponse describe(final String resourceURI,
+			final String accept) throws IOException {
+
+		return execute(new UpstreamCall() {
+			public UpstreamResponse execute(Upstream upstream)
+					throws IOException {
+				return upstream.describe(resourceURI, accept);
+			}
+		}, resourceURI);
+
+	}
+
+	public UpstreamResponse describeAll(final List<String> resourceURIs,
+			final String accept) throws IOException {
+
+		return execute(new UpstreamCall() {
+			public UpstreamResponse execute(Upstream upstream)
+					throws IOException {
+				return upstream.describeAll(resourceURIs, accept);
+			}
+		}, resourceURIs.size() + " resources");
+
+	}
+
+	/**
+	 * Executes a given call on the chosen replica(s)
+	 */
+	private UpstreamResponse execute(UpstreamCall call, String subject)
+			throws IOException {
+
+		List<Replica> tried = new ArrayList<Replica>(retries + 1);
+
+		IOException lastException = null;
+
+		for (int attempt = 0; attempt <= retries; attempt++) {
+
+			Replica replica = choose(tried);
+			if (replica == null) {
+				break;
+			}
+			tried.add(replica);
+
+			boolean lastAttempt = (attempt == retries)
+					|| tried.size() == replicas.size();
+
+			final Replica chosen = replica;
+			chosen.outstanding.incrementAndGet();
+			long start = System.currentTimeMillis();
+
+			UpstreamResponse response;
+			try {
+				response = call.execute(chosen.client);
+			} catch (IOException e) {
+				chosen.outstanding.decrementAndGet();
+				// an aborted request says nothing about the replica, and is
+				// not retried
+				if (Cancellation.isCurrentCancelled()) {
+					throw e;
+				}
+				chosen.failure(System.currentTimeMillis() - start);
+				lastException = e;
+				continue;
+			}
+
+			chosen.latency(System.currentTimeMillis() - start);
+
+			response.addCloseHook(new Runnable() {
+				public void run() {
+					chosen.outstanding.decrementAndGet();
+				}
+			});
+
+			if (response.getStatus() >= 500) {
+				chosen.failure(0);
+				if (!lastAttempt) {
+					response.close();
+					continue;
+				}
+			} else {
+				chosen.success();
+			}
+
+			return response;
+
+		}
+
+		if (lastException != null) {
+			throw lastException;
+		}
+
+		throw new UpstreamException("No upstream endpoint available for "
+				+ subject);
+	}
+
+	/**
+	 * Chooses the replica for the next attempt among the replicas not tried
+	 * yet; ejected replicas are only used if all others have been tried
+	 */
+	private Replica choose(List<Replica> tried) {
+
+		long now = System.currentTimeMillis();
+
+		List<Replica> candidates = new ArrayList<Replica>(replicas.size());
+		for (Replica replica : replicas) {
+			if (!tried.contains(replica) && !replica.isEjected(now)) {
+				candidates.add(replica);
+			}
+		}
+
+		// fail open: better an ejected replica than none at all
+		if (candidates.isEmpty()) {
+			for (Replica replica : replicas) {
+				if (!tried.contains(replica)) {
+					candidates.add(replica);
+				}
+			}
+		}
+
+		if (candidates.size() <= 1) {
+			return candidates.isEmpty() ? null : candidates.get(0);
+		}
+
+		int first = random.nextInt(candidates.size());
+		int second = random.nextInt(candidates.size() - 1);
+		if (second >= first) {
+			second++;
+		}
+
+		Replica a = candidates.get(first);
+		Replica b = candidates.get(second);
+
+		return a.score() <= b.score() ? a : b;
+	}
+
+	public void close() {
+		for (Replica replica : replicas) {
+			replica.client.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Replica replica : replicas) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(replica);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The observed state of a single replica
+	 */
+	private class Replica {
+
+		private final UpstreamClient client;
+
+		private final AtomicInteger outstanding = new AtomicInteger();
+
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+		private volatile double latency = 0;
+
+		private volatile long ejectedUntil = 0;
+
+		Replica(UpstreamClient client) {
+			this.client = client;
+		}
+
+		double score() {
+			// +1 so that idle replicas are still ranked by latency
+			return (latency + 1) * (outstanding.get() + 1);
+		}
+
+		boolean isEjected(long now) {
+			return now < ejectedUntil;
+		}
+
+		void latency(long millis) {
+			latency = latency == 0 ? millis : LATENCY_ALPHA * millis
+					+ (1 - LATENCY_ALPHA) * latency;
+		}
+
+		void success() {
+			consecutiveFailures.set(0);
+		}
+
+		void failure(long millis) {
+			if (millis > 0) {
+				latency(millis);
+			}
+			if (consecutiveFailures.incrementAndGet() >= maxFailures) {
+				ejectedUntil = System.currentTimeMillis() + ejectTime;
+				consecutiveFailures.set(0);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return client + " [latency=" + Math.round(latency)
+					+ "ms, outstanding=" + outstanding.get()
+					+ (isEjected(System.currentTimeMillis()) ? ", ejected" : "")
+					+ "]";
+		}
+
+	}
+
+}
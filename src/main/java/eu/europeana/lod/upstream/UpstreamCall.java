@@ -0,0 +1,16 @@
+package eu.europeana.lod.upstream;
+
+import java.io.IOException;
+
+/**
+ * A single request to an upstream endpoint, so that balancing and circuit
+ * breaking work the same way for all kinds of requests.
+ *
+ * @author agent
+ *
+ */
+interface UpstreamCall {
+
+	UpstreamResponse execute(Upstream upstream) throws IOException;
+
+}
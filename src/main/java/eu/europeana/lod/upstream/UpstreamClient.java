@@ -0,0 +1,205 @@
+package eu.europeana.lod.upstream;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import eu.europeana.lod.trace.Trace;
+
+/**
+ * The HTTP client for a single upstream endpoint (the triple store's SPARQL
+ * and resource services).
+ *
+ * Connections are kept alive and pooled; the number of concurrent connections
+ * to the endpoint is capped. Connect and read timeouts make sure that a
+ * hanging endpoint cannot block a request forever. Responses are not
+ * buffered but streamed from the connection.
+ *
+ * @author agent
+ *
+ */
+public class UpstreamClient implements Upstream {
+
+	private final String sparqlEndpoint;
+
+	private final String resourceService;
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private final CloseableHttpClient httpClient;
+
+	/**
+	 * Creates a new upstream client
+	 *
+	 * @param sparqlEndpoint
+	 *            the SPARQL endpoint URL; the resource service is expected
+	 *            next to it (.../resource)
+	 * @param connectTimeout
+	 *            the connect timeout in milliseconds
+	 * @param readTimeout
+	 *            the socket read timeout in milliseconds
+	 * @param maxConnections
+	 *            the maximum number of concurrent connections to the endpoint
+	 */
+	public UpstreamClient(String sparqlEndpoint, int connectTimeout,
+			int readTimeout, int maxConnections) {
+
+		this.sparqlEndpoint = sparqlEndpoint;
+		this.resourceService = sparqlEndpoint.substring(0,
+				sparqlEndpoint.lastIndexOf('/') + 1) + "resource";
+
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		this.connectionManager.setMaxTotal(maxConnections);
+		this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+		// re-validate connections that have been idle for a while
+		this.connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout).build();
+
+		this.httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.disableCookieManagement().build();
+
+	}
+
+	/**
+	 * Retrieves the description of a given resource from the resource service
+	 * in a given format (mime-type)
+	 */
+	public UpstreamResponse describe(String resourceURI, String accept)
+			throws IOException {
+
+		HttpGet get = new HttpGet(resourceService + "?uri="
+				+ encode(resourceURI));
+		get.setHeader("Accept", accept);
+
+		return execute(get);
+
+	}
+
+	/**
+	 * Retrieves the descriptions of several resources with a single SPARQL
+	 * DESCRIBE query, posted to the SPARQL endpoint
+	 */
+	public UpstreamResponse describeAll(List<String> resourceURIs,
+			String accept) throws IOException {
+
+		StringBuilder query = new StringBuilder("DESCRIBE");
+		for (String resourceURI : resourceURIs) {
+			query.append(" <").append(resourceURI).append('>');
+		}
+
+		HttpPost post = new HttpPost(sparqlEndpoint);
+		post.setHeader("Accept", accept);
+		post.setEntity(new StringEntity("query=" + encode(query.toString()),
+				ContentType.APPLICATION_FORM_URLENCODED));
+
+		return execute(post);
+
+	}
+
+	/**
+	 * Executes a request; the call is added to the trace of the current
+	 * request, if it is traced, and aborted if the current data task is
+	 * cancelled before the response is closed
+	 */
+	private UpstreamResponse execute(final HttpRequestBase request)
+			throws IOException {
+
+		Trace trace = Trace.current();
+		long started = System.nanoTime();
+
+		final Cancellation cancellation = Cancellation.current();
+		if (cancellation != null) {
+			cancellation.register(request);
+		}
+
+		try {
+			UpstreamResponse response = new UpstreamResponse(httpClient
+					.execute(request), request);
+			if (cancellation != null) {
+				response.addCloseHook(new Runnable() {
+					public void run() {
+						cancellation.unregister(request);
+					}
+				});
+			}
+			if (trace != null) {
+				trace.addUpstreamCall(request.getMethod() + " "
+						+ request.getURI(), response.getStatus(), System
+						.nanoTime()
+						- started);
+			}
+			return response;
+		} catch (IOException e) {
+			if (cancellation != null) {
+				cancellation.unregister(request);
+			}
+			if (trace != null) {
+				trace.addUpstreamCall(request.getMethod() + " "
+						+ request.getURI(), -1, System.nanoTime() - started);
+			}
+			// connection refused, connect or read timeout, ...
+			if (request.isAborted()) {
+				throw e;
+			}
+			throw new UpstreamException("Upstream endpoint " + sparqlEndpoint
+					+ " failed: " + e.getMessage(), e);
+		}
+
+	}
+
+	/**
+	 * Returns the SPARQL endpoint URL
+	 */
+	public String getSparqlEndpoint() {
+		return sparqlEndpoint;
+	}
+
+	/**
+	 * Returns the number of connections currently leased from the pool
+	 */
+	public int getLeasedConnections() {
+		return connectionManager.getTotalStats().getLeased();
+	}
+
+	/**
+	 * Closes all pooled connections
+	 */
+	public void close() {
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			// ignore, shutting down anyway
+		}
+	}
+
+	static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return sparqlEndpoint;
+	}
+
+}
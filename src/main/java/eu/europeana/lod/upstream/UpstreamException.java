@@ -0,0 +1,25 @@
+package eu.europeana.lod.upstream;
+
+import java.io.IOException;
+
+/**
+ * Thrown if the upstream endpoint fails a request: it cannot be reached,
+ * times out, answers with an error status or sends a body that cannot be
+ * used. Data requests failing this way are answered with 502 Bad Gateway.
+ *
+ * @author agent
+ *
+ */
+public class UpstreamException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UpstreamException(String message) {
+		super(message);
+	}
+
+	public UpstreamException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,194 @@
+package eu.europeana.lod.upstream;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A streamed response received from the upstream endpoint. It must be closed
+ * once the body has been read, so that the connection is returned to the
+ * pool; a body that has not been read to the end is not drained, the
+ * connection is closed instead. Reading the body can still fail, e.g., on a
+ * read timeout; close hooks can tell such failed responses.
+ *
+ * @author agent
+ *
+ */
+public class UpstreamResponse {
+
+	private final CloseableHttpResponse response;
+
+	private final HttpEntity entity;
+
+	private final HttpRequestBase request;
+
+	private Runnable closeHook;
+
+	private volatile boolean failed = false;
+
+	private volatile boolean consumed = false;
+
+	UpstreamResponse(CloseableHttpResponse response, HttpRequestBase request) {
+		this.response = response;
+		this.entity = response.getEntity();
+		this.request = request;
+	}
+
+	/**
+	 * Adds an action that is run once, when this response is closed; actions
+	 * run in the reverse order they were added
+	 */
+	void addCloseHook(final Runnable hook) {
+		final Runnable previous = closeHook;
+		if (previous == null) {
+			closeHook = hook;
+		} else {
+			closeHook = new Runnable() {
+				public void run() {
+					try {
+						hook.run();
+					} finally {
+						previous.run();
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Returns the HTTP status code
+	 */
+	public int getStatus() {
+		return response.getStatusLine().getStatusCode();
+	}
+
+	/**
+	 * Returns whether the upstream request succeeded (2xx)
+	 */
+	public boolean isSuccess() {
+		return getStatus() >= 200 && getStatus() < 300;
+	}
+
+	/**
+	 * Returns the mime-type of the body (without parameters); null if unknown
+	 */
+	public String getMimeType() {
+		if (entity == null || entity.getContentType() == null) {
+			return null;
+		}
+		return ContentType.getOrDefault(entity).getMimeType();
+	}
+
+	/**
+	 * Returns the length of the body; -1 if unknown
+	 */
+	public long getContentLength() {
+		return entity == null ? -1 : entity.getContentLength();
+	}
+
+	/**
+	 * Returns the body as stream; it is read directly from the connection
+	 */
+	public InputStream getBody() throws IOException {
+		if (entity == null) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return new FilterInputStream(entity.getContent()) {
+
+			@Override
+			public int read() throws IOException {
+				try {
+					return eof(super.read());
+				} catch (IOException e) {
+					throw fail(e);
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					return eof(super.read(b, off, len));
+				} catch (IOException e) {
+					throw fail(e);
+				}
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				try {
+					return super.skip(n);
+				} catch (IOException e) {
+					throw fail(e);
+				}
+			}
+
+		};
+	}
+
+	/**
+	 * Returns whether reading the body failed, unless because the request
+	 * was aborted on our side
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns whether the request was aborted on our side before the body
+	 * had been read to the end; the outcome of such a request is unknown
+	 */
+	public boolean isAborted() {
+		return !consumed && request != null && request.isAborted();
+	}
+
+	private int eof(int n) {
+		if (n < 0) {
+			consumed = true;
+		}
+		return n;
+	}
+
+	private IOException fail(IOException e) {
+		if (request != null && request.isAborted()) {
+			return e;
+		}
+		failed = true;
+		return new UpstreamException("Upstream endpoint failed while sending "
+				+ "the body: " + e.getMessage(), e);
+	}
+
+	/**
+	 * Releases the connection. A connection whose body has been read to the
+	 * end is kept alive; otherwise it is closed rather than drained, since
+	 * the rest of the body may take as long as the whole request, e.g., once
+	 * the client has gone. Leaving the body unread is not a failure.
+	 */
+	public void close() {
+		try {
+			if (consumed || entity == null || !entity.isStreaming()) {
+				EntityUtils.consume(entity);
+			}
+		} catch (IOException e) {
+			// the connection is discarded below
+		} finally {
+			try {
+				response.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+			if (closeHook != null) {
+				Runnable hook = closeHook;
+				closeHook = null;
+				hook.run();
+			}
+		}
+	}
+
+}
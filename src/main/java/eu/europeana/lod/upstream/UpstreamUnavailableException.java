@@ -0,0 +1,37 @@
+package eu.europeana.lod.upstream;
+
+/**
+ * Thrown if an upstream request is rejected without being sent, because the
+ * circuit is open or too many requests are in flight. Data requests failing
+ * this way are answered with 503 Service Unavailable and a Retry-After.
+ *
+ * @author agent
+ *
+ */
+public class UpstreamUnavailableException extends UpstreamException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long retryAfter;
+
+	/**
+	 * Creates a new exception
+	 *
+	 * @param message
+	 *            the reason
+	 * @param retryAfter
+	 *            the number of seconds after which a retry may succeed
+	 */
+	public UpstreamUnavailableException(String message, long retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Returns the number of seconds after which a retry may succeed
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+}
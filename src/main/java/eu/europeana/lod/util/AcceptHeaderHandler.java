@@ -1,189 +1,299 @@
 package eu.europeana.lod.util;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * This class parses and gives convenient (ordered) access to HTTP Accept Header
- * values.
- * 
- * The mime-types are internally stored in a ordered tree map, having the mime-type
- * with the highest q-value as first entry and the mime-type with the lowest q-value
- * as last entry.
- * 
+ * This class parses HTTP Accept Header values and determines the supported
+ * mime-type with the highest priority.
+ *
+ * The header is scanned once, from left to right, without splitting it into
+ * intermediate strings. Each media range is matched against the known
+ * mime-type patterns and the first match with the highest q-value wins; media
+ * ranges having the same q-value keep the order given in the header.
+ *
+ * Since clients (crawlers in particular) send only a handful of distinct
+ * headers, the negotiation results are memoized in a bounded cache.
+ *
  * The parsing mechanism follows
  * http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.1
- * 
+ *
  * @author haslhofer
  */
-public class AcceptHeaderHandler extends TreeMap<Float, List<String>> {
+public class AcceptHeaderHandler {
 
 	/**
 	 * We assume that HTML is default if no or an empty accept header is given
 	 */
 	public static String DEFAULT_MIME_TYPE = "text/html";
 
+	/**
+	 * The maximum number of accept headers kept in the negotiation cache
+	 */
+	public static int MAX_CACHED_HEADERS = 512;
+
+	/**
+	 * Accept headers longer than this are negotiated but never cached
+	 */
+	public static int MAX_CACHED_HEADER_LENGTH = 1024;
+
+	/**
+	 * Negotiation results for previously seen accept headers
+	 */
+	private static final Map<String, MimeTypePattern> negotiationCache = new ConcurrentHashMap<String, MimeTypePattern>();
+
+	/**
+	 * The preferred mime-type pattern; null if none is supported
+	 */
+	private MimeTypePattern preferredMimeType;
+
 	/**
 	 * Creates a new AcceptHeaderHandler instance
-	 * 
+	 *
 	 * @param acceptHeader
 	 */
 	public AcceptHeaderHandler(String acceptHeader) {
-		
-		super(Collections.reverseOrder());
-		
+
 		if (acceptHeader == null || acceptHeader.equals("")) {
-			List<String> mimeTypeList = new ArrayList<String>();
-			mimeTypeList.add(DEFAULT_MIME_TYPE);
-			put(new Float(1.0), mimeTypeList);
+			this.preferredMimeType = MimeTypePattern.getMatchingMimeType(DEFAULT_MIME_TYPE);
 		} else {
-			parseAcceptHeader(acceptHeader.toLowerCase());
+			this.preferredMimeType = parseAcceptHeader(acceptHeader);
 		}
 	}
 
 	/**
 	 * Returns the supported mime-type with highest priority; q-values omitted
-	 * 
+	 *
 	 * Returns NULL if the mime-type is unknown
-	 * 
+	 *
 	 * @return
 	 */
 	public MimeTypePattern getPreferredMimeType() {
-		
-		for (Float key : keySet()) {
-			
-			for (String mimeType: get(key)) {
-				
-				MimeTypePattern mt = MimeTypePattern.getMatchingMimeType(mimeType);
-				
-				if (mt != null) {
-					return mt;
-				}
-								
-			}
-			
-		}
-		
-		return null;
+
+		return this.preferredMimeType;
 	}
 
 	/**
-	 * Parses HTTP accept headers and puts them, ordered by q-value, into a map.
-	 * 
+	 * Parses HTTP accept headers in a single pass and returns the matching
+	 * mime-type pattern of the media range having the highest q-value.
+	 *
 	 */
-	private void parseAcceptHeader(String acceptHeader){
+	private static MimeTypePattern parseAcceptHeader(String acceptHeader) {
+
+		MimeTypePattern bestMimeType = null;
+		float bestQValue = 0;
+
+		int length = acceptHeader.length();
+		int rangeStart = 0;
+
+		while (rangeStart <= length) {
+
+			int rangeEnd = acceptHeader.indexOf(',', rangeStart);
+			if (rangeEnd < 0) {
+				rangeEnd = length;
+			}
+
+			// the mime-type is the first token of the media range
+			int typeEnd = indexOf(acceptHeader, ';', rangeStart, rangeEnd);
+			int typeStart = skipWhitespace(acceptHeader, rangeStart, typeEnd);
+			int typeTrimmedEnd = trimWhitespace(acceptHeader, typeStart,
+					typeEnd);
+
+			MimeTypePattern mimeType = MimeTypePattern.getMatchingMimeType(
+					acceptHeader, typeStart, typeTrimmedEnd, true);
+
+			if (mimeType != null) {
 
-		String[] mimeTypes = acceptHeader.trim().split(",");
-		for (String mimeType : mimeTypes) {
-			parseMimeType(mimeType);
+				float qValue = parseQValue(acceptHeader, typeEnd, rangeEnd);
+
+				// strictly greater: equal q-values keep the header order
+				if (bestMimeType == null
+						|| Float.compare(qValue, bestQValue) > 0) {
+					bestMimeType = mimeType;
+					bestQValue = qValue;
+				}
+
+			}
+
+			rangeStart = rangeEnd + 1;
 		}
 
+		return bestMimeType;
+
 	}
 
 	/**
-	 * Parses a single mime-type entry and puts it into the map
-	 * 
+	 * Searches the parameters of a single media range for a q parameter
+	 *
 	 * e.g., application/rdf+xml; q=0.8
-	 * 
+	 *
 	 * 0.8 => application/rdf+xml
-	 * 
+	 *
 	 */
-	private void parseMimeType(String mimeType){
-
-		String[] tokens = mimeType.trim().split(";");
-
-		// the token must be at the first place
-		String mt = tokens[0].trim();
+	private static float parseQValue(String acceptHeader, int start, int end) {
 
 		// the default qValue is 1
-		Float qValue = new Float(1);
+		float qValue = 1;
+
+		int paramStart = start + 1;
 
-		// search all other tokens for q parameter indicator
-		for (int i = 1; i < tokens.length; i++) {
+		while (paramStart <= end) {
 
-			String parameter = tokens[i].trim();
+			int paramEnd = indexOf(acceptHeader, ';', paramStart, end);
+			int nameStart = skipWhitespace(acceptHeader, paramStart, paramEnd);
+			int valueEnd = trimWhitespace(acceptHeader, nameStart, paramEnd);
 
-			if (parameter.startsWith("q=")) {
-				String value = parameter.substring(2, parameter.length());
+			if (valueEnd - nameStart >= 2
+					&& acceptHeader.regionMatches(true, nameStart, "q=", 0, 2)) {
 				try {
-					qValue = Float.parseFloat(value);
+					qValue = parseFloat(acceptHeader, nameStart + 2, valueEnd);
 				} catch (NumberFormatException ne) {
 					// ignore the qvalue
 				}
+			}
+
+			paramStart = paramEnd + 1;
+		}
+
+		return qValue;
+	}
 
+	/**
+	 * Parses plain decimal q-values (e.g., 0.8) without allocating; anything
+	 * else is left to Float.parseFloat
+	 */
+	private static float parseFloat(String s, int start, int end) {
+
+		int digits = 0;
+		int fractionDigits = -1;
+		int value = 0;
+
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9' && digits < 7) {
+				value = value * 10 + (c - '0');
+				digits++;
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+			} else if (c == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				return Float.parseFloat(s.substring(start, end));
 			}
+		}
 
+		if (digits == 0) {
+			return Float.parseFloat(s.substring(start, end));
 		}
-				
-		// put the qValue / mime-type pair into the map
-		
-		if(containsKey(qValue)) {
-			get(qValue).add(mt);
-		} else {
-			List<String> mimeTypeList = new ArrayList<String>();
-			mimeTypeList.add(mt);
-			put(qValue, mimeTypeList);
+
+		if (fractionDigits <= 0) {
+			return value;
+		}
+
+		return value / POWERS_OF_TEN[fractionDigits];
+	}
+
+	private static final float[] POWERS_OF_TEN = new float[] { 1f, 1e1f, 1e2f,
+			1e3f, 1e4f, 1e5f, 1e6f, 1e7f };
+
+	private static int indexOf(String s, char c, int start, int end) {
+		int index = s.indexOf(c, start);
+		return (index < 0 || index > end) ? end : index;
+	}
+
+	private static int skipWhitespace(String s, int start, int end) {
+		while (start < end && s.charAt(start) <= ' ') {
+			start++;
 		}
-		
+		return start;
+	}
 
+	private static int trimWhitespace(String s, int start, int end) {
+		while (end > start && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
 	}
-	
-	
+
 	/**
-	 * Returns the response content type for a given request mime type pattern 
+	 * Returns the response content type for a given request mime type pattern
 	 */
 	public static ContentType getContentType(MimeTypePattern mimeTypePattern) {
 
 		return mimeTypeContentTypeMap.get(mimeTypePattern);
-	
+
 	}
-	
-	
+
 	/**
-	 * Returns the response content type for a given request mime type 
+	 * Returns the response content type for a given request mime type
 	 */
 	public static ContentType getContentType(String acceptHeader) {
-		
+
 		MimeTypePattern mt = getMimeType(acceptHeader);
-		
+
 		return getContentType(mt);
-		
+
 	}
-	
-	
+
 	/**
-	 * Returns the matching mime type class for a g given accept header 
+	 * Returns the matching mime type class for a g given accept header; results
+	 * are taken from the negotiation cache if possible
 	 */
 	public static MimeTypePattern getMimeType(String acceptHeader) {
 
-		return new AcceptHeaderHandler(acceptHeader).getPreferredMimeType();
+		if (acceptHeader == null) {
+			return new AcceptHeaderHandler(acceptHeader).getPreferredMimeType();
+		}
+
+		MimeTypePattern mimeType = negotiationCache.get(acceptHeader);
+
+		if (mimeType == null) {
+
+			mimeType = new AcceptHeaderHandler(acceptHeader).getPreferredMimeType();
+
+			// unsupported headers are not cached, they end up in a 4xx anyway
+			if (mimeType != null
+					&& acceptHeader.length() <= MAX_CACHED_HEADER_LENGTH) {
+
+				if (negotiationCache.size() >= MAX_CACHED_HEADERS) {
+					negotiationCache.clear();
+				}
+				negotiationCache.put(acceptHeader, mimeType);
+
+			}
+
+		}
+
+		return mimeType;
 
 	}
-	
-	
+
 	/**
-	 * Mapping between the request mime-types (Accept header) and the response content-types 
+	 * Mapping between the request mime-types (Accept header) and the response content-types
 	 */
-	public static Map<MimeTypePattern,ContentType> mimeTypeContentTypeMap = new HashMap<MimeTypePattern, ContentType> ();
-	
+	public static Map<MimeTypePattern,ContentType> mimeTypeContentTypeMap = new EnumMap<MimeTypePattern, ContentType> (MimeTypePattern.class);
+
 	static {
-		
+
 		mimeTypeContentTypeMap.put(MimeTypePattern.RDF, ContentType.RDF);
 		mimeTypeContentTypeMap.put(MimeTypePattern.TTL, ContentType.TTL);
 		mimeTypeContentTypeMap.put(MimeTypePattern.N3, ContentType.N3);
 		mimeTypeContentTypeMap.put(MimeTypePattern.HTML, ContentType.HTML);
-		
+
 	}
-	
+
 	/**
-	 * This enum maps mime-type patterns to document serialization formats 
-	 * 
+	 * This enum maps mime-type patterns to document serialization formats
+	 *
+	 * The patterns are alternatives of either infix matches (.*value.*) or
+	 * exact matches (value). They are turned into plain string matchers
+	 * when the enum is loaded, so that no regular expression is evaluated
+	 * while negotiating.
+	 *
 	 * @author haslhofer
 	 *
 	 */
@@ -196,65 +306,119 @@ public class AcceptHeaderHandler extends TreeMap<Float, List<String>> {
 
 		private String value;
 
+		private String[] infixes;
+
+		private String[] exactValues;
+
 		MimeTypePattern(String value) {
 			this.value = value;
+
+			List<String> infixes = new ArrayList<String>();
+			List<String> exactValues = new ArrayList<String>();
+
+			for (String alternative : value.split("\\|")) {
+				if (alternative.startsWith(".*") && alternative.endsWith(".*")) {
+					infixes.add(unescape(alternative.substring(2,
+							alternative.length() - 2)));
+				} else {
+					exactValues.add(unescape(alternative));
+				}
+			}
+
+			this.infixes = infixes.toArray(new String[infixes.size()]);
+			this.exactValues = exactValues.toArray(new String[exactValues.size()]);
+		}
+
+		private static String unescape(String regex) {
+			return regex.replace("\\", "");
 		}
 
 		public String getValue() {
 			return value;
 		}
-		
+
+		/**
+		 * Returns whether the given region of a string matches this pattern
+		 */
+		private boolean matches(String s, int start, int end, boolean ignoreCase) {
+
+			int length = end - start;
+
+			for (String exactValue : exactValues) {
+				if (exactValue.length() == length
+						&& s.regionMatches(ignoreCase, start, exactValue, 0, length)) {
+					return true;
+				}
+			}
+
+			for (String infix : infixes) {
+				int last = end - infix.length();
+				for (int i = start; i <= last; i++) {
+					if (s.regionMatches(ignoreCase, i, infix, 0, infix.length())) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+
 		/**
 		 * Returns whether a given String matches a given (list of) mime-type patterns
-		 * 
+		 *
 		 * @param acceptHeader
 		 * @param mimeTypes
 		 * @return
 		 */
 		public static boolean matchMIMEType(String acceptHeader, MimeTypePattern... mimeTypes) {
 			for (MimeTypePattern mimeType : mimeTypes) {
-				Pattern pattern = Pattern.compile(mimeType.getValue());
-				Matcher matcher = pattern.matcher(acceptHeader);
-
-				if (matcher.matches()) {
+				if (mimeType.matches(acceptHeader, 0, acceptHeader.length(), false)) {
 					return true;
 				}
 			}
 			return false;
 		}
 
-		
 		/**
 		 * Returns the first matching mime-type pattern for a given accept header string.
-		 * 
+		 *
 		 * Returns null, if there is no matching pattern
-		 * 
+		 *
 		 * @param acceptHeader
 		 * @return
 		 */
 		public static MimeTypePattern getMatchingMimeType(String acceptHeader) {
-		
-			for(MimeTypePattern pattern: values()) {
-				
-				if (matchMIMEType(acceptHeader, pattern)) {
+
+			return getMatchingMimeType(acceptHeader, 0, acceptHeader.length(), false);
+		}
+
+		/**
+		 * Returns the first matching mime-type pattern for a region of a
+		 * given accept header string.
+		 */
+		static MimeTypePattern getMatchingMimeType(String acceptHeader,
+				int start, int end, boolean ignoreCase) {
+
+			for (MimeTypePattern pattern : VALUES) {
+
+				if (pattern.matches(acceptHeader, start, end, ignoreCase)) {
 					return pattern;
 				}
-				
+
 			}
-			
+
 			return null;
 		}
-		
-		
-		
+
+		private static final MimeTypePattern[] VALUES = values();
+
 	}
-	
-	
+
 	/**
 	 * MimeTypes returned in Europeana LOD responses
-	 * 
+	 *
 	 * @author haslhofer
-	 * 
+	 *
 	 */
 	public enum ContentType {
 
@@ -276,7 +440,4 @@ public class AcceptHeaderHandler extends TreeMap<Float, List<String>> {
 
 	}
 
-
-	private static final long serialVersionUID = 6496628828622396063L;
-
 }
@@ -0,0 +1,113 @@
+package eu.europeana.lod.util;
+
+/**
+ * A Bloom filter over 64-bit hashes: answers whether a hash has possibly
+ * been added (with a bounded false positive rate) or definitely not.
+ *
+ * The bit positions of a hash are derived by double hashing from the hash
+ * itself and a remix of it, so that callers hash their keys only once.
+ *
+ * @author agent
+ *
+ */
+public class BloomFilter {
+
+	private final long[] bits;
+
+	private final long size;
+
+	private final int hashes;
+
+	/**
+	 * Creates a filter sized for a given number of hashes
+	 *
+	 * @param expected
+	 *            the number of hashes that will be added
+	 * @param falsePositiveRate
+	 *            the rate at which hashes never added are reported as
+	 *            possibly contained, once all expected hashes are added
+	 */
+	public BloomFilter(long expected, double falsePositiveRate) {
+
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Invalid false positive rate "
+					+ falsePositiveRate);
+		}
+
+		expected = Math.max(1, expected);
+
+		// m = -n ln p / (ln 2)^2, k = m / n ln 2
+		long bitCount = (long) Math.ceil(-expected * Math.log(falsePositiveRate)
+				/ (Math.log(2) * Math.log(2)));
+		long words = Math.max(1, (bitCount + 63) / 64);
+		if (words > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Filter for " + expected
+					+ " hashes too large");
+		}
+
+		this.bits = new long[(int) words];
+		this.size = words * 64;
+		this.hashes = Math.max(1, (int) Math.round((double) size / expected
+				* Math.log(2)));
+
+	}
+
+	/**
+	 * Adds a given hash
+	 */
+	public void add(long hash) {
+
+		long h2 = remix(hash) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash + i * h2) & Long.MAX_VALUE) % size;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+
+	}
+
+	/**
+	 * Returns false if a given hash has definitely not been added
+	 */
+	public boolean mightContain(long hash) {
+
+		long h2 = remix(hash) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((hash + i * h2) & Long.MAX_VALUE) % size;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+	/**
+	 * Returns the number of bits of this filter
+	 */
+	public long getBitCount() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bits set per hash
+	 */
+	public int getHashCount() {
+		return hashes;
+	}
+
+	/**
+	 * The SplitMix64 finalizer, which makes the second hash independent of
+	 * the first one
+	 */
+	private static long remix(long hash) {
+		hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+		return hash ^ (hash >>> 31);
+	}
+
+	@Override
+	public String toString() {
+		return size + " bits, " + hashes + " hashes";
+	}
+
+}
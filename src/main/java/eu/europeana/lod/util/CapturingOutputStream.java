@@ -0,0 +1,58 @@
+package eu.europeana.lod.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that writes through to another stream and keeps a copy of
+ * everything written, up to a given number of bytes. Once the limit is
+ * exceeded, the copy is dropped.
+ * 
+ * @author agent
+ * 
+ */
+public class CapturingOutputStream extends FilterOutputStream {
+
+	private final long limit;
+
+	private ByteArrayOutputStream capture = new ByteArrayOutputStream();
+
+	public CapturingOutputStream(OutputStream out, long limit) {
+		super(out);
+		this.limit = limit;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		capture(1);
+		if (capture != null) {
+			capture.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		capture(len);
+		if (capture != null) {
+			capture.write(b, off, len);
+		}
+	}
+
+	private void capture(int len) {
+		if (capture != null && capture.size() + len > limit) {
+			capture = null;
+		}
+	}
+
+	/**
+	 * Returns the captured bytes; null if the limit has been exceeded
+	 */
+	public byte[] getCaptured() {
+		return capture == null ? null : capture.toByteArray();
+	}
+
+}
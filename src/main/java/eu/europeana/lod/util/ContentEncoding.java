@@ -0,0 +1,134 @@
+package eu.europeana.lod.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The content codings a response body can be sent in, and their negotiation
+ * from an Accept-Encoding header.
+ *
+ * @author agent
+ *
+ */
+public enum ContentEncoding {
+
+	IDENTITY("identity"), GZIP("gzip"), DEFLATE("deflate");
+
+	private final String token;
+
+	private ContentEncoding(String token) {
+		this.token = token;
+	}
+
+	/**
+	 * Returns the preferred coding in a given Accept-Encoding header; gzip is
+	 * preferred over deflate if both are equally acceptable. Identity is
+	 * returned if the header is missing or accepts no supported coding.
+	 */
+	public static ContentEncoding negotiate(String acceptEncoding) {
+
+		if (acceptEncoding == null) {
+			return IDENTITY;
+		}
+
+		float gzip = -1;
+		float deflate = -1;
+		float any = -1;
+
+		for (String coding : acceptEncoding.split(",")) {
+
+			int paramStart = coding.indexOf(';');
+			String name = (paramStart < 0 ? coding : coding.substring(0,
+					paramStart)).trim().toLowerCase();
+			float qValue = (paramStart < 0) ? 1 : parseQValue(coding
+					.substring(paramStart + 1));
+
+			if (name.equals("gzip") || name.equals("x-gzip")) {
+				gzip = qValue;
+			} else if (name.equals("deflate")) {
+				deflate = qValue;
+			} else if (name.equals("*")) {
+				any = qValue;
+			}
+		}
+
+		// codings that are not listed are as acceptable as *
+		if (gzip < 0) {
+			gzip = any;
+		}
+		if (deflate < 0) {
+			deflate = any;
+		}
+
+		if (gzip > 0 && gzip >= deflate) {
+			return GZIP;
+		}
+		if (deflate > 0) {
+			return DEFLATE;
+		}
+		return IDENTITY;
+	}
+
+	private static float parseQValue(String params) {
+
+		for (String param : params.split(";")) {
+			param = param.trim();
+			if (param.length() > 2 && param.regionMatches(true, 0, "q=", 0, 2)) {
+				try {
+					return Float.parseFloat(param.substring(2).trim());
+				} catch (NumberFormatException e) {
+					// ignore the qvalue
+				}
+			}
+		}
+
+		return 1;
+	}
+
+	/**
+	 * Returns a stream that encodes everything written to it into a given
+	 * stream; the stream must be closed or finished to complete the encoding
+	 */
+	public DeflaterOutputStream encode(OutputStream out) throws IOException {
+
+		switch (this) {
+		case GZIP:
+			return new GZIPOutputStream(out, 8192);
+		case DEFLATE:
+			return new DeflaterOutputStream(out);
+		default:
+			throw new IllegalStateException("Nothing to encode for " + token);
+		}
+
+	}
+
+	/**
+	 * Returns the encoded form of a given body
+	 */
+	public byte[] encode(byte[] body) throws IOException {
+
+		if (this == IDENTITY) {
+			return body;
+		}
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				body.length / 4 + 64);
+		DeflaterOutputStream out = encode(buffer);
+		out.write(body);
+		out.close();
+		return buffer.toByteArray();
+
+	}
+
+	/**
+	 * Returns the Content-Encoding header value of this coding
+	 */
+	@Override
+	public String toString() {
+		return token;
+	}
+
+}
@@ -0,0 +1,83 @@
+package eu.europeana.lod.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An output stream that encodes everything written to it in a given content
+ * coding. The encoder is only started by the first write, so that nothing
+ * (not even a gzip header) reaches the underlying stream if the response
+ * turns out to have no body.
+ *
+ * @author agent
+ *
+ */
+public class EncodingOutputStream extends FilterOutputStream {
+
+	private final ContentEncoding encoding;
+
+	private DeflaterOutputStream encoder;
+
+	public EncodingOutputStream(OutputStream out, ContentEncoding encoding) {
+		super(out);
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Returns whether anything has been written
+	 */
+	public boolean isStarted() {
+		return encoder != null;
+	}
+
+	/**
+	 * Called before the first byte is encoded, e.g., to set response headers
+	 */
+	protected void onStart() throws IOException {
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		start().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > 0) {
+			start().write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// a deflater cannot flush without hurting the compression ratio
+		out.flush();
+	}
+
+	/**
+	 * Completes the encoding without closing the underlying stream
+	 */
+	public void finish() throws IOException {
+		if (encoder != null) {
+			encoder.finish();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+
+	private OutputStream start() throws IOException {
+		if (encoder == null) {
+			onStart();
+			encoder = encoding.encode(out);
+		}
+		return encoder;
+	}
+
+}
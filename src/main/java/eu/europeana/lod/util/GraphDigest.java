@@ -0,0 +1,323 @@
+package eu.europeana.lod.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * Computes a digest of an RDF graph that does not depend on the order in
+ * which triples are delivered, nor on the serialization format.
+ *
+ * Each triple is hashed on its own (MD5 of a canonical N-Triples like form);
+ * the triple hashes are then summed up, which makes the result independent of
+ * the triple order. Blank node labels are ignored since they are not stable
+ * across parses.
+ *
+ * Triples can be added one by one, so that the digest can also be computed
+ * while a graph is streamed; N-Triples lines can be added without parsing
+ * them into a graph first.
+ *
+ * @author agent
+ *
+ */
+public class GraphDigest {
+
+	private final MessageDigest md5;
+
+	private long high = 0;
+
+	private long low = 0;
+
+	private long size = 0;
+
+	public GraphDigest() {
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not supported", e);
+		}
+	}
+
+	/**
+	 * Returns the digest of all triples in a given model
+	 */
+	public static String digest(Model model) {
+
+		GraphDigest digest = new GraphDigest();
+
+		StmtIterator stmtIter = model.listStatements();
+		while (stmtIter.hasNext()) {
+			digest.add(stmtIter.nextStatement().asTriple());
+		}
+
+		return digest.toString();
+	}
+
+	/**
+	 * Adds a triple to the digest
+	 */
+	public void add(Triple triple) {
+
+		update(triple.getSubject());
+		update(triple.getPredicate());
+		update(triple.getObject());
+
+		sum();
+
+	}
+
+	/**
+	 * Adds a triple given as an N-Triples line; the digest is the same as
+	 * for the parsed triple. Empty lines and comments are ignored.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the line is not a valid N-Triples triple
+	 */
+	public void add(String line) {
+
+		int i = skipWhitespace(line, 0);
+		if (i == line.length() || line.charAt(i) == '#') {
+			return;
+		}
+
+		try {
+			for (int term = 0; term < 3; term++) {
+				i = skipWhitespace(line, updateTerm(line, i));
+			}
+			if (i == line.length() || line.charAt(i) != '.'
+					|| skipWhitespace(line, i + 1) != line.length()) {
+				throw new IllegalArgumentException("Invalid N-Triples: "
+						+ line);
+			}
+		} catch (IllegalArgumentException e) {
+			md5.reset();
+			throw e;
+		}
+
+		sum();
+
+	}
+
+	private void sum() {
+
+		byte[] hash = md5.digest();
+
+		high += toLong(hash, 0);
+		low += toLong(hash, 8);
+		size++;
+
+	}
+
+	private void update(Node node) {
+
+		if (node.isURI()) {
+			md5.update((byte) '<');
+			update(node.getURI());
+		} else if (node.isLiteral()) {
+			md5.update((byte) '"');
+			update(node.getLiteralLexicalForm());
+			md5.update((byte) '@');
+			update(node.getLiteralLanguage());
+			md5.update((byte) '^');
+			if (node.getLiteralDatatypeURI() != null) {
+				update(node.getLiteralDatatypeURI());
+			}
+		} else {
+			md5.update((byte) '_');
+		}
+
+		md5.update((byte) ' ');
+	}
+
+	/**
+	 * Updates the digest with the N-Triples term at a given position as
+	 * {@link #update(Node)} does for the parsed node; returns the position
+	 * after the term
+	 */
+	private int updateTerm(String line, int start) {
+
+		if (start == line.length()) {
+			throw new IllegalArgumentException("Invalid N-Triples: " + line);
+		}
+
+		char c = line.charAt(start);
+		int i;
+
+		if (c == '<') {
+			int end = line.indexOf('>', start + 1);
+			if (end < 0) {
+				throw new IllegalArgumentException("Invalid N-Triples: "
+						+ line);
+			}
+			md5.update((byte) '<');
+			update(unescape(line, start + 1, end));
+			i = end + 1;
+		} else if (c == '"') {
+			// the lexical form ends at the first unescaped quote
+			i = start + 1;
+			while (i < line.length() && line.charAt(i) != '"') {
+				i += (line.charAt(i) == '\\') ? 2 : 1;
+			}
+			if (i >= line.length()) {
+				throw new IllegalArgumentException("Invalid N-Triples: "
+						+ line);
+			}
+			md5.update((byte) '"');
+			update(unescape(line, start + 1, i));
+			i++;
+
+			md5.update((byte) '@');
+			if (i < line.length() && line.charAt(i) == '@') {
+				int end = i + 1;
+				while (end < line.length()
+						&& (Character.isLetterOrDigit(line.charAt(end)) || line
+								.charAt(end) == '-')) {
+					end++;
+				}
+				update(line.substring(i + 1, end));
+				i = end;
+			}
+
+			md5.update((byte) '^');
+			if (line.startsWith("^^<", i)) {
+				int end = line.indexOf('>', i + 3);
+				if (end < 0) {
+					throw new IllegalArgumentException("Invalid N-Triples: "
+							+ line);
+				}
+				update(unescape(line, i + 3, end));
+				i = end + 1;
+			}
+		} else if (line.startsWith("_:", start)) {
+			i = start + 2;
+			while (i < line.length() && !isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			md5.update((byte) '_');
+		} else {
+			throw new IllegalArgumentException("Invalid N-Triples: " + line);
+		}
+
+		md5.update((byte) ' ');
+		return i;
+
+	}
+
+	/**
+	 * Resolves the escape sequences of an N-Triples IRI or literal
+	 */
+	private static String unescape(String line, int start, int end) {
+
+		int escape = line.indexOf('\\', start);
+		if (escape < 0 || escape >= end) {
+			return line.substring(start, end);
+		}
+
+		StringBuilder unescaped = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+
+			char c = line.charAt(i);
+			if (c != '\\') {
+				unescaped.append(c);
+				continue;
+			}
+
+			if (++i == end) {
+				throw new IllegalArgumentException("Invalid escape in "
+						+ line);
+			}
+			c = line.charAt(i);
+			switch (c) {
+			case 't':
+				unescaped.append('\t');
+				break;
+			case 'b':
+				unescaped.append('\b');
+				break;
+			case 'n':
+				unescaped.append('\n');
+				break;
+			case 'r':
+				unescaped.append('\r');
+				break;
+			case 'f':
+				unescaped.append('\f');
+				break;
+			case '"':
+			case '\'':
+			case '\\':
+				unescaped.append(c);
+				break;
+			case 'u':
+			case 'U':
+				int digits = (c == 'u') ? 4 : 8;
+				if (i + digits >= end) {
+					throw new IllegalArgumentException("Invalid escape in "
+							+ line);
+				}
+				try {
+					unescaped.appendCodePoint(Integer.parseInt(line
+							.substring(i + 1, i + 1 + digits), 16));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid escape in "
+							+ line);
+				}
+				i += digits;
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid escape in "
+						+ line);
+			}
+		}
+		return unescaped.toString();
+
+	}
+
+	private static int skipWhitespace(String line, int i) {
+		while (i < line.length() && isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	private void update(String s) {
+		try {
+			md5.update(s.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the number of triples added so far
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the digest as hex string
+	 */
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low ^ size);
+	}
+
+}
@@ -0,0 +1,294 @@
+package eu.europeana.lod.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.europeana.lod.upstream.Cancellation;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller executes the
+ * call, all callers arriving while it is in flight wait for and share its
+ * result (or exception). Results are not kept once the call has finished.
+ *
+ * Waiting callers give up after a maximum wait, or as soon as the data task
+ * they run for is cancelled; the call goes on for the others.
+ *
+ * A call runs with a cancellation of its own rather than the one of the
+ * caller executing it: a caller whose data task is cancelled leaves the call,
+ * which is only cancelled (and its upstream requests aborted) once all
+ * callers have left it.
+ *
+ * @author agent
+ *
+ */
+public class SingleFlight<V> {
+
+	/**
+	 * The time (ms) between two checks whether a waiting caller has been
+	 * cancelled
+	 */
+	private static final long WAIT_SLICE = 100;
+
+	private final ConcurrentMap<String, Flight<V>> calls = new ConcurrentHashMap<String, Flight<V>>();
+
+	private final AtomicLong executed = new AtomicLong();
+
+	private final AtomicLong shared = new AtomicLong();
+
+	private final long maxWait;
+
+	/**
+	 * Creates a new single flight whose callers wait for a call in flight
+	 * until it has finished
+	 */
+	public SingleFlight() {
+		this(0);
+	}
+
+	/**
+	 * Creates a new single flight whose callers wait a given time (ms) at
+	 * most for a call in flight; 0 waits until it has finished
+	 */
+	public SingleFlight(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Executes a given call for a given key, or waits for the result of the
+	 * call already in flight for that key
+	 */
+	public V execute(String key, Callable<V> call) throws IOException {
+
+		Cancellation cancellation = Cancellation.current();
+
+		while (true) {
+
+			Flight<V> flight = new Flight<V>(call);
+
+			Flight<V> inFlight = calls.putIfAbsent(key, flight);
+
+			if (inFlight == null) {
+				executed.incrementAndGet();
+				return lead(key, flight, cancellation);
+			}
+
+			if (inFlight.join()) {
+				shared.incrementAndGet();
+				return await(key, inFlight, cancellation);
+			}
+
+			// all callers have left the call in flight, which is cancelled
+			calls.remove(key, inFlight);
+
+		}
+
+	}
+
+	/**
+	 * Returns whether a call for a given key is currently in flight
+	 */
+	public boolean isInFlight(String key) {
+		return calls.containsKey(key);
+	}
+
+	/**
+	 * Returns the number of calls that have actually been executed
+	 */
+	public long getExecuted() {
+		return executed.get();
+	}
+
+	/**
+	 * Returns the number of callers that shared the result of another call
+	 */
+	public long getShared() {
+		return shared.get();
+	}
+
+	/**
+	 * Executes a call on the current thread, bound to the cancellation of the
+	 * call until it has finished
+	 */
+	private V lead(String key, Flight<V> flight, Cancellation cancellation)
+			throws IOException {
+
+		Participant participant = new Participant(key, flight);
+		if (cancellation != null) {
+			cancellation.addListener(participant);
+		}
+
+		Cancellation.bind(flight.cancellation);
+		try {
+			flight.task.run();
+		} finally {
+			Cancellation.bind(cancellation);
+			if (cancellation != null) {
+				cancellation.removeListener(participant);
+			}
+			calls.remove(key, flight);
+		}
+
+		while (true) {
+			try {
+				return flight.task.get();
+			} catch (InterruptedException e) {
+				// cannot block, the call has finished
+			} catch (ExecutionException e) {
+				throw rethrow(e);
+			}
+		}
+
+	}
+
+	/**
+	 * Waits for the result of a call in flight, checking in slices whether
+	 * the data task of the current thread has been cancelled
+	 */
+	private V await(String key, Flight<V> flight, Cancellation cancellation)
+			throws IOException {
+
+		Participant participant = new Participant(key, flight);
+		if (cancellation != null) {
+			cancellation.addListener(participant);
+		}
+
+		long deadline = System.currentTimeMillis() + maxWait;
+
+		try {
+			while (true) {
+
+				if (cancellation != null && cancellation.isCancelled()) {
+					throw new InterruptedIOException(
+							"Cancelled while waiting for the call in flight for "
+									+ key);
+				}
+
+				long slice = WAIT_SLICE;
+				if (maxWait > 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						participant.run();
+						throw new InterruptedIOException("Waited " + maxWait
+								+ "ms in vain for the call in flight for " + key);
+					}
+					slice = Math.min(slice, remaining);
+				}
+
+				try {
+					return flight.task.get(slice, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// check again
+				} catch (InterruptedException e) {
+					participant.run();
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted while waiting for the call in flight for "
+									+ key);
+				} catch (ExecutionException e) {
+					throw rethrow(e);
+				}
+
+			}
+		} finally {
+			if (cancellation != null) {
+				cancellation.removeListener(participant);
+			}
+		}
+
+	}
+
+	/**
+	 * Rethrows the exception a call failed with
+	 */
+	private static IOException rethrow(ExecutionException e) {
+
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new IOException(cause);
+
+	}
+
+	/**
+	 * A call in flight and the number of callers still waiting for it
+	 */
+	private static class Flight<V> {
+
+		private final FutureTask<V> task;
+
+		private final Cancellation cancellation = new Cancellation();
+
+		private int participants = 1;
+
+		Flight(Callable<V> call) {
+			this.task = new FutureTask<V>(call);
+		}
+
+		/**
+		 * Adds a caller, unless all callers have left already
+		 */
+		synchronized boolean join() {
+			if (participants == 0) {
+				return false;
+			}
+			participants++;
+			return true;
+		}
+
+		/**
+		 * Removes a caller; returns true if it was the last
+		 */
+		boolean leave() {
+			synchronized (this) {
+				if (--participants > 0) {
+					return false;
+				}
+			}
+			cancellation.cancel();
+			return true;
+		}
+
+	}
+
+	/**
+	 * Leaves a call in flight on behalf of one caller, at most once
+	 */
+	private class Participant implements Runnable {
+
+		private final String key;
+
+		private final Flight<V> flight;
+
+		private final AtomicBoolean left = new AtomicBoolean(false);
+
+		Participant(String key, Flight<V> flight) {
+			this.key = key;
+			this.flight = flight;
+		}
+
+		public void run() {
+			if (left.compareAndSet(false, true) && flight.leave()) {
+				// callers arriving from now on start a new call
+				calls.remove(key, flight);
+			}
+		}
+
+	}
+
+}
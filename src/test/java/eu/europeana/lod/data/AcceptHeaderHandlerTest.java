@@ -1,10 +1,12 @@
 package eu.europeana.lod.data;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
 import eu.europeana.lod.util.AcceptHeaderHandler;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
 import eu.europeana.lod.util.AcceptHeaderHandler.MimeTypePattern;
 
 /**
@@ -102,4 +104,45 @@ public class AcceptHeaderHandlerTest {
 	}
 	
 	
+	@Test
+	public void testCrawlerHeaders() throws Exception {
+
+		String acceptHeader = "text/turtle;q=0.9, application/rdf+xml, text/n3;q=0.5";
+
+		assertEquals(MimeTypePattern.RDF, new AcceptHeaderHandler(acceptHeader).getPreferredMimeType());
+
+		acceptHeader = "Text/N3; Q=1.0, application/rdf+xml;q=.5";
+
+		assertEquals(MimeTypePattern.N3, new AcceptHeaderHandler(acceptHeader).getPreferredMimeType());
+
+		acceptHeader = "application/x-turtle;q=0.45, image/png;q=0.9";
+
+		assertEquals(MimeTypePattern.TTL, new AcceptHeaderHandler(acceptHeader).getPreferredMimeType());
+
+	}
+
+	@Test
+	public void testUnsupportedHeaders() throws Exception {
+
+		assertNull(new AcceptHeaderHandler("image/png, image/gif").getPreferredMimeType());
+
+		assertNull(new AcceptHeaderHandler(" , ").getPreferredMimeType());
+
+	}
+
+	@Test
+	public void testMemoizedNegotiation() throws Exception {
+
+		String acceptHeader = "application/rdf+xml; q=0.2, text/html; q=0.7";
+
+		assertEquals(MimeTypePattern.HTML, AcceptHeaderHandler.getMimeType(acceptHeader));
+		assertEquals(MimeTypePattern.HTML, AcceptHeaderHandler.getMimeType(acceptHeader));
+
+		assertEquals(ContentType.TTL, AcceptHeaderHandler.getContentType("text/turtle"));
+		assertEquals(ContentType.TTL, AcceptHeaderHandler.getContentType("text/turtle"));
+
+		assertNull(AcceptHeaderHandler.getMimeType("image/png"));
+
+	}
+
 }
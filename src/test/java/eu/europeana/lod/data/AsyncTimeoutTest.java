@@ -0,0 +1,108 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.Test;
+
+import eu.europeana.lod.upstream.CircuitBreaker;
+
+/**
+ * This class verifies that a data request timing out is answered with 504
+ * Gateway Timeout and that its upstream request is aborted rather than kept
+ * until the endpoint answers
+ *
+ * @author agent
+ *
+ */
+public class AsyncTimeoutTest {
+
+	@Test
+	public void testStalledEndpoint() throws Exception {
+
+		StalledResourceServlet.release = new CountDownLatch(1);
+
+		ServletTester tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		tester.addServlet(StalledResourceServlet.class, "/resource");
+		String baseURL = tester.createSocketConnector(true);
+		holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+		holder.setInitParameter("asyncData", "true");
+		holder.setInitParameter("asyncTimeout", "1000");
+		holder.setInitParameter("upstreamReadTimeout", "30000");
+		holder.setInitOrder(1);
+		tester.start();
+
+		try {
+			CircuitBreaker breaker = (CircuitBreaker) ((EuropeanaLODServlet) holder
+					.getServlet()).upstreamClient;
+
+			long started = System.currentTimeMillis();
+			assertEquals(504, TestSupport.getStatus(baseURL
+					+ "/data/item/00000/1"));
+			assertTrue(System.currentTimeMillis() - started < 5000);
+
+			// the stalled upstream request does not hold a bulkhead permit
+			long deadline = System.currentTimeMillis() + 5000;
+			while (breaker.getInFlight() > 0) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertEquals(1, StalledResourceServlet.release.getCount());
+
+			StalledResourceServlet.release.countDown();
+			assertEquals(200, TestSupport.getStatus(baseURL
+					+ "/data/item/00000/2"));
+		} finally {
+			StalledResourceServlet.release.countDown();
+			tester.stop();
+		}
+
+	}
+
+	/**
+	 * Describes each resource by a title, but only once it is released
+	 */
+	public static class StalledResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		static volatile CountDownLatch release;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			resp.setContentType("application/rdf+xml");
+			resp.getWriter().write(
+					"<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" "
+							+ "xmlns:dc=\"http://purl.org/dc/elements/1.1/\">"
+							+ "<rdf:Description rdf:about=\""
+							+ req.getParameter("uri")
+							+ "\"><dc:title>Item</dc:title></rdf:Description>"
+							+ "</rdf:RDF>");
+
+		}
+
+	}
+
+}
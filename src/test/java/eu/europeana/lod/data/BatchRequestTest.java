@@ -0,0 +1,189 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.store.UpstreamStore;
+import eu.europeana.lod.upstream.UpstreamClient;
+
+/**
+ * This class verifies that batch requests describe all listed resources in a
+ * single response, and that the upstream store retrieves them with batched
+ * DESCRIBE queries
+ *
+ * @author agent
+ *
+ */
+public class BatchRequestTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private File directory;
+
+	private ServletTester tester;
+
+	private String baseURL;
+
+	@Before
+	public void setUp() throws Exception {
+
+		directory = TestSupport.buildDumpStore("europeana-lod-batch", 10);
+
+		tester = new ServletTester();
+		ServletHolder holder = TestSupport.addDumpStoreServlet(tester,
+				directory);
+		holder.setInitParameter("batchMaxResources", "5");
+		tester.addServlet(SparqlServlet.class, "/sparql");
+		baseURL = tester.createSocketConnector(true);
+		tester.start();
+
+		SparqlServlet.queries.clear();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tester.stop();
+		TestSupport.delete(directory);
+	}
+
+	@Test
+	public void testBatchRequest() throws Exception {
+
+		// URIs, paths and IDs, a duplicate and an unknown resource
+		HttpURLConnection connection = TestSupport.postBatch(baseURL,
+				"text/n3", ITEM + "1\n/item/00000/2, 00000/3\n" + ITEM
+				+ "1 /data/item/00000/99\n");
+		assertEquals(200, connection.getResponseCode());
+
+		Model model = ModelFactory.createDefaultModel();
+		model.read(connection.getInputStream(), null, "N-TRIPLE");
+
+		Set<String> subjects = new HashSet<String>();
+		ResIterator it = model.listSubjects();
+		while (it.hasNext()) {
+			subjects.add(it.nextResource().getURI());
+		}
+		assertEquals(3, subjects.size());
+		assertTrue(subjects.contains(ITEM + "3"));
+
+		connection = TestSupport.postBatch(baseURL, "application/rdf+xml",
+				"00000/4 00000/5");
+		assertEquals(200, connection.getResponseCode());
+		model = ModelFactory.createDefaultModel();
+		model.read(connection.getInputStream(), null);
+		assertEquals(2, model.size());
+
+	}
+
+	@Test
+	public void testInvalidBatchRequests() throws Exception {
+
+		assertEquals(404, TestSupport.postBatch(baseURL, "text/n3",
+				"00000/98 00000/99").getResponseCode());
+		assertEquals(400, TestSupport.postBatch(baseURL, "text/n3", "")
+				.getResponseCode());
+		assertEquals(400, TestSupport.postBatch(baseURL, "text/n3",
+				"http://example.org/item/1").getResponseCode());
+		assertEquals(400, TestSupport.postBatch(baseURL, "text/n3",
+				"00000/1> <x").getResponseCode());
+		assertEquals(413, TestSupport.postBatch(baseURL, "text/n3",
+				"1 2 3 4 5 6").getResponseCode());
+		assertEquals(406, TestSupport.postBatch(baseURL, "text/html",
+				"00000/1").getResponseCode());
+
+	}
+
+	@Test
+	public void testBatchedUpstreamQueries() throws Exception {
+
+		UpstreamStore store = new UpstreamStore(new UpstreamClient(baseURL
+				+ "/sparql", 1000, 1000, 2), 2);
+
+		List<String> resourceURIs = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			resourceURIs.add(ITEM + i);
+		}
+
+		final List<Triple> triples = new ArrayList<Triple>();
+		try {
+			assertTrue(store.describe(resourceURIs, new TripleHandler() {
+				public void handle(Triple triple) {
+					triples.add(triple);
+				}
+			}));
+		} finally {
+			store.close();
+		}
+
+		// 5 resources in batches of 2
+		assertEquals(3, SparqlServlet.queries.size());
+		assertEquals("DESCRIBE <" + ITEM + "0> <" + ITEM + "1>",
+				SparqlServlet.queries.get(0));
+		assertEquals(5, triples.size());
+
+	}
+
+	/**
+	 * Answers DESCRIBE queries listing resource URIs with a title per resource
+	 */
+	public static class SparqlServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		static final List<String> queries = new ArrayList<String>();
+
+		@Override
+		protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			String query = req.getParameter("query");
+			synchronized (queries) {
+				queries.add(query);
+			}
+
+			Model model = ModelFactory.createDefaultModel();
+			for (String token : query.split(" ")) {
+				if (token.startsWith("<")) {
+					Resource resource = model.createResource(token.substring(1,
+							token.length() - 1));
+					resource.addProperty(model
+							.createProperty("http://purl.org/dc/elements/1.1/title"),
+							"Title");
+				}
+			}
+
+			resp.setContentType("application/rdf+xml");
+			model.write(resp.getOutputStream());
+
+		}
+
+	}
+
+}
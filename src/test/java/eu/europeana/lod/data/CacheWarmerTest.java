@@ -0,0 +1,361 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.europeana.lod.cache.CachedResponse;
+import eu.europeana.lod.cache.DiskCache;
+import eu.europeana.lod.cache.ResponseCache;
+import eu.europeana.lod.rdf.BlankNodeRules;
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.store.DumpStore;
+import eu.europeana.lod.store.ResourceStore;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * This class verifies that the cache warmer caches the configured resources
+ * in all RDF content types, and that the servlet is not ready before
+ *
+ * @author agent
+ *
+ */
+public class CacheWarmerTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	@Test
+	public void testWarmUp() throws Exception {
+
+		File directory = TestSupport.buildDumpStore("europeana-lod-warmup", 10);
+
+		DumpStore store = new DumpStore(directory);
+		ResponseCache cache = new ResponseCache(1024 * 1024, 60000);
+
+		try {
+			CacheWarmer warmer = new CacheWarmer(store, BlankNodeRules.DROP,
+					cache, false, 2, 60000);
+			warmer.start(Arrays.asList(ITEM + "1", ITEM + "2", ITEM + "3",
+					ITEM + "99"));
+			waitUntilDone(warmer);
+
+			assertTrue(warmer.isReady());
+			assertEquals(3, warmer.getWarmedCount());
+			assertEquals(1, warmer.getMissingCount());
+			assertEquals(0, warmer.getFailedCount());
+
+			for (ContentType contentType : CacheWarmer.CONTENT_TYPES) {
+				assertNotNull(cache.get(ITEM + "1", contentType));
+			}
+			assertNull(cache.get(ITEM + "4", ContentType.RDF));
+			assertNull(cache.get(ITEM + "99", ContentType.RDF));
+
+			CachedResponse cached = cache.get(ITEM + "2", ContentType.N3);
+			Model model = ModelFactory.createDefaultModel();
+			model.read(new ByteArrayInputStream(cached.getBody()), null,
+					"N-TRIPLE");
+			assertEquals(1, model.size());
+			assertTrue(cached.getETag().endsWith("-n3\""));
+		} finally {
+			store.close();
+			TestSupport.delete(directory);
+		}
+
+	}
+
+	@Test
+	public void testDiskCached() throws Exception {
+
+		File directory = TestSupport.buildDumpStore("europeana-lod-warmup", 10);
+		File cacheDirectory = TestSupport
+				.createTempDirectory("europeana-lod-warmup-disk");
+
+		DumpStore store = new DumpStore(directory);
+		DiskCache diskCache = new DiskCache(cacheDirectory, 1024 * 1024, 60000);
+
+		try {
+			ResponseCache cache = new ResponseCache(1024 * 1024, 60000);
+			cache.setDiskCache(diskCache);
+			CacheWarmer warmer = new CacheWarmer(store, BlankNodeRules.DROP,
+					cache, false, 2, 60000);
+			warmer.start(Arrays.asList(ITEM + "1", ITEM + "2"));
+			waitUntilDone(warmer);
+			diskCache.flush();
+
+			// as after a restart, with the disk cache kept
+			cache = new ResponseCache(1024 * 1024, 60000);
+			cache.setDiskCache(diskCache);
+			warmer = new CacheWarmer(store, BlankNodeRules.DROP, cache, false,
+					2, 60000);
+			warmer.start(Arrays.asList(ITEM + "1", ITEM + "2", ITEM + "3"));
+			waitUntilDone(warmer);
+
+			assertEquals(2, warmer.getDiskCachedCount());
+			assertEquals(1, warmer.getWarmedCount());
+			assertNull(cache.get(ITEM + "1", ContentType.RDF));
+			assertNotNull(cache.get(ITEM + "3", ContentType.RDF));
+		} finally {
+			diskCache.close();
+			store.close();
+			TestSupport.delete(cacheDirectory);
+			TestSupport.delete(directory);
+		}
+
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger described = new AtomicInteger();
+		ResourceStore store = new ResourceStore() {
+			public boolean describe(String resourceURI, TripleHandler handler) {
+				described.incrementAndGet();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return false;
+			}
+
+			public boolean describe(List<String> resourceURIs,
+					TripleHandler handler) {
+				return false;
+			}
+
+			public void close() {
+			}
+		};
+
+		CacheWarmer warmer = new CacheWarmer(store, BlankNodeRules.DROP,
+				new ResponseCache(1024 * 1024, 60000), false, 1, 200);
+		try {
+			warmer.start(Arrays.asList(ITEM + "1", ITEM + "2", ITEM + "3"));
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (warmer.getTimedOutCount() < 2) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertTrue(warmer.isReady());
+
+			// the queued resources are given up, not retrieved
+			release.countDown();
+			Thread.sleep(200);
+			assertEquals(1, described.get());
+			assertEquals(2, warmer.getTimedOutCount());
+			assertFalse(warmer.isDone());
+		} finally {
+			release.countDown();
+			warmer.stop();
+		}
+
+	}
+
+	@Test
+	public void testResourceSources() throws Exception {
+
+		FileInputStream in = new FileInputStream("src/main/webapp/void.ttl");
+		try {
+			assertEquals(Arrays.asList("http://data.europeana.eu/item/92037/"
+					+ "25F9104787668C4B5148BE8E5AB8DBEF5BE5FE03"), CacheWarmer
+					.readExampleResources(in));
+		} finally {
+			in.close();
+		}
+
+		String sitemap = "<urlset><sc:dataset>"
+				+ "<sc:sampleURI>" + ITEM + "1</sc:sampleURI>\n"
+				+ "<sc:sampleURI> " + ITEM + "2 </sc:sampleURI>"
+				+ "</sc:dataset></urlset>";
+		assertEquals(Arrays.asList(ITEM + "1", ITEM + "2"), CacheWarmer
+				.readSampleURIs(new ByteArrayInputStream(sitemap
+						.getBytes("UTF-8"))));
+
+		assertEquals(Arrays.asList("00000/1", "/item/00000/2", ITEM + "3"),
+				CacheWarmer.readResourceList(new StringReader(
+						"# top resources\n00000/1, /item/00000/2\n\n" + ITEM
+								+ "3\n")));
+
+		File accessLog = File.createTempFile("europeana-lod-access", ".log");
+		Writer out = new OutputStreamWriter(new FileOutputStream(accessLog),
+				"UTF-8");
+		String[] requests = { "GET /data/item/00000/1 HTTP/1.1\" 200",
+				"GET /item/00000/1 HTTP/1.1\" 303",
+				"GET /data/item/00000/2?x=1 HTTP/1.1\" 304",
+				"GET /data/item/00000/3 HTTP/1.1\" 404",
+				"GET /data/item/00000/3 HTTP/1.1\" 404",
+				"POST /data/batch HTTP/1.1\" 200",
+				"GET /metrics HTTP/1.1\" 200",
+				"GET /data/aggregation/europeana/00000/4 HTTP/1.0\" 200" };
+		for (String request : requests) {
+			out.write("127.0.0.1 - - [17/Oct/2026:10:00:00 +0000] \""
+					+ request + " 1234 \"-\" \"curl/7.0\"\n");
+		}
+		out.close();
+
+		try {
+			List<String> top = CacheWarmer.readTopResources(Arrays
+					.asList(accessLog), 2, ResourceRouter.DEFAULT,
+					"http://data.europeana.eu");
+			assertEquals(Arrays.asList(ITEM + "1",
+					"http://data.europeana.eu/aggregation/europeana/00000/4"),
+					top);
+		} finally {
+			accessLog.delete();
+		}
+
+	}
+
+	@Test
+	public void testReadiness() throws Exception {
+
+		File warmFile = File.createTempFile("europeana-lod-warmup", ".txt");
+		Writer out = new OutputStreamWriter(new FileOutputStream(warmFile),
+				"UTF-8");
+		out.write("00000/1\n/item/00000/2\n");
+		out.close();
+
+		BlockingResourceServlet.release = new CountDownLatch(1);
+		BlockingResourceServlet.requests.set(0);
+
+		ServletTester tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		tester.addServlet(BlockingResourceServlet.class, "/resource");
+		tester.addServlet(ReadinessServlet.class, "/ready");
+		String baseURL = tester.createSocketConnector(true);
+		holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+		holder.setInitParameter("warmUp", "true");
+		holder.setInitParameter("warmFile", warmFile.getPath());
+		holder.setInitOrder(1);
+		tester.start();
+
+		try {
+			assertEquals(503, TestSupport.getStatus(baseURL + "/ready"));
+
+			BlockingResourceServlet.release.countDown();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (TestSupport.getStatus(baseURL + "/ready") != 200) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(50);
+			}
+			assertEquals(2, BlockingResourceServlet.requests.get());
+
+			// served from the cache
+			HttpURLConnection connection = TestSupport.get(baseURL
+					+ "/data/item/00000/2", "application/rdf+xml");
+			assertEquals(200, connection.getResponseCode());
+			Model model = ModelFactory.createDefaultModel();
+			model.read(connection.getInputStream(), null);
+			assertEquals(1, model.size());
+			assertEquals(2, BlockingResourceServlet.requests.get());
+		} finally {
+			BlockingResourceServlet.release.countDown();
+			tester.stop();
+			warmFile.delete();
+		}
+
+	}
+
+	@Test
+	public void testNotInitialized() throws Exception {
+
+		// the data servlet fails to initialize without its dump store; it
+		// is initialized on the first request
+		ServletTester tester = new ServletTester();
+		TestSupport.addDumpStoreServlet(tester, new File(
+				"target/no-such-store"));
+		tester.addServlet(ReadinessServlet.class, "/ready");
+		String baseURL = tester.createSocketConnector(true);
+		tester.start();
+
+		try {
+			assertEquals(503, TestSupport.getStatus(baseURL + "/ready"));
+			assertTrue(TestSupport.getStatus(baseURL
+					+ "/data/item/00000/1") >= 500);
+			assertEquals(503, TestSupport.getStatus(baseURL + "/ready"));
+		} finally {
+			tester.stop();
+		}
+
+	}
+
+	private static void waitUntilDone(CacheWarmer warmer)
+			throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!warmer.isDone()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+	}
+
+	/**
+	 * Describes each resource by a title once it is released
+	 */
+	public static class BlockingResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		static volatile CountDownLatch release;
+
+		static final AtomicInteger requests = new AtomicInteger();
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			requests.incrementAndGet();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			resp.setContentType("application/rdf+xml");
+			resp.getWriter().write(
+					"<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" "
+							+ "xmlns:dc=\"http://purl.org/dc/elements/1.1/\">"
+							+ "<rdf:Description rdf:about=\""
+							+ req.getParameter("uri")
+							+ "\"><dc:title>Item</dc:title></rdf:Description>"
+							+ "</rdf:RDF>");
+
+		}
+
+	}
+
+}
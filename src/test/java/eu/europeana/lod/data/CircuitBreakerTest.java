@@ -0,0 +1,325 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.Test;
+
+import eu.europeana.lod.upstream.Cancellation;
+import eu.europeana.lod.upstream.CircuitBreaker;
+import eu.europeana.lod.upstream.Upstream;
+import eu.europeana.lod.upstream.UpstreamClient;
+import eu.europeana.lod.upstream.UpstreamResponse;
+import eu.europeana.lod.upstream.UpstreamUnavailableException;
+
+/**
+ * This class verifies that the circuit breaker fails fast while the upstream
+ * endpoint is down and probes it once the open time has passed, and that
+ * only the probe's result ends the half-open state
+ *
+ * @author agent
+ *
+ */
+public class CircuitBreakerTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154";
+
+	@Test
+	public void testCircuitOpensAfterFailures() throws Exception {
+
+		FailingUpstream upstream = new FailingUpstream();
+		CircuitBreaker breaker = new CircuitBreaker(upstream, 3, 60000, 10);
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				breaker.describe(ITEM, "application/rdf+xml");
+				fail("Upstream failure expected");
+			} catch (UpstreamUnavailableException e) {
+				fail("Circuit opened too early");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		try {
+			breaker.describe(ITEM, "application/rdf+xml");
+			fail("Fail fast expected");
+		} catch (UpstreamUnavailableException e) {
+			assertTrue(e.getRetryAfter() > 0 && e.getRetryAfter() <= 60);
+		}
+
+		// the open circuit did not reach the endpoint
+		assertEquals(3, upstream.calls.get());
+		assertEquals(0, breaker.getInFlight());
+
+	}
+
+	@Test
+	public void testAbortedCalls() throws Exception {
+
+		FailingUpstream upstream = new FailingUpstream();
+		CircuitBreaker breaker = new CircuitBreaker(upstream, 1, 60000, 10);
+
+		// calls failing after their data task was cancelled do not count
+		Cancellation cancellation = new Cancellation();
+		cancellation.cancel();
+		Cancellation.bind(cancellation);
+		try {
+			for (int i = 0; i < 3; i++) {
+				try {
+					breaker.describe(ITEM, "application/rdf+xml");
+					fail("Upstream failure expected");
+				} catch (UpstreamUnavailableException e) {
+					fail("Circuit opened by aborted calls");
+				} catch (IOException e) {
+					// expected
+				}
+			}
+		} finally {
+			Cancellation.bind(null);
+		}
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(3, upstream.calls.get());
+		assertEquals(0, breaker.getInFlight());
+
+	}
+
+	@Test
+	public void testHalfOpenProbe() throws Exception {
+
+		FailingUpstream upstream = new FailingUpstream();
+		CircuitBreaker breaker = new CircuitBreaker(upstream, 1, 50, 10);
+
+		try {
+			breaker.describe(ITEM, "application/rdf+xml");
+			fail("Upstream failure expected");
+		} catch (UpstreamUnavailableException e) {
+			fail("Circuit opened too early");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		Thread.sleep(100);
+
+		// the probe reaches the endpoint, fails and re-opens the circuit
+		try {
+			breaker.describe(ITEM, "application/rdf+xml");
+			fail("Upstream failure expected");
+		} catch (UpstreamUnavailableException e) {
+			fail("Probe expected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertEquals(2, upstream.calls.get());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+	}
+
+	@Test
+	public void testBodyFailure() throws Exception {
+
+		ServletTester endpoint = startEndpoint();
+		UpstreamClient client = new UpstreamClient(endpoint
+				.createSocketConnector(true)
+				+ "/sparql", 1000, 200, 10);
+		endpoint.start();
+		CircuitBreaker breaker = new CircuitBreaker(client, 1, 60000, 10);
+
+		try {
+			// the headers arrive, the body stalls until the read times out
+			UpstreamResponse response = breaker.describe("stall",
+					"application/rdf+xml");
+			assertEquals(200, response.getStatus());
+			try {
+				drain(response.getBody());
+				fail("Read timeout expected");
+			} catch (IOException e) {
+				// expected
+			}
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+			response.close();
+
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+			assertEquals(0, breaker.getInFlight());
+		} finally {
+			breaker.close();
+			endpoint.stop();
+		}
+
+	}
+
+	@Test
+	public void testUnreadBody() throws Exception {
+
+		ServletTester endpoint = startEndpoint();
+		UpstreamClient client = new UpstreamClient(endpoint
+				.createSocketConnector(true)
+				+ "/sparql", 1000, 5000, 10);
+		endpoint.start();
+		CircuitBreaker breaker = new CircuitBreaker(client, 1, 60000, 10);
+
+		try {
+			// the rest of the body is not waited for
+			UpstreamResponse response = breaker.describe("stall",
+					"application/rdf+xml");
+			assertEquals(200, response.getStatus());
+			long started = System.currentTimeMillis();
+			response.close();
+			assertTrue(System.currentTimeMillis() - started < 1000);
+
+			// nor is it a failure of the endpoint
+			assertFalse(response.isFailed());
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+			assertEquals(0, breaker.getInFlight());
+			assertEquals(0, client.getLeasedConnections());
+
+			// a body read to the end is kept alive
+			response = breaker.describe(ITEM, "application/rdf+xml");
+			drain(response.getBody());
+			response.close();
+			assertFalse(response.isFailed());
+			assertEquals(0, client.getLeasedConnections());
+		} finally {
+			breaker.close();
+			endpoint.stop();
+		}
+
+	}
+
+	@Test
+	public void testLateCallDuringProbe() throws Exception {
+
+		ServletTester endpoint = startEndpoint();
+		UpstreamClient client = new UpstreamClient(endpoint
+				.createSocketConnector(true)
+				+ "/sparql", 1000, 1000, 10);
+		endpoint.start();
+		CircuitBreaker breaker = new CircuitBreaker(client, 1, 50, 10);
+
+		try {
+			UpstreamResponse late = breaker.describe(ITEM,
+					"application/rdf+xml");
+
+			breaker.describe("error", "application/rdf+xml").close();
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+			Thread.sleep(100);
+
+			UpstreamResponse probe = breaker.describe(ITEM,
+					"application/rdf+xml");
+			assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+			// a call sent before the circuit opened does not close it
+			drain(late.getBody());
+			late.close();
+			assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+			drain(probe.getBody());
+			probe.close();
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		} finally {
+			breaker.close();
+			endpoint.stop();
+		}
+
+	}
+
+	private static ServletTester startEndpoint() {
+
+		ServletTester endpoint = new ServletTester();
+		endpoint.addServlet(ResourceServlet.class, "/resource");
+		return endpoint;
+
+	}
+
+	private static void drain(InputStream in) throws IOException {
+
+		byte[] buffer = new byte[4096];
+		while (in.read(buffer) != -1) {
+			// discard
+		}
+
+	}
+
+	/**
+	 * Describes each resource by a title; fails with 500 for the resource
+	 * "error" and stalls half-way through the body for the resource "stall"
+	 */
+	public static class ResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			String uri = req.getParameter("uri");
+			if ("error".equals(uri)) {
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				return;
+			}
+
+			resp.setContentType("application/rdf+xml");
+			resp.getWriter().write(
+					"<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" "
+							+ "xmlns:dc=\"http://purl.org/dc/elements/1.1/\">");
+			resp.flushBuffer();
+
+			if ("stall".equals(uri)) {
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			resp.getWriter().write(
+					"<rdf:Description rdf:about=\"" + uri
+							+ "\"><dc:title>Item</dc:title></rdf:Description>"
+							+ "</rdf:RDF>");
+
+		}
+
+	}
+
+	private static class FailingUpstream implements Upstream {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		public UpstreamResponse describe(String resourceURI, String accept)
+				throws IOException {
+			calls.incrementAndGet();
+			throw new IOException("Connection refused");
+		}
+
+		public UpstreamResponse describeAll(List<String> resourceURIs,
+				String accept) throws IOException {
+			calls.incrementAndGet();
+			throw new IOException("Connection refused");
+		}
+
+		public void close() {
+		}
+
+	}
+
+}
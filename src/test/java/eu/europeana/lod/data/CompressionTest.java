@@ -0,0 +1,221 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.EnumSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.europeana.lod.util.ContentEncoding;
+
+/**
+ * This class verifies the negotiation of content codings and that data and
+ * static responses are sent compressed
+ *
+ * @author agent
+ *
+ */
+public class CompressionTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private static final String VOID = "@prefix void: <http://rdfs.org/ns/void#> .\n"
+			+ "<http://data.europeana.eu/> a void:Dataset .\n";
+
+	private static final String SITEMAP = "<?xml version=\"1.0\"?>\n"
+			+ "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\"/>\n";
+
+	private File directory;
+
+	private ServletTester tester;
+
+	private String baseURL;
+
+	@Before
+	public void setUp() throws Exception {
+
+		directory = TestSupport.buildDumpStore("europeana-lod-compression", 10);
+
+		tester = new ServletTester();
+		TestSupport.addDumpStoreServlet(tester, directory);
+		tester.addServlet(VoidServlet.class, "/void.ttl");
+		tester.addFilter(CompressionFilter.class, "/void.ttl", EnumSet
+				.of(DispatcherType.REQUEST));
+		tester.setResourceBase(directory.getPath());
+		tester.addServlet(DefaultServlet.class, "/sitemap.xml");
+		tester.addFilter(CompressionFilter.class, "/sitemap.xml", EnumSet
+				.of(DispatcherType.REQUEST));
+		baseURL = tester.createSocketConnector(true);
+		tester.start();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tester.stop();
+		TestSupport.delete(directory);
+	}
+
+	@Test
+	public void testNegotiation() throws Exception {
+
+		assertEquals(ContentEncoding.IDENTITY, ContentEncoding.negotiate(null));
+		assertEquals(ContentEncoding.GZIP, ContentEncoding
+				.negotiate("gzip, deflate"));
+		assertEquals(ContentEncoding.GZIP, ContentEncoding
+				.negotiate("deflate, x-gzip"));
+		assertEquals(ContentEncoding.DEFLATE, ContentEncoding
+				.negotiate("gzip;q=0.5, deflate"));
+		assertEquals(ContentEncoding.IDENTITY, ContentEncoding
+				.negotiate("gzip;q=0, br"));
+		assertEquals(ContentEncoding.GZIP, ContentEncoding.negotiate("*"));
+		assertEquals(ContentEncoding.IDENTITY, ContentEncoding
+				.negotiate("identity"));
+
+	}
+
+	@Test
+	public void testDataResponse() throws Exception {
+
+		String plain = new String(read(get("/data/item/00000/1",
+				"application/rdf+xml", null)), "UTF-8");
+
+		// the second response is served from the cached gzip body
+		for (int i = 0; i < 2; i++) {
+			HttpURLConnection connection = get("/data/item/00000/1",
+					"application/rdf+xml", "gzip");
+			assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+			assertTrue(connection.getHeaderField("ETag").endsWith("-gzip\""));
+			assertTrue(connection.getHeaderField("Vary").contains(
+					"Accept-Encoding"));
+			assertEquals(plain, new String(read(connection), "UTF-8"));
+		}
+
+	}
+
+	@Test
+	public void testTransferredResponse() throws Exception {
+
+		HttpURLConnection connection = get("/data/item/00000/2", "text/n3",
+				"deflate");
+		assertEquals("deflate", connection.getHeaderField("Content-Encoding"));
+
+		String nTriples = new String(read(connection), "UTF-8");
+		assertTrue(nTriples.startsWith("<" + ITEM + "2> "));
+
+		// unknown resources have no encoded body
+		connection = get("/data/item/00000/99", "text/n3", "gzip");
+		assertEquals(404, connection.getResponseCode());
+		assertNull(connection.getHeaderField("Content-Encoding"));
+
+	}
+
+	@Test
+	public void testStaticResponse() throws Exception {
+
+		HttpURLConnection connection = get("/void.ttl", "text/turtle", "gzip");
+		assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		assertNull(connection.getHeaderField("Content-Length"));
+		assertEquals(VOID, new String(read(connection), "UTF-8"));
+
+		connection = get("/void.ttl", "text/turtle", null);
+		assertNull(connection.getHeaderField("Content-Encoding"));
+		assertEquals(VOID, new String(read(connection), "UTF-8"));
+
+	}
+
+	@Test
+	public void testRangeRequest() throws Exception {
+
+		FileOutputStream out = new FileOutputStream(new File(directory,
+				"sitemap.xml"));
+		out.write(SITEMAP.getBytes("UTF-8"));
+		out.close();
+
+		// encoded responses do not offer ranges
+		HttpURLConnection connection = get("/sitemap.xml", "application/xml",
+				"gzip");
+		assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		assertNull(connection.getHeaderField("Accept-Ranges"));
+		assertEquals(SITEMAP, new String(read(connection), "UTF-8"));
+
+		// a range of the plain body is sent as such
+		connection = get("/sitemap.xml", "application/xml", "gzip");
+		connection.setRequestProperty("Range", "bytes=0-4");
+		assertEquals(206, connection.getResponseCode());
+		assertNull(connection.getHeaderField("Content-Encoding"));
+		assertEquals("<?xml", new String(read(connection), "UTF-8"));
+
+	}
+
+	private HttpURLConnection get(String path, String accept,
+			String acceptEncoding) throws IOException {
+
+		HttpURLConnection connection = TestSupport.get(baseURL + path, accept);
+		if (acceptEncoding != null) {
+			connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+		}
+		return connection;
+
+	}
+
+	/**
+	 * Reads and decodes a response body
+	 */
+	private static byte[] read(HttpURLConnection connection) throws IOException {
+
+		InputStream in = connection.getInputStream();
+		if ("gzip".equals(connection.getHeaderField("Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		} else if ("deflate".equals(connection
+				.getHeaderField("Content-Encoding"))) {
+			in = new InflaterInputStream(in);
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			body.write(buffer, 0, n);
+		}
+		in.close();
+		return body.toByteArray();
+
+	}
+
+	public static class VoidServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+			byte[] body = VOID.getBytes("UTF-8");
+			resp.setContentType("text/turtle");
+			resp.setContentLength(body.length);
+			resp.getOutputStream().write(body);
+		}
+
+	}
+
+}
@@ -0,0 +1,155 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpURLConnection;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Test;
+
+import eu.europeana.lod.data.TracingTest.ResourceServlet;
+
+/**
+ * This class verifies that data requests are answered with 304 Not Modified
+ * if the client's copy is still valid, both when the response is serialized
+ * from a model and when it is served from the response cache
+ *
+ * @author agent
+ *
+ */
+public class ConditionalRequestTest {
+
+	private static final String RESOURCE = "/data/item/00000/1";
+
+	private ServletTester tester;
+
+	private String baseURL;
+
+	@After
+	public void tearDown() throws Exception {
+		tester.stop();
+	}
+
+	@Test
+	public void testModel() throws Exception {
+
+		start("0");
+
+		// conditional requests are not streamed, so that the validators are
+		// known up front
+		for (String accept : new String[] { "text/turtle",
+				"application/rdf+xml" }) {
+
+			HttpURLConnection connection = TestSupport.get(baseURL + RESOURCE,
+					accept);
+			connection.setRequestProperty("If-None-Match", "\"other\"");
+			assertEquals(200, connection.getResponseCode());
+			String etag = connection.getHeaderField("ETag");
+			assertNotNull(etag);
+
+			assertEquals(304, getStatus(accept, "If-None-Match", etag));
+			assertEquals(304, getStatus(accept, "If-None-Match", "\"other\", "
+					+ etag));
+		}
+
+	}
+
+	@Test
+	public void testCache() throws Exception {
+
+		start("1048576");
+
+		HttpURLConnection connection = TestSupport.get(baseURL + RESOURCE,
+				"text/turtle");
+		assertEquals(200, connection.getResponseCode());
+		String etag = connection.getHeaderField("ETag");
+		assertNotNull(etag);
+		String lastModified = connection.getHeaderField("Last-Modified");
+		assertNotNull(lastModified);
+
+		// served from the cache, with the same validators
+		connection = TestSupport.get(baseURL + RESOURCE, "text/turtle");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(etag, connection.getHeaderField("ETag"));
+
+		assertEquals(304, getStatus("text/turtle", "If-None-Match", etag));
+		assertEquals(200, getStatus("text/turtle", "If-None-Match",
+				"\"other\""));
+		assertEquals(304, getStatus("text/turtle", "If-Modified-Since",
+				lastModified));
+		assertEquals(200, getStatus("text/turtle", "If-Modified-Since",
+				"Thu, 01 Jan 1970 00:00:00 GMT"));
+
+		// If-None-Match takes precedence
+		connection = TestSupport.get(baseURL + RESOURCE, "text/turtle");
+		connection.setRequestProperty("If-None-Match", "\"other\"");
+		connection.setRequestProperty("If-Modified-Since", lastModified);
+		assertEquals(200, connection.getResponseCode());
+
+	}
+
+	@Test
+	public void testEncoding() throws Exception {
+
+		start("1048576");
+
+		HttpURLConnection connection = TestSupport.get(baseURL + RESOURCE,
+				"text/turtle");
+		assertEquals(200, connection.getResponseCode());
+		String etag = connection.getHeaderField("ETag");
+
+		// a gzip encoded body is a different representation
+		connection = TestSupport.get(baseURL + RESOURCE, "text/turtle");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		String gzipETag = connection.getHeaderField("ETag");
+		assertEquals(etag.substring(0, etag.length() - 1) + "-gzip\"",
+				gzipETag);
+
+		connection = TestSupport.get(baseURL + RESOURCE, "text/turtle");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		connection.setRequestProperty("If-None-Match", etag);
+		assertEquals(200, connection.getResponseCode());
+
+		connection = TestSupport.get(baseURL + RESOURCE, "text/turtle");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		connection.setRequestProperty("If-None-Match", gzipETag);
+		assertEquals(304, connection.getResponseCode());
+		assertTrue(connection.getHeaderField("ETag").endsWith("-gzip\""));
+
+	}
+
+	private void start(String cacheMaxBytes) throws Exception {
+
+		tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		tester.addServlet(ResourceServlet.class, "/resource");
+		baseURL = tester.createSocketConnector(true);
+		holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+		holder.setInitParameter("cacheMaxBytes", cacheMaxBytes);
+		tester.start();
+
+	}
+
+	private int getStatus(String accept, String header, String value)
+			throws Exception {
+
+		HttpURLConnection connection = TestSupport.get(baseURL + RESOURCE,
+				accept);
+		connection.setRequestProperty(header, value);
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+
+	}
+
+}
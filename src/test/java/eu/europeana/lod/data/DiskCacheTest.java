@@ -0,0 +1,279 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.europeana.lod.cache.CachedResponse;
+import eu.europeana.lod.cache.DiskCache;
+import eu.europeana.lod.data.CacheWarmerTest.BlockingResourceServlet;
+import eu.europeana.lod.util.ContentEncoding;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * This class verifies that the disk cache keeps responses across restarts,
+ * expires and compacts them, and serves them instead of the upstream
+ * endpoint
+ *
+ * @author agent
+ *
+ */
+public class DiskCacheTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = TestSupport.createTempDirectory("europeana-lod-diskcache");
+	}
+
+	@After
+	public void tearDown() {
+		TestSupport.delete(directory);
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+
+		long now = System.currentTimeMillis();
+
+		DiskCache cache = new DiskCache(directory, 1024 * 1024, 60000);
+		assertTrue(cache.isRebuilt());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(cache.put(response(i, now, false)));
+		}
+		cache.flush();
+		assertEquals(100, cache.getWrites());
+
+		// unchanged responses are not written again, gzip bodies are added
+		cache.put(response(1, now, false));
+		cache.put(response(1, now, true));
+		cache.put(response(1, now, false));
+		cache.flush();
+		assertEquals(101, cache.getWrites());
+		assertEquals(100, cache.size());
+		cache.close();
+
+		cache = new DiskCache(directory, 1024 * 1024, 60000);
+		try {
+			assertFalse(cache.isRebuilt());
+			assertEquals(100, cache.size());
+			assertNull(cache.get(ITEM + "1", ContentType.TTL));
+			assertNull(cache.get(ITEM + "100", ContentType.N3));
+
+			DiskCache.Entry entry = cache.get(ITEM + "1", ContentType.N3);
+			assertNotNull(entry);
+			assertEquals("\"etag-1\"", entry.getETag());
+			assertEquals(now, entry.getCreated());
+			assertArrayEquals(body(1), entry.readBody());
+			assertArrayEquals(ContentEncoding.GZIP.encode(body(1)),
+					transferGzipBody(entry));
+			entry.release();
+
+			entry = cache.get(ITEM + "2", ContentType.N3);
+			assertFalse(entry.hasGzipBody());
+			assertArrayEquals(body(2), transferBody(entry));
+			entry.release();
+		} finally {
+			cache.close();
+		}
+
+	}
+
+	@Test
+	public void testRebuild() throws Exception {
+
+		long now = System.currentTimeMillis();
+
+		DiskCache cache = new DiskCache(directory, 1024 * 1024, 60000);
+		for (int i = 0; i < 10; i++) {
+			cache.put(response(i, now, false));
+		}
+		cache.flush();
+		long bytes = cache.getTotalBytes();
+		// not closed, as after a crash, and the last record torn
+		RandomAccessFile segment = new RandomAccessFile(new File(directory,
+				"segment-000001.dat"), "rw");
+		segment.setLength(bytes - 10);
+		segment.close();
+
+		cache = new DiskCache(directory, 1024 * 1024, 60000);
+		try {
+			assertTrue(cache.isRebuilt());
+			assertEquals(9, cache.size());
+			assertArrayEquals(body(8), read(cache, 8));
+			assertNull(cache.get(ITEM + "9", ContentType.N3));
+			assertTrue(cache.put(response(9, now, false)));
+			cache.flush();
+			assertArrayEquals(body(9), read(cache, 9));
+		} finally {
+			cache.close();
+		}
+
+	}
+
+	@Test
+	public void testExpiryAndCompaction() throws Exception {
+
+		long now = System.currentTimeMillis();
+
+		DiskCache cache = new DiskCache(directory, 64 * 1024, 60000, 8 * 1024);
+		try {
+			// expired on arrival
+			assertFalse(cache.put(response(0, now - 60000, false)));
+
+			// expired, but not compacted yet
+			assertTrue(cache.put(response(1, now - 59000, false)));
+			cache.flush();
+			assertEquals(1, cache.size());
+			Thread.sleep(1100);
+			assertNull(cache.get(ITEM + "1", ContentType.N3));
+
+			// far more than fits, the oldest are evicted
+			DiskCache.Entry held = null;
+			for (int i = 2; i < 1000; i++) {
+				assertTrue(cache.put(response(i, now, false)));
+				if (i == 2) {
+					cache.flush();
+					held = cache.get(ITEM + "2", ContentType.N3);
+				}
+			}
+			cache.flush();
+			assertTrue(cache.getTotalBytes() <= 64 * 1024);
+			assertEquals(999, cache.getWrites());
+			assertTrue(cache.getCompactions() > 0);
+			assertTrue(cache.getEvictions() > 0);
+			assertTrue(cache.size() < 500);
+			assertNull(cache.get(ITEM + "2", ContentType.N3));
+			assertArrayEquals(body(999), read(cache, 999));
+
+			// compacted segments stay readable while an entry is held
+			assertArrayEquals(body(2), held.readBody());
+			held.release();
+
+			// updated responses are live, older records are dropped
+			for (int i = 0; i < 200; i++) {
+				assertTrue(cache.put(new CachedResponse(ITEM + 999,
+						ContentType.N3, body(999), null, "\"etag-999-" + i
+								+ "\"", now + i, now + i + 60000)));
+			}
+			cache.flush();
+			assertTrue(cache.getTotalBytes() <= 64 * 1024);
+			assertEquals(now + 199, cache.get(ITEM + "999", ContentType.N3)
+					.getCreated());
+		} finally {
+			cache.close();
+		}
+
+	}
+
+	@Test
+	public void testServlet() throws Exception {
+
+		BlockingResourceServlet.release = new CountDownLatch(0);
+		BlockingResourceServlet.requests.set(0);
+
+		for (int run = 0; run < 2; run++) {
+
+			ServletTester tester = new ServletTester();
+			tester.setContextPath("/");
+			ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+					"/*");
+			tester.addServlet(BlockingResourceServlet.class, "/resource");
+			String baseURL = tester.createSocketConnector(true);
+			holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+			holder.setInitParameter("diskCacheDir", directory.getPath());
+			tester.start();
+
+			try {
+				HttpURLConnection connection = TestSupport.get(baseURL
+						+ "/data/item/00000/1", "application/rdf+xml");
+				assertEquals(200, connection.getResponseCode());
+				Model model = ModelFactory.createDefaultModel();
+				model.read(connection.getInputStream(), null);
+				assertEquals(1, model.size());
+
+				if (run > 0) {
+					// served from disk, with validators
+					String etag = connection.getHeaderField("ETag");
+					assertNotNull(etag);
+					connection = TestSupport.get(baseURL
+							+ "/data/item/00000/1", "application/rdf+xml");
+					connection.setRequestProperty("If-None-Match", etag);
+					assertEquals(304, connection.getResponseCode());
+				}
+			} finally {
+				tester.stop();
+			}
+
+			assertEquals(1, BlockingResourceServlet.requests.get());
+		}
+
+	}
+
+	private static CachedResponse response(int i, long created, boolean gzip)
+			throws IOException {
+		return new CachedResponse(ITEM + i, ContentType.N3, body(i),
+				gzip ? ContentEncoding.GZIP.encode(body(i)) : null, "\"etag-"
+						+ i + "\"", created, created + 60000);
+	}
+
+	private static byte[] body(int i) throws IOException {
+
+		StringBuilder body = new StringBuilder();
+		for (int n = 0; n < 4; n++) {
+			body.append("<" + ITEM + i
+					+ "> <http://purl.org/dc/elements/1.1/title> \"Item " + i
+					+ " " + n + "\" .\n");
+		}
+		return body.toString().getBytes("UTF-8");
+	}
+
+	private static byte[] read(DiskCache cache, int i) throws IOException {
+
+		DiskCache.Entry entry = cache.get(ITEM + i, ContentType.N3);
+		assertNotNull(entry);
+		try {
+			return transferBody(entry);
+		} finally {
+			entry.release();
+		}
+	}
+
+	private static byte[] transferBody(DiskCache.Entry entry)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entry.transferBody(Channels.newChannel(out));
+		return out.toByteArray();
+	}
+
+	private static byte[] transferGzipBody(DiskCache.Entry entry)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entry.transferGzipBody(Channels.newChannel(out));
+		return out.toByteArray();
+	}
+
+}
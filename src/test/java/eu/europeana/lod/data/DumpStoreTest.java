@@ -0,0 +1,207 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Triple;
+
+import eu.europeana.lod.rdf.TripleHandler;
+import eu.europeana.lod.store.DumpStore;
+import eu.europeana.lod.store.DumpStoreBuilder;
+
+/**
+ * This class verifies that resources are looked up correctly in a store built
+ * from N-Triples dumps
+ *
+ * @author agent
+ *
+ */
+public class DumpStoreTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private static final String TITLE = "<http://purl.org/dc/elements/1.1/title>";
+
+	private File directory;
+
+	private DumpStore store;
+
+	@Before
+	public void setUp() throws Exception {
+
+		directory = TestSupport.createTempDirectory("europeana-lod-store");
+
+		File plain = new File(directory, "a.nt");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(plain),
+				"UTF-8");
+		for (int i = 0; i < 20; i += 2) {
+			writeItem(writer, i);
+		}
+		writer.write("_:b0 " + TITLE + " \"blank\" .\n");
+		writer.write("<" + ITEM + "100> " + TITLE + " _:b0 .\n");
+		writer.close();
+
+		File compressed = new File(directory, "b.nt.bz2");
+		OutputStream out = new BZip2CompressorOutputStream(
+				new FileOutputStream(compressed));
+		writer = new OutputStreamWriter(out, "UTF-8");
+		writer.write("# odd items\n\n");
+		for (int i = 19; i > 0; i -= 2) {
+			writeItem(writer, i);
+		}
+		writer.close();
+
+		// tiny runs to exercise the merge
+		DumpStoreBuilder builder = new DumpStoreBuilder(new File(directory,
+				"store"), 7);
+		builder.add(plain);
+		builder.add(compressed);
+		builder.build();
+
+		assertEquals(41, builder.getTripleCount());
+		assertEquals(21, builder.getSubjectCount());
+
+		store = new DumpStore(new File(directory, "store"));
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+		TestSupport.delete(directory);
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+
+		for (int i = 0; i < 20; i++) {
+			List<Triple> triples = describe(ITEM + i);
+			assertEquals("Triples of item " + i, 2, triples.size());
+			for (Triple triple : triples) {
+				assertEquals(ITEM + i, triple.getSubject().getURI());
+			}
+		}
+
+	}
+
+	@Test
+	public void testUnknownResources() throws Exception {
+
+		final List<Triple> triples = new ArrayList<Triple>();
+		TripleHandler handler = new TripleHandler() {
+			public void handle(Triple triple) {
+				triples.add(triple);
+			}
+		};
+
+		assertFalse(store.describe("http://data.europeana.eu/item/", handler));
+		assertFalse(store.describe(ITEM + "1x", handler));
+		assertFalse(store.describe(ITEM + "99", handler));
+		assertFalse(store.describe("http://zzz.example.org/", handler));
+		assertTrue(triples.isEmpty());
+
+	}
+
+	@Test
+	public void testLiterals() throws Exception {
+
+		for (Triple triple : describe(ITEM + "7")) {
+			if (triple.getObject().isLiteral()) {
+				assertEquals("Objet n°7 \"quoted\"", triple.getObject()
+						.getLiteralLexicalForm());
+				assertEquals("fr", triple.getObject().getLiteralLanguage());
+			}
+		}
+
+	}
+
+	@Test
+	public void testTransfer() throws Exception {
+
+		DumpStore.Range range = store.find(ITEM + "7");
+		assertFalse(range.hasBlankObjects());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		store.transferTo(range, Channels.newChannel(out));
+
+		String[] lines = new String(out.toByteArray(), "UTF-8").split("\n");
+		assertEquals(range.getLength(), out.size());
+		assertEquals(2, lines.length);
+		for (String line : lines) {
+			assertTrue(line.startsWith("<" + ITEM + "7> "));
+		}
+
+	}
+
+	@Test
+	public void testBlankObjects() throws Exception {
+
+		assertTrue(store.find(ITEM + "100").hasBlankObjects());
+		assertEquals(1, describe(ITEM + "100").size());
+
+	}
+
+	@Test
+	public void testInterruptedBuild() throws Exception {
+
+		File storeDirectory = new File(directory, "store");
+		assertTrue(DumpStore.exists(storeDirectory));
+
+		// as if the build stopped between moving the data and index file
+		File pending = new File(storeDirectory, "store.pending");
+		assertTrue(pending.createNewFile());
+		assertFalse(DumpStore.exists(storeDirectory));
+		try {
+			new DumpStore(storeDirectory).close();
+			fail("Incomplete store opened");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// the next build completes it
+		DumpStoreBuilder builder = new DumpStoreBuilder(storeDirectory);
+		builder.add("<" + ITEM + "0> " + TITLE + " \"rebuilt\" .");
+		builder.build();
+		assertFalse(pending.exists());
+		assertTrue(DumpStore.exists(storeDirectory));
+
+	}
+
+	private List<Triple> describe(String resourceURI) throws IOException {
+
+		final List<Triple> triples = new ArrayList<Triple>();
+		store.describe(resourceURI, new TripleHandler() {
+			public void handle(Triple triple) {
+				triples.add(triple);
+			}
+		});
+		return triples;
+
+	}
+
+	private static void writeItem(Writer writer, int i) throws IOException {
+		writer.write("<" + ITEM + i + "> " + TITLE + " \"Objet n°" + i
+				+ " \\\"quoted\\\"\"@fr .\n");
+		writer.write("<" + ITEM + i
+				+ "> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://www.europeana.eu/schemas/edm/ProvidedCHO> .\n");
+	}
+
+}
@@ -14,8 +14,8 @@ import java.util.Map;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.mortbay.jetty.testing.HttpTester;
-import org.mortbay.jetty.testing.ServletTester;
+import org.eclipse.jetty.testing.HttpTester;
+import org.eclipse.jetty.testing.ServletTester;
 
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
@@ -82,7 +82,7 @@ public class EuropeanaLODServletTest {
 
 		EuropeanaTestResponse expected_response = new EuropeanaTestResponse();
 		expected_response.setStatus(404);
-		expected_response.setContentType("text/html; charset=iso-8859-1");
+		expected_response.setContentType("text/html;charset=ISO-8859-1");
 
 		EuropeanaTestResponse response = tester.getEuropeanaResponse(request);
 
@@ -487,7 +487,7 @@ public class EuropeanaLODServletTest {
 		}
 
 		public void setContentType(String contentType) {
-			super.setHeader("Content-Type", contentType);
+			super.setContentType(contentType);
 		}
 
 		public String getContentType() {
@@ -0,0 +1,217 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.europeana.lod.store.ExistenceFilter;
+import eu.europeana.lod.util.BloomFilter;
+
+/**
+ * This class verifies that requests for resources not in the dumps are
+ * rejected without reaching the upstream endpoint
+ *
+ * @author agent
+ *
+ */
+public class ExistenceFilterTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private static final String TITLE = "<http://purl.org/dc/elements/1.1/title>";
+
+	private File directory;
+
+	private File dump;
+
+	@Before
+	public void setUp() throws Exception {
+
+		// items 0-99 in a dump store, 100-199 in a dump
+		directory = TestSupport.buildDumpStore("europeana-lod-existence", 100);
+
+		dump = File.createTempFile("europeana-lod-existence", ".nt");
+		Writer out = new OutputStreamWriter(new FileOutputStream(dump), "UTF-8");
+		out.write("# dump\n");
+		for (int i = 100; i < 200; i++) {
+			out.write("<" + ITEM + i + ">\t" + TITLE + "\t\"Item " + i + "\" .\n");
+			out.write("<" + ITEM + i + "> " + TITLE + " \"Objekt " + i + "\" .\n");
+			out.write("_:b" + i + " " + TITLE + " \"Blank\" .\n");
+		}
+		out.close();
+
+	}
+
+	@After
+	public void tearDown() {
+
+		TestSupport.delete(directory);
+		dump.delete();
+
+	}
+
+	@Test
+	public void testBloomFilter() {
+
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		Random random = new Random(42);
+		long[] added = new long[10000];
+		for (int i = 0; i < added.length; i++) {
+			added[i] = random.nextLong();
+			filter.add(added[i]);
+		}
+
+		for (long hash : added) {
+			assertTrue(filter.mightContain(hash));
+		}
+
+		int falsePositives = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (filter.mightContain(random.nextLong())) {
+				falsePositives++;
+			}
+		}
+		assertTrue("False positives " + falsePositives, falsePositives < 2000);
+
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+
+		List<File> sources = Arrays.asList(directory, dump);
+		ExistenceFilter filter = ExistenceFilter.load(sources, 0.001);
+
+		assertEquals(200, filter.getResourceCount());
+		for (int i = 0; i < 200; i++) {
+			assertTrue(filter.mightExist(ITEM + i));
+		}
+		assertFalse(filter.mightExist(ITEM + "200"));
+		assertFalse(filter.isStale(sources));
+
+		dump.setLastModified(dump.lastModified() - 60000);
+		assertTrue(filter.isStale(sources));
+
+		try {
+			ExistenceFilter.load(Arrays.asList(new File(directory, "missing")),
+					0.01);
+			fail("Loaded a missing dump");
+		} catch (IOException e) {
+			// expected
+		}
+
+	}
+
+	@Test
+	public void testUnknownResources() throws Exception {
+
+		ServletTester tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		tester.addServlet(ResourceServlet.class, "/resource");
+		tester.addServlet(ResourceServlet.class, "/sparql");
+		String baseURL = tester.createSocketConnector(true);
+		holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+		holder.setInitParameter("existenceDumps", directory.getPath() + ", "
+				+ dump.getPath());
+		tester.start();
+
+		ResourceServlet.requests.clear();
+
+		try {
+			assertEquals(404, TestSupport.getStatus(baseURL
+					+ "/data/item/00000/200"));
+			assertEquals(404, TestSupport.getStatus(baseURL + "/item/00000/200"));
+			assertTrue(ResourceServlet.requests.isEmpty());
+
+			assertEquals(200, TestSupport.getStatus(baseURL
+					+ "/data/item/00000/150"));
+			assertEquals(303, TestSupport.getStatus(baseURL + "/item/00000/50"));
+			assertEquals(1, ResourceServlet.requests.size());
+
+			// unknown resources are left out of batches
+			assertEquals(404, TestSupport.postBatch(baseURL, "text/n3",
+					"00000/200 00000/201").getResponseCode());
+			assertEquals(1, ResourceServlet.requests.size());
+			assertEquals(200, TestSupport.postBatch(baseURL, "text/n3",
+					"00000/1 00000/200").getResponseCode());
+			assertEquals("DESCRIBE <" + ITEM + "1>", ResourceServlet.requests
+					.get(1));
+		} finally {
+			tester.stop();
+		}
+
+	}
+
+	/**
+	 * Records the requested resources or queries and describes each resource
+	 * by a title
+	 */
+	public static class ResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		static final List<String> requests = new ArrayList<String>();
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			String uri = req.getParameter("uri");
+			synchronized (requests) {
+				requests.add(uri);
+			}
+			write(resp, "<rdf:Description rdf:about=\"" + uri
+					+ "\"><dc:title>Item</dc:title></rdf:Description>");
+
+		}
+
+		@Override
+		protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			String query = req.getParameter("query");
+			synchronized (requests) {
+				requests.add(query);
+			}
+			write(resp, "<rdf:Description rdf:about=\"" + ITEM
+					+ "1\"><dc:title>Item</dc:title></rdf:Description>");
+
+		}
+
+		private static void write(HttpServletResponse resp, String description)
+				throws IOException {
+
+			resp.setContentType("application/rdf+xml");
+			resp.getWriter().write(
+					"<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" "
+							+ "xmlns:dc=\"http://purl.org/dc/elements/1.1/\">"
+							+ description + "</rdf:RDF>");
+
+		}
+
+	}
+
+}
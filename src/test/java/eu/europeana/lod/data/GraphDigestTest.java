@@ -0,0 +1,107 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.europeana.lod.util.GraphDigest;
+
+/**
+ * This class verifies that graph digests (used for entity tags) depend on the
+ * graph only, not on triple order or serialization
+ * 
+ * @author agent
+ * 
+ */
+public class GraphDigestTest {
+
+	private static final String ITEM = "<http://data.europeana.eu/item/00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154>";
+
+	private static final String TYPE = ITEM
+			+ " <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://www.europeana.eu/schemas/edm/ProvidedCHO> .\n";
+
+	private static final String TITLE = ITEM
+			+ " <http://purl.org/dc/elements/1.1/title> \"Mona Lisa\"@en .\n";
+
+	@Test
+	public void testOrderIndependence() throws Exception {
+
+		assertEquals(GraphDigest.digest(read(TYPE + TITLE, "N-TRIPLES")),
+				GraphDigest.digest(read(TITLE + TYPE, "N-TRIPLES")));
+
+	}
+
+	@Test
+	public void testFormatIndependence() throws Exception {
+
+		Model model = read(TYPE + TITLE, "N-TRIPLES");
+
+		StringWriter turtle = new StringWriter();
+		model.write(turtle, "TURTLE");
+
+		assertEquals(GraphDigest.digest(model),
+				GraphDigest.digest(read(turtle.toString(), "TURTLE")));
+
+	}
+
+	@Test
+	public void testDifferentGraphs() throws Exception {
+
+		assertFalse(GraphDigest.digest(read(TYPE, "N-TRIPLES")).equals(
+				GraphDigest.digest(read(TYPE + TITLE, "N-TRIPLES"))));
+
+	}
+
+	@Test
+	public void testNTriplesLines() throws Exception {
+
+		String ntriples = TYPE
+				+ TITLE
+				+ ITEM
+				+ " <http://purl.org/dc/elements/1.1/description> \"Stra\\u00DFe in \\\"Wien\\\"\\n2. Bezirk\"@de-AT .\n"
+				+ ITEM
+				+ "\t<http://purl.org/dc/elements/1.1/date>\t\"1911\"^^<http://www.w3.org/2001/XMLSchema#gYear>\t.\r\n"
+				+ "\n# a comment\n"
+				+ ITEM
+				+ " <http://purl.org/dc/elements/1.1/creator> _:b1 .\n"
+				+ "_:b1 <http://purl.org/dc/elements/1.1/title> \"anonymous\" .\n"
+				+ "<http://data.europeana.eu/item/00000/\\u00E9> <http://purl.org/dc/elements/1.1/title> \"\" .\n";
+
+		GraphDigest digest = new GraphDigest();
+		for (String line : ntriples.split("\n")) {
+			digest.add(line);
+		}
+
+		assertEquals(7, digest.size());
+		assertEquals(GraphDigest.digest(read(ntriples, "N-TRIPLES")), digest
+				.toString());
+
+		for (String line : new String[] { ITEM + " <p> .",
+				ITEM + " <p> \"open .", ITEM + " <p> <o>",
+				ITEM + " <p> \"\\x\" ." }) {
+			try {
+				digest.add(line);
+				fail("Invalid line added: " + line);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		assertEquals(7, digest.size());
+
+	}
+
+	private Model read(String content, String lang) {
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader(content), null, lang);
+		return model;
+	}
+
+}
@@ -0,0 +1,213 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.europeana.lod.metrics.Histogram;
+
+/**
+ * This class verifies that request and stage metrics are recorded and exposed
+ * as text and over JMX
+ * 
+ * @author agent
+ * 
+ */
+public class MetricsTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private static final String PREFIX = "europeana_lod_";
+
+	private File directory;
+
+	private ServletTester tester;
+
+	private String baseURL;
+
+	@Before
+	public void setUp() throws Exception {
+
+		directory = TestSupport.buildDumpStore("europeana-lod-metrics", 10);
+
+		tester = new ServletTester();
+		TestSupport.addDumpStoreServlet(tester, directory);
+		tester.addServlet(MetricsServlet.class, "/metrics");
+		baseURL = tester.createSocketConnector(true);
+		tester.start();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tester.stop();
+		TestSupport.delete(directory);
+	}
+
+	@Test
+	public void testHistogram() {
+
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(50));
+
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000000L);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050000000L, histogram.getSum());
+		assertEquals(100000000L, histogram.getMax());
+
+		// within the bucket resolution of 25%
+		long median = histogram.getPercentile(50);
+		assertTrue(median >= 50000000L && median <= 62500000L);
+		assertEquals(100000000L, histogram.getPercentile(100));
+
+	}
+
+	@Test
+	public void testTextMetrics() throws Exception {
+
+		assertEquals(200, get("/data/item/00000/1", "text/turtle"));
+		assertEquals(200, get("/data/item/00000/2", "text/turtle"));
+		assertEquals(200, get("/data/item/00000/3", "text/n3"));
+		assertEquals(303, get("/item/00000/1", "text/html"));
+		assertEquals(404, get("/data/item/00000/99", "application/rdf+xml"));
+		assertEquals(404, get("/unknown", "text/html"));
+
+		Map<String, String> metrics = readMetrics(6);
+
+		assertEquals("2", metrics.get(PREFIX
+				+ "request_seconds_count{resource_type=\"item\",content_type=\"ttl\"}"));
+		assertEquals("2", metrics.get(PREFIX
+				+ "stage_seconds_count{stage=\"rdf_parse\",resource_type=\"item\",content_type=\"ttl\"}"));
+		assertEquals("2", metrics.get(PREFIX
+				+ "stage_seconds_count{stage=\"serialization\",resource_type=\"item\",content_type=\"ttl\"}"));
+		assertEquals("1", metrics.get(PREFIX
+				+ "stage_seconds_count{stage=\"upstream_fetch\",resource_type=\"item\",content_type=\"n3\"}"));
+		assertEquals("1", metrics.get(PREFIX
+				+ "request_seconds_count{resource_type=\"item\",content_type=\"html\"}"));
+		assertEquals("1", metrics.get(PREFIX
+				+ "request_seconds_count{resource_type=\"none\",content_type=\"none\"}"));
+
+		assertEquals("3", metrics.get(PREFIX + "responses_total{status=\"200\"}"));
+		assertEquals("1", metrics.get(PREFIX + "responses_total{status=\"303\"}"));
+		assertEquals("2", metrics.get(PREFIX + "responses_total{status=\"404\"}"));
+
+		assertTrue(Long.parseLong(metrics.get(PREFIX
+				+ "response_bytes_total{resource_type=\"item\",content_type=\"n3\"}")) > 0);
+
+	}
+
+	@Test
+	public void testJMXMetrics() throws Exception {
+
+		assertEquals(200, get("/data/item/00000/1", "application/rdf+xml"));
+		assertEquals(404, get("/data/item/00000/99", "application/rdf+xml"));
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"eu.europeana.lod:type=Metrics,name=\"/\"");
+
+		// requests are recorded once their response has been sent
+		readMetrics(2);
+
+		assertEquals(1L, server.getAttribute(name, "status.200"));
+		assertEquals(1L, server.getAttribute(name, "status.404"));
+		assertEquals(2L, server.getAttribute(name,
+				"request.item.rdf.count"));
+		assertTrue((Double) server.getAttribute(name,
+				"stage.serialization.item.rdf.p99Millis") > 0);
+
+		tester.stop();
+		assertTrue(!server.isRegistered(name));
+		tester.start();
+
+	}
+
+	private int get(String path, String accept) throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseURL
+				+ path).openConnection();
+		connection.setInstanceFollowRedirects(false);
+		connection.setRequestProperty("Accept", accept);
+
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream()
+				: connection.getErrorStream();
+		if (in != null) {
+			while (in.read() >= 0) {
+			}
+			in.close();
+		}
+		return status;
+
+	}
+
+	/**
+	 * Reads the text metrics once a given number of responses has been
+	 * recorded
+	 */
+	private Map<String, String> readMetrics(int responses) throws Exception {
+
+		for (int i = 0; i < 100; i++) {
+			Map<String, String> metrics = readMetrics();
+			int recorded = 0;
+			for (Map.Entry<String, String> metric : metrics.entrySet()) {
+				if (metric.getKey().startsWith(PREFIX + "responses_total")) {
+					recorded += Integer.parseInt(metric.getValue());
+				}
+			}
+			if (recorded >= responses) {
+				return metrics;
+			}
+			Thread.sleep(20);
+		}
+		return readMetrics();
+
+	}
+
+	/**
+	 * Reads the text metrics into a map from series to value
+	 */
+	private Map<String, String> readMetrics() throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseURL
+				+ "/metrics").openConnection();
+		assertEquals(200, connection.getResponseCode());
+		assertTrue(connection.getContentType().startsWith("text/plain"));
+
+		Map<String, String> metrics = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				connection.getInputStream(), "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (!line.startsWith("#")) {
+				int space = line.lastIndexOf(' ');
+				metrics.put(line.substring(0, space), line.substring(space + 1));
+			}
+		}
+		reader.close();
+		return metrics;
+
+	}
+
+}
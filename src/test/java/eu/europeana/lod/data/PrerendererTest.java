@@ -0,0 +1,227 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.europeana.lod.rdf.BlankNodeRules;
+import eu.europeana.lod.store.DumpStore;
+import eu.europeana.lod.store.DumpStoreBuilder;
+import eu.europeana.lod.store.RenderedStore;
+import eu.europeana.lod.store.RenderedStoreWriter;
+import eu.europeana.lod.util.ContentEncoding;
+import eu.europeana.lod.util.GraphDigest;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * This class verifies that pre-rendered responses contain the same graph as
+ * the dump they were rendered from
+ *
+ * @author agent
+ *
+ */
+public class PrerendererTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private File directory;
+
+	private RenderedStore renderedStore;
+
+	@Before
+	public void setUp() throws Exception {
+
+		directory = TestSupport.createTempDirectory("europeana-lod-rendered");
+
+		DumpStoreBuilder builder = new DumpStoreBuilder(new File(directory,
+				"store"));
+		for (int i = 0; i < 50; i++) {
+			builder.add("<" + ITEM + i
+					+ "> <http://purl.org/dc/elements/1.1/title> \"Item " + i
+					+ "\"@en .");
+			builder.add("<" + ITEM + i
+					+ "> <http://purl.org/dc/elements/1.1/subject> <http://data.europeana.eu/concept/" + i % 3 + "> .");
+		}
+		// blank nodes only: nothing left to render
+		builder.add("<" + ITEM + "blank> <http://purl.org/dc/elements/1.1/subject> _:b1 .");
+		builder.build();
+
+		DumpStore dumpStore = new DumpStore(new File(directory, "store"));
+		try {
+			long resources = new Prerenderer(dumpStore, BlankNodeRules.DROP,
+					false, 3).render(new File(directory, "rendered"));
+			assertEquals(50, resources);
+		} finally {
+			dumpStore.close();
+		}
+
+		renderedStore = new RenderedStore(new File(directory, "rendered"));
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		renderedStore.close();
+		TestSupport.delete(directory);
+	}
+
+	@Test
+	public void testRenderedGraphs() throws Exception {
+
+		for (int i = 0; i < 50; i++) {
+
+			String digest = null;
+
+			for (ContentType contentType : RenderedStore.CONTENT_TYPES) {
+
+				RenderedStore.Rendered rendered = renderedStore.get(ITEM + i,
+						contentType);
+				assertNotNull(ITEM + i + " " + contentType, rendered);
+
+				Model model = parse(rendered.getBody(), contentType);
+				assertEquals(2, model.size());
+				assertEquals(GraphDigest.digest(model), rendered.getDigest());
+
+				if (digest != null) {
+					assertEquals(digest, rendered.getDigest());
+				}
+				digest = rendered.getDigest();
+
+				// the gzip encoded body decodes to the plain one
+				RenderedStore.Rendered gzipped = renderedStore.get(ITEM + i,
+						contentType, ContentEncoding.GZIP);
+				assertArrayEquals(rendered.getBody(), gunzip(gzipped.getBody()));
+			}
+		}
+
+	}
+
+	@Test
+	public void testMissingResources() throws Exception {
+
+		assertNull(renderedStore.get(ITEM + "blank", ContentType.N3));
+		assertNull(renderedStore.get(ITEM + "50", ContentType.RDF));
+		assertNull(renderedStore.get(ITEM + "1", ContentType.HTML));
+
+	}
+
+	@Test
+	public void testInterruptedRender() throws Exception {
+
+		File renderedDirectory = new File(directory, "rendered");
+		assertTrue(RenderedStore.exists(renderedDirectory));
+
+		// as if the render stopped between moving the data and index file
+		File pending = new File(renderedDirectory, "rendered.pending");
+		assertTrue(pending.createNewFile());
+		assertFalse(RenderedStore.exists(renderedDirectory));
+		try {
+			new RenderedStore(renderedDirectory).close();
+			fail("Incomplete store opened");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// the next render completes it
+		RenderedStoreWriter writer = new RenderedStoreWriter(
+				renderedDirectory, false);
+		writer.close();
+		assertFalse(pending.exists());
+		assertTrue(RenderedStore.exists(renderedDirectory));
+
+	}
+
+	@Test
+	public void testAbbreviatedRDFXML() throws Exception {
+
+		assertFalse(renderedStore.isAbbreviatedRDFXML());
+
+		File abbrevDirectory = new File(directory, "abbrev");
+		DumpStore dumpStore = new DumpStore(new File(directory, "store"));
+		try {
+			new Prerenderer(dumpStore, BlankNodeRules.DROP, true, 3)
+					.render(abbrevDirectory);
+		} finally {
+			dumpStore.close();
+		}
+
+		RenderedStore abbrevStore = new RenderedStore(abbrevDirectory);
+		try {
+			assertTrue(abbrevStore.isAbbreviatedRDFXML());
+
+			// the same graph, written by the other writer
+			RenderedStore.Rendered plain = renderedStore.get(ITEM + 1,
+					ContentType.RDF);
+			RenderedStore.Rendered abbrev = abbrevStore.get(ITEM + 1,
+					ContentType.RDF);
+			assertEquals(plain.getDigest(), abbrev.getDigest());
+			assertFalse(new String(plain.getBody(), "UTF-8")
+					.equals(new String(abbrev.getBody(), "UTF-8")));
+			assertTrue(parse(plain.getBody(), ContentType.RDF).isIsomorphicWith(
+					parse(abbrev.getBody(), ContentType.RDF)));
+		} finally {
+			abbrevStore.close();
+		}
+
+		// rendering plain again drops the flag
+		dumpStore = new DumpStore(new File(directory, "store"));
+		try {
+			new Prerenderer(dumpStore, BlankNodeRules.DROP, false, 3)
+					.render(abbrevDirectory);
+		} finally {
+			dumpStore.close();
+		}
+		abbrevStore = new RenderedStore(abbrevDirectory);
+		assertFalse(abbrevStore.isAbbreviatedRDFXML());
+		abbrevStore.close();
+
+	}
+
+	private static Model parse(byte[] body, ContentType contentType)
+			throws IOException {
+
+		String lang = "RDF/XML";
+		if (contentType == ContentType.TTL) {
+			lang = "TURTLE";
+		} else if (contentType == ContentType.N3) {
+			lang = "N-TRIPLE";
+		}
+
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new ByteArrayInputStream(body), null, lang);
+		return model;
+
+	}
+
+	private static byte[] gunzip(byte[] body) throws IOException {
+
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+
+	}
+
+}
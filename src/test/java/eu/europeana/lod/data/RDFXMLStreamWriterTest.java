@@ -0,0 +1,156 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.InvalidPropertyURIException;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import eu.europeana.lod.rdf.RDFXMLStreamWriter;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * This class verifies that plain RDF/XML written by the stream writer reads
+ * back as the graph written
+ *
+ * @author agent
+ *
+ */
+public class RDFXMLStreamWriterTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private static final String DC = "http://purl.org/dc/elements/1.1/";
+
+	@Test
+	public void testModel() throws Exception {
+
+		Model model = ModelFactory.createDefaultModel();
+		model.setNsPrefix("dc", DC);
+
+		Resource item = model.createResource(ITEM + "1?a=1&b=\"2\"");
+		item.addProperty(RDF.type, model
+				.createResource("http://www.europeana.eu/schemas/edm/ProvidedCHO"));
+		item.addProperty(model.createProperty(DC, "title"),
+				"Ansicht der Stadt Wien <&> \"Belvedere\"", "de");
+		item.addProperty(model.createProperty(DC, "description"),
+				"Zeile 1\nZeile 2\r\n\tÖl auf Leinwand, € 100, 🎨");
+		item.addLiteral(model
+				.createProperty("http://example.org/ns/extent"), model
+				.createTypedLiteral("135", XSDDatatype.XSDinteger));
+
+		Resource place = model.createResource();
+		item.addProperty(model.createProperty("http://purl.org/dc/terms/",
+				"spatial"), place);
+		place.addProperty(model.createProperty(
+				"http://www.w3.org/2003/01/geo/wgs84_pos#", "lat"), "48.19");
+
+		for (boolean abbreviate : new boolean[] { false, true }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			EuropeanaResponse.render(model, ContentType.RDF, abbreviate, out);
+
+			Model read = read(out.toByteArray());
+			assertTrue(read.isIsomorphicWith(model));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RDFXMLStreamWriter.write(model, out);
+		String rdfXml = new String(out.toByteArray(), "UTF-8");
+		assertTrue(rdfXml.contains("<dc:title xml:lang=\"de\">"));
+		assertTrue(rdfXml.contains("€ 100, 🎨"));
+
+	}
+
+	@Test
+	public void testStream() throws Exception {
+
+		Map<String, String> namespaces = new HashMap<String, String>();
+		namespaces.put("dc", DC);
+		namespaces.put("", "http://example.org/default#");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RDFXMLStreamWriter writer = new RDFXMLStreamWriter(out, namespaces, 16);
+
+		// subjects are interleaved, one namespace is not declared up front
+		Model model = ModelFactory.createDefaultModel();
+		String[] predicates = { DC + "title", "http://example.org/ns#label",
+				DC + "title" };
+		for (int i = 0; i < 6; i++) {
+			Triple triple = Triple.create(Node.createURI(ITEM + (i % 2)), Node
+					.createURI(predicates[i % 3]), Node.createLiteral("Title "
+					+ i));
+			writer.handle(triple);
+			model.getGraph().add(triple);
+		}
+		assertEquals(6, writer.getTripleCount());
+		writer.finish();
+
+		assertTrue(read(out.toByteArray()).isIsomorphicWith(model));
+
+		// an empty stream is an empty document
+		out = new ByteArrayOutputStream();
+		new RDFXMLStreamWriter(out).finish();
+		assertTrue(read(out.toByteArray()).isEmpty());
+
+	}
+
+	@Test
+	public void testControlCharacters() throws Exception {
+
+		Model model = ModelFactory.createDefaultModel();
+		model.createResource(ITEM + "1").addProperty(
+				model.createProperty(DC + "title"),
+				"Tab\tline\nreturn\r\u0001bell\u0007\uffff");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RDFXMLStreamWriter.write(model, out);
+
+		// well-formed XML 1.0, with the characters it does not allow dropped
+		DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+				new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("Tab\tline\nreturn\rbell", read(out.toByteArray())
+				.listObjects().next().asLiteral().getLexicalForm());
+
+	}
+
+	@Test
+	public void testInvalidProperty() throws Exception {
+
+		Model model = ModelFactory.createDefaultModel();
+		model.createResource(ITEM + "1").addProperty(
+				model.createProperty("http://example.org/1/"), "x");
+
+		try {
+			RDFXMLStreamWriter.write(model, new ByteArrayOutputStream());
+			fail("Wrote a property without local name");
+		} catch (InvalidPropertyURIException e) {
+			// expected
+		}
+
+	}
+
+	private static Model read(byte[] rdfXml) {
+
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new ByteArrayInputStream(rdfXml), null);
+		return model;
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.europeana.lod.data.EuropeanaRequest.ResourceType;
+import eu.europeana.lod.data.ResourceRouter.Route;
+import eu.europeana.lod.store.DumpStoreBuilder;
+
+/**
+ * This class verifies that request paths are routed to the built-in and
+ * configured resource types
+ *
+ * @author agent
+ *
+ */
+public class ResourceRouterTest {
+
+	private static final String CONCEPT = "http://data.europeana.eu/concept/base/";
+
+	@Test
+	public void testDefaultRoutes() {
+
+		ResourceRouter router = ResourceRouter.DEFAULT;
+
+		for (ResourceType resourceType : ResourceType.values()) {
+			Route route = router.route(resourceType + "00000/1");
+			assertEquals(resourceType, route.getResourceType());
+			assertFalse(route.isInformationResource());
+			assertEquals(resourceType.toString().length(), route.getLength());
+
+			route = router.route(EuropeanaRequest.IR_PATH + resourceType
+					+ "00000/1");
+			assertEquals(resourceType, route.getResourceType());
+			assertTrue(route.isInformationResource());
+			assertEquals(resourceType.toString(), route.getPrefix());
+		}
+
+		assertNull(router.route("/concept/base/1"));
+		assertNull(router.route("/data"));
+		assertNull(router.route("/data/"));
+		assertNull(router.route("/dataitem/1"));
+		assertNull(router.route("/proxy/"));
+
+	}
+
+	@Test
+	public void testConfiguredRoutes() {
+
+		ResourceRouter router = ResourceRouter
+				.valueOf("item=/item/, concept=/concept/\n agent=/agent/ "
+						+ "place=/concept/place/");
+
+		assertEquals(4, router.getRoutes().size());
+		assertEquals(ResourceType.ITEM, router.getRoute("item")
+				.getResourceType());
+		assertNull(router.route("/rm/europeana/1"));
+
+		Route route = router.route("/data/agent/base/1");
+		assertEquals("agent", route.getName());
+		assertNull(route.getResourceType());
+		assertTrue(route.isInformationResource());
+
+		// the longest prefix wins
+		assertEquals("concept", router.route("/concept/base/1").getName());
+		assertEquals("place", router.route("/concept/place/1").getName());
+
+		String[] invalid = { "item", "=/item/", "item=item", "item=/",
+				"item=/item/ item=/object/", "item=/item/ object=/item/",
+				"batch=/data/batch/" };
+		for (String config : invalid) {
+			try {
+				ResourceRouter.valueOf(config);
+				fail("Accepted " + config);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+
+	}
+
+	@Test
+	public void testConfiguredResourceType() throws Exception {
+
+		File directory = TestSupport.createTempDirectory("europeana-lod-router");
+
+		DumpStoreBuilder builder = new DumpStoreBuilder(directory);
+		builder.add("<" + CONCEPT + "1> "
+				+ "<http://www.w3.org/2004/02/skos/core#prefLabel> \"Art\"@en .");
+		builder.build();
+
+		ServletTester tester = new ServletTester();
+		ServletHolder holder = TestSupport.addDumpStoreServlet(tester,
+				directory);
+		holder.setInitParameter("resourceTypes",
+				"item=/item/ concept=/concept/");
+		String baseURL = tester.createSocketConnector(true);
+		tester.start();
+
+		try {
+			HttpURLConnection connection = TestSupport.get(baseURL
+					+ "/concept/base/1/", "application/rdf+xml");
+			assertEquals(303, connection.getResponseCode());
+			assertTrue(connection.getHeaderField("Location").endsWith(
+					"/data/concept/base/1"));
+
+			connection = TestSupport.get(baseURL + "/data/concept/base/1",
+					"application/rdf+xml");
+			assertEquals(200, connection.getResponseCode());
+			Model model = ModelFactory.createDefaultModel();
+			model.read(connection.getInputStream(), null);
+			assertEquals(1, model.size());
+			assertTrue(model.containsResource(model.createResource(CONCEPT
+					+ "1")));
+
+			// resource types not configured are not served
+			assertEquals(404, TestSupport.getStatus(baseURL
+					+ "/data/rm/europeana/1"));
+			assertEquals(404, TestSupport.getStatus(baseURL + "/data/concept/"));
+		} finally {
+			tester.stop();
+			TestSupport.delete(directory);
+		}
+
+	}
+
+}
@@ -0,0 +1,70 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import eu.europeana.lod.cache.ResponseCache;
+import eu.europeana.lod.util.AcceptHeaderHandler.ContentType;
+
+/**
+ * This class tests the expiry and eviction behaviour of the response cache
+ * 
+ * @author agent
+ * 
+ */
+public class ResponseCacheTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154";
+
+	@Test
+	public void testKeyedByContentType() throws Exception {
+
+		ResponseCache cache = new ResponseCache(1024, 60000);
+
+		cache.put(ITEM, ContentType.RDF, new byte[10], "\"etag\"");
+
+		assertNotNull(cache.get(ITEM, ContentType.RDF));
+		assertNull(cache.get(ITEM, ContentType.TTL));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+
+		ResponseCache cache = new ResponseCache(1024, 0);
+
+		cache.put(ITEM, ContentType.RDF, new byte[10], "\"etag\"");
+
+		assertNull(cache.get(ITEM, ContentType.RDF));
+		assertEquals(0, cache.getCurrentBytes());
+
+	}
+
+	@Test
+	public void testByteBudget() throws Exception {
+
+		ResponseCache cache = new ResponseCache(100, 60000);
+
+		// larger than a quarter of the budget -> not cached
+		cache.put(ITEM, ContentType.RDF, new byte[30], "\"etag\"");
+		assertNull(cache.get(ITEM, ContentType.RDF));
+
+		for (int i = 0; i < 5; i++) {
+			cache.put(ITEM + i, ContentType.N3, new byte[25], "\"etag\"");
+		}
+
+		// the least recently used entry has been evicted
+		assertEquals(4, cache.size());
+		assertEquals(100, cache.getCurrentBytes());
+		assertNull(cache.get(ITEM + 0, ContentType.N3));
+		assertNotNull(cache.get(ITEM + 4, ContentType.N3));
+
+	}
+
+}
@@ -0,0 +1,172 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * This class verifies that concurrent data requests for the same resource
+ * share a single upstream fetch, whatever content types they ask for, and
+ * that requests waiting for it do not fetch again
+ *
+ * @author agent
+ *
+ */
+public class SharedFetchTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/1";
+
+	private static final String NTRIPLES = "<" + ITEM
+			+ "> <http://purl.org/dc/elements/1.1/title> \"Ansicht\"@de .\n"
+			+ "<" + ITEM
+			+ "> <http://purl.org/dc/elements/1.1/creator> \"Klimt\" .\n";
+
+	@Test
+	public void testContentTypesShareFetch() throws Exception {
+
+		StalledResourceServlet.requests.set(0);
+		StalledResourceServlet.requested = new CountDownLatch(1);
+		StalledResourceServlet.release = new CountDownLatch(1);
+
+		ServletTester tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		tester.addServlet(StalledResourceServlet.class, "/resource");
+		String baseURL = tester.createSocketConnector(true);
+		holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+		holder.setInitOrder(1);
+		tester.start();
+
+		try {
+			EuropeanaLODServlet servlet = (EuropeanaLODServlet) holder
+					.getServlet();
+
+			String url = baseURL + "/data/item/00000/1";
+			String[] accepts = new String[] { "text/n3", "text/turtle",
+					"application/rdf+xml" };
+			String[] langs = new String[] { "N-TRIPLE", "TURTLE", "RDF/XML" };
+
+			Request[] requests = new Request[accepts.length];
+			for (int i = 0; i < requests.length; i++) {
+				requests[i] = new Request(url, accepts[i], langs[i]);
+			}
+
+			// the relayed N-Triples request leads, the others wait for it
+			requests[0].start();
+			assertTrue(StalledResourceServlet.requested.await(5,
+					TimeUnit.SECONDS));
+			for (int i = 1; i < requests.length; i++) {
+				requests[i].start();
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (servlet.fetches.getShared() < requests.length - 1) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(1);
+			}
+			StalledResourceServlet.release.countDown();
+
+			for (Request request : requests) {
+				request.join();
+				assertEquals(request.accept, 200, request.status);
+				assertEquals(request.accept, 2, request.triples);
+			}
+			assertEquals(1, StalledResourceServlet.requests.get());
+		} finally {
+			StalledResourceServlet.release.countDown();
+			tester.stop();
+		}
+
+	}
+
+	/**
+	 * A data request on its own thread; reads the body as a model in a given
+	 * language
+	 */
+	private static class Request extends Thread {
+
+		private final String url;
+
+		private final String accept;
+
+		private final String lang;
+
+		private volatile int status;
+
+		private volatile long triples = -1;
+
+		Request(String url, String accept, String lang) {
+			this.url = url;
+			this.accept = accept;
+			this.lang = lang;
+		}
+
+		@Override
+		public void run() {
+			try {
+				HttpURLConnection connection = TestSupport.get(url, accept);
+				status = connection.getResponseCode();
+				InputStream in = connection.getInputStream();
+				Model model = ModelFactory.createDefaultModel();
+				model.read(in, null, lang);
+				in.close();
+				triples = model.size();
+			} catch (IOException e) {
+				status = -1;
+			}
+		}
+
+	}
+
+	/**
+	 * Counts the upstream requests and describes the item as N-Triples, but
+	 * only once it is released
+	 */
+	public static class StalledResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		static final AtomicInteger requests = new AtomicInteger();
+
+		static volatile CountDownLatch requested;
+
+		static volatile CountDownLatch release;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			requests.incrementAndGet();
+			requested.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			resp.setContentType("application/n-triples; charset=UTF-8");
+			resp.getOutputStream().write(NTRIPLES.getBytes("UTF-8"));
+
+		}
+
+	}
+
+}
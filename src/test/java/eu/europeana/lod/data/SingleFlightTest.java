@@ -0,0 +1,261 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import eu.europeana.lod.upstream.Cancellation;
+import eu.europeana.lod.util.SingleFlight;
+
+/**
+ * This class verifies that concurrent fetches for the same resource are
+ * coalesced into a single call
+ * 
+ * @author agent
+ * 
+ */
+public class SingleFlightTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154";
+
+	@Test
+	public void testConcurrentCallsAreShared() throws Exception {
+
+		final SingleFlight<String> singleFlight = new SingleFlight<String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final Callable<String> fetch = new Callable<String>() {
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				return "model";
+			}
+		};
+
+		final String[] results = new String[8];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[index] = singleFlight.execute(ITEM, fetch);
+					} catch (IOException e) {
+						results[index] = e.getMessage();
+					}
+				}
+			};
+		}
+
+		threads[0].start();
+		started.await();
+		assertTrue(singleFlight.isInFlight(ITEM));
+
+		for (int i = 1; i < threads.length; i++) {
+			threads[i].start();
+		}
+		// give the followers a chance to join the call in flight
+		while (singleFlight.getShared() < threads.length - 1) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, calls.get());
+		for (String result : results) {
+			assertEquals("model", result);
+		}
+		assertFalse(singleFlight.isInFlight(ITEM));
+
+	}
+
+	@Test
+	public void testExceptionsArePropagated() throws Exception {
+
+		SingleFlight<String> singleFlight = new SingleFlight<String>();
+
+		try {
+			singleFlight.execute(ITEM, new Callable<String>() {
+				public String call() throws Exception {
+					throw new IOException("endpoint down");
+				}
+			});
+			fail("IOException expected");
+		} catch (IOException e) {
+			assertEquals("endpoint down", e.getMessage());
+		}
+
+		assertFalse(singleFlight.isInFlight(ITEM));
+
+	}
+
+	@Test
+	public void testWaitIsBounded() throws Exception {
+
+		SingleFlight<String> singleFlight = new SingleFlight<String>(200);
+		CountDownLatch release = startStalledCall(singleFlight);
+
+		// a waiter never calls
+		Callable<String> fetch = new Callable<String>() {
+			public String call() throws Exception {
+				throw new IllegalStateException("called while in flight");
+			}
+		};
+
+		try {
+			// a waiter gives up after the maximum wait
+			long started = System.currentTimeMillis();
+			try {
+				singleFlight.execute(ITEM, fetch);
+				fail("InterruptedIOException expected");
+			} catch (InterruptedIOException e) {
+				assertTrue(System.currentTimeMillis() - started >= 200);
+			}
+
+			// a cancelled waiter gives up at once
+			Cancellation cancellation = new Cancellation();
+			cancellation.cancel();
+			Cancellation.bind(cancellation);
+			try {
+				singleFlight.execute(ITEM, fetch);
+				fail("InterruptedIOException expected");
+			} catch (InterruptedIOException e) {
+				assertTrue(System.currentTimeMillis() - started < 5000);
+			} finally {
+				Cancellation.bind(null);
+			}
+
+			// the call goes on
+			assertTrue(singleFlight.isInFlight(ITEM));
+		} finally {
+			release.countDown();
+		}
+
+	}
+
+	@Test
+	public void testCancelledOnceAllLeft() throws Exception {
+
+		final SingleFlight<String> singleFlight = new SingleFlight<String>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final Cancellation[] call = new Cancellation[1];
+
+		final Callable<String> fetch = new Callable<String>() {
+			public String call() throws Exception {
+				call[0] = Cancellation.current();
+				started.countDown();
+				// an upstream request would be aborted
+				while (!call[0].isCancelled()) {
+					Thread.sleep(1);
+				}
+				throw new IOException("aborted");
+			}
+		};
+
+		Caller leader = new Caller(singleFlight, fetch);
+		leader.start();
+		started.await();
+		Caller waiter = new Caller(singleFlight, fetch);
+		waiter.start();
+		while (singleFlight.getShared() < 1) {
+			Thread.sleep(1);
+		}
+
+		// the call runs with its own cancellation, which the leader leaving
+		// does not cancel while another caller waits
+		assertTrue(call[0] != leader.cancellation);
+		leader.cancellation.cancel();
+		assertFalse(call[0].isCancelled());
+
+		waiter.cancellation.cancel();
+		assertTrue(call[0].isCancelled());
+
+		leader.join();
+		waiter.join();
+		assertEquals("aborted", leader.result);
+		assertFalse(singleFlight.isInFlight(ITEM));
+		assertEquals(1, singleFlight.getExecuted());
+
+	}
+
+	/**
+	 * Executes a call on its own thread, bound to a cancellation of its own
+	 */
+	private static class Caller extends Thread {
+
+		private final SingleFlight<String> singleFlight;
+
+		private final Callable<String> fetch;
+
+		private final Cancellation cancellation = new Cancellation();
+
+		private volatile String result;
+
+		Caller(SingleFlight<String> singleFlight, Callable<String> fetch) {
+			this.singleFlight = singleFlight;
+			this.fetch = fetch;
+		}
+
+		@Override
+		public void run() {
+			Cancellation.bind(cancellation);
+			try {
+				result = singleFlight.execute(ITEM, fetch);
+			} catch (IOException e) {
+				result = e.getMessage();
+			} finally {
+				Cancellation.bind(null);
+			}
+		}
+
+	}
+
+	/**
+	 * Starts a call for the item which is in flight until the returned latch
+	 * is released
+	 */
+	private static CountDownLatch startStalledCall(
+			final SingleFlight<String> singleFlight) throws Exception {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					singleFlight.execute(ITEM, new Callable<String>() {
+						public String call() throws Exception {
+							started.countDown();
+							release.await();
+							return "model";
+						}
+					});
+				} catch (IOException e) {
+					// not expected
+				}
+			}
+		}.start();
+
+		started.await();
+		return release;
+
+	}
+
+}
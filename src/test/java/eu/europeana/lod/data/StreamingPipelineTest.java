@@ -0,0 +1,173 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.util.iterator.Filter;
+
+import eu.europeana.lod.rdf.BlankNodeFilter;
+import eu.europeana.lod.rdf.BlankNodeRules;
+import eu.europeana.lod.rdf.NTriplesStreamWriter;
+import eu.europeana.lod.rdf.RDFXMLStreamParser;
+
+/**
+ * This class verifies that the streaming data path (RDF/XML parser, blank
+ * node filter, N-Triples writer) produces the same graph as the model based
+ * path
+ * 
+ * @author agent
+ * 
+ */
+public class StreamingPipelineTest {
+
+	private static final String EDM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+			+ "  xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n"
+			+ "  xmlns:ore=\"http://www.openarchives.org/ore/terms/\">\n"
+			+ "  <ore:Proxy rdf:about=\"http://data.europeana.eu/proxy/provider/00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154\">\n"
+			+ "    <dc:title xml:lang=\"de\">Straße in \"Wien\"\n2. Bezirk</dc:title>\n"
+			+ "    <dc:date rdf:datatype=\"http://www.w3.org/2001/XMLSchema#gYear\">1911</dc:date>\n"
+			+ "    <dc:creator rdf:parseType=\"Resource\"><dc:title>anonymous</dc:title></dc:creator>\n"
+			+ "    <ore:proxyFor rdf:resource=\"http://data.europeana.eu/item/00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154\"/>\n"
+			+ "  </ore:Proxy>\n" + "</rdf:RDF>\n";
+
+	@Test
+	public void testStreamedGraph() throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NTriplesStreamWriter writer = new NTriplesStreamWriter(out);
+
+		RDFXMLStreamParser.parse(new ByteArrayInputStream(EDM
+				.getBytes("UTF-8")), null, new BlankNodeFilter(writer));
+		writer.flush();
+
+		// the output is plain ASCII
+		String nTriples = out.toString("US-ASCII");
+		for (int i = 0; i < nTriples.length(); i++) {
+			assertTrue(nTriples.charAt(i) < 128);
+		}
+
+		Model streamed = ModelFactory.createDefaultModel();
+		streamed.read(new StringReader(nTriples), null, "N-TRIPLES");
+
+		Model expected = ModelFactory.createDefaultModel();
+		expected.read(new StringReader(EDM), null);
+		expected.remove(expected.listStatements().filterKeep(
+				new Filter<Statement>() {
+					@Override
+					public boolean accept(Statement stmt) {
+						return stmt.getObject().isAnon();
+					}
+				}).toList());
+
+		// the blank node object is dropped, its description is kept
+		assertEquals(5, writer.getTripleCount());
+		assertTrue(streamed.isIsomorphicWith(expected));
+
+	}
+
+	@Test
+	public void testSkolemizedBlankNodes() throws Exception {
+
+		BlankNodeRules rules = BlankNodeRules.valueOf("skolemize",
+				"http://data.europeana.eu/.well-known/genid/");
+
+		String first = stream(rules);
+
+		// all 6 triples, without blank nodes
+		assertEquals(6, first.split("\n").length);
+		assertFalse(first.contains("_:"));
+		assertTrue(first.contains("<http://data.europeana.eu/.well-known/genid/"));
+
+		// the skolem IRIs are stable across parses
+		assertEquals(first, stream(rules));
+
+	}
+
+	@Test
+	public void testBatchSkolemScopes() throws Exception {
+
+		BlankNodeRules rules = BlankNodeRules.valueOf("skolemize",
+				"http://data.europeana.eu/.well-known/genid/");
+		String proxy1 = "http://data.europeana.eu/proxy/provider/00000/1";
+		String proxy2 = "http://data.europeana.eu/proxy/provider/00000/2";
+
+		// the blank node of the second proxy is described before it is
+		// linked, as with rdf:nodeID
+		String batch = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+				+ "  xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n"
+				+ "  <rdf:Description rdf:nodeID=\"c2\"><dc:title>second</dc:title></rdf:Description>\n"
+				+ "  <rdf:Description rdf:about=\"" + proxy1 + "\">\n"
+				+ "    <dc:creator rdf:parseType=\"Resource\"><dc:title>first</dc:title></dc:creator>\n"
+				+ "  </rdf:Description>\n"
+				+ "  <rdf:Description rdf:about=\"" + proxy2 + "\">\n"
+				+ "    <dc:creator rdf:nodeID=\"c2\"/>\n"
+				+ "  </rdf:Description>\n" + "</rdf:RDF>\n";
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NTriplesStreamWriter writer = new NTriplesStreamWriter(out);
+		BlankNodeRules.BatchHandler handler = rules.applyBatch(proxy1, writer);
+		RDFXMLStreamParser.parse(new ByteArrayInputStream(batch
+				.getBytes("UTF-8")), null, handler);
+		handler.finish();
+		writer.flush();
+
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader(out.toString("US-ASCII")), null,
+				"N-TRIPLES");
+		assertEquals(4, model.size());
+
+		// each creator is scoped by its own proxy
+		Property creator = model
+				.createProperty("http://purl.org/dc/elements/1.1/creator");
+		Property title = model
+				.createProperty("http://purl.org/dc/elements/1.1/title");
+		Resource creator1 = model.getResource(proxy1).getPropertyResourceValue(
+				creator);
+		Resource creator2 = model.getResource(proxy2).getPropertyResourceValue(
+				creator);
+		assertEquals(rules.getSkolemPrefix(proxy1) + 1, creator1.getURI());
+		assertEquals(rules.getSkolemPrefix(proxy2) + 1, creator2.getURI());
+		assertEquals("first", creator1.getProperty(title).getString());
+		assertEquals("second", creator2.getProperty(title).getString());
+
+	}
+
+	@Test
+	public void testKeptBlankNodes() throws Exception {
+
+		String nTriples = stream(BlankNodeRules.valueOf("keep", null));
+
+		assertEquals(6, nTriples.split("\n").length);
+		assertTrue(nTriples.contains("_:"));
+
+	}
+
+	private static String stream(BlankNodeRules rules) throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NTriplesStreamWriter writer = new NTriplesStreamWriter(out);
+
+		RDFXMLStreamParser.parse(new ByteArrayInputStream(EDM
+				.getBytes("UTF-8")), null, rules.apply(
+				"http://data.europeana.eu/item/00000/1", writer));
+		writer.flush();
+
+		return out.toString("US-ASCII");
+
+	}
+
+}
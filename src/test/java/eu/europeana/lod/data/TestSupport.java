@@ -0,0 +1,140 @@
+package eu.europeana.lod.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+
+import eu.europeana.lod.store.DumpStoreBuilder;
+
+/**
+ * Fixtures shared by the servlet tests: temporary directories, a small dump
+ * store, the servlet running on it, and plain HTTP requests
+ *
+ * @author agent
+ *
+ */
+final class TestSupport {
+
+	static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private TestSupport() {
+	}
+
+	/**
+	 * Creates a new, empty temporary directory
+	 */
+	static File createTempDirectory(String prefix) throws IOException {
+
+		File directory = File.createTempFile(prefix, "");
+		directory.delete();
+		if (!directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		return directory;
+
+	}
+
+	/**
+	 * Deletes a file or a directory with all its contents
+	 */
+	static void delete(File file) {
+
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+
+	}
+
+	/**
+	 * Builds a dump store in a new temporary directory, describing a given
+	 * number of items by an English title each
+	 */
+	static File buildDumpStore(String prefix, int items) throws IOException {
+
+		File directory = createTempDirectory(prefix);
+
+		DumpStoreBuilder builder = new DumpStoreBuilder(directory);
+		for (int i = 0; i < items; i++) {
+			builder.add("<" + ITEM + i
+					+ "> <http://purl.org/dc/elements/1.1/title> \"Item " + i
+					+ "\"@en .");
+		}
+		builder.build();
+
+		return directory;
+
+	}
+
+	/**
+	 * Adds the servlet serving a given dump store to the root context of a
+	 * tester; further init parameters can be set until the tester is started
+	 */
+	static ServletHolder addDumpStoreServlet(ServletTester tester,
+			File directory) {
+
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		holder.setInitParameter("store", "dump");
+		holder.setInitParameter("storeDir", directory.getPath());
+		return holder;
+
+	}
+
+	/**
+	 * Prepares a GET request accepting a given content type; redirects are
+	 * not followed
+	 */
+	static HttpURLConnection get(String url, String accept) throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(url)
+				.openConnection();
+		connection.setInstanceFollowRedirects(false);
+		connection.setRequestProperty("Accept", accept);
+		return connection;
+
+	}
+
+	/**
+	 * Prepares a batch request for given resources, separated by whitespace
+	 */
+	static HttpURLConnection postBatch(String baseURL, String accept,
+			String body) throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseURL
+				+ EuropeanaRequest.BATCH_PATH).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Accept", accept);
+		connection.setRequestProperty("Content-Type", "text/plain");
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		out.write(body.getBytes("UTF-8"));
+		out.close();
+		return connection;
+
+	}
+
+	/**
+	 * Sends a GET request accepting RDF/XML and returns the status code
+	 */
+	static int getStatus(String url) throws IOException {
+
+		HttpURLConnection connection = get(url, "application/rdf+xml");
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+
+	}
+
+}
@@ -0,0 +1,219 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import eu.europeana.lod.metrics.RequestMetrics;
+import eu.europeana.lod.trace.Trace;
+import eu.europeana.lod.trace.TraceWriter;
+
+/**
+ * This class verifies that sampled requests are traced with their ID, upstream
+ * calls, status and size, and that traces are written without blocking
+ * 
+ * @author agent
+ * 
+ */
+public class TracingTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/";
+
+	private File traceFile;
+
+	private ServletTester tester;
+
+	private String baseURL;
+
+	@Before
+	public void setUp() throws Exception {
+
+		traceFile = File.createTempFile("europeana-lod-trace", ".log");
+
+		tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		tester.addServlet(ResourceServlet.class, "/resource");
+		baseURL = tester.createSocketConnector(true);
+		holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+		holder.setInitParameter("traceSampleRate", "0.5");
+		holder.setInitParameter("traceFile", traceFile.getPath());
+		tester.start();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tester.stop();
+		traceFile.delete();
+	}
+
+	@Test
+	public void testSampledTraces() throws Exception {
+
+		List<String> requestIds = new ArrayList<String>();
+		for (int i = 1; i <= 4; i++) {
+			HttpURLConnection connection = TestSupport.get(baseURL
+					+ "/data/item/00000/" + i, "application/rdf+xml");
+			assertEquals(200, connection.getResponseCode());
+			read(connection);
+			String requestId = connection.getHeaderField("X-Request-Id");
+			assertNotNull(requestId);
+			requestIds.add(requestId);
+		}
+
+		// requests are traced once their response has been sent, and traces
+		// are flushed once the writer is idle
+		List<String> traces = readLines(traceFile);
+		for (int i = 0; i < 100 && traces.size() < 2; i++) {
+			Thread.sleep(20);
+			traces = readLines(traceFile);
+		}
+		assertEquals(2, traces.size());
+
+		// every second request is sampled
+		String trace = traces.get(0);
+		assertTrue(trace.contains(" id=" + requestIds.get(1) + " "));
+		assertTrue(trace.contains(" GET /data/item/00000/2 "));
+		assertTrue(trace.contains(" status=200 "));
+		assertTrue(trace.contains(" upstream=[GET " + baseURL
+				+ "/resource?uri=http%3A%2F%2Fdata.europeana.eu%2Fitem%2F00000%2F2 200 "));
+		assertTrue(trace.contains("rdf_parse:"));
+		assertTrue(!trace.contains(" bytes=0 "));
+		assertTrue(traces.get(1).contains(" id=" + requestIds.get(3) + " "));
+
+	}
+
+	@Test
+	public void testDroppedTraces() throws Exception {
+
+		// a writer that blocks until released
+		final Object lock = new Object();
+		final StringWriter out = new StringWriter() {
+			@Override
+			public void write(String str) {
+				synchronized (lock) {
+					super.write(str);
+				}
+			}
+		};
+
+		TraceWriter writer = new TraceWriter(out, 2);
+
+		int written = 0;
+		synchronized (lock) {
+			for (int i = 0; i < 10; i++) {
+				Trace trace = new Trace("id" + i, "GET", "/item/00000/" + i,
+						null);
+				trace.finish(new RequestMetrics(), 303, 0);
+				if (writer.write(trace)) {
+					written++;
+				}
+			}
+		}
+		writer.close();
+
+		// the queue holds two traces, the blocked writer thread a few more
+		assertTrue(written >= 2 && written <= 5);
+		assertEquals(10 - written, writer.getDropped());
+		assertTrue(out.toString().contains("id=id0 "));
+
+	}
+
+	@Test
+	public void testClose() throws Exception {
+
+		for (boolean closeOut : new boolean[] { false, true }) {
+
+			final boolean[] closed = { false };
+			StringWriter out = new StringWriter() {
+				@Override
+				public void close() throws IOException {
+					closed[0] = true;
+				}
+			};
+
+			TraceWriter writer = new TraceWriter(out, 2, closeOut);
+			Trace trace = new Trace("id0", "GET", "/item/00000/0", null);
+			trace.finish(new RequestMetrics(), 303, 0);
+			assertTrue(writer.write(trace));
+			writer.close();
+
+			// written before the writer is closed
+			assertTrue(out.toString().contains("id=id0 "));
+			assertEquals(closeOut, closed[0]);
+		}
+
+	}
+
+	private static void read(HttpURLConnection connection) throws IOException {
+		InputStream in = connection.getInputStream();
+		while (in.read() >= 0) {
+		}
+		in.close();
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		return lines;
+
+	}
+
+	/**
+	 * Answers resource service requests with a title for the resource
+	 */
+	public static class ResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			Model model = ModelFactory.createDefaultModel();
+			model.createResource(req.getParameter("uri")).addProperty(
+					model.createProperty("http://purl.org/dc/elements/1.1/title"),
+					"Title");
+
+			resp.setContentType("application/rdf+xml");
+			model.write(resp.getOutputStream());
+
+		}
+
+	}
+
+}
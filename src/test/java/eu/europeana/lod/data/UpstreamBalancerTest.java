@@ -0,0 +1,158 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.europeana.lod.upstream.UpstreamBalancer;
+import eu.europeana.lod.upstream.UpstreamClient;
+import eu.europeana.lod.upstream.UpstreamResponse;
+
+/**
+ * This class verifies that the upstream balancer retries failed requests on
+ * another replica and ejects failing replicas
+ *
+ * @author agent
+ *
+ */
+public class UpstreamBalancerTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/E2AAA3C6DF09F9FAA6F951FC4C4A9CC80B5D4154";
+
+	private ServletTester healthy;
+
+	private ServletTester failing;
+
+	private String healthyEndpoint;
+
+	private String failingEndpoint;
+
+	@Before
+	public void setUp() throws Exception {
+
+		healthy = new ServletTester();
+		healthy.addServlet(HealthyResourceServlet.class, "/resource");
+		healthyEndpoint = healthy.createSocketConnector(true) + "/sparql";
+		healthy.start();
+
+		failing = new ServletTester();
+		failing.addServlet(FailingResourceServlet.class, "/resource");
+		failingEndpoint = failing.createSocketConnector(true) + "/sparql";
+		failing.start();
+
+		FailingResourceServlet.requests = 0;
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		healthy.stop();
+		failing.stop();
+	}
+
+	@Test
+	public void testRetryOnOtherReplica() throws Exception {
+
+		UpstreamBalancer balancer = createBalancer(1, 100);
+		try {
+			for (int i = 0; i < 10; i++) {
+				UpstreamResponse response = balancer.describe(ITEM,
+						"application/rdf+xml");
+				assertEquals(200, response.getStatus());
+				response.close();
+			}
+		} finally {
+			balancer.close();
+		}
+
+	}
+
+	@Test
+	public void testFailingReplicaIsEjected() throws Exception {
+
+		UpstreamBalancer balancer = createBalancer(1, 1);
+		try {
+			for (int i = 0; i < 20; i++) {
+				UpstreamResponse response = balancer.describe(ITEM,
+						"application/rdf+xml");
+				assertEquals(200, response.getStatus());
+				response.close();
+			}
+			// ejected after its first failure
+			assertTrue(FailingResourceServlet.requests <= 1);
+		} finally {
+			balancer.close();
+		}
+
+	}
+
+	@Test
+	public void testLastFailureIsReturned() throws Exception {
+
+		List<UpstreamClient> clients = new ArrayList<UpstreamClient>();
+		clients.add(new UpstreamClient(failingEndpoint, 1000, 1000, 2));
+		UpstreamBalancer balancer = new UpstreamBalancer(clients, 1, 3, 60000);
+		try {
+			UpstreamResponse response = balancer.describe(ITEM,
+					"application/rdf+xml");
+			assertEquals(503, response.getStatus());
+			response.close();
+		} finally {
+			balancer.close();
+		}
+
+	}
+
+	private UpstreamBalancer createBalancer(int retries, int maxFailures) {
+
+		List<UpstreamClient> clients = new ArrayList<UpstreamClient>();
+		clients.add(new UpstreamClient(healthyEndpoint, 1000, 1000, 2));
+		clients.add(new UpstreamClient(failingEndpoint, 1000, 1000, 2));
+
+		return new UpstreamBalancer(clients, retries, maxFailures, 60000);
+
+	}
+
+	public static class HealthyResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+			resp.setContentType("application/rdf+xml");
+			resp.getWriter().write(
+					"<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"/>");
+		}
+
+	}
+
+	public static class FailingResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		static volatile int requests = 0;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+			requests++;
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+
+	}
+
+}
@@ -0,0 +1,103 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.Test;
+
+/**
+ * This class verifies that data requests failing because of the upstream
+ * endpoint are answered with 502 Bad Gateway rather than 500, both on the
+ * request thread and on the data executor
+ *
+ * @author agent
+ *
+ */
+public class UpstreamErrorTest {
+
+	@Test
+	public void testErrorStatus() throws Exception {
+
+		for (String asyncData : new String[] { "false", "true" }) {
+
+			ServletTester tester = new ServletTester();
+			tester.setContextPath("/");
+			ServletHolder holder = tester.addServlet(
+					EuropeanaLODServlet.class, "/*");
+			tester.addServlet(FailingResourceServlet.class, "/resource");
+			String baseURL = tester.createSocketConnector(true);
+			holder.setInitParameter("sparqlEndpoint", baseURL + "/sparql");
+			holder.setInitParameter("asyncData", asyncData);
+			tester.start();
+
+			try {
+				assertEquals(asyncData, 502, TestSupport.getStatus(baseURL
+						+ "/data/item/00000/error"));
+				assertEquals(asyncData, 200, TestSupport.getStatus(baseURL
+						+ "/data/item/00000/1"));
+			} finally {
+				tester.stop();
+			}
+		}
+
+	}
+
+	@Test
+	public void testConnectionRefused() throws Exception {
+
+		// a port nobody listens on
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+
+		ServletTester tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		String baseURL = tester.createSocketConnector(true);
+		holder.setInitParameter("sparqlEndpoint", "http://localhost:" + port
+				+ "/sparql");
+		tester.start();
+
+		try {
+			assertEquals(502, TestSupport.getStatus(baseURL
+					+ "/data/item/00000/1"));
+		} finally {
+			tester.stop();
+		}
+
+	}
+
+	/**
+	 * Describes each resource by a title; fails with 500 for resources
+	 * ending in "error"
+	 */
+	public static class FailingResourceServlet extends
+			TracingTest.ResourceServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			if (req.getParameter("uri").endsWith("error")) {
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				return;
+			}
+			super.doGet(req, resp);
+
+		}
+
+	}
+
+}
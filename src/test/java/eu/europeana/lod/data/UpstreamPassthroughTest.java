@@ -0,0 +1,297 @@
+package eu.europeana.lod.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.testing.ServletTester;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * This class verifies that N-Triples descriptions are relayed from the
+ * upstream endpoint line by line, with the blank node rules applied, and
+ * that other formats are parsed
+ *
+ * @author agent
+ *
+ */
+public class UpstreamPassthroughTest {
+
+	private static final String ITEM = "http://data.europeana.eu/item/00000/1";
+
+	private static final String EMPTY = "http://data.europeana.eu/item/00000/2";
+
+	private static final String TITLE = "<" + ITEM
+			+ ">\t<http://purl.org/dc/elements/1.1/title>\t\"Ansicht\"@de .\n";
+
+	private static final String SPATIAL = "<" + ITEM
+			+ ">\t<http://purl.org/dc/terms/spatial>\t_:b0 .\n";
+
+	private static final String LAT = "_:b0\t<http://www.w3.org/2003/01/geo/wgs84_pos#lat>\t\"48.19\" .\n";
+
+	private static final String NTRIPLES = "# upstream\n" + TITLE + SPATIAL
+			+ LAT;
+
+	private static final String RDFXML = "<?xml version=\"1.0\"?>\n"
+			+ "<!-- upstream -->\n"
+			+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+			+ "    xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n"
+			+ "  <rdf:Description rdf:about=\"" + ITEM + "\">\n"
+			+ "    <dc:title xml:lang=\"de\">Ansicht</dc:title>\n"
+			+ "  </rdf:Description>\n" + "</rdf:RDF>\n";
+
+	private static final String EMPTY_RDFXML = "<?xml version=\"1.0\"?>\n"
+			+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"/>\n";
+
+	private ServletTester endpoint;
+
+	private String sparqlEndpoint;
+
+	private ServletTester tester;
+
+	@Before
+	public void setUp() throws Exception {
+
+		ResourceServlet.honourAccept = true;
+		ResourceServlet.ntriplesOnly = false;
+
+		endpoint = new ServletTester();
+		endpoint.addServlet(ResourceServlet.class, "/resource");
+		sparqlEndpoint = endpoint.createSocketConnector(true) + "/sparql";
+		endpoint.start();
+
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		if (tester != null) {
+			tester.stop();
+		}
+		endpoint.stop();
+
+	}
+
+	@Test
+	public void testNTriplesRelay() throws Exception {
+
+		String baseURL = start("drop");
+
+		// the line with a blank node object is dropped, the others are
+		// relayed as they are
+		HttpURLConnection connection = TestSupport.get(baseURL
+				+ "/data/item/00000/1", "text/n3");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(TITLE + LAT, read(connection.getInputStream()));
+		assertTrue(connection.getHeaderField("Vary").contains("Accept"));
+
+		tester.stop();
+		baseURL = start("skolemize");
+
+		connection = TestSupport.get(baseURL + "/data/item/00000/1", "text/n3");
+		assertEquals(200, connection.getResponseCode());
+		String body = read(connection.getInputStream());
+		assertTrue(body.startsWith(TITLE));
+		assertFalse(body.contains("_:"));
+
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader(body), null, "N-TRIPLE");
+		assertEquals(3, model.size());
+		String skolem = model.listObjectsOfProperty(
+				model.createProperty("http://purl.org/dc/terms/spatial"))
+				.next().asResource().getURI();
+		assertTrue(skolem.endsWith("-1"));
+		assertTrue(model.containsResource(model.createResource(skolem)));
+
+	}
+
+	@Test
+	public void testRDFXMLParsed() throws Exception {
+
+		String baseURL = start("keep");
+
+		// RDF/XML is parsed and written again rather than relayed
+		HttpURLConnection connection = TestSupport.get(baseURL
+				+ "/data/item/00000/1", "application/rdf+xml");
+		assertEquals(200, connection.getResponseCode());
+		String body = read(connection.getInputStream());
+		assertFalse(body.contains("<!-- upstream -->"));
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader(body), null);
+		assertEquals(1, model.size());
+
+		assertEquals(404, TestSupport.getStatus(baseURL
+				+ "/data/item/00000/missing"));
+
+	}
+
+	@Test
+	public void testEmptyDescription() throws Exception {
+
+		String baseURL = start("keep");
+
+		assertEquals(404, TestSupport.getStatus(baseURL + "/data/item/00000/2"));
+		assertEquals(404, TestSupport.get(baseURL + "/data/item/00000/2",
+				"text/n3").getResponseCode());
+		assertEquals(404, TestSupport.get(baseURL + "/data/item/00000/2",
+				"text/turtle").getResponseCode());
+
+	}
+
+	@Test
+	public void testETag() throws Exception {
+
+		// relayed and parsed descriptions are cached with the same tag
+		ResourceServlet.ntriplesOnly = true;
+		String relayed = getCachedETag(start("keep", true));
+		tester.stop();
+		String parsed = getCachedETag(start("keep", false));
+
+		assertNotNull(relayed);
+		assertEquals(parsed, relayed);
+
+	}
+
+	@Test
+	public void testFallback() throws Exception {
+
+		ResourceServlet.honourAccept = false;
+
+		String baseURL = start("keep");
+
+		// the endpoint answers in RDF/XML, which is parsed and written again
+		HttpURLConnection connection = TestSupport.get(baseURL
+				+ "/data/item/00000/1", "text/n3");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("<" + ITEM + "> <http://purl.org/dc/elements/1.1/title> "
+				+ "\"Ansicht\"@de .\n", read(connection.getInputStream()));
+
+		connection = TestSupport.get(baseURL + "/data/item/00000/1",
+				"text/turtle");
+		assertEquals(200, connection.getResponseCode());
+		Model model = ModelFactory.createDefaultModel();
+		model.read(connection.getInputStream(), null, "TURTLE");
+		assertEquals(1, model.size());
+
+	}
+
+	private String start(String blankNodes) throws Exception {
+		return start(blankNodes, true);
+	}
+
+	private String start(String blankNodes, boolean passthrough)
+			throws Exception {
+
+		tester = new ServletTester();
+		tester.setContextPath("/");
+		ServletHolder holder = tester.addServlet(EuropeanaLODServlet.class,
+				"/*");
+		holder.setInitParameter("sparqlEndpoint", sparqlEndpoint);
+		holder.setInitParameter("blankNodes", blankNodes);
+		holder.setInitParameter("upstreamPassthrough", String
+				.valueOf(passthrough));
+		String baseURL = tester.createSocketConnector(true);
+		tester.start();
+		return baseURL;
+
+	}
+
+	/**
+	 * Returns the entity tag of an N-Triples description, as cached by the
+	 * first request
+	 */
+	private static String getCachedETag(String baseURL) throws IOException {
+
+		HttpURLConnection connection = TestSupport.get(baseURL
+				+ "/data/item/00000/1", "text/n3");
+		assertEquals(200, connection.getResponseCode());
+		read(connection.getInputStream());
+
+		connection = TestSupport.get(baseURL + "/data/item/00000/1", "text/n3");
+		assertEquals(200, connection.getResponseCode());
+		read(connection.getInputStream());
+		return connection.getHeaderField("ETag");
+
+	}
+
+	private static String read(InputStream in) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return new String(out.toByteArray(), "UTF-8");
+
+	}
+
+	/**
+	 * Serves the description of a single item as N-Triples, Turtle or
+	 * RDF/XML, or always in one format if it ignores the Accept header
+	 */
+	public static class ResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		static volatile boolean honourAccept = true;
+
+		static volatile boolean ntriplesOnly = false;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws ServletException, IOException {
+
+			String accept = req.getHeader("Accept");
+			if (EMPTY.equals(req.getParameter("uri"))) {
+				if (honourAccept && accept.startsWith("application/n-triples")) {
+					resp.setContentType("application/n-triples; charset=UTF-8");
+					resp.getOutputStream().write("# upstream\n".getBytes("UTF-8"));
+				} else {
+					resp.setContentType("application/rdf+xml; charset=UTF-8");
+					resp.getOutputStream().write(EMPTY_RDFXML.getBytes("UTF-8"));
+				}
+				return;
+			}
+
+			if (!ITEM.equals(req.getParameter("uri"))) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			if (ntriplesOnly || honourAccept
+					&& accept.startsWith("application/n-triples")) {
+				resp.setContentType("application/n-triples; charset=UTF-8");
+				resp.getOutputStream().write(NTRIPLES.getBytes("UTF-8"));
+			} else if (honourAccept && accept.startsWith("text/turtle")) {
+				resp.setContentType("text/turtle; charset=UTF-8");
+				resp.getOutputStream().write(NTRIPLES.getBytes("UTF-8"));
+			} else {
+				resp.setContentType("application/rdf+xml; charset=UTF-8");
+				resp.getOutputStream().write(RDFXML.getBytes("UTF-8"));
+			}
+
+		}
+
+	}
+
+}